@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.util.PersonDaoFactory;
+import com.makotojava.learn.jaxrs.util.PersonGenerator;
+
+/**
+ * Benchmarks the PersonDao hot paths for each data store engine, at
+ * store sizes from 10 to 10M Person objects.
+ *
+ * Filling the "list" engine is quadratic (every add scans the store for a
+ * duplicate), so leave out its bigger sizes, e.g.:
+ * -p engine=list -p size=10,1000,100000
+ *
+ * To see how writes scale with cores, run mixedReadWrite at increasing
+ * thread counts, e.g.:
+ * mixedReadWrite -p engine=indexed,sharded -p size=100000 -t 1,2,4,8 -bm thrpt
+ *
+ * @author sperry
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx8g" })
+public class PersonDaoBenchmark {
+
+  @Param({ PersonDaoFactory.ENGINE_LIST, PersonDaoFactory.ENGINE_INDEXED, PersonDaoFactory.ENGINE_MAPPED,
+      PersonDaoFactory.ENGINE_COLUMNAR, PersonDaoFactory.ENGINE_SHARDED })
+  public String engine;
+
+  @Param({ "10", "1000", "100000", "1000000", "10000000" })
+  public int size;
+
+  private PersonDao personDao;
+
+  /**
+   * Person objects added during the benchmark get a unique first name
+   * from this, so none of them is a duplicate.
+   */
+  private final AtomicLong uniquifier = new AtomicLong();
+
+  @Setup
+  public void setUp() {
+    personDao = PersonDaoFactory.createPersonDao(engine);
+    for (int aa = 0; aa < size; aa++) {
+      personDao.addPerson(createUniquePerson());
+    }
+  }
+
+  @Benchmark
+  public Person findById() {
+    return personDao.findById(randomId());
+  }
+
+  @Benchmark
+  public List<Person> findAllByLastName() {
+    return personDao.findAllByLastName(PersonGenerator.createPerson().getLastName());
+  }
+
+  /**
+   * Adds a Person. The store grows as the benchmark runs, which matters
+   * only at the smallest sizes.
+   */
+  @Benchmark
+  public Person addPerson() {
+    return personDao.addPerson(createUniquePerson());
+  }
+
+  /**
+   * Adds a Person and deletes them again, so the store stays the same size.
+   */
+  @Benchmark
+  public Person addThenDeletePerson() {
+    return personDao.deletePerson(personDao.addPerson(createUniquePerson()));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Person findByIdContended() {
+    return personDao.findById(randomId());
+  }
+
+  /**
+   * Mixed read/write load: three readers per writer.
+   */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public Person mixedFindById() {
+    return personDao.findById(randomId());
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Person mixedAddThenDeletePerson() {
+    return personDao.deletePerson(personDao.addPerson(createUniquePerson()));
+  }
+
+  /**
+   * Mixed read/write load for scaling runs: each call is a find by ID
+   * three times out of four, and an add and delete the rest of the time.
+   * Run it with -t at several thread counts.
+   */
+  @Benchmark
+  public Person mixedReadWrite() {
+    Person ret;
+    if (ThreadLocalRandom.current().nextInt(4) == 0) {
+      ret = personDao.deletePerson(personDao.addPerson(createUniquePerson()));
+    } else {
+      ret = personDao.findById(randomId());
+    }
+    return ret;
+  }
+
+  private long randomId() {
+    return ThreadLocalRandom.current().nextLong(size) + 1;
+  }
+
+  private Person createUniquePerson() {
+    Person person = PersonGenerator.createPerson();
+    person.setFirstName(person.getFirstName() + uniquifier.incrementAndGet());
+    return person;
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.util.PersonGenerator;
+import com.makotojava.learn.jaxrs.web.ObjectMapperHolder;
+import com.makotojava.learn.jaxrs.web.PersonBinaryFormat;
+import com.makotojava.learn.jaxrs.web.PersonJsonFormat;
+
+/**
+ * Benchmarks turning Person objects into JSON, the way PersonService
+ * responses get written (with Jackson, and with the hand-tuned
+ * PersonJsonFormat), and reading them back the way request bodies get
+ * read, against the same in the compact binary format.
+ *
+ * The *Stream benchmarks write to a stream that throws the bytes away, as
+ * a response would, so run them with -prof gc to see that the hand-tuned
+ * writer allocates nothing.
+ *
+ * @author sperry
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonJsonBenchmark {
+
+  /**
+   * How many Person objects in the List benchmarks.
+   */
+  @Param({ "100" })
+  public int listSize;
+
+  /**
+   * Stands in for the response: takes the bytes, and does nothing with them.
+   */
+  private static final OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  private ObjectMapper objectMapper;
+  private ObjectReader personListReader;
+  private Person person;
+  private List<Person> persons;
+  private byte[] personListJson;
+  private byte[] personListBinary;
+
+  @Setup
+  public void setUp() throws IOException {
+    objectMapper = ObjectMapperHolder.getObjectMapper();
+    personListReader = objectMapper.reader(new TypeReference<List<Person>>() {
+    });
+    person = createPerson(1);
+    persons = new ArrayList<>(listSize);
+    for (int aa = 0; aa < listSize; aa++) {
+      persons.add(createPerson(aa + 1));
+    }
+    personListJson = objectMapper.writeValueAsBytes(persons);
+    personListBinary = binaryPersonList();
+  }
+
+  @Benchmark
+  public byte[] jacksonPerson() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(person);
+  }
+
+  @Benchmark
+  public byte[] jacksonPersonList() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(persons);
+  }
+
+  @Benchmark
+  public void jacksonPersonListStream() throws IOException {
+    // Jersey's Jackson provider writes with a generator it doesn't let close the stream
+    objectMapper.writeValue(NULL_OUTPUT, persons);
+  }
+
+  @Benchmark
+  public byte[] handTunedPerson() {
+    return PersonJsonFormat.toBytes(person);
+  }
+
+  @Benchmark
+  public byte[] handTunedPersonList() {
+    return PersonJsonFormat.toBytes(persons);
+  }
+
+  @Benchmark
+  public void handTunedPersonStream() throws IOException {
+    PersonJsonFormat.write(NULL_OUTPUT, person);
+  }
+
+  @Benchmark
+  public void handTunedPersonListStream() throws IOException {
+    PersonJsonFormat.writeAll(NULL_OUTPUT, persons);
+  }
+
+  @Benchmark
+  public List<Person> jacksonReadPersonList() throws IOException {
+    return personListReader.readValue(personListJson);
+  }
+
+  @Benchmark
+  public byte[] binaryPerson() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    PersonBinaryFormat.write(out, person);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] binaryPersonList() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * listSize);
+    PersonBinaryFormat.writeAll(out, persons);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public List<Person> binaryReadPersonList() throws IOException {
+    return PersonBinaryFormat.readAll(new ByteArrayInputStream(personListBinary));
+  }
+
+  private static Person createPerson(long id) {
+    return PersonGenerator.createPerson().setId(id).setWhenCreated(new Date());
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.makotojava.learn.jaxrs.dao;
 
+import java.util.List;
+
 import com.makotojava.learn.jaxrs.model.Person;
 
 public interface PersonDao extends PersonFinder {
@@ -37,4 +39,73 @@ public interface PersonDao extends PersonFinder {
    */
   public Person deletePerson(Person person);
 
+  /**
+   * Updates the specified Person object, but only if the stored one is still
+   * at the expected version. Checking the version and updating are one
+   * atomic step, so of two writers that both read version N, only one wins.
+   * 
+   * @param person
+   *          The Person object with the new field value(s)
+   * @param expectedVersion
+   *          The version the stored Person must be at
+   * 
+   * @return Person - the Person object that was updated or null if the object could not be located.
+   * 
+   * @throws VersionConflictException
+   *           If the stored Person is at a different version
+   */
+  public Person updatePerson(Person person, long expectedVersion);
+
+  /**
+   * Deletes the specified Person object, but only if the stored one is still
+   * at the expected version, in one atomic step.
+   * 
+   * @param person
+   *          The Person object to delete
+   * @param expectedVersion
+   *          The version the stored Person must be at
+   * 
+   * @return Person - the Person object that was deleted or null if the object could not be located.
+   * 
+   * @throws VersionConflictException
+   *           If the stored Person is at a different version
+   */
+  public Person deletePerson(Person person, long expectedVersion);
+
+  /**
+   * Adds the specified Person objects to the DB, in one pass.
+   * 
+   * @param persons
+   *          The Person objects to add.
+   * 
+   * @return List<Person> - one result per Person passed in, in the same
+   *         order: the Person object just added (see {@link #addPerson(Person)}),
+   *         or null if there was a problem with that one.
+   */
+  public List<Person> addPersons(List<Person> persons);
+
+  /**
+   * Updates the specified Person objects, in one pass.
+   * 
+   * @param persons
+   *          The Person objects with the new field value(s)
+   * 
+   * @return List<Person> - one result per Person passed in, in the same
+   *         order: the Person object that was updated, or null if that one
+   *         could not be located.
+   */
+  public List<Person> updatePersons(List<Person> persons);
+
+  /**
+   * Deletes the specified Person objects, in one pass.
+   * 
+   * @param persons
+   *          The Person objects to delete
+   * 
+   * @return List<Person> - one result per Person passed in, in the same
+   *         order: the Person object that was deleted, or null if that one
+   *         could not be deleted.
+   */
+  public List<Person> deletePersons(List<Person> persons);
+
 }
@@ -15,9 +15,15 @@
  */
 package com.makotojava.learn.jaxrs.dao;
 
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
 
 /**
  * The interface obeyed by any Repository claiming to find Person objects.
@@ -46,6 +52,19 @@ public interface PersonFinder {
    */
   public Person findById(Long id);
 
+  /**
+   * Find the Person object equal to the specified one (same names, age,
+   * eye color and gender): the one addPerson() would send back instead of
+   * adding a duplicate.
+   * 
+   * @param person
+   *          The Person object to look for
+   * 
+   * @return Person - the Person object, or null if there is none equal to
+   *         the specified one.
+   */
+  public Person findEqual(Person person);
+
   /**
    * Find all Person objects in the DB with the specified last name.
    * 
@@ -55,4 +74,114 @@ public interface PersonFinder {
    */
   public List<Person> findAllByLastName(String lastName);
 
+  /**
+   * Find all Person objects in the DB that match every criterion of the
+   * specified query, in ID order.
+   *
+   * @param query
+   *          The criteria. Criteria that are not set match everybody.
+   * @return List<Person> - a List of the matching Person objects, or an
+   *         empty List if no matches were found.
+   */
+  public List<Person> findByQuery(PersonQuery query);
+
+  /**
+   * Find one page of Person objects, in ID order, without copying
+   * the rest of the data store.
+   * 
+   * @param afterId
+   *          Only Person objects whose ID is greater than this one are
+   *          candidates for the page. Null means start at the beginning.
+   * @param offset
+   *          How many of the candidates to skip.
+   * @param limit
+   *          The most Person objects to return.
+   * 
+   * @return List<Person> - at most limit Person objects, or an empty List
+   *         if there are no more.
+   */
+  public List<Person> findPage(Long afterId, int offset, int limit);
+
+  /**
+   * Iterate over all Person objects, in ID order, straight from the data
+   * store. Nothing is copied up front, so this is the way to walk a large
+   * store. The Iterator does not fail if the store changes underneath it,
+   * but it may or may not see the changes.
+   * 
+   * @return Iterator<Person> - all Person objects in the data store.
+   */
+  public Iterator<Person> iterateAll();
+
+  /**
+   * Iterate over all Person objects in the DB with the specified last name,
+   * the same ones {@link #findAllByLastName(String)} finds.
+   * 
+   * @param lastName
+   * @return Iterator<Person> - the Person objects whose lastName matches the
+   *         specified last name.
+   */
+  public Iterator<Person> iterateAllByLastName(String lastName);
+
+  /**
+   * Count the Person objects in the DB with each eye color.
+   * 
+   * @return Map<EyeColor, Long> - the number of Person objects with each
+   *         eye color. Every eye color has an entry; Person objects with
+   *         no eye color are not counted.
+   */
+  public Map<EyeColor, Long> countByEyeColor();
+
+  /**
+   * Count the Person objects in the DB of each gender.
+   * 
+   * @return Map<Gender, Long> - the number of Person objects of each
+   *         gender. Every gender has an entry; Person objects with no
+   *         gender are not counted.
+   */
+  public Map<Gender, Long> countByGender();
+
+  /**
+   * Returns summary statistics of the Person objects in the DB. The data
+   * store keeps them up to date as it is written, so this does not look
+   * at the Person objects.
+   * 
+   * @return PersonStats - counts by gender and eye color, and the age
+   *         histogram, min, max and mean.
+   */
+  public PersonStats getStats();
+
+  /**
+   * Count the Person objects in the DB with each last name. Like
+   * {@link #getStats()}, this does not look at the Person objects.
+   * 
+   * @return Map<String, Long> - the number of Person objects with each last
+   *         name (exactly as stored), sorted by last name.
+   */
+  public Map<String, Long> countByLastName();
+
+  /**
+   * Returns the version of the data store, which changes every time a
+   * Person is added, updated or deleted. It starts over when the store is
+   * opened, so it only tells apart states of the store since then.
+   * 
+   * @return long - the version of the data store
+   */
+  public long getVersion();
+
+  /**
+   * Returns when the data store last changed, or when it was opened if it
+   * hasn't changed since.
+   * 
+   * @return Date - when the data store last changed
+   */
+  public Date getLastModified();
+
+  /**
+   * Returns the size of the data store, i.e., the number of Person
+   * objects it contains.
+   * 
+   * @return long - The number of Person objects in the data store
+   */
+  public long getRepositorySize();
+
 }
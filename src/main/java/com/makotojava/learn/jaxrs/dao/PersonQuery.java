@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.dao;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * The criteria of a {@link PersonFinder#findByQuery(PersonQuery)} search.
+ * A Person matches if they match every criterion that is set; criteria
+ * that are not set (null) match everybody, so an empty query matches
+ * the whole data store.
+ *
+ * Names match case-insensitively, like
+ * {@link PersonFinder#findAllByLastName(String)}. The age range includes
+ * both ends.
+ *
+ * @author sperry
+ *
+ */
+public class PersonQuery {
+
+  private String lastName;
+  private String firstName;
+  private Integer minAge;
+  private Integer maxAge;
+  private EyeColor eyeColor;
+  private Gender gender;
+
+  public String getLastName() {
+    return lastName;
+  }
+
+  public PersonQuery setLastName(String lastName) {
+    this.lastName = lastName;
+    // Fluent
+    return this;
+  }
+
+  public String getFirstName() {
+    return firstName;
+  }
+
+  public PersonQuery setFirstName(String firstName) {
+    this.firstName = firstName;
+    // Fluent
+    return this;
+  }
+
+  public Integer getMinAge() {
+    return minAge;
+  }
+
+  public PersonQuery setMinAge(Integer minAge) {
+    this.minAge = minAge;
+    // Fluent
+    return this;
+  }
+
+  public Integer getMaxAge() {
+    return maxAge;
+  }
+
+  public PersonQuery setMaxAge(Integer maxAge) {
+    this.maxAge = maxAge;
+    // Fluent
+    return this;
+  }
+
+  public EyeColor getEyeColor() {
+    return eyeColor;
+  }
+
+  public PersonQuery setEyeColor(EyeColor eyeColor) {
+    this.eyeColor = eyeColor;
+    // Fluent
+    return this;
+  }
+
+  public Gender getGender() {
+    return gender;
+  }
+
+  public PersonQuery setGender(Gender gender) {
+    this.gender = gender;
+    // Fluent
+    return this;
+  }
+
+  /**
+   * @return boolean - true if an age range (either end of it) is set
+   */
+  public boolean hasAgeRange() {
+    return minAge != null || maxAge != null;
+  }
+
+  /**
+   * @return int - the lowest age that matches (Integer.MIN_VALUE if there
+   *         is no lower bound)
+   */
+  public int getAgeFrom() {
+    return (minAge == null) ? Integer.MIN_VALUE : minAge;
+  }
+
+  /**
+   * @return int - the highest age that matches (Integer.MAX_VALUE if there
+   *         is no upper bound)
+   */
+  public int getAgeTo() {
+    return (maxAge == null) ? Integer.MAX_VALUE : maxAge;
+  }
+
+  /**
+   * Checks the specified Person against every criterion that is set.
+   *
+   * @param person
+   *          The Person to check
+   *
+   * @return boolean - true if the Person matches the query
+   */
+  public boolean matches(Person person) {
+    return (lastName == null || lastName.equalsIgnoreCase(person.getLastName()))
+        && (firstName == null || firstName.equalsIgnoreCase(person.getFirstName()))
+        && person.getAge() >= getAgeFrom() && person.getAge() <= getAgeTo()
+        && (eyeColor == null || eyeColor == person.getEyeColor())
+        && (gender == null || gender == person.getGender());
+  }
+
+  @Override
+  public String toString() {
+    return "PersonQuery [lastName=" + lastName + ", firstName=" + firstName + ", minAge=" + minAge + ", maxAge="
+        + maxAge + ", eyeColor=" + eyeColor + ", gender=" + gender + "]";
+  }
+
+}
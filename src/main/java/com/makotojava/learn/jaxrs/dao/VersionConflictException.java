@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.dao;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Thrown by a conditional update or delete when the stored Person is not
+ * at the version the caller expected, which means somebody else changed
+ * them first.
+ * 
+ * @author sperry
+ *
+ */
+public class VersionConflictException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient Person current;
+
+  /**
+   * Creates a VersionConflictException.
+   * 
+   * @param current
+   *          The Person as stored now
+   * @param expectedVersion
+   *          The version the caller expected them to be at
+   */
+  public VersionConflictException(Person current, long expectedVersion) {
+    super("Person " + current.getId() + " is at version " + current.getVersion() + ", not " + expectedVersion);
+    this.current = current;
+  }
+
+  /**
+   * @return Person - the Person as stored when the conflict was found
+   */
+  public Person getCurrent() {
+    return current;
+  }
+
+}
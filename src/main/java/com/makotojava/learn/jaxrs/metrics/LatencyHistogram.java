@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: buckets are
+ * linear within each power of two and there are {@value #SUB_BUCKET_COUNT}
+ * of them per power of two, so any recorded value is off by at most
+ * 1/{@value #SUB_BUCKET_COUNT} (about 3%), from 1 nanosecond all the way
+ * up to Long.MAX_VALUE. Recording a value is two atomic adds.
+ *
+ * @author sperry
+ *
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Records one latency.
+   *
+   * @param nanos
+   *          The latency, in nanoseconds. Negative values count as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * @return long - how many latencies have been recorded
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return long - the sum of all latencies recorded, in nanoseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the latency at the specified quantile, e.g., 0.99 for p99.
+   *
+   * @param quantile
+   *          Between 0 and 1.
+   *
+   * @return long - the latency in nanoseconds (the top of the bucket the
+   *         quantile falls in), or 0 if nothing has been recorded.
+   */
+  public long getValueAtQuantile(double quantile) {
+    long ret = 0;
+    long total = 0;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int aa = 0; aa < BUCKET_COUNT; aa++) {
+      snapshot[aa] = counts.get(aa);
+      total += snapshot[aa];
+    }
+    if (total > 0) {
+      long rank = Math.max((long) Math.ceil(quantile * total), 1);
+      long seen = 0;
+      for (int aa = 0; aa < BUCKET_COUNT; aa++) {
+        seen += snapshot[aa];
+        if (seen >= rank) {
+          ret = highestValueIn(aa);
+          break;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Values below SUB_BUCKET_COUNT get a bucket each. Above that, each power
+   * of two is split into SUB_BUCKET_COUNT equal buckets.
+   */
+  static int bucketOf(long value) {
+    int ret;
+    if (value < SUB_BUCKET_COUNT) {
+      ret = (int) value;
+    } else {
+      int magnitude = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+      ret = (magnitude + 1) * SUB_BUCKET_COUNT + (int) ((value >>> magnitude) - SUB_BUCKET_COUNT);
+    }
+    return ret;
+  }
+
+  /**
+   * The highest value that lands in the specified bucket.
+   */
+  static long highestValueIn(int bucket) {
+    long ret;
+    if (bucket < SUB_BUCKET_COUNT) {
+      ret = bucket;
+    } else {
+      int magnitude = bucket / SUB_BUCKET_COUNT - 1;
+      long lowest = (long) (SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT) << magnitude;
+      ret = lowest + (1L << magnitude) - 1;
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Holds the application's metrics (counters, gauges and latency
+ * histograms) and writes them out in the Prometheus text exposition
+ * format.
+ *
+ * A metric is identified by its name plus its labels, given as name/value
+ * pairs. Asking for the same name and labels twice gets the same metric,
+ * so callers can look metrics up on the fly, or hang on to them.
+ *
+ * @author sperry
+ *
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+  /**
+   * Latency quantiles written out for each histogram.
+   */
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private enum Type {
+    COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+    private final String prometheusName;
+
+    Type(String prometheusName) {
+      this.prometheusName = prometheusName;
+    }
+  }
+
+  /**
+   * All metrics with the same name: the metric family, in Prometheus
+   * terms. Keyed by rendered labels.
+   */
+  private static class Family {
+    private final String name;
+    private final String help;
+    private final Type type;
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    Family(String name, String help, Type type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  /**
+   * The one registry the application uses.
+   *
+   * @return MetricsRegistry - the registry
+   */
+  public static MetricsRegistry instance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets (or creates) a counter.
+   *
+   * @param name
+   *          The metric name, e.g. "person_service_requests_total"
+   * @param help
+   *          What the metric counts
+   * @param labels
+   *          Label name/value pairs
+   *
+   * @return LongAdder - the counter
+   */
+  public LongAdder counter(String name, String help, String... labels) {
+    return (LongAdder) family(name, help, Type.COUNTER).metrics.computeIfAbsent(renderLabels(labels),
+        key -> new LongAdder());
+  }
+
+  /**
+   * Gets (or creates) a latency histogram. It is written out as a
+   * Prometheus summary, in seconds.
+   *
+   * @param name
+   *          The metric name, e.g. "person_service_request_latency_seconds"
+   * @param help
+   *          What the metric measures
+   * @param labels
+   *          Label name/value pairs
+   *
+   * @return LatencyHistogram - the histogram
+   */
+  public LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) family(name, help, Type.SUMMARY).metrics.computeIfAbsent(renderLabels(labels),
+        key -> new LatencyHistogram());
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge already registered with the
+   * same name and labels.
+   *
+   * @param name
+   *          The metric name, e.g. "person_store_size"
+   * @param help
+   *          What the metric measures
+   * @param value
+   *          Supplies the current value each time the metrics are written out
+   * @param labels
+   *          Label name/value pairs
+   */
+  public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, Type.GAUGE).metrics.put(renderLabels(labels), value);
+  }
+
+  /**
+   * Writes every metric out in the Prometheus text exposition format (version 0.0.4).
+   *
+   * @param writer
+   *          Where to write them
+   *
+   * @throws IOException
+   *           If the Writer does
+   */
+  public void writePrometheus(Writer writer) throws IOException {
+    for (Family family : families.values()) {
+      writer.write("# HELP " + family.name + " " + family.help + "\n");
+      writer.write("# TYPE " + family.name + " " + family.type.prometheusName + "\n");
+      for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+        String labels = entry.getKey();
+        Object metric = entry.getValue();
+        if (metric instanceof LongAdder) {
+          writeSample(writer, family.name, labels, ((LongAdder) metric).sum());
+        } else if (metric instanceof DoubleSupplier) {
+          writeSample(writer, family.name, labels, ((DoubleSupplier) metric).getAsDouble());
+        } else {
+          LatencyHistogram histogram = (LatencyHistogram) metric;
+          for (double quantile : QUANTILES) {
+            writeSample(writer, family.name, addLabel(labels, "quantile", Double.toString(quantile)),
+                histogram.getValueAtQuantile(quantile) / NANOS_PER_SECOND);
+          }
+          writeSample(writer, family.name + "_sum", labels, histogram.getSum() / NANOS_PER_SECOND);
+          writeSample(writer, family.name + "_count", labels, histogram.getCount());
+        }
+      }
+    }
+    writer.flush();
+  }
+
+  private Family family(String name, String help, Type type) {
+    Family ret = families.computeIfAbsent(name, key -> new Family(name, help, type));
+    if (ret.type != type) {
+      throw new IllegalArgumentException("Metric " + name + " is a " + ret.type.prometheusName + ", not a "
+          + type.prometheusName);
+    }
+    return ret;
+  }
+
+  private static void writeSample(Writer writer, String name, String labels, double value) throws IOException {
+    writer.write(name);
+    writer.write(labels);
+    writer.write(' ');
+    if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+      writer.write(Long.toString((long) value));
+    } else {
+      writer.write(Double.toString(value));
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Renders label name/value pairs the way Prometheus wants them:
+   * {name1="value1",name2="value2"}, or nothing at all if there are none.
+   */
+  private static String renderLabels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name/value pairs");
+    }
+    String ret = "";
+    for (int aa = 0; aa < labels.length; aa += 2) {
+      ret = addLabel(ret, labels[aa], labels[aa + 1]);
+    }
+    return ret;
+  }
+
+  private static String addLabel(String renderedLabels, String name, String value) {
+    String label = name + "=\"" + escape(value) + "\"";
+    return renderedLabels.isEmpty() ? "{" + label + "}"
+        : renderedLabels.substring(0, renderedLabels.length() - 1) + "," + label + "}";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+}
@@ -17,6 +17,14 @@ package com.makotojava.learn.jaxrs.model;
 
 import java.util.Date;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+//
+// Otherwise the properties without a field of the same name come out in
+/// whatever order reflection finds their getters, which can change from one
+/// JVM to the next (and PersonJsonFormat has to write the same JSON)
+@JsonPropertyOrder({ "lastName", "firstName", "age", "eyeColor", "gender", "whenCreated", "whenModified", "version",
+    "id" })
 public class Person {
 
   public enum EyeColor {
@@ -39,12 +47,28 @@ public class Person {
     this.gender = gender;
   }
 
+  /**
+   * Copy constructor. Copies every field, including the DB-specific ones.
+   *
+   * @param other
+   *          The Person object to copy.
+   */
+  public Person(Person other) {
+    this(other.lastName, other.firstName, other.age, other.eyeColor, other.gender);
+    this.mId = other.mId;
+    this.mWhenCreated = other.mWhenCreated;
+    this.mVersion = other.mVersion;
+    this.mWhenModified = other.mWhenModified;
+  }
+
   // ************************************
   // * D B - S P E C I F I C S T U F F *
   // ************************************
 
   private Long mId;
   private Date mWhenCreated;
+  private Long mVersion;
+  private Date mWhenModified;
 
   public Long getId() {
     return mId;
@@ -66,6 +90,34 @@ public class Person {
     return this;
   }
 
+  /**
+   * @return Long - 1 when the Person is added, and one more every time
+   *         it's updated
+   */
+  public Long getVersion() {
+    return mVersion;
+  }
+
+  public Person setVersion(Long version) {
+    this.mVersion = version;
+    // Fluent
+    return this;
+  }
+
+  /**
+   * @return Date - when the Person was last updated (or added, if it
+   *         never has been)
+   */
+  public Date getWhenModified() {
+    return mWhenModified;
+  }
+
+  public Person setWhenModified(Date whenModified) {
+    this.mWhenModified = whenModified;
+    // Fluent
+    return this;
+  }
+
   // ***********************
   // * A T T R I B U T E S *
   // ***********************
@@ -121,7 +173,25 @@ public class Person {
     return "Person [id=" + mId + ", lastName=" + lastName + ", firstName=" + firstName + ", age=" + age + ", height="
         + ", eyeColor="
         + eyeColor
-        + ", gender=" + gender + ", whenCreated = " + mWhenCreated + "]";
+        + ", gender=" + gender + ", whenCreated = " + mWhenCreated + ", version=" + mVersion + ", whenModified = "
+        + mWhenModified + "]";
+  }
+
+  /**
+   * Hashes the same fields equals() compares. Enums contribute their ordinal,
+   * not their (identity-based) hashCode(), so the hash is stable from one
+   * JVM to the next.
+   */
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + age;
+    result = prime * result + ((eyeColor == null) ? 0 : eyeColor.ordinal() + 1);
+    result = prime * result + ((firstName == null) ? 0 : firstName.hashCode());
+    result = prime * result + ((gender == null) ? 0 : gender.ordinal() + 1);
+    result = prime * result + ((lastName == null) ? 0 : lastName.hashCode());
+    return result;
   }
 
   @Override
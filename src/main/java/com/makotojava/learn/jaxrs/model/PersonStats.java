@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.model;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * Summary statistics of the Person objects in a data store, as of one
+ * moment. Person objects with no eye color (or gender) are not in the
+ * eye color (or gender) counts.
+ *
+ * @author sperry
+ *
+ */
+public class PersonStats {
+
+  private final long count;
+  private final Map<Gender, Long> byGender;
+  private final Map<EyeColor, Long> byEyeColor;
+  private final int ageBucketWidth;
+  private final SortedMap<Integer, Long> ageHistogram;
+  private final Integer minAge;
+  private final Integer maxAge;
+  private final Double meanAge;
+
+  public PersonStats(long count, Map<Gender, Long> byGender, Map<EyeColor, Long> byEyeColor, int ageBucketWidth,
+      SortedMap<Integer, Long> ageHistogram, Integer minAge, Integer maxAge, Double meanAge) {
+    this.count = count;
+    this.byGender = byGender;
+    this.byEyeColor = byEyeColor;
+    this.ageBucketWidth = ageBucketWidth;
+    this.ageHistogram = ageHistogram;
+    this.minAge = minAge;
+    this.maxAge = maxAge;
+    this.meanAge = meanAge;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public Map<Gender, Long> getByGender() {
+    return byGender;
+  }
+
+  public Map<EyeColor, Long> getByEyeColor() {
+    return byEyeColor;
+  }
+
+  /**
+   * @return int - how many ages each bucket of the age histogram covers
+   */
+  public int getAgeBucketWidth() {
+    return ageBucketWidth;
+  }
+
+  /**
+   * @return SortedMap<Integer, Long> - the lowest age in each bucket -> the
+   *         number of Person objects in it. Empty buckets are left out.
+   */
+  public SortedMap<Integer, Long> getAgeHistogram() {
+    return ageHistogram;
+  }
+
+  /**
+   * @return Integer - the lowest age, or null if there are no Person objects
+   */
+  public Integer getMinAge() {
+    return minAge;
+  }
+
+  /**
+   * @return Integer - the highest age, or null if there are no Person objects
+   */
+  public Integer getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * @return Double - the mean age, or null if there are no Person objects
+   */
+  public Double getMeanAge() {
+    return meanAge;
+  }
+
+  @Override
+  public String toString() {
+    return "PersonStats [count=" + count + ", byGender=" + byGender + ", byEyeColor=" + byEyeColor
+        + ", ageBucketWidth=" + ageBucketWidth + ", ageHistogram=" + ageHistogram + ", minAge=" + minAge
+        + ", maxAge=" + maxAge + ", meanAge=" + meanAge + "]";
+  }
+
+}
@@ -0,0 +1,781 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * A data store that keeps Person attributes in columns: one primitive
+ * array per attribute, indexed by row. The row of a Person is their ID.
+ * <ul>
+ * <li>age - int[]</li>
+ * <li>eye color, gender - byte[] of ordinals (-1 = null)</li>
+ * <li>last name, first name - int[] of {@link NameDictionary} codes, plus
+ * an int[] of folded last name codes for the case-insensitive search</li>
+ * <li>whenCreated, whenModified - long[] of epoch millis</li>
+ * <li>version - int[]</li>
+ * </ul>
+ * Searching by an attribute is a loop over one primitive array, which
+ * the JIT can unroll and vectorize, rather than a walk over Person
+ * objects scattered around the heap. Finding by last name, for one, scans
+ * the folded last name column; it needs no index. A deleted row's folded
+ * last name code is set to NOT_FOUND, so the scan needs no second test.
+ * A query on several attributes is one pass down the columns it
+ * constrains, testing the cheapest (primitive) criteria first, and
+ * counting by eye color or gender is one pass down a byte[]; the columns
+ * already are a (byte-wide) bitmap index, so there are no IdBitmaps here.
+ *
+ * Person objects are only created on the way out. The only other
+ * per-Person data is an entry in the {@link DuplicateTable}.
+ *
+ * Rows are never reused, so neither are IDs. Writers take a StampedLock's
+ * write lock; finding by ID reads optimistically, and scans take the
+ * read lock.
+ *
+ * @author sperry
+ *
+ */
+public class ColumnarRepository implements PersonDao {
+
+  private static final byte NULL_ORDINAL = -1;
+  private static final long NULL_TIME = Long.MIN_VALUE;
+  /**
+   * An ordinal criterion that matches every row.
+   */
+  private static final int ANY_ORDINAL = -2;
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  private final NameDictionary names = new NameDictionary();
+
+  /*
+   * The columns. Replaced with bigger copies (under the write lock) as the
+   * store grows.
+   */
+  private boolean[] live = new boolean[INITIAL_CAPACITY];
+  private int[] ages = new int[INITIAL_CAPACITY];
+  private byte[] eyeColors = new byte[INITIAL_CAPACITY];
+  private byte[] genders = new byte[INITIAL_CAPACITY];
+  private int[] lastNameCodes = new int[INITIAL_CAPACITY];
+  private int[] foldedLastNameCodes = new int[INITIAL_CAPACITY];
+  private int[] firstNameCodes = new int[INITIAL_CAPACITY];
+  private long[] whenCreated = new long[INITIAL_CAPACITY];
+  private long[] whenModified = new long[INITIAL_CAPACITY];
+  private int[] versions = new int[INITIAL_CAPACITY];
+
+  /**
+   * The first row never used. Row 0 is never used, so IDs start at 1.
+   */
+  private volatile int nextRow = 1;
+
+  private volatile long liveCount;
+
+  /**
+   * The duplicate index. Guarded by the write lock; only writers use it.
+   */
+  private final DuplicateTable duplicates = new DuplicateTable(this::hashOfRow);
+
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * Running totals for getStats(), kept up to date by the write paths.
+   */
+  private final PersonStatistics stats = new PersonStatistics();
+
+  public ColumnarRepository() {
+    Arrays.fill(foldedLastNameCodes, NameDictionary.NOT_FOUND);
+  }
+
+  @Override
+  public long getRepositorySize() {
+    return liveCount;
+  }
+
+  @Override
+  public List<Person> findAll() {
+    List<Person> ret = new ArrayList<>();
+    long stamp = lock.readLock();
+    try {
+      int end = nextRow;
+      for (int row = 1; row < end; row++) {
+        if (live[row]) {
+          ret.add(toPerson(row));
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    List<Person> ret = new ArrayList<>();
+    int skip = Math.max(offset, 0);
+    long stamp = lock.readLock();
+    try {
+      int end = nextRow;
+      long first = (afterId == null) ? 1 : Math.max(afterId + 1, 1);
+      for (long row = first; row < end && ret.size() < limit; row++) {
+        if (live[(int) row]) {
+          if (skip > 0) {
+            skip--;
+          } else {
+            ret.add(toPerson((int) row));
+          }
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAllByLastName(String lastName) {
+    List<Person> ret = new ArrayList<>();
+    int key = names.findFoldedCode(lastName);
+    if (key != NameDictionary.NOT_FOUND) {
+      long stamp = lock.readLock();
+      try {
+        IntList rows = rowsWithFoldedLastName(key);
+        for (int aa = 0; aa < rows.size(); aa++) {
+          ret.add(toPerson(rows.get(aa)));
+        }
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    int lastNameKey = names.findFoldedCode(query.getLastName());
+    // Nobody has a last name that isn't in the dictionary
+    if (lastNameKey != NameDictionary.NOT_FOUND) {
+      boolean anyLastName = query.getLastName() == null;
+      String firstName = query.getFirstName();
+      int ageFrom = query.getAgeFrom();
+      int ageTo = query.getAgeTo();
+      int eyeColor = (query.getEyeColor() == null) ? ANY_ORDINAL : query.getEyeColor().ordinal();
+      int gender = (query.getGender() == null) ? ANY_ORDINAL : query.getGender().ordinal();
+      long stamp = lock.readLock();
+      try {
+        boolean[] liveColumn = live;
+        int[] foldedLastNameColumn = foldedLastNameCodes;
+        int[] ageColumn = ages;
+        byte[] eyeColorColumn = eyeColors;
+        byte[] genderColumn = genders;
+        int end = nextRow;
+        for (int row = 1; row < end; row++) {
+          if (liveColumn[row]
+              && (anyLastName || foldedLastNameColumn[row] == lastNameKey)
+              && ageColumn[row] >= ageFrom && ageColumn[row] <= ageTo
+              && (eyeColor == ANY_ORDINAL || eyeColorColumn[row] == eyeColor)
+              && (gender == ANY_ORDINAL || genderColumn[row] == gender)
+              // The one criterion that isn't a primitive comparison goes last
+              && (firstName == null || firstName.equalsIgnoreCase(names.nameOf(firstNameCodes[row])))) {
+            ret.add(toPerson(row));
+          }
+        }
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    long[] counts;
+    long stamp = lock.readLock();
+    try {
+      counts = countOrdinals(eyeColors, EyeColor.values().length);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    Map<EyeColor, Long> ret = new EnumMap<>(EyeColor.class);
+    for (EyeColor eyeColor : EyeColor.values()) {
+      ret.put(eyeColor, counts[eyeColor.ordinal()]);
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<Gender, Long> countByGender() {
+    long[] counts;
+    long stamp = lock.readLock();
+    try {
+      counts = countOrdinals(genders, Gender.values().length);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    Map<Gender, Long> ret = new EnumMap<>(Gender.class);
+    for (Gender gender : Gender.values()) {
+      ret.put(gender, counts[gender.ordinal()]);
+    }
+    return ret;
+  }
+
+  @Override
+  public PersonStats getStats() {
+    return stats.snapshot();
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    return stats.countByLastName();
+  }
+
+  @Override
+  public long getVersion() {
+    return stats.version();
+  }
+
+  @Override
+  public Date getLastModified() {
+    return new Date(stats.lastModified());
+  }
+
+  /**
+   * Counts the live rows with each ordinal in the specified column. Callers
+   * must hold a lock.
+   *
+   * @return long[] - the count of each ordinal (nulls aren't counted)
+   */
+  private long[] countOrdinals(byte[] column, int ordinals) {
+    long[] ret = new long[ordinals];
+    boolean[] liveColumn = live;
+    int end = nextRow;
+    for (int row = 1; row < end; row++) {
+      if (liveColumn[row] && column[row] != NULL_ORDINAL) {
+        ret[column[row]]++;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    return new RowIterator(null, NameDictionary.NOT_FOUND);
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    int[] rows = new int[0];
+    int key = names.findFoldedCode(lastName);
+    if (key != NameDictionary.NOT_FOUND) {
+      long stamp = lock.readLock();
+      try {
+        rows = rowsWithFoldedLastName(key).toArray();
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return new RowIterator(rows, key);
+  }
+
+  @Override
+  public Person findById(Long id) {
+    Person ret = null;
+    if (id != null && id > 0 && id < Integer.MAX_VALUE) {
+      ret = read((int) (long) id, NameDictionary.NOT_FOUND);
+    }
+    return ret;
+  }
+
+  @Override
+  public Person findEqual(Person person) {
+    Person ret = null;
+    if (person != null) {
+      int lastNameCode = names.findCode(person.getLastName());
+      int firstNameCode = names.findCode(person.getFirstName());
+      // Nobody has a name that isn't in the dictionary
+      if (lastNameCode != NameDictionary.NOT_FOUND && firstNameCode != NameDictionary.NOT_FOUND) {
+        long stamp = lock.readLock();
+        try {
+          int row = findDuplicate(lastNameCode, firstNameCode, person.getAge(), ordinalOf(person.getEyeColor()),
+              ordinalOf(person.getGender()));
+          ret = (row == 0) ? null : toPerson(row);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person addPerson(Person person) {
+    long stamp = lock.writeLock();
+    try {
+      int row = storePerson(person);
+      return (row == 0) ? null : toPerson(row);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    long stamp = lock.writeLock();
+    try {
+      int row = replacePerson(person);
+      return (row == 0) ? null : toPerson(row);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    long stamp = lock.writeLock();
+    try {
+      return removePerson(person);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    long stamp = lock.writeLock();
+    try {
+      checkVersion(liveRowOf(person), expectedVersion);
+      int row = replacePerson(person);
+      return (row == 0) ? null : toPerson(row);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    long stamp = lock.writeLock();
+    try {
+      checkVersion(liveRowOf(person), expectedVersion);
+      return removePerson(person);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        int row = storePerson(person);
+        ret.add((row == 0) ? null : toPerson(row));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        int row = replacePerson(person);
+        ret.add((row == 0) ? null : toPerson(row));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        ret.add(removePerson(person));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  /**
+   * Scans the folded last name column for the specified code. Callers must
+   * hold a lock.
+   *
+   * @param foldedLastNameCode
+   *          The folded last name code to look for (not NOT_FOUND)
+   *
+   * @return IntList - the (live) rows with that code, in order
+   */
+  private IntList rowsWithFoldedLastName(int foldedLastNameCode) {
+    IntList ret = new IntList();
+    int[] column = foldedLastNameCodes;
+    int end = nextRow;
+    for (int row = 1; row < end; row++) {
+      if (column[row] == foldedLastNameCode) {
+        ret.add(row);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Adds the specified Person to the store, unless they already exist.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person to add (may be null)
+   *
+   * @return int - the row of the stored Person (the one already there, if
+   *         they already existed), or 0 if person was null
+   */
+  private int storePerson(Person person) {
+    int ret = 0;
+    if (person != null) {
+      int lastNameCode = names.codeOf(person.getLastName());
+      int firstNameCode = names.codeOf(person.getFirstName());
+      byte eyeColor = ordinalOf(person.getEyeColor());
+      byte gender = ordinalOf(person.getGender());
+      ret = findDuplicate(lastNameCode, firstNameCode, person.getAge(), eyeColor, gender);
+      if (ret == 0) {
+        ret = nextRow;
+        if (ret == Integer.MAX_VALUE) {
+          throw new IllegalStateException("The data store is full");
+        }
+        ensureCapacity(ret + 1);
+        writeRow(ret, lastNameCode, firstNameCode, person.getAge(), eyeColor, gender);
+        whenCreated[ret] = System.currentTimeMillis();
+        whenModified[ret] = whenCreated[ret];
+        versions[ret] = 1;
+        live[ret] = true;
+        nextRow = ret + 1;
+        duplicates.add(ret);
+        stats.add(toPerson(ret));
+        liveCount++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Overwrites the row of the stored Person with the same ID as the
+   * specified Person. Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person with the new field value(s) (may be null)
+   *
+   * @return int - the row, or 0 if there was no Person with that ID
+   */
+  private int replacePerson(Person person) {
+    int ret = liveRowOf(person);
+    if (ret != 0) {
+      duplicates.remove(ret);
+      stats.remove(toPerson(ret));
+      writeRow(ret, names.codeOf(person.getLastName()), names.codeOf(person.getFirstName()), person.getAge(),
+          ordinalOf(person.getEyeColor()), ordinalOf(person.getGender()));
+      whenModified[ret] = System.currentTimeMillis();
+      versions[ret]++;
+      if (findDuplicate(lastNameCodes[ret], firstNameCodes[ret], ages[ret], eyeColors[ret], genders[ret]) == 0) {
+        duplicates.add(ret);
+      }
+      stats.add(toPerson(ret));
+    }
+    return ret;
+  }
+
+  /**
+   * Deletes the stored Person with the same ID as the specified Person.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person to delete (may be null)
+   *
+   * @return Person - the Person that was deleted, or null if there was no
+   *         Person with that ID
+   */
+  private Person removePerson(Person person) {
+    Person ret = null;
+    int row = liveRowOf(person);
+    if (row != 0) {
+      ret = toPerson(row);
+      duplicates.remove(row);
+      stats.remove(ret);
+      live[row] = false;
+      foldedLastNameCodes[row] = NameDictionary.NOT_FOUND;
+      liveCount--;
+    }
+    return ret;
+  }
+
+  /**
+   * Makes sure the specified row (if it's live) is at the expected version.
+   * Callers must hold the write lock.
+   */
+  private void checkVersion(int row, long expectedVersion) {
+    if (row != 0 && versions[row] != expectedVersion) {
+      throw new VersionConflictException(toPerson(row), expectedVersion);
+    }
+  }
+
+  private void writeRow(int row, int lastNameCode, int firstNameCode, int age, byte eyeColor, byte gender) {
+    lastNameCodes[row] = lastNameCode;
+    foldedLastNameCodes[row] = names.foldedCodeOf(lastNameCode);
+    firstNameCodes[row] = firstNameCode;
+    ages[row] = age;
+    eyeColors[row] = eyeColor;
+    genders[row] = gender;
+  }
+
+  /**
+   * @return int - the row of the live Person with the same ID as the
+   *         specified one, or 0 if there isn't one
+   */
+  private int liveRowOf(Person person) {
+    int ret = 0;
+    if (person != null && person.getId() != null && person.getId() > 0 && person.getId() < nextRow
+        && live[(int) (long) person.getId()]) {
+      ret = (int) (long) person.getId();
+    }
+    return ret;
+  }
+
+  /**
+   * Grows the columns to hold at least the specified number of rows.
+   * Callers must hold the write lock.
+   */
+  private void ensureCapacity(int rows) {
+    if (rows > live.length) {
+      int capacity = (int) Math.min(Math.max((long) live.length * 2, rows), Integer.MAX_VALUE);
+      live = Arrays.copyOf(live, capacity);
+      ages = Arrays.copyOf(ages, capacity);
+      eyeColors = Arrays.copyOf(eyeColors, capacity);
+      genders = Arrays.copyOf(genders, capacity);
+      lastNameCodes = Arrays.copyOf(lastNameCodes, capacity);
+      int oldCapacity = foldedLastNameCodes.length;
+      foldedLastNameCodes = Arrays.copyOf(foldedLastNameCodes, capacity);
+      Arrays.fill(foldedLastNameCodes, oldCapacity, capacity, NameDictionary.NOT_FOUND);
+      firstNameCodes = Arrays.copyOf(firstNameCodes, capacity);
+      whenCreated = Arrays.copyOf(whenCreated, capacity);
+      whenModified = Arrays.copyOf(whenModified, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+    }
+  }
+
+  /**
+   * Reads the specified row without taking a lock, unless a writer got in
+   * the way, in which case it reads again under the read lock.
+   *
+   * @param row
+   *          The row to read
+   * @param foldedLastNameCode
+   *          Unless NOT_FOUND, the row must (still) have this folded last
+   *          name code
+   *
+   * @return Person - the Person, or null if the row isn't live (or doesn't
+   *         have the last name)
+   */
+  private Person read(int row, int foldedLastNameCode) {
+    Person ret = null;
+    boolean consistent = false;
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      RawRow raw = readRaw(row, foldedLastNameCode);
+      if (lock.validate(stamp)) {
+        consistent = true;
+        ret = (raw == null) ? null : raw.toPerson(row);
+      }
+    }
+    if (!consistent) {
+      stamp = lock.readLock();
+      try {
+        RawRow raw = readRaw(row, foldedLastNameCode);
+        ret = (raw == null) ? null : raw.toPerson(row);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Copies the columns of a row. Without a lock they may be inconsistent,
+   * so nothing is made of them until the read is validated.
+   */
+  private RawRow readRaw(int row, int foldedLastNameCode) {
+    RawRow ret = null;
+    boolean[] liveColumn = live;
+    int[] foldedColumn = foldedLastNameCodes;
+    if (row < nextRow && row < liveColumn.length && row < foldedColumn.length && liveColumn[row]
+        && (foldedLastNameCode == NameDictionary.NOT_FOUND || foldedColumn[row] == foldedLastNameCode)) {
+      int[] lastNameColumn = lastNameCodes;
+      int[] firstNameColumn = firstNameCodes;
+      int[] ageColumn = ages;
+      byte[] eyeColorColumn = eyeColors;
+      byte[] genderColumn = genders;
+      long[] whenCreatedColumn = whenCreated;
+      long[] whenModifiedColumn = whenModified;
+      int[] versionColumn = versions;
+      if (row < lastNameColumn.length && row < firstNameColumn.length && row < ageColumn.length
+          && row < eyeColorColumn.length && row < genderColumn.length && row < whenCreatedColumn.length
+          && row < whenModifiedColumn.length && row < versionColumn.length) {
+        ret = new RawRow();
+        ret.lastNameCode = lastNameColumn[row];
+        ret.firstNameCode = firstNameColumn[row];
+        ret.age = ageColumn[row];
+        ret.eyeColor = eyeColorColumn[row];
+        ret.gender = genderColumn[row];
+        ret.whenCreated = whenCreatedColumn[row];
+        ret.whenModified = whenModifiedColumn[row];
+        ret.version = versionColumn[row];
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Creates a Person from the specified (live) row. Callers must hold a lock.
+   */
+  private Person toPerson(int row) {
+    RawRow raw = new RawRow();
+    raw.lastNameCode = lastNameCodes[row];
+    raw.firstNameCode = firstNameCodes[row];
+    raw.age = ages[row];
+    raw.eyeColor = eyeColors[row];
+    raw.gender = genders[row];
+    raw.whenCreated = whenCreated[row];
+    raw.whenModified = whenModified[row];
+    raw.version = versions[row];
+    return raw.toPerson(row);
+  }
+
+  /**
+   * The columns of a row, as read.
+   */
+  private final class RawRow {
+    private int lastNameCode;
+    private int firstNameCode;
+    private int age;
+    private byte eyeColor;
+    private byte gender;
+    private long whenCreated;
+    private long whenModified;
+    private int version;
+
+    private Person toPerson(int row) {
+      Person ret = new Person(names.nameOf(lastNameCode), names.nameOf(firstNameCode), age,
+          (eyeColor == NULL_ORDINAL) ? null : Person.EyeColor.values()[eyeColor],
+          (gender == NULL_ORDINAL) ? null : Person.Gender.values()[gender]);
+      ret.setId((long) row);
+      ret.setWhenCreated((whenCreated == NULL_TIME) ? null : new Date(whenCreated));
+      ret.setVersion((long) version);
+      ret.setWhenModified((whenModified == NULL_TIME) ? null : new Date(whenModified));
+      return ret;
+    }
+  }
+
+  /**
+   * Finds the live row with exactly the specified attributes. Callers must
+   * hold the write lock.
+   *
+   * @return int - the row, or 0 if there is none
+   */
+  private int findDuplicate(int lastNameCode, int firstNameCode, int age, byte eyeColor, byte gender) {
+    return duplicates.find(DuplicateTable.hash(lastNameCode, firstNameCode, age, eyeColor, gender),
+        row -> lastNameCodes[row] == lastNameCode && firstNameCodes[row] == firstNameCode && ages[row] == age
+            && eyeColors[row] == eyeColor && genders[row] == gender);
+  }
+
+  /**
+   * Works out the duplicate table hash of the specified row.
+   */
+  private int hashOfRow(int row) {
+    return DuplicateTable.hash(lastNameCodes[row], firstNameCodes[row], ages[row], eyeColors[row], genders[row]);
+  }
+
+  private static byte ordinalOf(Enum<?> value) {
+    return (value == null) ? NULL_ORDINAL : (byte) value.ordinal();
+  }
+
+  /**
+   * Walks rows in order, creating each live Person as it goes. Each step
+   * reads optimistically, so no lock is held between steps.
+   */
+  private class RowIterator implements Iterator<Person> {
+
+    /**
+     * The rows to visit, or null for all of them.
+     */
+    private final int[] rows;
+    /**
+     * Unless NOT_FOUND, only Person objects with this folded last name code
+     * (it may have changed since the rows were scanned).
+     */
+    private final int foldedLastNameCode;
+    private int position;
+    private Person next;
+
+    RowIterator(int[] rows, int foldedLastNameCode) {
+      this.rows = rows;
+      this.foldedLastNameCode = foldedLastNameCode;
+      this.position = (rows == null) ? 1 : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && position < ((rows == null) ? nextRow : rows.length)) {
+        next = read((rows == null) ? position : rows[position], foldedLastNameCode);
+        position++;
+      }
+      return next != null;
+    }
+
+    @Override
+    public Person next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Person ret = next;
+      next = null;
+      return ret;
+    }
+
+  }
+
+}
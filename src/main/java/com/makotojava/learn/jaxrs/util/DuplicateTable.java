@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The duplicate index of the data stores that keep Person attributes as
+ * codes and ordinals rather than Person objects: an open-addressed hash
+ * table of row (or slot) numbers, keyed by the hash of the attributes
+ * Person.equals() looks at. Four bytes per Person, and no boxing.
+ *
+ * The table doesn't keep the attributes itself; the data store supplies
+ * the hash of a row's attributes, and checks candidate rows for a match.
+ * Row numbers must be positive.
+ *
+ * Not thread-safe; only writers use it, under their lock.
+ *
+ * @author sperry
+ *
+ */
+final class DuplicateTable {
+
+  private static final int EMPTY = 0;
+  private static final int TOMBSTONE = -1;
+
+  /**
+   * Works out the hash of the attributes of a stored row.
+   */
+  private final IntUnaryOperator hashOfRow;
+
+  private int[] table = new int[1 << 10];
+
+  /**
+   * Entries that aren't EMPTY (rows and tombstones).
+   */
+  private int used;
+
+  DuplicateTable(IntUnaryOperator hashOfRow) {
+    this.hashOfRow = hashOfRow;
+  }
+
+  /**
+   * The hash of a set of Person attributes, as codes and ordinals.
+   */
+  static int hash(int lastNameCode, int firstNameCode, int age, int eyeColor, int gender) {
+    int ret = lastNameCode;
+    ret = 31 * ret + firstNameCode;
+    ret = 31 * ret + age;
+    ret = 31 * ret + eyeColor;
+    ret = 31 * ret + gender;
+    // Spread the bits, as the table index is just the low ones
+    return ret ^ (ret >>> 16) ^ (ret * 0x9E3779B9);
+  }
+
+  /**
+   * Finds a row with the specified hash that matches.
+   *
+   * @param hash
+   *          The hash of the attributes being looked for
+   * @param matches
+   *          Says whether a row with that hash has the attributes
+   *
+   * @return int - the row, or 0 if there is none
+   */
+  int find(int hash, IntPredicate matches) {
+    int ret = 0;
+    int mask = table.length - 1;
+    int index = hash & mask;
+    int entry;
+    while (ret == 0 && (entry = table[index]) != EMPTY) {
+      if (entry != TOMBSTONE && matches.test(entry)) {
+        ret = entry;
+      }
+      index = (index + 1) & mask;
+    }
+    return ret;
+  }
+
+  /**
+   * Adds a row. The caller has made sure no matching row is there already.
+   */
+  void add(int row) {
+    if ((used + 1) * 2 > table.length) {
+      rehash();
+    }
+    int mask = table.length - 1;
+    int index = hashOfRow.applyAsInt(row) & mask;
+    while (table[index] != EMPTY && table[index] != TOMBSTONE) {
+      index = (index + 1) & mask;
+    }
+    if (table[index] == EMPTY) {
+      used++;
+    }
+    table[index] = row;
+  }
+
+  /**
+   * Removes a row, if it is there. Call this before changing the row's
+   * attributes, while its hash still finds it.
+   */
+  void remove(int row) {
+    int mask = table.length - 1;
+    int index = hashOfRow.applyAsInt(row) & mask;
+    int entry;
+    while ((entry = table[index]) != EMPTY) {
+      if (entry == row) {
+        table[index] = TOMBSTONE;
+        break;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  /**
+   * Grows the table (if it's getting full of rows) and clears out the
+   * tombstones.
+   */
+  private void rehash() {
+    int[] old = table;
+    int live = 0;
+    for (int entry : old) {
+      if (entry > 0) {
+        live++;
+      }
+    }
+    table = new int[(live * 4 > old.length) ? old.length * 2 : old.length];
+    used = 0;
+    for (int entry : old) {
+      if (entry > 0) {
+        add(entry);
+      }
+    }
+  }
+
+}
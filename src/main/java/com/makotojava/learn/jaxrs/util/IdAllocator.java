@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out Person IDs for a data store. IDs start at 1, only ever go up,
+ * and are never handed out twice, no matter how many Person objects get
+ * deleted in between. No locks: an ID costs one atomic increment.
+ *
+ * With a block size greater than 1, each thread reserves a block of IDs at
+ * a time and hands them out without touching the shared counter at all.
+ * IDs are still unique, and still go up within a thread, but the IDs of
+ * Person objects added by different threads interleave, and IDs left in a
+ * block when its thread goes away are never used.
+ *
+ * With a stride greater than 1, the IDs step by the stride from a given
+ * first ID, e.g., 3, 7, 11... for a stride of 4 from 3. A sharded store
+ * gives each shard an IdAllocator with the same stride and a different
+ * first ID, so which shard an ID belongs to is arithmetic.
+ *
+ * @author sperry
+ *
+ */
+public class IdAllocator {
+
+  /**
+   * How many IDs have been handed out (or reserved, with blocks). The nth
+   * ID is first + (n - 1) * stride.
+   */
+  private final AtomicLong lastId;
+
+  private final int blockSize;
+
+  private final int stride;
+
+  private final long first;
+
+  /**
+   * Per-thread block: { next ID, last ID in the block }.
+   */
+  private final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[] { 1, 0 };
+    }
+  };
+
+  /**
+   * Creates an IdAllocator whose first ID is 1 and that reserves no blocks.
+   */
+  public IdAllocator() {
+    this(1);
+  }
+
+  /**
+   * Creates an IdAllocator whose first ID is 1.
+   *
+   * @param blockSize
+   *          How many IDs each thread reserves at a time. 1 means no blocks.
+   */
+  public IdAllocator(int blockSize) {
+    this(blockSize, 1, 1);
+  }
+
+  /**
+   * Creates an IdAllocator whose IDs step by the specified stride from the
+   * specified first ID.
+   *
+   * @param blockSize
+   *          How many IDs each thread reserves at a time. 1 means no blocks.
+   * @param stride
+   *          How far apart the IDs are
+   * @param first
+   *          The first ID
+   */
+  public IdAllocator(int blockSize, int stride, long first) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1, was " + blockSize);
+    }
+    if (stride < 1) {
+      throw new IllegalArgumentException("Stride must be at least 1, was " + stride);
+    }
+    if (first < 1) {
+      throw new IllegalArgumentException("First ID must be at least 1, was " + first);
+    }
+    this.lastId = new AtomicLong();
+    this.blockSize = blockSize;
+    this.stride = stride;
+    this.first = first;
+  }
+
+  /**
+   * Returns the next ID.
+   *
+   * @return long - an ID never handed out before
+   */
+  public long nextId() {
+    long ret;
+    if (blockSize == 1) {
+      ret = lastId.incrementAndGet();
+    } else {
+      long[] threadBlock = block.get();
+      if (threadBlock[0] > threadBlock[1]) {
+        long end = lastId.addAndGet(blockSize);
+        threadBlock[0] = end - blockSize + 1;
+        threadBlock[1] = end;
+      }
+      ret = threadBlock[0]++;
+    }
+    return toId(ret);
+  }
+
+  /**
+   * Makes sure no ID up to and including the specified one is ever handed
+   * out, e.g., after loading Person objects that already have IDs.
+   *
+   * @param id
+   *          An ID already in use.
+   */
+  public void reserveThrough(long id) {
+    long count = (id < first) ? 0 : (id - first) / stride + 1;
+    long current = lastId.get();
+    while (current < count && !lastId.compareAndSet(current, count)) {
+      current = lastId.get();
+    }
+  }
+
+  /**
+   * Returns the last ID handed out or reserved.
+   *
+   * @return long - the last ID, or 0 if none has been
+   */
+  public long getLastId() {
+    long count = lastId.get();
+    return (count == 0) ? 0 : toId(count);
+  }
+
+  /**
+   * @return long - the nth ID
+   */
+  private long toId(long n) {
+    return first + (n - 1) * stride;
+  }
+
+}
@@ -0,0 +1,620 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+/**
+ * A compressed bitmap of Person IDs, laid out the way Roaring bitmaps are.
+ * The IDs are split into chunks of 65536 by their high bits, and each
+ * chunk that has any IDs in it gets a container for the low 16 bits:
+ * <ul>
+ * <li>a sorted char[] while the chunk has at most {@value #ARRAY_MAX} IDs
+ * (two bytes per ID)</li>
+ * <li>a plain 65536-bit bitmap (8KB) once it has more</li>
+ * </ul>
+ * So a sparse bitmap costs about two bytes per ID, a dense one about one
+ * bit, and intersecting or counting two dense chunks is 1024 word ANDs.
+ *
+ * IDs must be from 0 to {@value #MAX_ID}. Not thread-safe; the data
+ * stores either guard their bitmaps with a lock, or never change one once
+ * readers can see it, and make the changes in a {@link Draft} instead.
+ *
+ * @author sperry
+ *
+ */
+final class IdBitmap {
+
+  static final long MAX_ID = (1L << 47) - 1;
+
+  /**
+   * The most values an array container holds. Past this a bitmap
+   * container is smaller.
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  private static final int WORDS = 1 << 10;
+
+  /**
+   * The high bits (ID >>> 16) of each chunk that has a container, sorted.
+   */
+  private int[] keys = new int[4];
+  private Container[] containers = new Container[4];
+  private int size;
+
+  /**
+   * Adds the specified ID.
+   *
+   * @return boolean - true if it wasn't already there
+   */
+  boolean add(long id) {
+    checkId(id);
+    int key = (int) (id >>> 16);
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    if (index < 0) {
+      index = -index - 1;
+      insertContainer(index, key, new ArrayContainer());
+    }
+    Container container = containers[index];
+    long before = container.cardinality();
+    containers[index] = container.add((char) id);
+    return containers[index].cardinality() != before;
+  }
+
+  /**
+   * Removes the specified ID.
+   *
+   * @return boolean - true if it was there
+   */
+  boolean remove(long id) {
+    boolean ret = false;
+    if (id >= 0 && id <= MAX_ID) {
+      int index = Arrays.binarySearch(keys, 0, size, (int) (id >>> 16));
+      if (index >= 0) {
+        Container container = containers[index];
+        long before = container.cardinality();
+        container = container.remove((char) id);
+        ret = container.cardinality() != before;
+        if (container.cardinality() == 0) {
+          removeContainer(index);
+        } else {
+          containers[index] = container;
+        }
+      }
+    }
+    return ret;
+  }
+
+  boolean contains(long id) {
+    boolean ret = false;
+    if (id >= 0 && id <= MAX_ID) {
+      int index = Arrays.binarySearch(keys, 0, size, (int) (id >>> 16));
+      ret = index >= 0 && containers[index].contains((char) id);
+    }
+    return ret;
+  }
+
+  /**
+   * @return long - how many IDs there are
+   */
+  long cardinality() {
+    long ret = 0;
+    for (int aa = 0; aa < size; aa++) {
+      ret += containers[aa].cardinality();
+    }
+    return ret;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return IdBitmap - a bitmap of the IDs in both this one and the other
+   */
+  IdBitmap and(IdBitmap other) {
+    IdBitmap ret = new IdBitmap();
+    int aa = 0;
+    int bb = 0;
+    while (aa < size && bb < other.size) {
+      if (keys[aa] < other.keys[bb]) {
+        aa++;
+      } else if (keys[aa] > other.keys[bb]) {
+        bb++;
+      } else {
+        Container container = containers[aa].and(other.containers[bb]);
+        if (container.cardinality() > 0) {
+          ret.insertContainer(ret.size, keys[aa], container);
+        }
+        aa++;
+        bb++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return long - how many IDs are in both this bitmap and the other,
+   *         without making a bitmap of them
+   */
+  long andCardinality(IdBitmap other) {
+    long ret = 0;
+    int aa = 0;
+    int bb = 0;
+    while (aa < size && bb < other.size) {
+      if (keys[aa] < other.keys[bb]) {
+        aa++;
+      } else if (keys[aa] > other.keys[bb]) {
+        bb++;
+      } else {
+        ret += containers[aa].andCardinality(other.containers[bb]);
+        aa++;
+        bb++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return IdBitmap - a copy that shares nothing with this bitmap
+   */
+  IdBitmap copy() {
+    IdBitmap ret = new IdBitmap();
+    ret.keys = Arrays.copyOf(keys, Math.max(size, 4));
+    ret.containers = new Container[ret.keys.length];
+    for (int aa = 0; aa < size; aa++) {
+      ret.containers[aa] = containers[aa].copy();
+    }
+    ret.size = size;
+    return ret;
+  }
+
+  /**
+   * @return PrimitiveIterator.OfLong - the IDs, in order. The bitmap
+   *         must not change while it is in use.
+   */
+  PrimitiveIterator.OfLong iterator() {
+    return new PrimitiveIterator.OfLong() {
+
+      private int index;
+      /**
+       * The low bits of the next ID in containers[index], or -1 if that
+       * container is used up.
+       */
+      private int next = (size == 0) ? -1 : containers[0].nextValue(0);
+
+      @Override
+      public boolean hasNext() {
+        while (next < 0 && index + 1 < size) {
+          index++;
+          next = containers[index].nextValue(0);
+        }
+        return next >= 0;
+      }
+
+      @Override
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        long ret = ((long) keys[index] << 16) | next;
+        next = (next == 0xFFFF) ? -1 : containers[index].nextValue(next + 1);
+        return ret;
+      }
+
+    };
+  }
+
+  /**
+   * Changes to a bitmap that leave the bitmap itself as it was: each chunk
+   * is copied the first time the draft changes it (and only then), and
+   * every other chunk is shared. So however many changes a writer makes,
+   * it copies each chunk at most once, and readers of the original bitmap
+   * need no lock.
+   */
+  static final class Draft {
+
+    private final IdBitmap bitmap = new IdBitmap();
+
+    /**
+     * The containers the draft made, which are its to change.
+     */
+    private final Set<Container> copied = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    Draft(IdBitmap from) {
+      bitmap.keys = Arrays.copyOf(from.keys, Math.max(from.size, 4));
+      bitmap.containers = Arrays.copyOf(from.containers, bitmap.keys.length);
+      bitmap.size = from.size;
+    }
+
+    void add(long id) {
+      checkId(id);
+      if (!bitmap.contains(id)) {
+        int key = (int) (id >>> 16);
+        int index = Arrays.binarySearch(bitmap.keys, 0, bitmap.size, key);
+        Container container;
+        if (index < 0) {
+          index = -index - 1;
+          container = new ArrayContainer();
+          bitmap.insertContainer(index, key, container);
+        } else {
+          container = own(bitmap.containers[index]);
+        }
+        // A new container (or one that add() turned into a bitmap) is ours too
+        container = container.add((char) id);
+        copied.add(container);
+        bitmap.containers[index] = container;
+      }
+    }
+
+    void remove(long id) {
+      if (bitmap.contains(id)) {
+        int index = Arrays.binarySearch(bitmap.keys, 0, bitmap.size, (int) (id >>> 16));
+        Container container = own(bitmap.containers[index]).remove((char) id);
+        if (container.cardinality() == 0) {
+          bitmap.removeContainer(index);
+        } else {
+          copied.add(container);
+          bitmap.containers[index] = container;
+        }
+      }
+    }
+
+    /**
+     * @return IdBitmap - the changed bitmap. The draft must not be used
+     *         after this.
+     */
+    IdBitmap toBitmap() {
+      copied.clear();
+      return bitmap;
+    }
+
+    /**
+     * @return Container - the specified container if the draft made it,
+     *         otherwise a copy of it that the draft now owns
+     */
+    private Container own(Container container) {
+      Container ret = container;
+      if (!copied.contains(container)) {
+        ret = container.copy();
+        copied.add(ret);
+      }
+      return ret;
+    }
+
+  }
+
+  private static void checkId(long id) {
+    if (id < 0 || id > MAX_ID) {
+      throw new IllegalArgumentException("ID " + id + " is out of range for a bitmap, must be 0 to " + MAX_ID);
+    }
+  }
+
+  private void insertContainer(int index, int key, Container container) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      containers = Arrays.copyOf(containers, size * 2);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(containers, index, containers, index + 1, size - index);
+    keys[index] = key;
+    containers[index] = container;
+    size++;
+  }
+
+  private void removeContainer(int index) {
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+    size--;
+    containers[size] = null;
+  }
+
+  /**
+   * The low 16 bits of the IDs in one chunk. add() and remove() return
+   * the container to use from then on, which is a different kind when
+   * the chunk crosses {@value IdBitmap#ARRAY_MAX} IDs.
+   */
+  private abstract static class Container {
+
+    abstract Container add(char value);
+
+    abstract Container remove(char value);
+
+    abstract boolean contains(char value);
+
+    abstract int cardinality();
+
+    abstract Container and(Container other);
+
+    abstract int andCardinality(Container other);
+
+    abstract Container copy();
+
+    /**
+     * @return int - the smallest value that is from or greater, or -1 if
+     *         there is none
+     */
+    abstract int nextValue(int from);
+
+  }
+
+  /**
+   * A sparse chunk: its values, sorted.
+   */
+  private static final class ArrayContainer extends Container {
+
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char value) {
+      Container ret = this;
+      int index = Arrays.binarySearch(values, 0, cardinality, value);
+      if (index < 0) {
+        if (cardinality == ARRAY_MAX) {
+          ret = toBitmap().add(value);
+        } else {
+          index = -index - 1;
+          if (cardinality == values.length) {
+            values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX));
+          }
+          System.arraycopy(values, index, values, index + 1, cardinality - index);
+          values[index] = value;
+          cardinality++;
+        }
+      }
+      return ret;
+    }
+
+    @Override
+    Container remove(char value) {
+      int index = Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+        cardinality--;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      char[] result = new char[cardinality];
+      int count = 0;
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        int aa = 0;
+        int bb = 0;
+        while (aa < cardinality && bb < array.cardinality) {
+          if (values[aa] < array.values[bb]) {
+            aa++;
+          } else if (values[aa] > array.values[bb]) {
+            bb++;
+          } else {
+            result[count++] = values[aa];
+            aa++;
+            bb++;
+          }
+        }
+      } else {
+        for (int aa = 0; aa < cardinality; aa++) {
+          if (other.contains(values[aa])) {
+            result[count++] = values[aa];
+          }
+        }
+      }
+      return new ArrayContainer(result, count);
+    }
+
+    @Override
+    int andCardinality(Container other) {
+      int ret = 0;
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        int aa = 0;
+        int bb = 0;
+        while (aa < cardinality && bb < array.cardinality) {
+          if (values[aa] < array.values[bb]) {
+            aa++;
+          } else if (values[aa] > array.values[bb]) {
+            bb++;
+          } else {
+            ret++;
+            aa++;
+            bb++;
+          }
+        }
+      } else {
+        for (int aa = 0; aa < cardinality; aa++) {
+          if (other.contains(values[aa])) {
+            ret++;
+          }
+        }
+      }
+      return ret;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 4)), cardinality);
+    }
+
+    @Override
+    int nextValue(int from) {
+      int index = Arrays.binarySearch(values, 0, cardinality, (char) from);
+      if (index < 0) {
+        index = -index - 1;
+      }
+      return (index < cardinality) ? values[index] : -1;
+    }
+
+    private BitmapContainer toBitmap() {
+      BitmapContainer ret = new BitmapContainer();
+      for (int aa = 0; aa < cardinality; aa++) {
+        ret.words[values[aa] >>> 6] |= 1L << values[aa];
+      }
+      ret.cardinality = cardinality;
+      return ret;
+    }
+
+  }
+
+  /**
+   * A dense chunk: one bit per value.
+   */
+  private static final class BitmapContainer extends Container {
+
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer() {
+      this(new long[WORDS], 0);
+    }
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char value) {
+      long word = words[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) == 0) {
+        words[value >>> 6] = word | bit;
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      Container ret = this;
+      long word = words[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) != 0) {
+        words[value >>> 6] = word & ~bit;
+        cardinality--;
+        if (cardinality <= ARRAY_MAX) {
+          ret = toArray();
+        }
+      }
+      return ret;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      Container ret;
+      if (other instanceof BitmapContainer) {
+        long[] otherWords = ((BitmapContainer) other).words;
+        long[] result = new long[WORDS];
+        int count = 0;
+        for (int aa = 0; aa < WORDS; aa++) {
+          result[aa] = words[aa] & otherWords[aa];
+          count += Long.bitCount(result[aa]);
+        }
+        BitmapContainer bitmap = new BitmapContainer(result, count);
+        ret = (count <= ARRAY_MAX) ? bitmap.toArray() : bitmap;
+      } else {
+        ret = other.and(this);
+      }
+      return ret;
+    }
+
+    @Override
+    int andCardinality(Container other) {
+      int ret = 0;
+      if (other instanceof BitmapContainer) {
+        long[] otherWords = ((BitmapContainer) other).words;
+        for (int aa = 0; aa < WORDS; aa++) {
+          ret += Long.bitCount(words[aa] & otherWords[aa]);
+        }
+      } else {
+        ret = other.andCardinality(this);
+      }
+      return ret;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(words.clone(), cardinality);
+    }
+
+    @Override
+    int nextValue(int from) {
+      int ret = -1;
+      int index = from >>> 6;
+      if (index < WORDS) {
+        long word = words[index] & (-1L << from);
+        while (word == 0 && ++index < WORDS) {
+          word = words[index];
+        }
+        if (word != 0) {
+          ret = (index << 6) + Long.numberOfTrailingZeros(word);
+        }
+      }
+      return ret;
+    }
+
+    private ArrayContainer toArray() {
+      char[] values = new char[Math.max(cardinality, 4)];
+      int count = 0;
+      for (int aa = 0; aa < WORDS; aa++) {
+        long word = words[aa];
+        while (word != 0) {
+          values[count++] = (char) ((aa << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values, count);
+    }
+
+  }
+
+}
@@ -0,0 +1,1178 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * A data store that keeps Person objects in a concurrent map keyed
+ * by ID, so finding a Person by ID does not mean walking the whole
+ * store, and concurrent request threads can't corrupt it.
+ *
+ * The Person objects in the map are never modified once they are stored.
+ * Writes swap in a new copy, and callers only ever get copies back, so
+ * nothing the caller does to a returned Person can leak into the store.
+ *
+ * The names of the stored Person objects come from the store's
+ * {@link NameDictionary}, so a name shared by a million Person objects
+ * is one String, not a million.
+ *
+ * A secondary index maps the dictionary's folded code of each last name
+ * to the IDs of the Person objects with that last name, so finding by
+ * last name costs time proportional to the number of matches, not the
+ * size of the store, and checking a match is an int comparison.
+ * Another maps each distinct Person (by equals()/hashCode(), which look
+ * at every attribute but the DB-specific ones) to its ID, so checking
+ * whether a Person is already in the store is a single hash lookup.
+ *
+ * There are also indexes on age (sorted, for ranges), and an
+ * {@link IdBitmap} of IDs for each eye color and gender, so counting by
+ * eye color or gender, or intersecting the two, is bitwise arithmetic
+ * over the whole store. Readers never take a lock: the bitmaps they see
+ * never change, as each write publishes new ones (sharing every chunk it
+ * didn't touch). {@link #findByQuery(PersonQuery)} estimates how
+ * many candidates each index the query can use would give it, walks the
+ * smallest set and checks the rest of the criteria against each candidate.
+ * Running totals ({@link PersonStatistics}) are kept as the store is
+ * written, so {@link #getStats()} never walks the store.
+ *
+ * An IndexedRepository created by {@link #open(File, IdAllocator)} is also
+ * durable: every write is appended to a {@link PersonJournal} and is on
+ * disk before the write method returns, and {@link #checkpoint()} writes a
+ * {@link PersonSnapshot} so the journal doesn't grow forever. Opening the
+ * same directory again loads the newest snapshot and replays the journal
+ * written since.
+ *
+ * @author sperry
+ *
+ */
+public class IndexedRepository implements PersonDao, Closeable {
+
+  private static final Logger log = Logger.getLogger(IndexedRepository.class);
+
+  /**
+   * The primary map: Person ID -> Person.
+   */
+  private final ConcurrentMap<Long, Person> data = new ConcurrentHashMap<>();
+
+  /**
+   * Every ID in the store, in order, for paging (and for handing back
+   * findAll() in the same order every time).
+   */
+  private final ConcurrentSkipListSet<Long> ids = new ConcurrentSkipListSet<>();
+
+  /**
+   * Every name in the store, and the case-folded codes the last name
+   * index is keyed on.
+   */
+  private final NameDictionary names = new NameDictionary();
+
+  /**
+   * The last name index: folded last name code -> IDs of the Person objects
+   * with that last name, in ID order (so iterateAllByLastName() is too).
+   */
+  private final ConcurrentMap<Integer, Set<Long>> lastNameIndex = new ConcurrentHashMap<>();
+
+  /**
+   * The age index: age -> IDs of the Person objects that age. Sorted, so
+   * an age range is a sub-map.
+   */
+  private final ConcurrentNavigableMap<Integer, Set<Long>> ageIndex = new ConcurrentSkipListMap<>();
+
+  /**
+   * The eye color and gender indexes as of the last write. Readers take no
+   * lock, as neither the indexes nor their bitmaps change once published.
+   */
+  private volatile AttributeBitmaps bitmaps = new AttributeBitmaps();
+
+  /**
+   * The changes the write in progress has made to the eye color and gender
+   * bitmaps, by ordinal (null if it hasn't changed that one), published by
+   * publishBitmaps() when it is done. Guarded by the write lock.
+   */
+  private final IdBitmap.Draft[] eyeColorDrafts = new IdBitmap.Draft[EyeColor.values().length];
+  private final IdBitmap.Draft[] genderDrafts = new IdBitmap.Draft[Gender.values().length];
+
+  /**
+   * Running totals for getStats(), kept up to date by the write paths.
+   */
+  private final PersonStatistics stats = new PersonStatistics();
+
+  /**
+   * The duplicate index: Person (the stored instance) -> ID. Writers change
+   * it under the write lock; findEqual() reads it without one.
+   */
+  private final ConcurrentMap<Person, Long> identityIndex = new ConcurrentHashMap<>();
+
+  /**
+   * Hands out the IDs of the Person objects added to the store.
+   */
+  private final IdAllocator idAllocator;
+
+  /**
+   * Writers take this lock so that checking for a duplicate, adding
+   * the Person and updating the indexes happen as one step. Readers
+   * never take it.
+   */
+  private final Object writeLock = new Object();
+
+  /**
+   * Where the journal and snapshots live, or null if the store isn't durable.
+   */
+  private final File directory;
+
+  /**
+   * The write-ahead log, or null if the store isn't durable.
+   */
+  private final PersonJournal journal;
+
+  /**
+   * The sequence number of the last record appended to the journal.
+   * Guarded by the write lock.
+   */
+  private long lastSequence;
+
+  /**
+   * Only one checkpoint at a time.
+   */
+  private final Object checkpointLock = new Object();
+
+  /**
+   * Creates an empty IndexedRepository with its own IdAllocator.
+   */
+  public IndexedRepository() {
+    this(new IdAllocator());
+  }
+
+  /**
+   * Creates an empty IndexedRepository that lives only in memory.
+   *
+   * @param idAllocator
+   *          Hands out the IDs of the Person objects added to the store.
+   */
+  public IndexedRepository(IdAllocator idAllocator) {
+    this.idAllocator = idAllocator;
+    this.directory = null;
+    this.journal = null;
+  }
+
+  private IndexedRepository(File directory, IdAllocator idAllocator) throws IOException {
+    this.idAllocator = idAllocator;
+    this.directory = directory;
+    this.journal = recover();
+  }
+
+  /**
+   * Opens the durable IndexedRepository kept in the specified directory,
+   * creating it (empty) if there isn't one there yet.
+   *
+   * @param directory
+   *          Where the journal and snapshots live
+   * @param idAllocator
+   *          Hands out the IDs of the Person objects added to the store.
+   *
+   * @return IndexedRepository - the store, as it was when last written
+   *
+   * @throws IOException
+   *           If the store can't be read, or the journal can't be started
+   */
+  public static IndexedRepository open(File directory, IdAllocator idAllocator) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create data directory " + directory);
+    }
+    return new IndexedRepository(directory, idAllocator);
+  }
+
+  /**
+   * Loads the newest snapshot, replays the journals written since and
+   * starts a new journal generation.
+   *
+   * @return PersonJournal - the new journal
+   */
+  private PersonJournal recover() throws IOException {
+    long maxId = 0;
+    long firstGeneration = 0;
+    Restorer restorer = new Restorer();
+    List<Long> snapshots = PersonSnapshot.generations(directory);
+    if (!snapshots.isEmpty()) {
+      firstGeneration = snapshots.get(snapshots.size() - 1);
+      maxId = PersonSnapshot.read(directory, firstGeneration, restorer);
+    }
+    long nextGeneration = firstGeneration;
+    long records = 0;
+    for (Long generation : PersonJournal.generations(directory)) {
+      if (generation >= firstGeneration) {
+        records += PersonJournal.replay(directory, generation, restorer);
+      }
+      nextGeneration = Math.max(nextGeneration, generation + 1);
+    }
+    idAllocator.reserveThrough(Math.max(maxId, restorer.maxId));
+    publishBitmaps();
+    log.info("Recovered " + data.size() + " Person objects from " + directory + " (snapshot generation "
+        + (snapshots.isEmpty() ? "none" : firstGeneration) + ", " + records + " journal records)");
+    return new PersonJournal(directory, nextGeneration);
+  }
+
+  /**
+   * Writes a snapshot of the store and deletes the journal files and
+   * snapshots it makes obsolete. Writers are held up only long enough
+   * to start a new journal generation; the snapshot itself is written
+   * while they carry on.
+   *
+   * @throws IllegalStateException
+   *           If the store isn't durable
+   * @throws UncheckedIOException
+   *           If the snapshot can't be written
+   */
+  public void checkpoint() {
+    if (journal == null) {
+      throw new IllegalStateException("This IndexedRepository is not durable, there is nothing to checkpoint.");
+    }
+    synchronized (checkpointLock) {
+      long generation;
+      long lastId;
+      List<Person> persons;
+      try {
+        synchronized (writeLock) {
+          generation = journal.roll();
+          lastId = idAllocator.getLastId();
+          // The stored Person objects never change, so no need to copy them
+          persons = new ArrayList<>(data.values());
+        }
+        PersonSnapshot.write(directory, generation, lastId, persons);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Checkpoint of " + directory + " failed", e);
+      }
+      PersonSnapshot.deleteBefore(directory, generation);
+      PersonJournal.deleteBefore(directory, generation);
+    }
+  }
+
+  /**
+   * Makes sure everything written so far is on disk, and closes the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    if (journal != null) {
+      synchronized (writeLock) {
+        journal.close();
+      }
+    }
+  }
+
+  @Override
+  public long getRepositorySize() {
+    return data.size();
+  }
+
+  @Override
+  public List<Person> findAll() {
+    List<Person> ret = new ArrayList<>(data.size());
+    for (Long id : ids) {
+      Person person = data.get(id);
+      // Deleted since we got the ID?
+      if (person != null) {
+        ret.add(new Person(person));
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    List<Person> ret = new ArrayList<>();
+    Iterator<Long> candidates = (afterId == null) ? ids.iterator() : ids.tailSet(afterId, false).iterator();
+    int skip = Math.max(offset, 0);
+    while (ret.size() < limit && candidates.hasNext()) {
+      Person person = data.get(candidates.next());
+      if (person != null) {
+        if (skip > 0) {
+          skip--;
+        } else {
+          ret.add(new Person(person));
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAllByLastName(String lastName) {
+    List<Person> ret = new ArrayList<>();
+    int key = names.findFoldedCode(lastName);
+    Set<Long> ids = lastNameIndex.get(key);
+    if (ids != null) {
+      for (Long id : ids) {
+        Person person = data.get(id);
+        //
+        // A writer may be moving this ID between index entries right
+        /// now, so make sure the Person still has the last name.
+        if (person != null && foldedLastNameCode(person) == key) {
+          ret.add(new Person(person));
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    return new PersonIterator(ids.iterator(), NameDictionary.NOT_FOUND);
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    int key = names.findFoldedCode(lastName);
+    Set<Long> lastNameIds = lastNameIndex.get(key);
+    return new PersonIterator((lastNameIds == null) ? Collections.<Long> emptyIterator() : lastNameIds.iterator(),
+        key);
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    Plan plan = plan(query);
+    if (log.isDebugEnabled()) {
+      log.debug("Plan for " + query + ": " + plan);
+    }
+    for (Long id : candidates(query, plan)) {
+      Person person = data.get(id);
+      // Check every criterion, including the one the plan used, as a writer
+      /// may be moving this ID between index entries right now.
+      if (person != null && query.matches(person)) {
+        ret.add(new Person(person));
+      }
+    }
+    if (plan != Plan.SCAN && plan != Plan.BITMAP) {
+      // The index sets aren't in ID order
+      ret.sort((a, b) -> a.getId().compareTo(b.getId()));
+    }
+    return ret;
+  }
+
+  /**
+   * The ways findByQuery() can come up with candidates.
+   */
+  enum Plan {
+    /**
+     * Nothing can match, so there's nothing to look at.
+     */
+    NONE,
+    /**
+     * Every Person in the store.
+     */
+    SCAN,
+    LAST_NAME, AGE,
+    /**
+     * The eye color bitmap, the gender bitmap, or both ANDed together.
+     */
+    BITMAP
+  }
+
+  /**
+   * Picks the index that gives the fewest candidates for the specified
+   * query. An index entry's size is the number of candidates it gives;
+   * an age range's is the sum of the sizes of the ages in it (the sum stops
+   * as soon as it can't beat the best so far). If the query has both an
+   * eye color and a gender, the bitmaps' estimate is the exact size of
+   * their intersection. The first name isn't
+   * indexed, so it is only ever checked against the candidates.
+   *
+   * @param query
+   *          The query
+   *
+   * @return Plan - the plan
+   */
+  Plan plan(PersonQuery query) {
+    Plan ret = Plan.SCAN;
+    long best = data.size();
+    if (query.getLastName() != null) {
+      Set<Long> lastNameIds = lastNameIndex.get(names.findFoldedCode(query.getLastName()));
+      long estimate = (lastNameIds == null) ? 0 : lastNameIds.size();
+      if (estimate < best) {
+        ret = Plan.LAST_NAME;
+        best = estimate;
+      }
+    }
+    if (query.getEyeColor() != null || query.getGender() != null) {
+      long estimate;
+      AttributeBitmaps current = bitmaps;
+      if (query.getEyeColor() != null && query.getGender() != null) {
+        estimate = current.of(query.getEyeColor()).andCardinality(current.of(query.getGender()));
+      } else {
+        estimate = current.of(query).cardinality();
+      }
+      if (estimate < best) {
+        ret = Plan.BITMAP;
+        best = estimate;
+      }
+    }
+    if (query.hasAgeRange()) {
+      long estimate = 0;
+      // An upside-down range has nobody in it
+      if (query.getAgeFrom() <= query.getAgeTo()) {
+        for (Iterator<Set<Long>> iterator = ageRange(query).values().iterator(); estimate < best
+            && iterator.hasNext();) {
+          estimate += iterator.next().size();
+        }
+      }
+      if (estimate < best) {
+        ret = Plan.AGE;
+        best = estimate;
+      }
+    }
+    if (best == 0) {
+      ret = Plan.NONE;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the IDs the specified plan says to check.
+   */
+  private Iterable<Long> candidates(PersonQuery query, Plan plan) {
+    Iterable<Long> ret;
+    switch (plan) {
+    case SCAN:
+      ret = ids;
+      break;
+    case LAST_NAME:
+      Set<Long> lastNameIds = lastNameIndex.get(names.findFoldedCode(query.getLastName()));
+      ret = (lastNameIds == null) ? Collections.<Long> emptySet() : lastNameIds;
+      break;
+    case AGE:
+      ret = () -> ageRange(query).values().stream().flatMap(Set::stream).iterator();
+      break;
+    case BITMAP:
+      IdBitmap bitmap;
+      // Published bitmaps never change, so there's no need for a copy
+      AttributeBitmaps current = bitmaps;
+      if (query.getEyeColor() != null && query.getGender() != null) {
+        bitmap = current.of(query.getEyeColor()).and(current.of(query.getGender()));
+      } else {
+        bitmap = current.of(query);
+      }
+      ret = bitmap::iterator;
+      break;
+    default:
+      ret = Collections.<Long> emptySet();
+      break;
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    Map<EyeColor, Long> ret = new EnumMap<>(EyeColor.class);
+    AttributeBitmaps current = bitmaps;
+    for (EyeColor eyeColor : EyeColor.values()) {
+      ret.put(eyeColor, current.of(eyeColor).cardinality());
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<Gender, Long> countByGender() {
+    Map<Gender, Long> ret = new EnumMap<>(Gender.class);
+    AttributeBitmaps current = bitmaps;
+    for (Gender gender : Gender.values()) {
+      ret.put(gender, current.of(gender).cardinality());
+    }
+    return ret;
+  }
+
+  @Override
+  public PersonStats getStats() {
+    return stats.snapshot();
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    return stats.countByLastName();
+  }
+
+  @Override
+  public long getVersion() {
+    return stats.version();
+  }
+
+  @Override
+  public Date getLastModified() {
+    return new Date(stats.lastModified());
+  }
+
+  /**
+   * The entries of the age index in the specified query's age range.
+   * The range must not be empty.
+   */
+  private ConcurrentNavigableMap<Integer, Set<Long>> ageRange(PersonQuery query) {
+    return ageIndex.subMap(query.getAgeFrom(), true, query.getAgeTo(), true);
+  }
+
+  @Override
+  public Person findById(Long id) {
+    Person ret = null;
+    if (id != null) {
+      ret = copyOf(data.get(id));
+    }
+    return ret;
+  }
+
+  @Override
+  public Person findEqual(Person person) {
+    Person ret = null;
+    if (person != null) {
+      Long id = identityIndex.get(person);
+      Person found = (id == null) ? null : data.get(id);
+      //
+      // A writer may be changing this Person right now, so make sure the
+      /// one found is still equal
+      if (found != null && found.equals(person)) {
+        ret = copyOf(found);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person addPerson(Person person) {
+    Person ret;
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        ret = copyOf(storePerson(person));
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    Person ret;
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        ret = copyOf(replacePerson(person));
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    Person ret;
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        ret = copyOf(removePerson(person));
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    Person ret;
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        checkVersion(person, expectedVersion);
+        ret = copyOf(replacePerson(person));
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    Person ret;
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        checkVersion(person, expectedVersion);
+        ret = copyOf(removePerson(person));
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        for (Person person : persons) {
+          ret.add(copyOf(storePerson(person)));
+        }
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        for (Person person : persons) {
+          ret.add(copyOf(replacePerson(person)));
+        }
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long sequence;
+    synchronized (writeLock) {
+      try {
+        for (Person person : persons) {
+          ret.add(copyOf(removePerson(person)));
+        }
+        sequence = lastSequence;
+      } finally {
+        publishBitmaps();
+      }
+    }
+    sync(sequence);
+    return ret;
+  }
+
+  /**
+   * Makes sure the stored Person with the same ID as the specified one (if
+   * there is one) is at the expected version. Callers must hold the write
+   * lock.
+   */
+  private void checkVersion(Person person, long expectedVersion) {
+    Person personFromDb = (person != null && person.getId() != null) ? data.get(person.getId()) : null;
+    if (personFromDb != null && personFromDb.getVersion() != expectedVersion) {
+      throw new VersionConflictException(copyOf(personFromDb), expectedVersion);
+    }
+  }
+
+  /**
+   * Adds the specified Person to the store, unless they already exist.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person to add (may be null)
+   *
+   * @return Person - the stored Person (the one already there, if they
+   *         already existed), or null if person was null
+   */
+  private Person storePerson(Person person) {
+    Person ret = null;
+    if (person != null) {
+      //
+      // If the Person already exists, send back the one we have
+      Long existingId = identityIndex.get(person);
+      if (existingId != null) {
+        ret = data.get(existingId);
+      } else {
+        Person personForDb = newPersonForDb(person);
+        personForDb.setId(idAllocator.nextId());
+        personForDb.setWhenCreated(new Date());
+        personForDb.setVersion(1L);
+        personForDb.setWhenModified(personForDb.getWhenCreated());
+        // Journal first: if it has failed, the store is left as it was
+        journalPut(personForDb);
+        data.put(personForDb.getId(), personForDb);
+        ids.add(personForDb.getId());
+        indexLastName(personForDb);
+        indexAttributes(personForDb);
+        indexIdentity(personForDb);
+        stats.add(personForDb);
+        ret = personForDb;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Replaces the stored Person with the same ID as the specified Person.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person with the new field value(s) (may be null)
+   *
+   * @return Person - the new stored Person, or null if there was no Person
+   *         with that ID
+   */
+  private Person replacePerson(Person person) {
+    Person ret = null;
+    Person personFromDb = (person != null && person.getId() != null) ? data.get(person.getId()) : null;
+    if (personFromDb != null) {
+      // Swap in a new copy rather than modify the one readers may be looking at
+      Person personForDb = newPersonForDb(person);
+      personForDb.setId(personFromDb.getId());
+      personForDb.setWhenCreated(personFromDb.getWhenCreated());
+      personForDb.setVersion(personFromDb.getVersion() + 1);
+      personForDb.setWhenModified(new Date());
+      journalPut(personForDb);
+      data.put(personForDb.getId(), personForDb);
+      unindexIdentity(personFromDb);
+      indexIdentity(personForDb);
+      if (foldedLastNameCode(personFromDb) != foldedLastNameCode(personForDb)) {
+        unindexLastName(personFromDb);
+        indexLastName(personForDb);
+      }
+      unindexAttributes(personFromDb);
+      indexAttributes(personForDb);
+      stats.remove(personFromDb);
+      stats.add(personForDb);
+      ret = personForDb;
+    }
+    return ret;
+  }
+
+  /**
+   * Removes the stored Person with the same ID as the specified Person.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person to remove (may be null)
+   *
+   * @return Person - the Person that was removed, or null if there was no
+   *         Person with that ID
+   */
+  private Person removePerson(Person person) {
+    Person ret = null;
+    if (person != null && person.getId() != null) {
+      ret = data.get(person.getId());
+      if (ret != null) {
+        journalDelete(ret.getId());
+        data.remove(ret.getId());
+        ids.remove(ret.getId());
+        unindexLastName(ret);
+        unindexAttributes(ret);
+        stats.remove(ret);
+        unindexIdentity(ret);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Appends a record of an added or updated Person to the journal, if there
+   * is one. Callers must hold the write lock.
+   */
+  private void journalPut(Person person) {
+    if (journal != null) {
+      lastSequence = journal.appendPut(person);
+    }
+  }
+
+  /**
+   * Appends a record of a deleted Person to the journal, if there is one.
+   * Callers must hold the write lock.
+   */
+  private void journalDelete(long id) {
+    if (journal != null) {
+      lastSequence = journal.appendDelete(id);
+    }
+  }
+
+  /**
+   * Waits until the journal is on disk up to and including the specified
+   * record. Callers must NOT hold the write lock, so other writers can
+   * append while we wait, and share the next fsync.
+   */
+  private void sync(long sequence) {
+    if (journal != null) {
+      try {
+        journal.sync(sequence);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not write the journal in " + directory, e);
+      }
+    }
+  }
+
+  /**
+   * Creates the Person to store from the one the caller sent, with the
+   * dictionary's copies of the names. The caller sets the ID and creation time.
+   */
+  private Person newPersonForDb(Person person) {
+    return new Person(names.intern(person.getLastName()), names.intern(person.getFirstName()), person.getAge(),
+        person.getEyeColor(), person.getGender());
+  }
+
+  /**
+   * Copies a stored Person on the way out of the store.
+   *
+   * @param person
+   *          The stored Person (may be null)
+   *
+   * @return Person - a copy, or null if person was null
+   */
+  private static Person copyOf(Person person) {
+    return (person == null) ? null : new Person(person);
+  }
+
+  /**
+   * Adds the specified Person to the duplicate index, unless an identical
+   * Person (an update can make one) is already there. Callers must hold
+   * the write lock.
+   *
+   * @param person
+   *          The Person (from the store) to index
+   */
+  private void indexIdentity(Person person) {
+    if (!identityIndex.containsKey(person)) {
+      identityIndex.put(person, person.getId());
+    }
+  }
+
+  /**
+   * Removes the specified Person from the duplicate index, if it is the
+   * one indexed. Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person (from the store) to remove from the index
+   */
+  private void unindexIdentity(Person person) {
+    if (person.getId().equals(identityIndex.get(person))) {
+      identityIndex.remove(person);
+    }
+  }
+
+  /**
+   * Adds the specified Person to the last name index. Callers must hold
+   * the write lock.
+   *
+   * @param person
+   *          The Person (from the store) to index
+   */
+  private void indexLastName(Person person) {
+    int key = foldedLastNameCode(person);
+    Set<Long> ids = lastNameIndex.get(key);
+    if (ids == null) {
+      ids = new ConcurrentSkipListSet<>();
+      lastNameIndex.put(key, ids);
+    }
+    ids.add(person.getId());
+  }
+
+  /**
+   * Removes the specified Person from the last name index. Callers must
+   * hold the write lock.
+   *
+   * @param person
+   *          The Person (from the store) to remove from the index
+   */
+  private void unindexLastName(Person person) {
+    int key = foldedLastNameCode(person);
+    Set<Long> ids = lastNameIndex.get(key);
+    if (ids != null) {
+      ids.remove(person.getId());
+      if (ids.isEmpty()) {
+        lastNameIndex.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Publishes the changes the write has made to the eye color and gender
+   * bitmaps (if any) for readers to see. Callers must hold the write lock.
+   */
+  private void publishBitmaps() {
+    AttributeBitmaps current = bitmaps;
+    IdBitmap[] eyeColors = publish(eyeColorDrafts, current.eyeColors);
+    IdBitmap[] genders = publish(genderDrafts, current.genders);
+    if (eyeColors != current.eyeColors || genders != current.genders) {
+      bitmaps = new AttributeBitmaps(eyeColors, genders);
+    }
+  }
+
+  /**
+   * @return IdBitmap[] - the published bitmaps with the drafts' changes
+   *         made (the same array, if there are no drafts), and the drafts
+   *         cleared
+   */
+  private static IdBitmap[] publish(IdBitmap.Draft[] drafts, IdBitmap[] published) {
+    IdBitmap[] ret = published;
+    for (int aa = 0; aa < drafts.length; aa++) {
+      if (drafts[aa] != null) {
+        if (ret == published) {
+          ret = published.clone();
+        }
+        ret[aa] = drafts[aa].toBitmap();
+        drafts[aa] = null;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return IdBitmap.Draft - the write's draft of the specified bitmap,
+   *         started if it hasn't one yet. Callers must hold the write lock.
+   */
+  private static IdBitmap.Draft draft(IdBitmap.Draft[] drafts, IdBitmap[] published, int ordinal) {
+    if (drafts[ordinal] == null) {
+      drafts[ordinal] = new IdBitmap.Draft(published[ordinal]);
+    }
+    return drafts[ordinal];
+  }
+
+  /**
+   * Adds the specified Person to the age, eye color and gender indexes.
+   * A null eye color or gender isn't indexed. Callers must hold the write
+   * lock.
+   *
+   * @param person
+   *          The Person (from the store) to index
+   */
+  private void indexAttributes(Person person) {
+    Set<Long> ageIds = ageIndex.get(person.getAge());
+    if (ageIds == null) {
+      ageIds = ConcurrentHashMap.newKeySet();
+      ageIndex.put(person.getAge(), ageIds);
+    }
+    ageIds.add(person.getId());
+    AttributeBitmaps current = bitmaps;
+    if (person.getEyeColor() != null) {
+      draft(eyeColorDrafts, current.eyeColors, person.getEyeColor().ordinal()).add(person.getId());
+    }
+    if (person.getGender() != null) {
+      draft(genderDrafts, current.genders, person.getGender().ordinal()).add(person.getId());
+    }
+  }
+
+  /**
+   * Removes the specified Person from the age, eye color and gender
+   * indexes. Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person (from the store) to remove from the indexes
+   */
+  private void unindexAttributes(Person person) {
+    Set<Long> ageIds = ageIndex.get(person.getAge());
+    if (ageIds != null) {
+      ageIds.remove(person.getId());
+      if (ageIds.isEmpty()) {
+        ageIndex.remove(person.getAge());
+      }
+    }
+    AttributeBitmaps current = bitmaps;
+    if (person.getEyeColor() != null) {
+      draft(eyeColorDrafts, current.eyeColors, person.getEyeColor().ordinal()).remove(person.getId());
+    }
+    if (person.getGender() != null) {
+      draft(genderDrafts, current.genders, person.getGender().ordinal()).remove(person.getId());
+    }
+  }
+
+  /**
+   * Returns the key of the specified Person in the last name index: the
+   * folded code of their last name, which is what makes the search
+   * case-insensitive.
+   *
+   * @param person
+   *          The Person (from the store)
+   *
+   * @return int - the folded last name code
+   */
+  private int foldedLastNameCode(Person person) {
+    return names.foldedCodeOf(names.codeOf(person.getLastName()));
+  }
+
+  /**
+   * Applies the snapshot and journal records to the store during recovery,
+   * with the IDs and creation times they were written with.
+   */
+  private class Restorer implements PersonJournal.Visitor {
+
+    private long maxId;
+
+    @Override
+    public void put(Person person) {
+      person.setLastName(names.intern(person.getLastName()));
+      person.setFirstName(names.intern(person.getFirstName()));
+      Person existing = data.put(person.getId(), person);
+      if (existing != null) {
+        unindexLastName(existing);
+        unindexAttributes(existing);
+        unindexIdentity(existing);
+        stats.remove(existing);
+      }
+      ids.add(person.getId());
+      indexLastName(person);
+      indexAttributes(person);
+      indexIdentity(person);
+      stats.add(person);
+      maxId = Math.max(maxId, person.getId());
+    }
+
+    @Override
+    public void delete(long id) {
+      Person existing = data.remove(id);
+      if (existing != null) {
+        ids.remove(id);
+        unindexLastName(existing);
+        unindexAttributes(existing);
+        unindexIdentity(existing);
+        stats.remove(existing);
+      }
+    }
+
+  }
+
+  /**
+   * The eye color and gender indexes as of one write: a bitmap of the IDs
+   * of the Person objects with each eye color, and with each gender, by
+   * ordinal. Never changed once published.
+   */
+  private static final class AttributeBitmaps {
+
+    private final IdBitmap[] eyeColors;
+    private final IdBitmap[] genders;
+
+    AttributeBitmaps() {
+      this(emptyBitmaps(EyeColor.values().length), emptyBitmaps(Gender.values().length));
+    }
+
+    AttributeBitmaps(IdBitmap[] eyeColors, IdBitmap[] genders) {
+      this.eyeColors = eyeColors;
+      this.genders = genders;
+    }
+
+    IdBitmap of(EyeColor eyeColor) {
+      return eyeColors[eyeColor.ordinal()];
+    }
+
+    IdBitmap of(Gender gender) {
+      return genders[gender.ordinal()];
+    }
+
+    /**
+     * @return IdBitmap - the bitmap of the one enum attribute the specified
+     *         query has
+     */
+    IdBitmap of(PersonQuery query) {
+      return (query.getEyeColor() != null) ? of(query.getEyeColor()) : of(query.getGender());
+    }
+
+    private static IdBitmap[] emptyBitmaps(int count) {
+      IdBitmap[] ret = new IdBitmap[count];
+      for (int aa = 0; aa < count; aa++) {
+        ret[aa] = new IdBitmap();
+      }
+      return ret;
+    }
+
+  }
+
+  /**
+   * Turns an Iterator over IDs into one over (copies of) the Person objects
+   * with those IDs, skipping any deleted since the ID was indexed.
+   */
+  private class PersonIterator implements Iterator<Person> {
+
+    private final Iterator<Long> idIterator;
+    /**
+     * Unless NOT_FOUND, only Person objects with this folded last name code.
+     */
+    private final int foldedLastNameCode;
+    private Person next;
+
+    PersonIterator(Iterator<Long> idIterator, int foldedLastNameCode) {
+      this.idIterator = idIterator;
+      this.foldedLastNameCode = foldedLastNameCode;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && idIterator.hasNext()) {
+        Person person = data.get(idIterator.next());
+        if (person != null
+            && (foldedLastNameCode == NameDictionary.NOT_FOUND || foldedLastNameCode(person) == foldedLastNameCode)) {
+          next = person;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Person next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Person ret = new Person(next);
+      next = null;
+      return ret;
+    }
+
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.Arrays;
+
+/**
+ * A sorted list of distinct ints, kept in a plain int[] so an index entry
+ * costs four bytes rather than a boxed Long plus a hash set node.
+ *
+ * Not thread-safe; the data stores that use it guard it with their locks.
+ *
+ * @author sperry
+ *
+ */
+final class IntList {
+
+  private int[] values;
+  private int size;
+
+  IntList() {
+    this(8);
+  }
+
+  IntList(int capacity) {
+    values = new int[Math.max(capacity, 1)];
+  }
+
+  int size() {
+    return size;
+  }
+
+  int get(int index) {
+    return values[index];
+  }
+
+  /**
+   * Adds the specified value in its sorted place, unless it is already
+   * there. Adding a value bigger than all the others (the usual case, as
+   * IDs only go up) is just an append.
+   */
+  void add(int value) {
+    int index = (size == 0 || values[size - 1] < value) ? -(size + 1) : Arrays.binarySearch(values, 0, size, value);
+    if (index < 0) {
+      index = -(index + 1);
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = value;
+      size++;
+    }
+  }
+
+  /**
+   * Removes the specified value, if it is there.
+   */
+  void remove(int value) {
+    int index = Arrays.binarySearch(values, 0, size, value);
+    if (index >= 0) {
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size--;
+    }
+  }
+
+  /**
+   * @return int[] - a copy of the values, in order
+   */
+  int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+}
@@ -0,0 +1,1023 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * A data store that keeps Person records off the Java heap, in fixed-size
+ * slots in a memory-mapped file. The ID of a Person is the number of its
+ * slot, so finding by ID is a bit of arithmetic, and the operating system
+ * (not the garbage collector) looks after the data.
+ *
+ * A slot ({@value #SLOT_SIZE} bytes) holds:
+ * <pre>
+ *  0 flag (free, live or deleted)   4 last name code
+ *  1 age (unsigned byte)            8 first name code
+ *  2 eye color ordinal (-1 = null) 12 version
+ *  3 gender ordinal (-1 = null)    16 whenCreated (epoch millis)
+ *                                  24 whenModified (epoch millis)
+ * </pre>
+ * The names are kept in a {@link NameDictionary}, so each distinct name
+ * is stored once however many Person objects have it. Slot 0 holds the
+ * file header instead of a Person, which is why IDs start at 1. A Person
+ * whose age doesn't fit in the byte (0 to {@value #MAX_AGE}) can't be
+ * stored: adding or updating one does nothing and returns null, as for a
+ * null Person, so the rest of a batch is still written.
+ *
+ * The last name index is keyed by the dictionary's folded code of the
+ * last name, so the case-insensitive search and its re-checks compare
+ * ints, not Strings. There is also an {@link IdBitmap} of slots for each
+ * eye color and gender, which the counts come straight from. A query
+ * walks the smaller of its last name index entry and its eye color and/or
+ * gender bitmap (ANDed), or scans the slots if it has none of those, and
+ * only creates a Person for a slot whose raw fields match.
+ *
+ * Person objects are only created when a caller asks for them (the
+ * iterators create them one at a time). The only per-Person data on the
+ * heap is eight bytes of index (an entry in the {@link DuplicateTable},
+ * and one in the last name index) plus a few bits in the bitmaps. All of
+ * them are rebuilt by scanning the file
+ * when the store is opened, which is far quicker than loading Person
+ * objects.
+ *
+ * Slots are never reused, so neither are IDs. Writers take a
+ * StampedLock's write lock; finding by ID reads optimistically (no lock
+ * at all, unless a writer got in the way), and scans take the read lock.
+ *
+ * @author sperry
+ *
+ */
+public class MappedRepository implements PersonDao, Closeable {
+
+  private static final Logger log = Logger.getLogger(MappedRepository.class);
+
+  public static final String DATA_FILE = "persons.dat";
+  public static final String NAMES_FILE = "names.dat";
+
+  static final int SLOT_SIZE = 32;
+  private static final int SLOTS_PER_SEGMENT = 1 << 20;
+  private static final long SEGMENT_BYTES = (long) SLOTS_PER_SEGMENT * SLOT_SIZE;
+
+  private static final int MAGIC = 0x50534C54; // "PSLT"
+  private static final int VERSION = 2;
+
+  private static final int FLAG = 0;
+  private static final int AGE = 1;
+  private static final int EYE_COLOR = 2;
+  private static final int GENDER = 3;
+  private static final int LAST_NAME = 4;
+  private static final int FIRST_NAME = 8;
+  private static final int RECORD_VERSION = 12;
+  private static final int WHEN_CREATED = 16;
+  private static final int WHEN_MODIFIED = 24;
+
+  private static final byte FLAG_FREE = 0;
+  private static final byte FLAG_LIVE = 1;
+  private static final byte FLAG_DELETED = 2;
+
+  private static final byte NULL_ORDINAL = -1;
+  private static final long NULL_TIME = Long.MIN_VALUE;
+
+  private static final int MAX_AGE = 255;
+
+  private final FileChannel channel;
+  private final NameDictionary names;
+
+  /**
+   * The mapped segments of the file, SLOTS_PER_SEGMENT slots each.
+   * Replaced (never modified) when the file grows.
+   */
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+  /**
+   * The first slot never used. Slots from 1 up to (not including) it
+   * are live or deleted.
+   */
+  private volatile int nextSlot = 1;
+
+  private volatile long liveCount;
+
+  /**
+   * The duplicate index. Guarded by the write lock; only writers use it.
+   */
+  private final DuplicateTable duplicates = new DuplicateTable(this::hashOfSlot);
+
+  /**
+   * The last name index: folded last name code -> slots. Written under the
+   * write lock, read under the read lock.
+   */
+  private final Map<Integer, IntList> lastNameIndex = new HashMap<>();
+
+  /*
+   * The eye color and gender bitmaps, indexed by ordinal. Written under the
+   * write lock, read under the read lock.
+   */
+  private final IdBitmap[] eyeColorIndex = newBitmaps(EyeColor.values().length);
+  private final IdBitmap[] genderIndex = newBitmaps(Gender.values().length);
+
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * Running totals for getStats(), kept up to date by the write paths and
+   * rebuilt when the file is opened.
+   */
+  private final PersonStatistics stats = new PersonStatistics();
+
+  private MappedRepository(File directory) throws IOException {
+    names = NameDictionary.open(new File(directory, NAMES_FILE));
+    File dataFile = new File(directory, DATA_FILE);
+    boolean brandNew = !dataFile.exists() || dataFile.length() == 0;
+    channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    if (brandNew) {
+      MappedByteBuffer header = segment(0);
+      header.putInt(0, MAGIC);
+      header.putInt(4, VERSION);
+      header.putInt(8, SLOT_SIZE);
+    } else {
+      load(dataFile);
+    }
+  }
+
+  /**
+   * Opens the MappedRepository kept in the specified directory, creating
+   * it (empty) if there isn't one there yet.
+   *
+   * @param directory
+   *          Where the data file and name dictionary live
+   *
+   * @return MappedRepository - the store
+   *
+   * @throws IOException
+   *           If the files can't be read or created
+   */
+  public static MappedRepository open(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create data directory " + directory);
+    }
+    return new MappedRepository(directory);
+  }
+
+  /**
+   * Maps an existing file and rebuilds the indexes from it.
+   */
+  private void load(File dataFile) throws IOException {
+    long segmentCount = (channel.size() + SEGMENT_BYTES - 1) / SEGMENT_BYTES;
+    for (int aa = 0; aa < segmentCount; aa++) {
+      segment(aa);
+    }
+    MappedByteBuffer header = segments[0];
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != SLOT_SIZE) {
+      throw new IOException(dataFile + " is not a version " + VERSION + " Person data file");
+    }
+    //
+    // The slots in use are the ones up to the last one that isn't free
+    int lastSlot = (int) (segmentCount * SLOTS_PER_SEGMENT) - 1;
+    while (lastSlot > 0 && buffer(lastSlot).get(offset(lastSlot) + FLAG) == FLAG_FREE) {
+      lastSlot--;
+    }
+    nextSlot = lastSlot + 1;
+    long live = 0;
+    for (int slot = 1; slot < nextSlot; slot++) {
+      if (buffer(slot).get(offset(slot) + FLAG) == FLAG_LIVE) {
+        indexDuplicate(slot);
+        lastNameList(names.foldedCodeOf(buffer(slot).getInt(offset(slot) + LAST_NAME))).add(slot);
+        indexOrdinals(slot, buffer(slot).get(offset(slot) + EYE_COLOR), buffer(slot).get(offset(slot) + GENDER));
+        stats.add(decode(slot));
+        live++;
+      }
+    }
+    liveCount = live;
+    log.info("Opened " + dataFile + ": " + live + " Person objects in " + (nextSlot - 1) + " slots, "
+        + names.size() + " distinct names");
+  }
+
+  @Override
+  public long getRepositorySize() {
+    return liveCount;
+  }
+
+  @Override
+  public List<Person> findAll() {
+    List<Person> ret = new ArrayList<>();
+    long stamp = lock.readLock();
+    try {
+      for (int slot = 1; slot < nextSlot; slot++) {
+        Person person = decode(slot);
+        if (person != null) {
+          ret.add(person);
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    List<Person> ret = new ArrayList<>();
+    int skip = Math.max(offset, 0);
+    long stamp = lock.readLock();
+    try {
+      int end = nextSlot;
+      long first = (afterId == null) ? 1 : Math.max(afterId + 1, 1);
+      for (long slot = first; slot < end && ret.size() < limit; slot++) {
+        Person person = decode((int) slot);
+        if (person != null) {
+          if (skip > 0) {
+            skip--;
+          } else {
+            ret.add(person);
+          }
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAllByLastName(String lastName) {
+    List<Person> ret = new ArrayList<>();
+    int key = names.findFoldedCode(lastName);
+    long stamp = lock.readLock();
+    try {
+      IntList slots = lastNameIndex.get(key);
+      if (slots != null) {
+        for (int aa = 0; aa < slots.size(); aa++) {
+          Person person = decode(slots.get(aa));
+          if (person != null) {
+            ret.add(person);
+          }
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    long stamp = lock.readLock();
+    try {
+      IntList slots = (query.getLastName() == null) ? null
+          : lastNameIndex.getOrDefault(names.findFoldedCode(query.getLastName()), new IntList());
+      IdBitmap bitmap = bitmapFor(query);
+      if (slots != null && (bitmap == null || slots.size() <= bitmap.cardinality())) {
+        for (int aa = 0; aa < slots.size(); aa++) {
+          addIfMatches(slots.get(aa), query, ret);
+        }
+      } else if (bitmap != null) {
+        for (PrimitiveIterator.OfLong iterator = bitmap.iterator(); iterator.hasNext();) {
+          addIfMatches((int) iterator.nextLong(), query, ret);
+        }
+      } else {
+        for (int slot = 1; slot < nextSlot; slot++) {
+          addIfMatches(slot, query, ret);
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  /**
+   * The slots with the specified query's eye color and/or gender. Callers
+   * must hold a lock.
+   *
+   * @return IdBitmap - the bitmap (don't change it), or null if the query
+   *         has neither
+   */
+  private IdBitmap bitmapFor(PersonQuery query) {
+    IdBitmap ret = null;
+    if (query.getEyeColor() != null && query.getGender() != null) {
+      ret = eyeColorIndex[query.getEyeColor().ordinal()].and(genderIndex[query.getGender().ordinal()]);
+    } else if (query.getEyeColor() != null) {
+      ret = eyeColorIndex[query.getEyeColor().ordinal()];
+    } else if (query.getGender() != null) {
+      ret = genderIndex[query.getGender().ordinal()];
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    Map<EyeColor, Long> ret = new EnumMap<>(EyeColor.class);
+    long stamp = lock.readLock();
+    try {
+      for (EyeColor eyeColor : EyeColor.values()) {
+        ret.put(eyeColor, eyeColorIndex[eyeColor.ordinal()].cardinality());
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<Gender, Long> countByGender() {
+    Map<Gender, Long> ret = new EnumMap<>(Gender.class);
+    long stamp = lock.readLock();
+    try {
+      for (Gender gender : Gender.values()) {
+        ret.put(gender, genderIndex[gender.ordinal()].cardinality());
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public PersonStats getStats() {
+    return stats.snapshot();
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    return stats.countByLastName();
+  }
+
+  @Override
+  public long getVersion() {
+    return stats.version();
+  }
+
+  @Override
+  public Date getLastModified() {
+    return new Date(stats.lastModified());
+  }
+
+  /**
+   * Adds the Person in the specified slot to the list if the slot is live
+   * and matches the query. Callers must hold a lock.
+   */
+  private void addIfMatches(int slot, PersonQuery query, List<Person> persons) {
+    RawSlot raw = readRaw(slot);
+    if (raw != null && raw.matches(query)) {
+      persons.add(raw.toPerson(slot));
+    }
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    return new SlotIterator(null, NameDictionary.NOT_FOUND);
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    int[] slots;
+    int key = names.findFoldedCode(lastName);
+    long stamp = lock.readLock();
+    try {
+      IntList list = lastNameIndex.get(key);
+      slots = (list == null) ? new int[0] : list.toArray();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return new SlotIterator(slots, key);
+  }
+
+  @Override
+  public Person findById(Long id) {
+    Person ret = null;
+    if (id != null && id > 0 && id < Integer.MAX_VALUE) {
+      RawSlot raw = read((int) (long) id);
+      if (raw != null) {
+        ret = raw.toPerson((int) (long) id);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person findEqual(Person person) {
+    Person ret = null;
+    if (fits(person)) {
+      int lastNameCode = names.findCode(person.getLastName());
+      int firstNameCode = names.findCode(person.getFirstName());
+      // Nobody has a name that isn't in the dictionary
+      if (lastNameCode != NameDictionary.NOT_FOUND && firstNameCode != NameDictionary.NOT_FOUND) {
+        long stamp = lock.readLock();
+        try {
+          ret = decode(findDuplicate(lastNameCode, firstNameCode, ageOf(person), ordinalOf(person.getEyeColor()),
+              ordinalOf(person.getGender())));
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person addPerson(Person person) {
+    long stamp = lock.writeLock();
+    try {
+      return decode(storePerson(person));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    long stamp = lock.writeLock();
+    try {
+      return decode(replacePerson(person));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    Person ret = null;
+    long stamp = lock.writeLock();
+    try {
+      int slot = liveSlotOf(person);
+      if (slot != 0) {
+        ret = decode(slot);
+        removePerson(slot);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    long stamp = lock.writeLock();
+    try {
+      checkVersion(liveSlotOf(person), expectedVersion);
+      return decode(replacePerson(person));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    Person ret = null;
+    long stamp = lock.writeLock();
+    try {
+      int slot = liveSlotOf(person);
+      checkVersion(slot, expectedVersion);
+      if (slot != 0) {
+        ret = decode(slot);
+        removePerson(slot);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        ret.add(decode(storePerson(person)));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        ret.add(decode(replacePerson(person)));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    long stamp = lock.writeLock();
+    try {
+      for (Person person : persons) {
+        Person deleted = null;
+        int slot = liveSlotOf(person);
+        if (slot != 0) {
+          deleted = decode(slot);
+          removePerson(slot);
+        }
+        ret.add(deleted);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    return ret;
+  }
+
+  /**
+   * Writes the mapped file out to disk and closes the store.
+   */
+  @Override
+  public void close() throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+      channel.close();
+      names.close();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Adds the specified Person to the store, unless they already exist.
+   * Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person to add (may be null)
+   *
+   * @return int - the slot of the stored Person (the one already there, if
+   *         they already existed), or 0 if person was null or doesn't fit
+   */
+  private int storePerson(Person person) {
+    int ret = 0;
+    if (fits(person)) {
+      byte age = ageOf(person);
+      int lastNameCode = names.codeOf(person.getLastName());
+      int firstNameCode = names.codeOf(person.getFirstName());
+      byte eyeColor = ordinalOf(person.getEyeColor());
+      byte gender = ordinalOf(person.getGender());
+      ret = findDuplicate(lastNameCode, firstNameCode, age, eyeColor, gender);
+      if (ret == 0) {
+        ret = nextSlot;
+        if (ret == Integer.MAX_VALUE) {
+          throw new IllegalStateException("The data file is full");
+        }
+        MappedByteBuffer buffer = buffer(ret);
+        int offset = offset(ret);
+        writeAttributes(buffer, offset, lastNameCode, firstNameCode, age, eyeColor, gender);
+        long now = System.currentTimeMillis();
+        buffer.putInt(offset + RECORD_VERSION, 1);
+        buffer.putLong(offset + WHEN_CREATED, now);
+        buffer.putLong(offset + WHEN_MODIFIED, now);
+        buffer.put(offset + FLAG, FLAG_LIVE);
+        nextSlot = ret + 1;
+        indexDuplicate(ret);
+        lastNameList(names.foldedCodeOf(lastNameCode)).add(ret);
+        indexOrdinals(ret, eyeColor, gender);
+        stats.add(decode(ret));
+        liveCount++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Overwrites the slot of the stored Person with the same ID as the
+   * specified Person. Callers must hold the write lock.
+   *
+   * @param person
+   *          The Person with the new field value(s) (may be null)
+   *
+   * @return int - the slot, or 0 if there was no Person with that ID or
+   *         the new values don't fit
+   */
+  private int replacePerson(Person person) {
+    int ret = fits(person) ? liveSlotOf(person) : 0;
+    if (ret != 0) {
+      byte age = ageOf(person);
+      MappedByteBuffer buffer = buffer(ret);
+      int offset = offset(ret);
+      int oldFoldedLastNameCode = names.foldedCodeOf(buffer.getInt(offset + LAST_NAME));
+      int lastNameCode = names.codeOf(person.getLastName());
+      byte eyeColor = ordinalOf(person.getEyeColor());
+      byte gender = ordinalOf(person.getGender());
+      duplicates.remove(ret);
+      stats.remove(decode(ret));
+      unindexOrdinals(ret, buffer.get(offset + EYE_COLOR), buffer.get(offset + GENDER));
+      writeAttributes(buffer, offset, lastNameCode, names.codeOf(person.getFirstName()), age, eyeColor, gender);
+      buffer.putInt(offset + RECORD_VERSION, buffer.getInt(offset + RECORD_VERSION) + 1);
+      buffer.putLong(offset + WHEN_MODIFIED, System.currentTimeMillis());
+      indexDuplicate(ret);
+      indexOrdinals(ret, eyeColor, gender);
+      stats.add(decode(ret));
+      int foldedLastNameCode = names.foldedCodeOf(lastNameCode);
+      if (foldedLastNameCode != oldFoldedLastNameCode) {
+        unindexLastName(oldFoldedLastNameCode, ret);
+        lastNameList(foldedLastNameCode).add(ret);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Makes sure the specified slot (if it's live) is at the expected
+   * version. Callers must hold the write lock.
+   */
+  private void checkVersion(int slot, long expectedVersion) {
+    if (slot != 0 && buffer(slot).getInt(offset(slot) + RECORD_VERSION) != expectedVersion) {
+      throw new VersionConflictException(decode(slot), expectedVersion);
+    }
+  }
+
+  /**
+   * Marks the specified (live) slot deleted. Callers must hold the write lock.
+   */
+  private void removePerson(int slot) {
+    MappedByteBuffer buffer = buffer(slot);
+    int offset = offset(slot);
+    duplicates.remove(slot);
+    stats.remove(decode(slot));
+    unindexLastName(names.foldedCodeOf(buffer.getInt(offset + LAST_NAME)), slot);
+    unindexOrdinals(slot, buffer.get(offset + EYE_COLOR), buffer.get(offset + GENDER));
+    buffer.put(offset + FLAG, FLAG_DELETED);
+    liveCount--;
+  }
+
+  /**
+   * Adds the specified slot to the bitmaps of its eye color and gender
+   * ordinals (nulls aren't indexed). Callers must hold the write lock.
+   */
+  private void indexOrdinals(int slot, byte eyeColor, byte gender) {
+    if (eyeColor != NULL_ORDINAL) {
+      eyeColorIndex[eyeColor].add(slot);
+    }
+    if (gender != NULL_ORDINAL) {
+      genderIndex[gender].add(slot);
+    }
+  }
+
+  /**
+   * Removes the specified slot from the bitmaps of its eye color and gender
+   * ordinals. Callers must hold the write lock.
+   */
+  private void unindexOrdinals(int slot, byte eyeColor, byte gender) {
+    if (eyeColor != NULL_ORDINAL) {
+      eyeColorIndex[eyeColor].remove(slot);
+    }
+    if (gender != NULL_ORDINAL) {
+      genderIndex[gender].remove(slot);
+    }
+  }
+
+  private static IdBitmap[] newBitmaps(int count) {
+    IdBitmap[] ret = new IdBitmap[count];
+    for (int aa = 0; aa < count; aa++) {
+      ret[aa] = new IdBitmap();
+    }
+    return ret;
+  }
+
+  private static void writeAttributes(MappedByteBuffer buffer, int offset, int lastNameCode, int firstNameCode,
+      byte age, byte eyeColor, byte gender) {
+    buffer.put(offset + AGE, age);
+    buffer.put(offset + EYE_COLOR, eyeColor);
+    buffer.put(offset + GENDER, gender);
+    buffer.putInt(offset + LAST_NAME, lastNameCode);
+    buffer.putInt(offset + FIRST_NAME, firstNameCode);
+  }
+
+  /**
+   * @return int - the slot of the live Person with the same ID as the
+   *         specified one, or 0 if there isn't one
+   */
+  private int liveSlotOf(Person person) {
+    int ret = 0;
+    if (person != null && person.getId() != null && person.getId() > 0 && person.getId() < nextSlot) {
+      int slot = (int) (long) person.getId();
+      if (buffer(slot).get(offset(slot) + FLAG) == FLAG_LIVE) {
+        ret = slot;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Reads the specified slot without taking a lock, unless a writer got in
+   * the way, in which case it reads again under the read lock.
+   *
+   * @return RawSlot - the slot's fields (consistent ones), or null if the
+   *         slot isn't live
+   */
+  private RawSlot read(int slot) {
+    RawSlot ret = null;
+    boolean consistent = false;
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      ret = readRaw(slot);
+      consistent = lock.validate(stamp);
+    }
+    if (!consistent) {
+      stamp = lock.readLock();
+      try {
+        ret = readRaw(slot);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Creates a Person from the specified slot. Callers must hold a lock.
+   *
+   * @return Person - the Person, or null if slot is 0 or isn't live
+   */
+  private Person decode(int slot) {
+    Person ret = null;
+    if (slot != 0) {
+      RawSlot raw = readRaw(slot);
+      if (raw != null) {
+        ret = raw.toPerson(slot);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Copies the fields of a slot off the mapped file. Without a lock they
+   * may be torn, so nothing is made of them until the read is validated.
+   *
+   * @return RawSlot - the fields, or null if the slot isn't live
+   */
+  private RawSlot readRaw(int slot) {
+    RawSlot ret = null;
+    MappedByteBuffer[] current = segments;
+    int segment = slot / SLOTS_PER_SEGMENT;
+    if (slot < nextSlot && segment < current.length) {
+      MappedByteBuffer buffer = current[segment];
+      int offset = offset(slot);
+      if (buffer.get(offset + FLAG) == FLAG_LIVE) {
+        ret = new RawSlot();
+        ret.age = buffer.get(offset + AGE);
+        ret.eyeColor = buffer.get(offset + EYE_COLOR);
+        ret.gender = buffer.get(offset + GENDER);
+        ret.lastNameCode = buffer.getInt(offset + LAST_NAME);
+        ret.firstNameCode = buffer.getInt(offset + FIRST_NAME);
+        ret.version = buffer.getInt(offset + RECORD_VERSION);
+        ret.whenCreated = buffer.getLong(offset + WHEN_CREATED);
+        ret.whenModified = buffer.getLong(offset + WHEN_MODIFIED);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The fields of a slot, as read.
+   */
+  private final class RawSlot {
+    private byte age;
+    private byte eyeColor;
+    private byte gender;
+    private int lastNameCode;
+    private int firstNameCode;
+    private int version;
+    private long whenCreated;
+    private long whenModified;
+
+    private Person toPerson(int slot) {
+      Person ret = new Person(names.nameOf(lastNameCode), names.nameOf(firstNameCode), age & 0xFF,
+          (eyeColor == NULL_ORDINAL) ? null : Person.EyeColor.values()[eyeColor],
+          (gender == NULL_ORDINAL) ? null : Person.Gender.values()[gender]);
+      ret.setId((long) slot);
+      ret.setWhenCreated((whenCreated == NULL_TIME) ? null : new Date(whenCreated));
+      ret.setVersion((long) version);
+      ret.setWhenModified((whenModified == NULL_TIME) ? null : new Date(whenModified));
+      return ret;
+    }
+
+    /**
+     * Checks the fields against the query: the numbers first, and the
+     * names only if they pass.
+     */
+    private boolean matches(PersonQuery query) {
+      int unsignedAge = age & 0xFF;
+      return unsignedAge >= query.getAgeFrom() && unsignedAge <= query.getAgeTo()
+          && (query.getEyeColor() == null || query.getEyeColor().ordinal() == eyeColor)
+          && (query.getGender() == null || query.getGender().ordinal() == gender)
+          && (query.getLastName() == null || query.getLastName().equalsIgnoreCase(names.nameOf(lastNameCode)))
+          && (query.getFirstName() == null || query.getFirstName().equalsIgnoreCase(names.nameOf(firstNameCode)));
+    }
+  }
+
+  /**
+   * Finds the live slot with exactly the specified attributes. Callers must
+   * hold the write lock.
+   *
+   * @return int - the slot, or 0 if there is none
+   */
+  private int findDuplicate(int lastNameCode, int firstNameCode, byte age, byte eyeColor, byte gender) {
+    return duplicates.find(DuplicateTable.hash(lastNameCode, firstNameCode, age, eyeColor, gender), slot -> {
+      MappedByteBuffer buffer = buffer(slot);
+      int offset = offset(slot);
+      return buffer.getInt(offset + LAST_NAME) == lastNameCode && buffer.getInt(offset + FIRST_NAME) == firstNameCode
+          && buffer.get(offset + AGE) == age && buffer.get(offset + EYE_COLOR) == eyeColor
+          && buffer.get(offset + GENDER) == gender;
+    });
+  }
+
+  /**
+   * Adds the specified slot to the duplicate table, unless an identical
+   * Person (an update can make one) is already there. Callers must hold
+   * the write lock.
+   */
+  private void indexDuplicate(int slot) {
+    MappedByteBuffer buffer = buffer(slot);
+    int offset = offset(slot);
+    if (findDuplicate(buffer.getInt(offset + LAST_NAME), buffer.getInt(offset + FIRST_NAME), buffer.get(offset + AGE),
+        buffer.get(offset + EYE_COLOR), buffer.get(offset + GENDER)) == 0) {
+      duplicates.add(slot);
+    }
+  }
+
+  /**
+   * Works out the duplicate table hash of the specified slot.
+   */
+  private int hashOfSlot(int slot) {
+    MappedByteBuffer buffer = buffer(slot);
+    int offset = offset(slot);
+    return DuplicateTable.hash(buffer.getInt(offset + LAST_NAME), buffer.getInt(offset + FIRST_NAME),
+        buffer.get(offset + AGE), buffer.get(offset + EYE_COLOR), buffer.get(offset + GENDER));
+  }
+
+  private IntList lastNameList(int foldedLastNameCode) {
+    IntList ret = lastNameIndex.get(foldedLastNameCode);
+    if (ret == null) {
+      ret = new IntList();
+      lastNameIndex.put(foldedLastNameCode, ret);
+    }
+    return ret;
+  }
+
+  private void unindexLastName(int foldedLastNameCode, int slot) {
+    IntList slots = lastNameIndex.get(foldedLastNameCode);
+    if (slots != null) {
+      slots.remove(slot);
+      if (slots.size() == 0) {
+        lastNameIndex.remove(foldedLastNameCode);
+      }
+    }
+  }
+
+  /**
+   * @return boolean - true if the specified Person is non-null and can be
+   *         stored in a slot (their age fits in the unsigned byte)
+   */
+  private static boolean fits(Person person) {
+    return person != null && person.getAge() >= 0 && person.getAge() <= MAX_AGE;
+  }
+
+  /**
+   * @return byte - the age of the specified Person (which must fit) as it
+   *         is stored in a slot
+   */
+  private static byte ageOf(Person person) {
+    return (byte) person.getAge();
+  }
+
+  private static byte ordinalOf(Enum<?> value) {
+    return (value == null) ? NULL_ORDINAL : (byte) value.ordinal();
+  }
+
+  /**
+   * @return MappedByteBuffer - the segment holding the specified slot,
+   *         mapping it (and growing the file) if need be
+   */
+  private MappedByteBuffer buffer(int slot) {
+    int segment = slot / SLOTS_PER_SEGMENT;
+    MappedByteBuffer[] current = segments;
+    return (segment < current.length) ? current[segment] : segment(segment);
+  }
+
+  private static int offset(int slot) {
+    return (slot % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+  }
+
+  /**
+   * Maps segments up to and including the specified one. Callers must
+   * hold the write lock (or be the constructor).
+   */
+  private MappedByteBuffer segment(int segment) {
+    MappedByteBuffer[] current = segments;
+    if (segment >= current.length) {
+      MappedByteBuffer[] grown = Arrays.copyOf(current, segment + 1);
+      try {
+        for (int aa = current.length; aa <= segment; aa++) {
+          grown[aa] = channel.map(FileChannel.MapMode.READ_WRITE, aa * SEGMENT_BYTES, SEGMENT_BYTES);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not grow the data file", e);
+      }
+      segments = grown;
+      current = grown;
+    }
+    return current[segment];
+  }
+
+  /**
+   * Walks slots in order, creating each live Person as it goes. Each step
+   * reads optimistically, so no lock is held between steps.
+   */
+  private class SlotIterator implements Iterator<Person> {
+
+    /**
+     * The slots to visit, or null for all of them.
+     */
+    private final int[] slots;
+    /**
+     * Unless NOT_FOUND, only Person objects with this folded last name code
+     * (it may have changed since the slots were looked up).
+     */
+    private final int foldedLastNameCode;
+    private int position;
+    private Person next;
+
+    SlotIterator(int[] slots, int foldedLastNameCode) {
+      this.slots = slots;
+      this.foldedLastNameCode = foldedLastNameCode;
+      this.position = (slots == null) ? 1 : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && position < ((slots == null) ? nextSlot : slots.length)) {
+        int slot = (slots == null) ? position : slots[position];
+        RawSlot raw = read(slot);
+        if (raw != null && (foldedLastNameCode == NameDictionary.NOT_FOUND
+            || names.foldedCodeOf(raw.lastNameCode) == foldedLastNameCode)) {
+          next = raw.toPerson(slot);
+        }
+        position++;
+      }
+      return next != null;
+    }
+
+    @Override
+    public Person next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Person ret = next;
+      next = null;
+      return ret;
+    }
+
+  }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Maps names to compact int codes and back. Each distinct name is stored
+ * once, and a data store keeps just its code (four bytes) per Person.
+ *
+ * Codes are handed out in order starting at 0, and never change or go
+ * away. A NameDictionary opened on a file appends each new name to it,
+ * so the codes survive a restart.
+ *
+ * Each name also has a folded code: the code of its case-folded form,
+ * which is what the case-insensitive last name searches key on. The
+ * folded form is added to the dictionary the first time the folded code
+ * of a name that folds to it is asked for, so if {@link #findFoldedCode}
+ * can't find a name, nothing indexed by folded code can have it.
+ *
+ * Looking a name up never blocks; adding a name is synchronized. Names
+ * are never removed, so the dictionary holds every name ever stored.
+ *
+ * @author sperry
+ *
+ */
+public class NameDictionary implements Closeable {
+
+  private static final Logger log = Logger.getLogger(NameDictionary.class);
+
+  /**
+   * The code of a null name.
+   */
+  public static final int NULL_CODE = -1;
+
+  /**
+   * What the find methods return for a name that isn't in the dictionary.
+   */
+  public static final int NOT_FOUND = -2;
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<>();
+
+  /**
+   * Code -> name, in fixed-size chunks so growing never copies the names.
+   */
+  private volatile String[][] chunks = new String[16][];
+
+  /**
+   * Code -> folded code + 1, chunked the same way. 0 means not worked out
+   * yet; it's filled in the first time somebody asks.
+   */
+  private volatile int[][] foldedChunks = new int[16][];
+
+  private volatile int size;
+
+  /**
+   * Where new names are appended, or null if the dictionary isn't durable.
+   */
+  private final DataOutputStream out;
+
+  /**
+   * Creates an empty NameDictionary that lives only in memory.
+   */
+  public NameDictionary() {
+    this.out = null;
+  }
+
+  private NameDictionary(File file) throws IOException {
+    long goodLength = 0;
+    if (file.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        while (true) {
+          String name;
+          try {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+            goodLength += 4 + bytes.length;
+          } catch (EOFException e) {
+            break;
+          }
+          append(name);
+        }
+      }
+      //
+      // Drop a name torn by a crash, so the next one starts in the right place
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        if (randomAccessFile.length() != goodLength) {
+          log.warn("Truncating torn name at the end of " + file);
+          randomAccessFile.setLength(goodLength);
+        }
+      }
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+  }
+
+  /**
+   * Opens the NameDictionary kept in the specified file, creating it
+   * (empty) if the file doesn't exist.
+   *
+   * @param file
+   *          The file the names are kept in
+   *
+   * @return NameDictionary - the dictionary
+   *
+   * @throws IOException
+   *           If the file can't be read or written
+   */
+  public static NameDictionary open(File file) throws IOException {
+    return new NameDictionary(file);
+  }
+
+  /**
+   * Returns the code of the specified name, adding the name to the
+   * dictionary if it isn't there yet.
+   *
+   * @param name
+   *          The name (may be null)
+   *
+   * @return int - the name's code, or {@link #NULL_CODE} if name is null
+   */
+  public int codeOf(String name) {
+    int ret = NULL_CODE;
+    if (name != null) {
+      Integer code = codes.get(name);
+      if (code == null) {
+        synchronized (this) {
+          code = codes.get(name);
+          if (code == null) {
+            write(name);
+            code = append(name);
+          }
+        }
+      }
+      ret = code;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the code of the specified name, without adding it.
+   *
+   * @param name
+   *          The name (may be null)
+   *
+   * @return int - the name's code, {@link #NULL_CODE} if name is null or
+   *         {@link #NOT_FOUND} if the name isn't in the dictionary
+   */
+  public int findCode(String name) {
+    int ret = NULL_CODE;
+    if (name != null) {
+      Integer code = codes.get(name);
+      ret = (code == null) ? NOT_FOUND : code;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the canonical instance of the specified name, adding it to
+   * the dictionary if it isn't there yet, so equal names held by
+   * different Person objects can share one String.
+   *
+   * @param name
+   *          The name (may be null)
+   *
+   * @return String - the dictionary's copy of the name, or null
+   */
+  public String intern(String name) {
+    return nameOf(codeOf(name));
+  }
+
+  /**
+   * Returns the folded code of the name with the specified code.
+   *
+   * @param code
+   *          A code handed out by codeOf() (or {@link #NULL_CODE})
+   *
+   * @return int - the code of the name's case-folded form, or
+   *         {@link #NULL_CODE} if code is
+   */
+  public int foldedCodeOf(int code) {
+    int ret = NULL_CODE;
+    if (code != NULL_CODE) {
+      int[] chunk = foldedChunks[code >>> CHUNK_BITS];
+      ret = chunk[code & CHUNK_MASK] - 1;
+      if (ret < 0) {
+        String name = nameOf(code);
+        String folded = fold(name);
+        ret = folded.equals(name) ? code : codeOf(folded);
+        // Racing threads work out the same answer, so no need to lock
+        chunk[code & CHUNK_MASK] = ret + 1;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the folded code of the specified name, without adding anything.
+   *
+   * @param name
+   *          The name, in any case (may be null)
+   *
+   * @return int - the code of the name's case-folded form,
+   *         {@link #NULL_CODE} if name is null or {@link #NOT_FOUND}
+   *         if no name with that folded form has been indexed
+   */
+  public int findFoldedCode(String name) {
+    return (name == null) ? NULL_CODE : findCode(fold(name));
+  }
+
+  /**
+   * Returns the name with the specified code.
+   *
+   * @param code
+   *          A code handed out by codeOf() (or {@link #NULL_CODE})
+   *
+   * @return String - the name, or null if code is {@link #NULL_CODE}
+   */
+  public String nameOf(int code) {
+    return (code == NULL_CODE) ? null : chunks[code >>> CHUNK_BITS][code & CHUNK_MASK];
+  }
+
+  /**
+   * @return int - how many distinct names there are
+   */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      synchronized (this) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Adds a name to the in-memory maps. Callers must hold the lock (or
+   * be the constructor).
+   */
+  private int append(String name) {
+    int ret = size;
+    int chunk = ret >>> CHUNK_BITS;
+    String[][] current = chunks;
+    int[][] currentFolded = foldedChunks;
+    if (chunk == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+      currentFolded = Arrays.copyOf(currentFolded, currentFolded.length * 2);
+    }
+    if (current[chunk] == null) {
+      current[chunk] = new String[CHUNK_SIZE];
+      currentFolded[chunk] = new int[CHUNK_SIZE];
+    }
+    current[chunk][ret & CHUNK_MASK] = name;
+    foldedChunks = currentFolded;
+    chunks = current;
+    codes.put(name, ret);
+    size = ret + 1;
+    return ret;
+  }
+
+  private static String fold(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Appends a new name to the file (if there is one) before anybody can
+   * get its code, so a stored code never refers to a name that was lost.
+   */
+  private void write(String name) {
+    if (out != null) {
+      try {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not write the name dictionary", e);
+      }
+    }
+  }
+
+}
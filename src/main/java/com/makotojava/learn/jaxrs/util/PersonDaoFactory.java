@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * Hands out the one PersonDao the application uses. Which data store
+ * backs it is picked with the {@link #PROPERTY_ENGINE} system property:
+ * <ul>
+ * <li>{@value #ENGINE_LIST} (the default) - the original list-based {@link Repository}</li>
+ * <li>{@value #ENGINE_INDEXED} - the hash-indexed {@link IndexedRepository}</li>
+ * <li>{@value #ENGINE_MAPPED} - the off-heap, memory-mapped {@link MappedRepository}</li>
+ * <li>{@value #ENGINE_COLUMNAR} - the column-oriented {@link ColumnarRepository}</li>
+ * <li>{@value #ENGINE_SHARDED} - the {@link ShardedRepository}, with
+ * {@link #PROPERTY_SHARDS} shards (by default, one per core)</li>
+ * </ul>
+ * The {@link #PROPERTY_ID_BLOCK_SIZE} system property sets how many IDs each
+ * thread reserves at a time (see {@link IdAllocator}), for the data stores
+ * that support it.
+ * <p>
+ * Setting the {@link #PROPERTY_DATA_DIRECTORY} system property makes the
+ * {@value #ENGINE_INDEXED} engine durable: it keeps its journal and
+ * snapshots in that directory (see {@link IndexedRepository#open}) and
+ * takes a checkpoint every {@link #PROPERTY_CHECKPOINT_INTERVAL} seconds.
+ * The {@value #ENGINE_MAPPED} engine keeps its files there too; without
+ * the property it uses a temporary directory. {@link #shutdown()} stops
+ * the checkpoints, takes a last one and closes the data store, so a
+ * redeployed application doesn't share the directory with the old one.
+ *
+ * @author sperry
+ *
+ */
+public class PersonDaoFactory {
+
+  private static final Logger log = Logger.getLogger(PersonDaoFactory.class);
+
+  public static final String PROPERTY_ENGINE = "com.makotojava.learn.jaxrs.engine";
+
+  public static final String PROPERTY_ID_BLOCK_SIZE = "com.makotojava.learn.jaxrs.idBlockSize";
+
+  public static final String PROPERTY_DATA_DIRECTORY = "com.makotojava.learn.jaxrs.dataDirectory";
+
+  public static final String PROPERTY_CHECKPOINT_INTERVAL = "com.makotojava.learn.jaxrs.checkpointInterval";
+
+  public static final String PROPERTY_SHARDS = "com.makotojava.learn.jaxrs.shards";
+
+  /**
+   * Seconds between checkpoints of a durable data store, by default.
+   */
+  private static final int DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+  public static final String ENGINE_LIST = "list";
+  public static final String ENGINE_INDEXED = "indexed";
+  public static final String ENGINE_MAPPED = "mapped";
+  public static final String ENGINE_COLUMNAR = "columnar";
+  public static final String ENGINE_SHARDED = "sharded";
+
+  /**
+   * How many randomly generated Person objects a brand new
+   * data store is seeded with.
+   */
+  private static final int SEED_SIZE = 10;
+
+  /**
+   * How long shutdown() waits for a checkpoint that is under way.
+   */
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  private static PersonDao personDao;
+
+  /**
+   * Takes the durable data store's checkpoints, null if it isn't durable.
+   */
+  private static ScheduledExecutorService checkpointer;
+
+  private PersonDaoFactory() {
+  }
+
+  /**
+   * The one and only way to get the PersonDao.
+   *
+   * @return PersonDao - the data store selected by {@link #PROPERTY_ENGINE}
+   */
+  public static synchronized PersonDao getPersonDao() {
+    if (personDao == null) {
+      String engine = System.getProperty(PROPERTY_ENGINE, ENGINE_LIST);
+      log.info("Using data store engine: " + engine);
+      String dataDirectory = System.getProperty(PROPERTY_DATA_DIRECTORY);
+      if (ENGINE_LIST.equals(engine)) {
+        if (dataDirectory != null) {
+          log.warn("The " + ENGINE_LIST + " engine is not durable, ignoring " + PROPERTY_DATA_DIRECTORY);
+        }
+        // Repository seeds itself
+        personDao = Repository.instance();
+      } else if (ENGINE_INDEXED.equals(engine) && dataDirectory != null) {
+        personDao = openDurable(new File(dataDirectory));
+      } else if (ENGINE_MAPPED.equals(engine) && dataDirectory != null) {
+        personDao = openMapped(new File(dataDirectory));
+      } else {
+        personDao = seed(createPersonDao(engine));
+      }
+      final PersonDao dao = personDao;
+      MetricsRegistry.instance().gauge("person_store_size", "Person objects in the data store.",
+          () -> dao.getRepositorySize(), "engine", engine);
+    }
+    return personDao;
+  }
+
+  /**
+   * Shuts down the PersonDao getPersonDao() hands out, if there is one: stops
+   * the checkpoints (letting one that is under way finish), takes a last
+   * one, and closes the data store. The next call to getPersonDao() (if the
+   * application is started again) opens it again.
+   */
+  public static void shutdown() {
+    PersonDao dao;
+    ScheduledExecutorService executor;
+    synchronized (PersonDaoFactory.class) {
+      dao = personDao;
+      executor = checkpointer;
+      personDao = null;
+      checkpointer = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("Checkpoint still running after " + SHUTDOWN_TIMEOUT_SECONDS + " seconds");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        ((IndexedRepository) dao).checkpoint();
+      } catch (RuntimeException e) {
+        // The journal still has everything
+        log.error("Last checkpoint failed", e);
+      }
+    }
+    if (dao instanceof Closeable) {
+      try {
+        ((Closeable) dao).close();
+      } catch (IOException e) {
+        log.error("Could not close the data store", e);
+      }
+    }
+  }
+
+  /**
+   * Creates a new, empty data store for the specified engine. This is not
+   * the one getPersonDao() hands out; it's for benchmarks and tests.
+   *
+   * @param engine
+   *          One of the ENGINE_* constants.
+   *
+   * @return PersonDao - the new data store
+   */
+  public static PersonDao createPersonDao(String engine) {
+    PersonDao ret;
+    if (ENGINE_LIST.equals(engine)) {
+      ret = Repository.newInstance();
+    } else if (ENGINE_INDEXED.equals(engine)) {
+      ret = new IndexedRepository(createIdAllocator());
+    } else if (ENGINE_COLUMNAR.equals(engine)) {
+      ret = new ColumnarRepository();
+    } else if (ENGINE_SHARDED.equals(engine)) {
+      ret = new ShardedRepository(Integer.getInteger(PROPERTY_SHARDS, Runtime.getRuntime().availableProcessors()),
+          Integer.getInteger(PROPERTY_ID_BLOCK_SIZE, 1));
+    } else if (ENGINE_MAPPED.equals(engine)) {
+      try {
+        File directory = Files.createTempDirectory("person-store").toFile();
+        directory.deleteOnExit();
+        ret = MappedRepository.open(directory);
+        new File(directory, MappedRepository.DATA_FILE).deleteOnExit();
+        new File(directory, MappedRepository.NAMES_FILE).deleteOnExit();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not create a temporary data store", e);
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown data store engine '" + engine + "', check the "
+          + PROPERTY_ENGINE + " system property.");
+    }
+    return ret;
+  }
+
+  /**
+   * Opens the durable IndexedRepository in the specified directory (seeding
+   * it if it's brand new), and schedules its checkpoints.
+   *
+   * @param directory
+   *          Where the journal and snapshots live
+   *
+   * @return PersonDao - the data store
+   */
+  private static PersonDao openDurable(File directory) {
+    IndexedRepository ret;
+    boolean brandNew =
+        PersonSnapshot.generations(directory).isEmpty() && PersonJournal.generations(directory).isEmpty();
+    try {
+      ret = IndexedRepository.open(directory, createIdAllocator());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the data store in " + directory, e);
+    }
+    if (brandNew) {
+      seed(ret);
+    }
+    final IndexedRepository repository = ret;
+    long interval = Integer.getInteger(PROPERTY_CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+    checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "person-store-checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+    checkpointer.scheduleWithFixedDelay(() -> {
+      try {
+        repository.checkpoint();
+      } catch (RuntimeException e) {
+        // Keep going; the journal still has everything
+        log.error("Checkpoint failed", e);
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+    log.info("Data store in " + directory + ", checkpoint every " + interval + " seconds");
+    return ret;
+  }
+
+  /**
+   * Opens the MappedRepository in the specified directory, seeding it if
+   * it's brand new.
+   *
+   * @param directory
+   *          Where the data file and name dictionary live
+   *
+   * @return PersonDao - the data store
+   */
+  private static PersonDao openMapped(File directory) {
+    MappedRepository ret;
+    boolean brandNew = !new File(directory, MappedRepository.DATA_FILE).exists();
+    try {
+      ret = MappedRepository.open(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the data store in " + directory, e);
+    }
+    if (brandNew) {
+      seed(ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Creates the IdAllocator for a new data store.
+   *
+   * @return IdAllocator - reserves {@link #PROPERTY_ID_BLOCK_SIZE} IDs per thread at a time
+   */
+  private static IdAllocator createIdAllocator() {
+    return new IdAllocator(Integer.getInteger(PROPERTY_ID_BLOCK_SIZE, 1));
+  }
+
+  /**
+   * Seeds the specified data store with randomly generated Person objects.
+   *
+   * @param dao
+   *          The (empty) data store to seed.
+   *
+   * @return PersonDao - the data store that was passed in
+   */
+  private static PersonDao seed(PersonDao dao) {
+    for (int aa = 0; aa < SEED_SIZE; aa++) {
+      dao.addPerson(PersonGenerator.createPerson());
+    }
+    return dao;
+  }
+
+}
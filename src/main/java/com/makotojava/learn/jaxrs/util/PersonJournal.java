@@ -0,0 +1,413 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * An append-only write-ahead log of the writes made to a data store.
+ *
+ * Writers append their records while holding the data store's write
+ * lock (appending just copies bytes into a buffer), then release the
+ * lock and call sync() to wait until their record is on disk. Whoever
+ * gets to sync() first writes and fsyncs everything appended so far, so
+ * writers that arrive while an fsync is under way get covered by the
+ * next one: one fsync per group of concurrent writers, not one per write.
+ *
+ * The journal is split into numbered generations, one file each
+ * (journal-&lt;generation&gt;.log). Taking a snapshot starts a new generation,
+ * after which the older ones are no longer needed.
+ *
+ * Each record is framed as [int length][int CRC32][payload], so replay can
+ * tell where a torn write at the end of the last file begins, and stop there.
+ *
+ * If a write or fsync fails, nobody can tell what made it to disk, so the
+ * journal fails for good: every later append and sync throws, rather than
+ * tell a writer a record is durable when it may not be.
+ *
+ * @author sperry
+ *
+ */
+public class PersonJournal implements Closeable {
+
+  private static final Logger log = Logger.getLogger(PersonJournal.class);
+
+  private static final String FILE_PREFIX = "journal-";
+  private static final String FILE_SUFFIX = ".log";
+
+  /**
+   * A put written before Person objects had a version. Still replayed, no
+   * longer appended.
+   */
+  private static final byte OP_PUT_UNVERSIONED = 1;
+  private static final byte OP_DELETE = 2;
+  private static final byte OP_PUT = 3;
+
+  /**
+   * No real record comes anywhere near this; a longer length means a
+   * corrupt frame.
+   */
+  private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+  /**
+   * Receives the records of a journal as it is replayed.
+   */
+  public interface Visitor {
+
+    /**
+     * A Person was added or updated.
+     */
+    void put(Person person);
+
+    /**
+     * The Person with the specified ID was deleted.
+     */
+    void delete(long id);
+
+  }
+
+  private final File directory;
+  private long generation;
+  private FileChannel channel;
+
+  /**
+   * Records appended but not yet written. Guarded by itself.
+   */
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+  private final CRC32 crc = new CRC32();
+  private long appendedSequence;
+
+  /**
+   * The sequence number of the last record known to be on disk.
+   */
+  private volatile long durableSequence;
+
+  /**
+   * What made the journal fail, null if it hasn't.
+   */
+  private volatile IOException failure;
+
+  /**
+   * Held while writing and fsyncing.
+   */
+  private final Object syncLock = new Object();
+
+  /**
+   * Opens a new journal file for the specified generation.
+   *
+   * @param directory
+   *          Where the journal files live
+   * @param generation
+   *          The generation to start with; its file must not exist yet
+   *
+   * @throws IOException
+   *           If the file can't be created
+   */
+  public PersonJournal(File directory, long generation) throws IOException {
+    this.directory = directory;
+    this.generation = generation;
+    this.channel = open(directory, generation);
+  }
+
+  /**
+   * Appends a record saying the specified Person was added or updated.
+   *
+   * @return long - the record's sequence number, to pass to sync()
+   */
+  public long appendPut(Person person) {
+    synchronized (buffer) {
+      checkFailure();
+      try {
+        recordOut.writeByte(OP_PUT);
+        PersonRecords.write(recordOut, person);
+        return frame();
+      } catch (IOException e) {
+        // Can't happen, it's all in memory
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Appends a record saying the Person with the specified ID was deleted.
+   *
+   * @return long - the record's sequence number, to pass to sync()
+   */
+  public long appendDelete(long id) {
+    synchronized (buffer) {
+      checkFailure();
+      try {
+        recordOut.writeByte(OP_DELETE);
+        recordOut.writeLong(id);
+        return frame();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private void checkFailure() {
+    if (failure != null) {
+      throw new UncheckedIOException("The journal failed, nothing more can be written to it", failure);
+    }
+  }
+
+  /**
+   * Moves the record in recordBytes to the buffer, with its frame.
+   * Callers must hold the buffer's lock.
+   */
+  private long frame() throws IOException {
+    crc.reset();
+    crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+    bufferOut.writeInt(recordBytes.size());
+    bufferOut.writeInt((int) crc.getValue());
+    recordBytes.writeTo(bufferOut);
+    recordBytes.reset();
+    return ++appendedSequence;
+  }
+
+  /**
+   * Waits until the record with the specified sequence number (and every
+   * record before it) is on disk.
+   *
+   * @param sequence
+   *          The sequence number an append method returned
+   *
+   * @throws IOException
+   *           If the journal could not be written, now or before
+   */
+  public void sync(long sequence) throws IOException {
+    if (durableSequence < sequence) {
+      synchronized (syncLock) {
+        // Somebody else's fsync may have covered us while we waited
+        if (durableSequence < sequence) {
+          flush();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes and fsyncs everything appended so far. Callers must hold syncLock.
+   * The records leave the buffer only once they're on disk; if they don't
+   * make it, the journal fails.
+   */
+  private void flush() throws IOException {
+    if (failure != null) {
+      throw new IOException("The journal failed earlier", failure);
+    }
+    byte[] bytes;
+    long upTo;
+    synchronized (buffer) {
+      bytes = buffer.toByteArray();
+      upTo = appendedSequence;
+    }
+    try {
+      ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+      while (byteBuffer.hasRemaining()) {
+        channel.write(byteBuffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      failure = e;
+      log.error("Journal generation " + generation + " failed, no more writes will be accepted", e);
+      throw e;
+    }
+    synchronized (buffer) {
+      // Keep what was appended while we wrote
+      byte[] pending = buffer.toByteArray();
+      buffer.reset();
+      buffer.write(pending, bytes.length, pending.length - bytes.length);
+    }
+    durableSequence = upTo;
+  }
+
+  /**
+   * Finishes the current generation and starts the next one. Callers
+   * must make sure nothing is appended while this runs (i.e., hold the
+   * data store's write lock).
+   *
+   * @return long - the new generation
+   *
+   * @throws IOException
+   *           If the current file can't be finished or the new one created
+   */
+  public long roll() throws IOException {
+    synchronized (syncLock) {
+      flush();
+      channel.close();
+      generation++;
+      channel = open(directory, generation);
+      return generation;
+    }
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      try {
+        flush();
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  private static FileChannel open(File directory, long generation) throws IOException {
+    return FileChannel.open(fileFor(directory, generation).toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+  }
+
+  static File fileFor(File directory, long generation) {
+    return new File(directory, FILE_PREFIX + generation + FILE_SUFFIX);
+  }
+
+  /**
+   * Lists the generations of the journal files in the specified directory.
+   *
+   * @return List<Long> - the generations, lowest first
+   */
+  public static List<Long> generations(File directory) {
+    return GenerationFiles.list(directory, FILE_PREFIX, FILE_SUFFIX);
+  }
+
+  /**
+   * Deletes the journal files older than the specified generation.
+   */
+  public static void deleteBefore(File directory, long generation) {
+    for (Long older : generations(directory)) {
+      if (older < generation && !fileFor(directory, older).delete()) {
+        log.warn("Could not delete " + fileFor(directory, older));
+      }
+    }
+  }
+
+  /**
+   * Replays the journal file for the specified generation. Stops quietly
+   * at the first torn or corrupt record, which is what a crash in the
+   * middle of a write leaves behind.
+   *
+   * @return long - the number of records replayed
+   *
+   * @throws IOException
+   *           If the file can't be read
+   */
+  public static long replay(File directory, long generation, Visitor visitor) throws IOException {
+    long ret = 0;
+    File file = fileFor(directory, generation);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] record;
+        try {
+          int length = in.readInt();
+          int expectedCrc = in.readInt();
+          if (length < 0 || length > MAX_RECORD_LENGTH) {
+            log.warn("Corrupt record length in " + file + " after " + ret + " records, stopping there");
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+          crc.reset();
+          crc.update(record, 0, length);
+          if ((int) crc.getValue() != expectedCrc) {
+            log.warn("Bad checksum in " + file + " after " + ret + " records, stopping there");
+            break;
+          }
+        } catch (EOFException e) {
+          // The end, or a torn write at the end
+          break;
+        }
+        apply(record, visitor);
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  private static void apply(byte[] record, Visitor visitor) throws IOException {
+    InputStream bytes = new ByteArrayInputStream(record);
+    DataInputStream in = new DataInputStream(bytes);
+    byte op = in.readByte();
+    if (op == OP_PUT) {
+      visitor.put(PersonRecords.read(in, true));
+    } else if (op == OP_PUT_UNVERSIONED) {
+      visitor.put(PersonRecords.read(in, false));
+    } else if (op == OP_DELETE) {
+      visitor.delete(in.readLong());
+    } else {
+      throw new IOException("Unknown journal operation " + op);
+    }
+  }
+
+  /**
+   * Finds numbered files (prefix + generation + suffix) in a directory.
+   */
+  static final class GenerationFiles {
+
+    private GenerationFiles() {
+    }
+
+    static List<Long> list(File directory, String prefix, String suffix) {
+      List<Long> ret = new ArrayList<>();
+      String[] names = directory.list();
+      if (names != null) {
+        for (String name : names) {
+          if (name.startsWith(prefix) && name.endsWith(suffix)) {
+            try {
+              ret.add(Long.valueOf(name.substring(prefix.length(), name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+              // Not one of ours
+            }
+          }
+        }
+      }
+      Collections.sort(ret);
+      return ret;
+    }
+
+  }
+
+}
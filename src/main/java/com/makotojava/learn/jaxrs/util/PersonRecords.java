@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * The compact binary form of a Person used by the journal and the
+ * snapshots: the ID and creation time as longs, the names as (nullable)
+ * modified UTF-8, the age as an int, the enums as (nullable) ordinals,
+ * and then the version and modification time as longs.
+ *
+ * Records written before Person objects had a version end after the
+ * enums; they are read as version 1, modified when created.
+ *
+ * @author sperry
+ *
+ */
+final class PersonRecords {
+
+  /**
+   * Stands in for a null enum ordinal.
+   */
+  private static final byte NULL_ORDINAL = -1;
+
+  /**
+   * Stands in for a null creation (or modification) time.
+   */
+  private static final long NULL_TIME = Long.MIN_VALUE;
+
+  private PersonRecords() {
+  }
+
+  static void write(DataOutput out, Person person) throws IOException {
+    out.writeLong(person.getId());
+    out.writeLong((person.getWhenCreated() == null) ? NULL_TIME : person.getWhenCreated().getTime());
+    writeString(out, person.getLastName());
+    writeString(out, person.getFirstName());
+    out.writeInt(person.getAge());
+    out.writeByte((person.getEyeColor() == null) ? NULL_ORDINAL : person.getEyeColor().ordinal());
+    out.writeByte((person.getGender() == null) ? NULL_ORDINAL : person.getGender().ordinal());
+    out.writeLong((person.getVersion() == null) ? 1 : person.getVersion());
+    out.writeLong((person.getWhenModified() == null) ? NULL_TIME : person.getWhenModified().getTime());
+  }
+
+  /**
+   * Reads a Person written by write().
+   *
+   * @param in
+   *          Where to read it from
+   * @param versioned
+   *          Whether the record has the version and modification time (false
+   *          for records written before it did)
+   */
+  static Person read(DataInput in, boolean versioned) throws IOException {
+    long id = in.readLong();
+    long whenCreated = in.readLong();
+    String lastName = readString(in);
+    String firstName = readString(in);
+    int age = in.readInt();
+    byte eyeColor = in.readByte();
+    byte gender = in.readByte();
+    Person ret = new Person(lastName, firstName, age,
+        (eyeColor == NULL_ORDINAL) ? null : Person.EyeColor.values()[eyeColor],
+        (gender == NULL_ORDINAL) ? null : Person.Gender.values()[gender]);
+    ret.setId(id);
+    ret.setWhenCreated((whenCreated == NULL_TIME) ? null : new Date(whenCreated));
+    if (versioned) {
+      ret.setVersion(in.readLong());
+      long whenModified = in.readLong();
+      ret.setWhenModified((whenModified == NULL_TIME) ? null : new Date(whenModified));
+    } else {
+      ret.setVersion(1L);
+      ret.setWhenModified(ret.getWhenCreated());
+    }
+    return ret;
+  }
+
+  private static void writeString(DataOutput out, String string) throws IOException {
+    out.writeBoolean(string != null);
+    if (string != null) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * A compact binary snapshot of a whole data store. Snapshot
+ * snapshot-&lt;generation&gt;.dat holds the store as it was just before the
+ * journal of the same generation was started, so recovery loads the newest
+ * snapshot and replays the journals from its generation on.
+ *
+ * The file is a magic number and format version, the last ID handed out,
+ * the number of Person objects, the Person objects themselves (see
+ * PersonRecords) and a CRC32 of all that. It is written under a temporary
+ * name and renamed into place, so a crash never leaves half a snapshot.
+ *
+ * @author sperry
+ *
+ */
+public final class PersonSnapshot {
+
+  private static final Logger log = Logger.getLogger(PersonSnapshot.class);
+
+  private static final String FILE_PREFIX = "snapshot-";
+  private static final String FILE_SUFFIX = ".dat";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int MAGIC = 0x50455253; // "PERS"
+  private static final int VERSION = 2;
+
+  /**
+   * Snapshots written before Person objects had a version. Still read.
+   */
+  private static final int VERSION_UNVERSIONED = 1;
+
+  private PersonSnapshot() {
+  }
+
+  /**
+   * Writes a snapshot.
+   *
+   * @param directory
+   *          Where the snapshot files live
+   * @param generation
+   *          The generation of the journal started right after the
+   *          snapshot was taken
+   * @param lastId
+   *          The last ID handed out
+   * @param persons
+   *          Every Person in the store
+   *
+   * @throws IOException
+   *           If the snapshot can't be written
+   */
+  public static void write(File directory, long generation, long lastId, Collection<Person> persons)
+      throws IOException {
+    File file = fileFor(directory, generation);
+    File tempFile = new File(directory, file.getName() + TEMP_SUFFIX);
+    CRC32 crc = new CRC32();
+    try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut), crc));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(lastId);
+      out.writeInt(persons.size());
+      for (Person person : persons) {
+        PersonRecords.write(out, person);
+      }
+      out.flush();
+      // The checksum itself isn't checksummed
+      DataOutputStream trailer = new DataOutputStream(fileOut);
+      trailer.writeLong(crc.getValue());
+      trailer.flush();
+      fileOut.getFD().sync();
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    log.info("Wrote snapshot " + file + " (" + persons.size() + " Person objects)");
+  }
+
+  /**
+   * Reads a snapshot, handing each Person in it to the specified Visitor.
+   *
+   * @param directory
+   *          Where the snapshot files live
+   * @param generation
+   *          The generation of the snapshot to read
+   * @param visitor
+   *          Gets each Person in the snapshot
+   *
+   * @return long - the last ID handed out when the snapshot was taken
+   *
+   * @throws IOException
+   *           If the snapshot can't be read, or is corrupt
+   */
+  public static long read(File directory, long generation, PersonJournal.Visitor visitor) throws IOException {
+    long ret;
+    File file = fileFor(directory, generation);
+    CRC32 crc = new CRC32();
+    try (FileInputStream fileIn = new FileInputStream(file)) {
+      BufferedInputStream buffered = new BufferedInputStream(fileIn);
+      DataInputStream in = new DataInputStream(new CheckedInputStream(buffered, crc));
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a snapshot");
+      }
+      int version = in.readInt();
+      if (version != VERSION && version != VERSION_UNVERSIONED) {
+        throw new IOException(file + " has unsupported version " + version);
+      }
+      ret = in.readLong();
+      int count = in.readInt();
+      for (int aa = 0; aa < count; aa++) {
+        visitor.put(PersonRecords.read(in, version == VERSION));
+      }
+      long expectedCrc = new DataInputStream(buffered).readLong();
+      if (crc.getValue() != expectedCrc) {
+        throw new IOException(file + " is corrupt (bad checksum)");
+      }
+    }
+    return ret;
+  }
+
+  static File fileFor(File directory, long generation) {
+    return new File(directory, FILE_PREFIX + generation + FILE_SUFFIX);
+  }
+
+  /**
+   * Lists the generations of the snapshots in the specified directory.
+   *
+   * @return List<Long> - the generations, lowest first
+   */
+  public static List<Long> generations(File directory) {
+    return PersonJournal.GenerationFiles.list(directory, FILE_PREFIX, FILE_SUFFIX);
+  }
+
+  /**
+   * Deletes the snapshots older than the specified generation.
+   */
+  public static void deleteBefore(File directory, long generation) {
+    for (Long older : generations(directory)) {
+      if (older < generation && !fileFor(directory, older).delete()) {
+        log.warn("Could not delete " + fileFor(directory, older));
+      }
+    }
+  }
+
+}
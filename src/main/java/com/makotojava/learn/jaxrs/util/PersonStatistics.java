@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * Running totals of the Person objects in a data store, kept up to date
+ * by the store's write paths: every Person stored is add()ed, every
+ * Person removed is remove()d, and an update is a remove() of the old
+ * values and an add() of the new ones.
+ *
+ * Reading the statistics never looks at the store. A {@link PersonStats}
+ * costs time proportional to the number of distinct ages (a few hundred
+ * at most), and the last name counts to the number of distinct last names.
+ *
+ * Since every write passes through here, this also keeps the store's
+ * version (one more for every add() and remove()) and the time of its
+ * last change.
+ *
+ * Last names are counted exactly as stored (not case-folded); Person
+ * objects with no last name aren't in the last name counts.
+ *
+ * Thread-safe. Every method is synchronized, which costs writers little,
+ * as the stores only ever let one writer in at a time anyway.
+ *
+ * @author sperry
+ *
+ */
+final class PersonStatistics {
+
+  static final int AGE_BUCKET_WIDTH = 10;
+
+  private long count;
+  private long ageSum;
+  private final long[] eyeColorCounts = new long[EyeColor.values().length];
+  private final long[] genderCounts = new long[Gender.values().length];
+
+  /**
+   * Age -> how many Person objects are that age. Sorted, so the lowest and
+   * highest ages are its first and last keys.
+   */
+  private final TreeMap<Integer, Long> ageCounts = new TreeMap<>();
+
+  private final Map<String, Long> lastNameCounts = new HashMap<>();
+
+  private long version;
+  private long lastModified = System.currentTimeMillis();
+
+  /**
+   * Counts a Person that has been stored.
+   */
+  synchronized void add(Person person) {
+    changed();
+    count++;
+    ageSum += person.getAge();
+    ageCounts.merge(person.getAge(), 1L, Long::sum);
+    if (person.getEyeColor() != null) {
+      eyeColorCounts[person.getEyeColor().ordinal()]++;
+    }
+    if (person.getGender() != null) {
+      genderCounts[person.getGender().ordinal()]++;
+    }
+    if (person.getLastName() != null) {
+      lastNameCounts.merge(person.getLastName(), 1L, Long::sum);
+    }
+  }
+
+  /**
+   * Stops counting a Person that has been removed (or is about to be
+   * changed). The Person must have been add()ed, with the same values.
+   */
+  synchronized void remove(Person person) {
+    changed();
+    count--;
+    ageSum -= person.getAge();
+    decrement(ageCounts, person.getAge());
+    if (person.getEyeColor() != null) {
+      eyeColorCounts[person.getEyeColor().ordinal()]--;
+    }
+    if (person.getGender() != null) {
+      genderCounts[person.getGender().ordinal()]--;
+    }
+    if (person.getLastName() != null) {
+      decrement(lastNameCounts, person.getLastName());
+    }
+  }
+
+  /**
+   * @return PersonStats - the statistics as of now
+   */
+  synchronized PersonStats snapshot() {
+    Map<Gender, Long> byGender = new EnumMap<>(Gender.class);
+    for (Gender gender : Gender.values()) {
+      byGender.put(gender, genderCounts[gender.ordinal()]);
+    }
+    Map<EyeColor, Long> byEyeColor = new EnumMap<>(EyeColor.class);
+    for (EyeColor eyeColor : EyeColor.values()) {
+      byEyeColor.put(eyeColor, eyeColorCounts[eyeColor.ordinal()]);
+    }
+    SortedMap<Integer, Long> ageHistogram = new TreeMap<>();
+    for (Map.Entry<Integer, Long> entry : ageCounts.entrySet()) {
+      ageHistogram.merge(Math.floorDiv(entry.getKey(), AGE_BUCKET_WIDTH) * AGE_BUCKET_WIDTH, entry.getValue(),
+          Long::sum);
+    }
+    boolean empty = count == 0;
+    return new PersonStats(count, byGender, byEyeColor, AGE_BUCKET_WIDTH, ageHistogram,
+        empty ? null : ageCounts.firstKey(), empty ? null : ageCounts.lastKey(),
+        empty ? null : (double) ageSum / count);
+  }
+
+  /**
+   * @return Map<String, Long> - last name -> how many Person objects have
+   *         it, sorted by last name
+   */
+  synchronized Map<String, Long> countByLastName() {
+    return new TreeMap<>(lastNameCounts);
+  }
+
+  /**
+   * @return long - the version of the store
+   */
+  synchronized long version() {
+    return version;
+  }
+
+  /**
+   * @return long - when the store last changed (or was opened), in epoch
+   *         millis
+   */
+  synchronized long lastModified() {
+    return lastModified;
+  }
+
+  private void changed() {
+    version++;
+    lastModified = System.currentTimeMillis();
+  }
+
+  /**
+   * Takes one off the count of the specified key, and removes the key when
+   * its count gets to zero.
+   */
+  private static <K> void decrement(Map<K, Long> counts, K key) {
+    counts.computeIfPresent(key, (k, value) -> (value == 1) ? null : value - 1);
+  }
+
+}
@@ -17,15 +17,47 @@ package com.makotojava.learn.jaxrs.util;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
 import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
 
 /**
  * Represents a data store. Yeah, I know, it's not a real data store.
  * It's sample code.
  * 
+ * It is safe to share between threads, though. A stored Person is never
+ * changed: an update swaps a new one in its place, compare-and-set style,
+ * so a reader sees the old Person or the new one, never half of each, and
+ * of two writers racing to change the same Person, the second one to swap
+ * starts over from the first one's (or, if it expected a version, fails).
+ * Readers never take a lock; adds take turns, so the duplicate check
+ * can't let two of the same Person in. That check is one lookup in an
+ * index of the stored Person objects, not a walk over the DB, and so is
+ * finding the Person objects with a last name.
+ * 
+ * Callers only ever get copies of the stored Person objects back, so
+ * nothing a caller does to one (like changing it before sending it to
+ * updatePerson()) can change the store behind the version check, or the
+ * running totals' back.
+ * 
  * @author sperry
  *
  */
@@ -53,9 +85,66 @@ public class Repository implements PersonDao {
   }
 
   /**
-   * The Database. Primitive, like us humans.
+   * Creates a brand new, empty Repository, separate from the one
+   * instance() hands out. For benchmarks and tests that need a
+   * Repository of a particular size.
+   * 
+   * @return Repository - a new, empty Repository
+   */
+  public static Repository newInstance() {
+    return new Repository();
+  }
+
+  /**
+   * The Database. Primitive, like us humans. ID -> the current Person
+   * with that ID, in ID order. Deleting a Person empties their reference
+   * before it's removed, so a writer holding it can tell.
+   */
+  private final ConcurrentNavigableMap<Long, AtomicReference<Person>> data = new ConcurrentSkipListMap<>();
+
+  /**
+   * The number of Person objects in the DB (the map's size() is a count).
+   */
+  private final AtomicLong size = new AtomicLong();
+
+  /**
+   * Adds hold this while they check for a duplicate and store the Person.
+   */
+  private final Object addLock = new Object();
+
+  /**
+   * The duplicate index: Person (the stored instance, which never changes,
+   * so it hashes the same for as long as it's a key) -> ID. Updates and
+   * deletes bring it up to date right after their swap, without the add
+   * lock, so an entry may name a Person that has since been changed by a
+   * writer racing them; findPerson() checks the one it finds is still equal.
+   */
+  private final ConcurrentMap<Person, Long> identityIndex = new ConcurrentHashMap<>();
+
+  /**
+   * The last name index: folded last name code -> IDs of the Person
+   * objects with that last name, in ID order. Like the duplicate index,
+   * it is brought up to date right after a swap, so an entry may name a
+   * Person whose last name has just changed; findAllByLastName() checks.
+   */
+  private final ConcurrentMap<Integer, Set<Long>> lastNameIndex = new ConcurrentHashMap<>();
+
+  /**
+   * Hands out IDs. Not the size of the DB, or a delete followed by an add
+   * would hand out an ID that is already in use.
+   */
+  private final IdAllocator idAllocator = new IdAllocator();
+
+  /**
+   * Hands out one shared copy of each name, so a thousand Smiths in the
+   * DB don't mean a thousand "Smith" Strings.
+   */
+  private final NameDictionary names = new NameDictionary();
+
+  /**
+   * Running totals for getStats(), kept up to date by the write paths.
    */
-  private static final List<Person> DATA = new ArrayList<Person>();
+  private final PersonStatistics stats = new PersonStatistics();
 
   /**
    * Returns the size of the Repository, i.e., the number of Person
@@ -63,112 +152,381 @@ public class Repository implements PersonDao {
    * 
    * @return long - The number of Person objects in the Repository
    */
+  @Override
   public long getRepositorySize() {
-    return DATA.size();
+    return size.get();
   }
 
   @Override
   public List<Person> findAll() {
     List<Person> ret = new ArrayList<>();
-    ret.addAll(DATA);
+    for (Person person : persons()) {
+      ret.add(copyOf(person));
+    }
     return ret;
   }
 
   @Override
   public List<Person> findAllByLastName(String lastName) {
     List<Person> ret = new ArrayList<>();
-    for (Person person : DATA) {
-      // Case-insensitive "search"
-      if (person.getLastName().equalsIgnoreCase(lastName)) {
-        ret.add(person);
+    // Case-insensitive "search", by way of the folded last name
+    int key = names.findFoldedCode(lastName);
+    Set<Long> ids = (lastName == null) ? null : lastNameIndex.get(key);
+    if (ids != null) {
+      for (Long id : ids) {
+        AtomicReference<Person> record = data.get(id);
+        Person person = (record == null) ? null : record.get();
+        if (person != null && foldedLastNameCode(person) == key) {
+          ret.add(copyOf(person));
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    // No indexes here, so check everybody
+    for (Person person : persons()) {
+      if (query.matches(person)) {
+        ret.add(copyOf(person));
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    Map<EyeColor, Long> ret = new EnumMap<>(EyeColor.class);
+    for (EyeColor eyeColor : EyeColor.values()) {
+      ret.put(eyeColor, 0L);
+    }
+    for (Person person : persons()) {
+      if (person.getEyeColor() != null) {
+        ret.merge(person.getEyeColor(), 1L, Long::sum);
       }
     }
     return ret;
   }
 
+  @Override
+  public Map<Gender, Long> countByGender() {
+    Map<Gender, Long> ret = new EnumMap<>(Gender.class);
+    for (Gender gender : Gender.values()) {
+      ret.put(gender, 0L);
+    }
+    for (Person person : persons()) {
+      if (person.getGender() != null) {
+        ret.merge(person.getGender(), 1L, Long::sum);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public PersonStats getStats() {
+    return stats.snapshot();
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    return stats.countByLastName();
+  }
+
+  @Override
+  public long getVersion() {
+    return stats.version();
+  }
+
+  @Override
+  public Date getLastModified() {
+    return new Date(stats.lastModified());
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    List<Person> ret = new ArrayList<>();
+    //
+    // The DB is in ID order, so the candidates start right after afterId
+    int skip = Math.max(offset, 0);
+    Iterator<Person> iterator = persons((afterId == null) ? data : data.tailMap(afterId, false)).iterator();
+    while (ret.size() < limit && iterator.hasNext()) {
+      Person person = iterator.next();
+      if (skip > 0) {
+        skip--;
+      } else {
+        ret.add(copyOf(person));
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    return new PagingIterator();
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    return findAllByLastName(lastName).iterator();
+  }
+
   @Override
   public Person findById(Long id) {
     Person ret = null;
-    for (Person person : DATA) {
-      if (person.getId().equals(id)) {
-        ret = person;
-        break;
-      }
+    AtomicReference<Person> record = (id == null) ? null : data.get(id);
+    if (record != null) {
+      ret = copyOf(record.get());
     }
     return ret;
   }
 
+  @Override
+  public Person findEqual(Person person) {
+    return (person == null) ? null : copyOf(findPerson(person));
+  }
+
   @Override
   public Person addPerson(Person person) {
+    Person ret = null;
+    synchronized (addLock) {
+      ret = copyOf(storePerson(person));
+    }
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    return replacePerson(person, null);
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    return replacePerson(person, expectedVersion);
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    return removePerson(person, null);
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    return removePerson(person, expectedVersion);
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    //
+    // One turn at the add lock for the whole batch, not one per Person
+    synchronized (addLock) {
+      for (Person person : persons) {
+        ret.add(copyOf(storePerson(person)));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Updates take no lock (see replacePerson()), so a batch is one pass
+   * over it, swapping each Person in turn.
+   */
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    for (Person person : persons) {
+      ret.add(replacePerson(person, null));
+    }
+    return ret;
+  }
+
+  /**
+   * Deletes take no lock either, like updatePersons().
+   */
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<Person> ret = new ArrayList<>(persons.size());
+    for (Person person : persons) {
+      ret.add(removePerson(person, null));
+    }
+    return ret;
+  }
+
+  /**
+   * Adds the specified Person to the DB, unless they already exist.
+   * Callers must hold the add lock.
+   * 
+   * @param person
+   *          The Person to add (may be null)
+   * 
+   * @return Person - the stored Person (the one already there, if they
+   *         already existed), or null if person was null
+   */
+  private Person storePerson(Person person) {
     Person ret = null;
     //
     // Before we get this party cranked up, we need to make
     /// sure the Person we have been asked to add does not already
     /// exist. If they do, we send back the one that was sent up.
+    /// One hash lookup does both the check and the lookup.
     //
-    if (personExists(person)) {
+    if (person != null) {
       ret = findPerson(person);
-    } else {
-      // Okay, they do not exist already. Add 'em!
-      long nextId = DATA.size() + 1;
-      Date now = new Date();
-      // Make a deep copy, even for sample code it just seems like the right call
-      Person personForDb =
-          new Person(person.getLastName(), person.getFirstName(), person.getAge(), person.getEyeColor(),
-              person.getGender());
-      personForDb.setId(nextId);
-      personForDb.setWhenCreated(now);
-      // Add the person
-      if (DATA.add(personForDb)) {
+      if (ret == null) {
+        // Okay, they do not exist already. Add 'em!
+        long nextId = idAllocator.nextId();
+        Date now = new Date();
+        // Make a deep copy, even for sample code it just seems like the right call
+        Person personForDb = newPersonForDb(person);
+        personForDb.setId(nextId);
+        personForDb.setWhenCreated(now);
+        personForDb.setVersion(1L);
+        personForDb.setWhenModified(now);
+        // Add the person
+        data.put(nextId, new AtomicReference<>(personForDb));
+        indexIdentity(personForDb);
+        indexLastName(personForDb);
+        size.incrementAndGet();
+        stats.add(personForDb);
         ret = personForDb;
       }
     }
     return ret;
   }
 
-  @Override
-  public Person updatePerson(Person person) {
+  /**
+   * Swaps a new Person, with the specified Person's field values, in for
+   * the stored Person with the same ID. If another writer swaps first, it
+   * starts over from their Person.
+   * 
+   * @param person
+   *          The Person object with the new field value(s) (may be null)
+   * @param expectedVersion
+   *          The version the stored Person must be at, or null for any
+   * 
+   * @return Person - the new stored Person, or null if there was no Person
+   *         with that ID
+   * 
+   * @throws VersionConflictException
+   *           If the stored Person is not at the expected version
+   */
+  private Person replacePerson(Person person, Long expectedVersion) {
     Person ret = null;
-    Person personFromDb = findById(person.getId());
-    if (personFromDb != null) {
-      // Naive field-by-field copy.
-      personFromDb.setAge(person.getAge());
-      personFromDb.setEyeColor(person.getEyeColor());
-      personFromDb.setFirstName(person.getFirstName());
-      personFromDb.setGender(person.getGender());
-      personFromDb.setLastName(person.getLastName());
-      ret = personFromDb;
+    AtomicReference<Person> record = (person == null || person.getId() == null) ? null : data.get(person.getId());
+    Person personFromDb = (record == null) ? null : record.get();
+    while (personFromDb != null) {
+      checkVersion(personFromDb, expectedVersion);
+      Person personForDb = newPersonForDb(person);
+      personForDb.setId(personFromDb.getId());
+      personForDb.setWhenCreated(personFromDb.getWhenCreated());
+      personForDb.setVersion(personFromDb.getVersion() + 1);
+      personForDb.setWhenModified(new Date());
+      if (record.compareAndSet(personFromDb, personForDb)) {
+        unindexIdentity(personFromDb);
+        indexIdentity(personForDb);
+        if (foldedLastNameCode(personFromDb) != foldedLastNameCode(personForDb)) {
+          indexLastName(personForDb);
+          unindexLastName(personFromDb);
+        }
+        stats.remove(personFromDb);
+        stats.add(personForDb);
+        ret = copyOf(personForDb);
+        personFromDb = null;
+      } else {
+        personFromDb = record.get();
+      }
     }
     return ret;
   }
 
-  @Override
-  public Person deletePerson(Person person) {
+  /**
+   * Removes the stored Person with the same ID as the specified one,
+   * compare-and-set style, like replacePerson().
+   * 
+   * @return Person - the Person that was removed, or null if there was no
+   *         Person with that ID
+   */
+  private Person removePerson(Person person, Long expectedVersion) {
     Person ret = null;
-    //
-    ret = findById(person.getId());
-    if (ret != null) {
-      DATA.remove(ret);
+    AtomicReference<Person> record = (person == null || person.getId() == null) ? null : data.get(person.getId());
+    Person personFromDb = (record == null) ? null : record.get();
+    while (personFromDb != null) {
+      checkVersion(personFromDb, expectedVersion);
+      if (record.compareAndSet(personFromDb, null)) {
+        data.remove(personFromDb.getId(), record);
+        unindexIdentity(personFromDb);
+        unindexLastName(personFromDb);
+        size.decrementAndGet();
+        stats.remove(personFromDb);
+        ret = copyOf(personFromDb);
+        personFromDb = null;
+      } else {
+        personFromDb = record.get();
+      }
     }
-    //
     return ret;
   }
 
+  private static void checkVersion(Person personFromDb, Long expectedVersion) {
+    if (expectedVersion != null && personFromDb.getVersion().longValue() != expectedVersion) {
+      throw new VersionConflictException(copyOf(personFromDb), expectedVersion);
+    }
+  }
+
+  private Person newPersonForDb(Person person) {
+    return new Person(names.intern(person.getLastName()), names.intern(person.getFirstName()), person.getAge(),
+        person.getEyeColor(), person.getGender());
+  }
+
   /**
-   * Checks to see if the specified Person object exists
-   * in the Repository or not.
+   * Copies a stored Person on the way out of the DB.
    * 
    * @param person
-   *          The Person that may or may not exist in the
-   *          Repository.
+   *          The stored Person (may be null)
    * 
-   * @return boolean - true if the Person object exists, false
-   *         otherwise.
+   * @return Person - a copy, or null if person was null
    */
-  private boolean personExists(Person person) {
-    //
-    // Use contains() to check
-    return DATA.contains(person);
+  private static Person copyOf(Person person) {
+    return (person == null) ? null : new Person(person);
+  }
+
+  /**
+   * @return Iterable<Person> - the Person objects in the DB, in ID order
+   */
+  private Iterable<Person> persons() {
+    return persons(data);
+  }
+
+  /**
+   * @return Iterable<Person> - the Person objects in the specified part of
+   *         the DB, in ID order
+   */
+  private static Iterable<Person> persons(Map<Long, AtomicReference<Person>> records) {
+    return () -> new Iterator<Person>() {
+      private final Iterator<AtomicReference<Person>> iterator = records.values().iterator();
+      private Person next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && iterator.hasNext()) {
+          // Null if deleted since the iterator got to it
+          next = iterator.next().get();
+        }
+        return next != null;
+      }
+
+      @Override
+      public Person next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Person ret = next;
+        next = null;
+        return ret;
+      }
+    };
   }
 
   /**
@@ -183,14 +541,112 @@ public class Repository implements PersonDao {
    *         or null if it does not.
    */
   private Person findPerson(Person person) {
-    Person ret = null;
-    for (Person p : DATA) {
-      if (p.equals(person)) {
-        ret = p;
-        break;
+    Long id = identityIndex.get(person);
+    return (id == null) ? null : storedPerson(id, person);
+  }
+
+  /**
+   * @return Person - the stored Person with the specified ID, if it is
+   *         (still) equal to the specified Person, otherwise null
+   */
+  private Person storedPerson(Long id, Person person) {
+    AtomicReference<Person> record = data.get(id);
+    Person ret = (record == null) ? null : record.get();
+    return (ret != null && ret.equals(person)) ? ret : null;
+  }
+
+  /**
+   * Adds the specified Person to the duplicate index, unless an identical
+   * Person (an update can make one) is already there.
+   * 
+   * @param person
+   *          The Person (from the DB) to index
+   */
+  private void indexIdentity(Person person) {
+    identityIndex.compute(person, (key, id) -> (id != null && storedPerson(id, key) != null) ? id : person.getId());
+  }
+
+  /**
+   * Removes the specified Person from the duplicate index, if it is the
+   * one indexed.
+   * 
+   * @param person
+   *          The Person (from the DB) to remove from the index
+   */
+  private void unindexIdentity(Person person) {
+    identityIndex.remove(person, person.getId());
+  }
+
+  /**
+   * Adds the specified Person to the last name index.
+   * 
+   * @param person
+   *          The Person (from the DB) to index
+   */
+  private void indexLastName(Person person) {
+    lastNameIndex.computeIfAbsent(foldedLastNameCode(person), key -> new ConcurrentSkipListSet<>())
+        .add(person.getId());
+  }
+
+  /**
+   * Removes the specified Person's ID from the entry of their last name,
+   * unless the Person now stored with that ID has the last name (again):
+   * a later update may have put it back while we were getting here.
+   * 
+   * @param person
+   *          The Person (from the DB) that was swapped out
+   */
+  private void unindexLastName(Person person) {
+    int key = foldedLastNameCode(person);
+    Set<Long> ids = lastNameIndex.get(key);
+    if (ids != null) {
+      ids.remove(person.getId());
+      AtomicReference<Person> record = data.get(person.getId());
+      Person current = (record == null) ? null : record.get();
+      if (current != null && foldedLastNameCode(current) == key) {
+        ids.add(person.getId());
       }
     }
-    return ret;
+  }
+
+  private int foldedLastNameCode(Person person) {
+    return names.foldedCodeOf(names.codeOf(person.getLastName()));
+  }
+
+  /**
+   * Walks the DB a page at a time, picking up each page after the ID the
+   * last one ended with, so Person objects added or deleted along the way
+   * can't trip it up the way they would an Iterator over data.
+   */
+  private class PagingIterator implements Iterator<Person> {
+
+    private static final int PAGE_SIZE = 256;
+
+    private Long lastId;
+    private Iterator<Person> page;
+    private boolean lastPage;
+
+    @Override
+    public boolean hasNext() {
+      if ((page == null || !page.hasNext()) && !lastPage) {
+        List<Person> persons = findPage(lastId, 0, PAGE_SIZE);
+        lastPage = persons.size() < PAGE_SIZE;
+        if (!persons.isEmpty()) {
+          lastId = persons.get(persons.size() - 1).getId();
+        }
+        page = persons.iterator();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public Person next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
   }
 
 }
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * A data store split into shards, each an {@link IndexedRepository} with
+ * its own primary map, its own indexes over just its own Person objects,
+ * and its own write lock. Writers to different shards never wait for
+ * each other, so write throughput grows with the number of shards (up to
+ * the number of cores), where a single IndexedRepository lets one writer
+ * in at a time.
+ *
+ * Each shard hands out the IDs in one residue class: with N shards, shard
+ * k's IDs are k + 1, k + 1 + N, k + 1 + 2N... So finding, updating or
+ * deleting by ID goes straight to one shard. A new Person goes to the
+ * shard picked by their hashCode(), which looks at the same attributes as
+ * equals(), so adding the same Person twice still finds the first one.
+ * An update can't move a Person to another shard (their ID says which one
+ * they're in), so a Person updated to values that hash to another shard
+ * goes into a shared index of these moved Person objects, and an add
+ * checks it before going to the shard. Adds and updates take a lock
+ * picked by the values they write (equal Person objects get the same
+ * one) around the check, the write and the moved index update, so an add
+ * can't miss an equal Person an update is moving at the same time.
+ *
+ * Everything else asks every shard and merges the answers: lists are put
+ * back in ID order, and counts and statistics are added up. The store's
+ * version is the sum of the shards' versions, so it goes up whenever any
+ * shard changes.
+ *
+ * @author sperry
+ *
+ */
+public class ShardedRepository implements PersonDao {
+
+  private static final Comparator<Person> BY_ID = Comparator.comparing(Person::getId);
+
+  /**
+   * How many locks adds and updates are spread over.
+   */
+  private static final int IDENTITY_LOCKS = 64;
+
+  private final IndexedRepository[] shards;
+
+  /**
+   * The moved index: Person (a copy of one stored in a shard other than the
+   * one their values hash to) -> ID. Updates bring it up to date while
+   * still holding the identity lock of the values they wrote, but an entry
+   * may name a Person that a later update (under another identity lock)
+   * has changed since; findMoved() checks the one it finds is still equal.
+   */
+  private final ConcurrentMap<Person, Long> movedIndex = new ConcurrentHashMap<>();
+
+  /**
+   * ID -> the Person that ID is in the moved index under, so the entry can
+   * be taken out when that Person changes again (or is deleted). Updating
+   * the entry for an ID in here is what keeps two writers' updates to the
+   * moved index for the same ID in order.
+   */
+  private final ConcurrentMap<Long, Person> movedById = new ConcurrentHashMap<>();
+
+  /**
+   * The identity locks: an add or update of a Person takes the one
+   * identityStripe() picks for the values it writes.
+   */
+  private final ReentrantLock[] identityLocks = new ReentrantLock[IDENTITY_LOCKS];
+
+  /**
+   * Creates an empty ShardedRepository.
+   *
+   * @param shardCount
+   *          How many shards; about as many as there are cores
+   * @param idBlockSize
+   *          How many IDs each thread reserves at a time, in each shard
+   *          (see {@link IdAllocator})
+   */
+  public ShardedRepository(int shardCount, int idBlockSize) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("There must be at least 1 shard, not " + shardCount);
+    }
+    shards = new IndexedRepository[shardCount];
+    for (int aa = 0; aa < shardCount; aa++) {
+      shards[aa] = new IndexedRepository(new IdAllocator(idBlockSize, shardCount, aa + 1));
+    }
+    for (int aa = 0; aa < IDENTITY_LOCKS; aa++) {
+      identityLocks[aa] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * @return int - how many shards there are
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  @Override
+  public long getRepositorySize() {
+    long ret = 0;
+    for (IndexedRepository shard : shards) {
+      ret += shard.getRepositorySize();
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAll() {
+    List<Person> ret = new ArrayList<>();
+    for (IndexedRepository shard : shards) {
+      ret.addAll(shard.findAll());
+    }
+    return sortById(ret);
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    List<Person> ret = new ArrayList<>();
+    //
+    // Any shard could have every Person on the page, so ask each one for
+    /// the whole lot, then skip and cut the merged list
+    int skip = Math.max(offset, 0);
+    int wanted = (int) Math.min((long) skip + limit, Integer.MAX_VALUE);
+    List<Person> merged = new ArrayList<>();
+    for (IndexedRepository shard : shards) {
+      merged.addAll(shard.findPage(afterId, 0, wanted));
+    }
+    sortById(merged);
+    for (int aa = skip; aa < merged.size() && ret.size() < limit; aa++) {
+      ret.add(merged.get(aa));
+    }
+    return ret;
+  }
+
+  @Override
+  public Person findById(Long id) {
+    return (id == null) ? null : shardFor(id).findById(id);
+  }
+
+  @Override
+  public Person findEqual(Person person) {
+    Person ret = null;
+    if (person != null) {
+      ret = findMoved(person);
+      if (ret == null) {
+        ret = shardFor(person).findEqual(person);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAllByLastName(String lastName) {
+    List<Person> ret = new ArrayList<>();
+    for (IndexedRepository shard : shards) {
+      ret.addAll(shard.findAllByLastName(lastName));
+    }
+    return sortById(ret);
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    for (IndexedRepository shard : shards) {
+      ret.addAll(shard.findByQuery(query));
+    }
+    return sortById(ret);
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    List<Iterator<Person>> iterators = new ArrayList<>(shards.length);
+    for (IndexedRepository shard : shards) {
+      iterators.add(shard.iterateAll());
+    }
+    return new MergingIterator(iterators);
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    List<Iterator<Person>> iterators = new ArrayList<>(shards.length);
+    for (IndexedRepository shard : shards) {
+      iterators.add(shard.iterateAllByLastName(lastName));
+    }
+    return new MergingIterator(iterators);
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    Map<EyeColor, Long> ret = new EnumMap<>(EyeColor.class);
+    for (IndexedRepository shard : shards) {
+      addCounts(ret, shard.countByEyeColor());
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<Gender, Long> countByGender() {
+    Map<Gender, Long> ret = new EnumMap<>(Gender.class);
+    for (IndexedRepository shard : shards) {
+      addCounts(ret, shard.countByGender());
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    Map<String, Long> ret = new TreeMap<>();
+    for (IndexedRepository shard : shards) {
+      addCounts(ret, shard.countByLastName());
+    }
+    return ret;
+  }
+
+  @Override
+  public PersonStats getStats() {
+    List<PersonStats> shardStats = new ArrayList<>(shards.length);
+    for (IndexedRepository shard : shards) {
+      shardStats.add(shard.getStats());
+    }
+    return combine(shardStats);
+  }
+
+  @Override
+  public long getVersion() {
+    long ret = 0;
+    for (IndexedRepository shard : shards) {
+      ret += shard.getVersion();
+    }
+    return ret;
+  }
+
+  @Override
+  public Date getLastModified() {
+    Date ret = null;
+    for (IndexedRepository shard : shards) {
+      Date lastModified = shard.getLastModified();
+      if (ret == null || lastModified.after(ret)) {
+        ret = lastModified;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person addPerson(Person person) {
+    Person ret = null;
+    if (person != null) {
+      ReentrantLock lock = identityLocks[identityStripe(person)];
+      lock.lock();
+      try {
+        ret = findMoved(person);
+        if (ret == null) {
+          ret = shardFor(person).addPerson(person);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    Person ret = null;
+    if (person != null && person.getId() != null) {
+      ReentrantLock lock = identityLocks[identityStripe(person)];
+      lock.lock();
+      try {
+        ret = trackUpdated(shardFor(person.getId()).updatePerson(person));
+      } finally {
+        lock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    return trackDeleted((person == null || person.getId() == null) ? null
+        : shardFor(person.getId()).deletePerson(person));
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    Person ret = null;
+    if (person != null && person.getId() != null) {
+      ReentrantLock lock = identityLocks[identityStripe(person)];
+      lock.lock();
+      try {
+        ret = trackUpdated(shardFor(person.getId()).updatePerson(person, expectedVersion));
+      } finally {
+        lock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    return trackDeleted((person == null || person.getId() == null) ? null
+        : shardFor(person.getId()).deletePerson(person, expectedVersion));
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+    List<List<Person>> batches = new ArrayList<>(shards.length);
+    for (int aa = 0; aa < shards.length; aa++) {
+      positions.add(new ArrayList<>());
+      batches.add(new ArrayList<>());
+    }
+    List<Person> ret;
+    List<ReentrantLock> locks = lockIdentities(persons);
+    try {
+      List<Person> moved = new ArrayList<>(persons.size());
+      for (int aa = 0; aa < persons.size(); aa++) {
+        Person person = persons.get(aa);
+        Person existing = (person == null) ? null : findMoved(person);
+        moved.add(existing);
+        if (person != null && existing == null) {
+          int shard = shardIndex(person);
+          positions.get(shard).add(aa);
+          batches.get(shard).add(person);
+        }
+      }
+      ret = runBatches(persons.size(), positions, batches, IndexedRepository::addPersons);
+      for (int aa = 0; aa < ret.size(); aa++) {
+        if (moved.get(aa) != null) {
+          ret.set(aa, moved.get(aa));
+        }
+      }
+    } finally {
+      unlock(locks);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+    List<List<Person>> batches = new ArrayList<>(shards.length);
+    groupById(persons, positions, batches);
+    List<Person> ret;
+    List<ReentrantLock> locks = lockIdentities(persons);
+    try {
+      ret = runBatches(persons.size(), positions, batches, IndexedRepository::updatePersons);
+      ret.forEach(this::trackUpdated);
+    } finally {
+      unlock(locks);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+    List<List<Person>> batches = new ArrayList<>(shards.length);
+    groupById(persons, positions, batches);
+    List<Person> ret = runBatches(persons.size(), positions, batches, IndexedRepository::deletePersons);
+    ret.forEach(this::trackDeleted);
+    return ret;
+  }
+
+  /**
+   * Looks for a Person equal to the specified one that an update left in a
+   * shard other than the one an add of them goes to.
+   *
+   * @return Person - the stored Person, or null if there is none
+   */
+  private Person findMoved(Person person) {
+    Person ret = null;
+    Long id = movedIndex.get(person);
+    if (id != null) {
+      ret = findById(id);
+      if (ret != null && !ret.equals(person)) {
+        ret = null;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Takes the identity locks of the specified Person objects, each once
+   * and always in ascending order, so two batches can't deadlock.
+   *
+   * @return List<ReentrantLock> - the locks taken, for unlock()
+   */
+  private List<ReentrantLock> lockIdentities(List<Person> persons) {
+    TreeSet<Integer> indexes = new TreeSet<>();
+    for (Person person : persons) {
+      if (person != null) {
+        indexes.add(identityStripe(person));
+      }
+    }
+    List<ReentrantLock> ret = new ArrayList<>(indexes.size());
+    for (Integer index : indexes) {
+      identityLocks[index].lock();
+      ret.add(identityLocks[index]);
+    }
+    return ret;
+  }
+
+  private static void unlock(List<ReentrantLock> locks) {
+    for (ReentrantLock lock : locks) {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Brings the moved index up to date after an update, unless a later
+   * update to the same Person got there first. Callers must hold the
+   * identity lock of the updated values.
+   *
+   * @param updated
+   *          The Person as updated (may be null)
+   *
+   * @return Person - updated
+   */
+  private Person trackUpdated(Person updated) {
+    if (updated != null) {
+      Long id = updated.getId();
+      movedById.compute(id, (key, indexed) -> {
+        Person ret = indexed;
+        if (indexed == null || indexed.getVersion() < updated.getVersion()) {
+          if (indexed != null) {
+            movedIndex.remove(indexed, id);
+          }
+          ret = null;
+          if (shardIndex(updated) != shardIndex(id)) {
+            ret = new Person(updated);
+            movedIndex.put(ret, id);
+          }
+        }
+        return ret;
+      });
+    }
+    return updated;
+  }
+
+  /**
+   * Takes a deleted Person out of the moved index.
+   *
+   * @param deleted
+   *          The Person that was deleted (may be null)
+   *
+   * @return Person - deleted
+   */
+  private Person trackDeleted(Person deleted) {
+    if (deleted != null) {
+      Person indexed = movedById.remove(deleted.getId());
+      if (indexed != null) {
+        movedIndex.remove(indexed, deleted.getId());
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Splits the specified Person objects into one batch per shard, by ID,
+   * noting where in the list each one was. Person objects with no ID
+   * aren't in any batch.
+   */
+  private void groupById(List<Person> persons, List<List<Integer>> positions, List<List<Person>> batches) {
+    for (int aa = 0; aa < shards.length; aa++) {
+      positions.add(new ArrayList<>());
+      batches.add(new ArrayList<>());
+    }
+    for (int aa = 0; aa < persons.size(); aa++) {
+      Person person = persons.get(aa);
+      if (person != null && person.getId() != null) {
+        int shard = shardIndex(person.getId());
+        positions.get(shard).add(aa);
+        batches.get(shard).add(person);
+      }
+    }
+  }
+
+  /**
+   * Runs each shard's batch (taking each shard's write lock once), and
+   * puts the results back in the order of the original list. Anything not
+   * in a batch gets null.
+   */
+  private List<Person> runBatches(int size, List<List<Integer>> positions, List<List<Person>> batches,
+      BatchOperation operation) {
+    List<Person> ret = new ArrayList<>(size);
+    for (int aa = 0; aa < size; aa++) {
+      ret.add(null);
+    }
+    for (int aa = 0; aa < shards.length; aa++) {
+      if (!batches.get(aa).isEmpty()) {
+        List<Person> results = operation.apply(shards[aa], batches.get(aa));
+        List<Integer> shardPositions = positions.get(aa);
+        for (int bb = 0; bb < results.size(); bb++) {
+          ret.set(shardPositions.get(bb), results.get(bb));
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return IndexedRepository - the shard that hands out (and so holds)
+   *         the specified ID
+   */
+  private IndexedRepository shardFor(long id) {
+    return shards[shardIndex(id)];
+  }
+
+  /**
+   * @return IndexedRepository - the shard a new Person like the specified
+   *         one goes to
+   */
+  private IndexedRepository shardFor(Person person) {
+    return shards[shardIndex(person)];
+  }
+
+  /**
+   * Picks the identity lock for the specified values: equal Person objects
+   * get the same one.
+   */
+  private static int identityStripe(Person person) {
+    return Math.floorMod(person.hashCode(), IDENTITY_LOCKS);
+  }
+
+  private int shardIndex(long id) {
+    return (int) Math.floorMod(id - 1, (long) shards.length);
+  }
+
+  private int shardIndex(Person person) {
+    // Spread the hash, as the low bits of Person.hashCode() are mostly age
+    int hash = person.hashCode() * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+  }
+
+  private static List<Person> sortById(List<Person> persons) {
+    // Each shard's list is already in ID order, and TimSort merges runs
+    persons.sort(BY_ID);
+    return persons;
+  }
+
+  private static <K> void addCounts(Map<K, Long> totals, Map<K, Long> counts) {
+    for (Map.Entry<K, Long> entry : counts.entrySet()) {
+      totals.merge(entry.getKey(), entry.getValue(), Long::sum);
+    }
+  }
+
+  /**
+   * Adds up the statistics of the shards.
+   *
+   * @return PersonStats - the statistics of the whole store
+   */
+  static PersonStats combine(List<PersonStats> shardStats) {
+    long count = 0;
+    double ageSum = 0;
+    Integer minAge = null;
+    Integer maxAge = null;
+    Map<Gender, Long> byGender = new EnumMap<>(Gender.class);
+    Map<EyeColor, Long> byEyeColor = new EnumMap<>(EyeColor.class);
+    SortedMap<Integer, Long> ageHistogram = new TreeMap<>();
+    int ageBucketWidth = PersonStatistics.AGE_BUCKET_WIDTH;
+    for (PersonStats stats : shardStats) {
+      count += stats.getCount();
+      addCounts(byGender, stats.getByGender());
+      addCounts(byEyeColor, stats.getByEyeColor());
+      addCounts(ageHistogram, stats.getAgeHistogram());
+      ageBucketWidth = stats.getAgeBucketWidth();
+      if (stats.getCount() > 0) {
+        ageSum += stats.getMeanAge() * stats.getCount();
+        minAge = (minAge == null) ? stats.getMinAge() : Math.min(minAge, stats.getMinAge());
+        maxAge = (maxAge == null) ? stats.getMaxAge() : Math.max(maxAge, stats.getMaxAge());
+      }
+    }
+    return new PersonStats(count, byGender, byEyeColor, ageBucketWidth, ageHistogram, minAge, maxAge,
+        (count == 0) ? null : ageSum / count);
+  }
+
+  /**
+   * One of the batch write methods of a shard.
+   */
+  @FunctionalInterface
+  private interface BatchOperation {
+    List<Person> apply(IndexedRepository shard, List<Person> batch);
+  }
+
+  /**
+   * Merges the shards' iterators into one, in ID order (as long as each
+   * shard's iterator is in ID order), looking only one Person ahead in
+   * each.
+   */
+  private static final class MergingIterator implements Iterator<Person> {
+
+    /**
+     * Each entry is the next Person from one iterator, and the iterator.
+     */
+    private final PriorityQueue<Map.Entry<Person, Iterator<Person>>> heads =
+        new PriorityQueue<>((a, b) -> BY_ID.compare(a.getKey(), b.getKey()));
+
+    MergingIterator(List<Iterator<Person>> iterators) {
+      for (Iterator<Person> iterator : iterators) {
+        advance(iterator);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Person next() {
+      Map.Entry<Person, Iterator<Person>> head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      advance(head.getValue());
+      return head.getKey();
+    }
+
+    private void advance(Iterator<Person> iterator) {
+      if (iterator.hasNext()) {
+        heads.add(new AbstractMap.SimpleImmutableEntry<>(iterator.next(), iterator));
+      }
+    }
+  }
+
+}
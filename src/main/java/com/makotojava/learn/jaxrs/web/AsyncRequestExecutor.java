@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.metrics.LatencyHistogram;
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * Runs the work of suspended (asynchronous) requests on a pool of its
+ * own, so the container thread that took the request goes straight back
+ * to the container, and slow requests (writes that wait for the journal,
+ * big responses that take a while to serialize) queue up here rather
+ * than tie up the threads that fast reads need. The response is written
+ * on the pool thread that resumes the request.
+ *
+ * Both the pool and its queue are bounded:
+ * <ul>
+ * <li>{@link #PROPERTY_THREADS} - how many pool threads (default two per core)</li>
+ * <li>{@link #PROPERTY_QUEUE_DEPTH} - how many requests may wait for one (default
+ * {@value #DEFAULT_QUEUE_DEPTH})</li>
+ * <li>{@link #PROPERTY_REJECTION} - what to do with a request when the queue is
+ * full: {@value #REJECTION_REJECT} (the default) answers 503 Service Unavailable
+ * with a Retry-After header, and {@value #REJECTION_CALLER_RUNS} does the work on
+ * the container thread after all, as if the request weren't asynchronous</li>
+ * </ul>
+ *
+ * The queue depth, active threads, rejections and how long requests wait
+ * in the queue are in the {@link MetricsRegistry}.
+ *
+ * The pool lives as long as the web application: {@link ServiceLifecycle}
+ * shuts it down when Jersey does.
+ *
+ * @author sperry
+ *
+ */
+public class AsyncRequestExecutor {
+
+  private static final Logger log = Logger.getLogger(AsyncRequestExecutor.class);
+
+  public static final String PROPERTY_THREADS = "com.makotojava.learn.jaxrs.async.threads";
+  public static final String PROPERTY_QUEUE_DEPTH = "com.makotojava.learn.jaxrs.async.queueDepth";
+  public static final String PROPERTY_REJECTION = "com.makotojava.learn.jaxrs.async.rejection";
+
+  public static final int DEFAULT_QUEUE_DEPTH = 1000;
+
+  public static final String REJECTION_REJECT = "reject";
+  public static final String REJECTION_CALLER_RUNS = "callerRuns";
+
+  /**
+   * Seconds a rejected client is asked to wait before retrying.
+   */
+  private static final int RETRY_AFTER_SECONDS = 1;
+
+  /**
+   * How long shutdownInstance() gives queued requests to finish.
+   */
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private static AsyncRequestExecutor instance;
+
+  private final ThreadPoolExecutor executor;
+
+  private final boolean callerRuns;
+
+  private final LongAdder rejected;
+
+  private final LatencyHistogram queueWait;
+
+  /**
+   * Creates an AsyncRequestExecutor.
+   *
+   * @param threads
+   *          How many pool threads
+   * @param queueDepth
+   *          How many requests may wait for a pool thread
+   * @param rejection
+   *          {@value #REJECTION_REJECT} or {@value #REJECTION_CALLER_RUNS}
+   */
+  public AsyncRequestExecutor(int threads, int queueDepth, String rejection) {
+    if (!REJECTION_REJECT.equals(rejection) && !REJECTION_CALLER_RUNS.equals(rejection)) {
+      throw new IllegalArgumentException("Unknown rejection policy '" + rejection + "', check the "
+          + PROPERTY_REJECTION + " system property.");
+    }
+    this.callerRuns = REJECTION_CALLER_RUNS.equals(rejection);
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "person-service-async-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    // Always reject here; execute() decides what a rejection means
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueDepth), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    MetricsRegistry metrics = MetricsRegistry.instance();
+    rejected = metrics.counter("person_async_rejected_total",
+        "Asynchronous requests that found the queue full, by what was done with them.", "policy", rejection);
+    queueWait = metrics.histogram("person_async_queue_wait_seconds",
+        "How long asynchronous requests waited for a pool thread.");
+    metrics.gauge("person_async_queue_depth", "Asynchronous requests waiting for a pool thread.",
+        () -> executor.getQueue().size());
+    metrics.gauge("person_async_queue_capacity", "The most asynchronous requests that may wait.",
+        () -> queueDepth);
+    metrics.gauge("person_async_active_threads", "Pool threads working on a request.", executor::getActiveCount);
+    metrics.gauge("person_async_threads", "Pool threads.", () -> threads);
+  }
+
+  /**
+   * The one AsyncRequestExecutor the service uses, configured by the
+   * system properties.
+   *
+   * @return AsyncRequestExecutor - the executor
+   */
+  public static synchronized AsyncRequestExecutor instance() {
+    if (instance == null) {
+      int threads = Integer.getInteger(PROPERTY_THREADS, 2 * Runtime.getRuntime().availableProcessors());
+      int queueDepth = Integer.getInteger(PROPERTY_QUEUE_DEPTH, DEFAULT_QUEUE_DEPTH);
+      String rejection = System.getProperty(PROPERTY_REJECTION, REJECTION_REJECT);
+      log.info("Asynchronous requests: " + threads + " threads, queue depth " + queueDepth + ", rejection policy "
+          + rejection);
+      instance = new AsyncRequestExecutor(threads, queueDepth, rejection);
+    }
+    return instance;
+  }
+
+  /**
+   * Does the specified work on a pool thread, and resumes the suspended
+   * request with the Response it makes (or the exception it throws).
+   *
+   * @param asyncResponse
+   *          The suspended request
+   * @param work
+   *          Makes the Response
+   */
+  public void execute(AsyncResponse asyncResponse, Supplier<Response> work) {
+    long queuedNanos = System.nanoTime();
+    Runnable task = () -> {
+      queueWait.record(System.nanoTime() - queuedNanos);
+      resume(asyncResponse, work);
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      if (callerRuns && !executor.isShutdown()) {
+        task.run();
+      } else {
+        asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+            .entity("The service is too busy right now, please try again shortly.").build());
+      }
+    }
+  }
+
+  /**
+   * Shuts down the AsyncRequestExecutor instance() hands out, if there is
+   * one, giving queued requests a few seconds to finish, so its threads
+   * don't outlive the web application. The next call to instance() (if the
+   * application is started again) creates a new one.
+   */
+  public static void shutdownInstance() {
+    AsyncRequestExecutor executor;
+    synchronized (AsyncRequestExecutor.class) {
+      executor = instance;
+      instance = null;
+    }
+    if (executor != null && !executor.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      log.warn("Asynchronous requests still running after " + SHUTDOWN_TIMEOUT_SECONDS
+          + " seconds were interrupted");
+    }
+  }
+
+  /**
+   * Stops taking work, and lets what's queued finish.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Stops taking work, and lets what's queued finish for up to the specified
+   * time, then interrupts what's still running (and drops what's still
+   * queued).
+   *
+   * @param timeout
+   *          How long to wait
+   * @param unit
+   *          What timeout is in
+   *
+   * @return boolean - true if everything finished in time
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) {
+    boolean ret = false;
+    executor.shutdown();
+    try {
+      ret = executor.awaitTermination(timeout, unit);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!ret) {
+      executor.shutdownNow();
+    }
+    return ret;
+  }
+
+  private static void resume(AsyncResponse asyncResponse, Supplier<Response> work) {
+    try {
+      asyncResponse.resume(work.get());
+    } catch (RuntimeException e) {
+      // Mapped to a response just as if the resource method had thrown it
+      asyncResponse.resume(e);
+    }
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+/**
+ * A JSON response body, ready to send, with the validators a client can
+ * make a conditional GET with next time.
+ *
+ * @author sperry
+ *
+ */
+public final class CachedJson {
+
+  private final byte[] json;
+  private final EntityTag eTag;
+  private final Date lastModified;
+
+  /**
+   * Creates a CachedJson.
+   *
+   * @param json
+   *          The JSON (don't modify it afterward)
+   * @param eTag
+   *          The strong entity tag of the JSON
+   * @param lastModified
+   *          When what the JSON represents last changed
+   */
+  public CachedJson(byte[] json, EntityTag eTag, Date lastModified) {
+    this.json = json;
+    this.eTag = eTag;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return byte[] - the JSON (don't modify it)
+   */
+  public byte[] getJson() {
+    return json;
+  }
+
+  public EntityTag getETag() {
+    return eTag;
+  }
+
+  public Date getLastModified() {
+    return lastModified;
+  }
+
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.apache.log4j.Logger;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+import com.makotojava.learn.jaxrs.web.ChangeFeed.Type;
+import com.makotojava.learn.jaxrs.util.PersonDaoFactory;
+
+/**
+ * Puts a {@link JsonCache} in front of a PersonDao, for the two lookups
+ * whose traffic is skewed toward a few hot keys: finding by ID and finding
+ * by last name. {@link #findByIdAsJson(Long)} and
+ * {@link #findAllByLastNameAsJson(String)} hand back the JSON the service
+ * would send, and its ETag and modification time, so a hit skips both the
+ * data store and the JSON writer.
+ *
+ * Every write goes through here too, and invalidates exactly the entries
+ * it affects: the ID of a Person that was updated or deleted, and the
+ * last names (before and after) of every Person that was added, updated
+ * or deleted. Everything else is passed straight through.
+ *
+ * The cache holds at most {@link #PROPERTY_MAX_BYTES} bytes (default
+ * {@value #DEFAULT_MAX_BYTES}); 0 turns it off.
+ *
+ * Every write that changes something is also published to the
+ * {@link ChangeFeed}. Writes by ID hold a lock (one of a fixed set,
+ * picked by the ID) across the write and the publishing, so changes to
+ * the same Person are published in the order they were made. A batch takes
+ * the locks of all its Person objects, and is written in one call. Adds hold a
+ * lock picked by the Person's hash code instead, so nobody else can add an
+ * equal Person between looking for one and adding: an add that sends back
+ * a Person who was already there publishes nothing.
+ *
+ * @author sperry
+ *
+ */
+public class CachingPersonDao implements PersonDao {
+
+  private static final Logger log = Logger.getLogger(CachingPersonDao.class);
+
+  public static final String PROPERTY_MAX_BYTES = "com.makotojava.learn.jaxrs.cache.maxBytes";
+
+  public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+  private static final String ID_KEY = "id:";
+  private static final String LAST_NAME_KEY = "lastName:";
+
+  /**
+   * How many locks writes by ID, and adds, are each spread over.
+   */
+  private static final int ID_LOCKS = 64;
+
+  private static CachingPersonDao instance;
+
+  private final PersonDao delegate;
+
+  private final JsonCache cache;
+
+  private final ChangeFeed changeFeed;
+
+  private final ReentrantLock[] idLocks = new ReentrantLock[ID_LOCKS];
+
+  private final ReentrantLock[] identityLocks = new ReentrantLock[ID_LOCKS];
+
+  /**
+   * The last-name entry each Person was last cached in, by ID, so an update
+   * can invalidate the entry of the last name it changed from without
+   * looking it up first. At most one per Person; an update or delete of the
+   * Person drops theirs.
+   */
+  private final ConcurrentMap<Long, String> lastNameKeys = new ConcurrentHashMap<>();
+
+  /**
+   * How many updates there have been. A last-name entry is only cached if
+   * no update counted since it was read (see updated()).
+   */
+  private final AtomicLong updates = new AtomicLong();
+
+  /**
+   * Creates a CachingPersonDao with a change feed of its own.
+   *
+   * @param delegate
+   *          The PersonDao that does the work
+   * @param cache
+   *          The cache of JSON responses
+   */
+  public CachingPersonDao(PersonDao delegate, JsonCache cache) {
+    this(delegate, cache, new ChangeFeed(ChangeFeed.DEFAULT_RETAINED, ChangeFeed.DEFAULT_MAX_SUBSCRIBERS));
+  }
+
+  /**
+   * Creates a CachingPersonDao.
+   *
+   * @param delegate
+   *          The PersonDao that does the work
+   * @param cache
+   *          The cache of JSON responses
+   * @param changeFeed
+   *          Where to publish the changes
+   */
+  public CachingPersonDao(PersonDao delegate, JsonCache cache, ChangeFeed changeFeed) {
+    this.delegate = delegate;
+    this.cache = cache;
+    this.changeFeed = changeFeed;
+    for (int aa = 0; aa < ID_LOCKS; aa++) {
+      idLocks[aa] = new ReentrantLock();
+      identityLocks[aa] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * The one CachingPersonDao the service uses, in front of
+   * {@link PersonDaoFactory#getPersonDao()}.
+   *
+   * @return CachingPersonDao - the PersonDao
+   */
+  public static synchronized CachingPersonDao instance() {
+    if (instance == null) {
+      long maxBytes = Long.getLong(PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES);
+      log.info("Response cache size: " + maxBytes + " bytes");
+      instance = new CachingPersonDao(PersonDaoFactory.getPersonDao(), new JsonCache(maxBytes, "person"),
+          new ChangeFeed(Integer.getInteger(ChangeFeed.PROPERTY_RETAINED, ChangeFeed.DEFAULT_RETAINED),
+              Integer.getInteger(ChangeFeed.PROPERTY_MAX_SUBSCRIBERS, ChangeFeed.DEFAULT_MAX_SUBSCRIBERS)));
+    }
+    return instance;
+  }
+
+  /**
+   * Shuts down the change feed of the CachingPersonDao instance() hands out,
+   * if there is one, disconnecting its subscribers, so their threads don't
+   * outlive the web application. The next call to instance() (if the
+   * application is started again) creates a new one.
+   */
+  public static void shutdownInstance() {
+    CachingPersonDao dao;
+    synchronized (CachingPersonDao.class) {
+      dao = instance;
+      instance = null;
+    }
+    if (dao != null) {
+      dao.getChangeFeed().shutdown();
+    }
+  }
+
+  /**
+   * Finds the Person with the specified ID, as JSON. Its validators are the
+   * Person's own: an ETag of their version, and when they were modified.
+   *
+   * @param id
+   *          The ID
+   *
+   * @return CachedJson - the JSON of the Person, or null if there is no
+   *         Person with that ID
+   */
+  public CachedJson findByIdAsJson(Long id) {
+    CachedJson ret = null;
+    if (id != null) {
+      String key = ID_KEY + id;
+      ret = cache.get(key);
+      if (ret == null) {
+        long stamp = cache.stamp(key);
+        Person person = delegate.findById(id);
+        if (person != null) {
+          Date whenModified = person.getWhenModified();
+          ret = new CachedJson(PersonJsonFormat.toBytes(person), EntityTags.of(person),
+              (whenModified == null) ? new Date(0) : whenModified);
+          cache.put(key, ret, stamp);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Finds all Person objects with the specified last name, as a JSON array.
+   * Its validators are the data store's: an ETag of its version, and when it
+   * last changed, both as of just before the Person objects were found.
+   *
+   * @param lastName
+   *          The last name, in any case
+   *
+   * @return CachedJson - the JSON of the Person objects, or null if there
+   *         are none
+   */
+  public CachedJson findAllByLastNameAsJson(String lastName) {
+    CachedJson ret = null;
+    if (lastName != null) {
+      String key = lastNameKey(lastName);
+      ret = cache.get(key);
+      if (ret == null) {
+        long stamp = cache.stamp(key);
+        long updatesBefore = updates.get();
+        //
+        // Validators first: if a write gets in before the Person objects are
+        /// found, they can only be older than the JSON, which is safe
+        Date lastModified = delegate.getLastModified();
+        EntityTag eTag = EntityTags.ofStore(delegate.getVersion());
+        List<Person> persons = delegate.findAllByLastName(lastName);
+        if (!persons.isEmpty()) {
+          ret = new CachedJson(PersonJsonFormat.toBytes(persons), eTag, lastModified);
+          for (Person person : persons) {
+            lastNameKeys.put(person.getId(), key);
+          }
+          if (updates.get() == updatesBefore) {
+            cache.put(key, ret, stamp);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return ChangeFeed - where the changes are published
+   */
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  @Override
+  public Person addPerson(Person person) {
+    Person ret;
+    // A new Person has no ID for anyone else to write to yet
+    ReentrantLock lock = identityLocks[identityStripe(person)];
+    lock.lock();
+    try {
+      Person existing = delegate.findEqual(person);
+      ret = delegate.addPerson(person);
+      if (inserted(ret, existing)) {
+        added(ret);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person) {
+    Person ret;
+    ReentrantLock lock = idLocks[idStripe(person)];
+    lock.lock();
+    try {
+      ret = delegate.updatePerson(person);
+      updated(ret);
+    } finally {
+      lock.unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person) {
+    Person ret;
+    ReentrantLock lock = idLocks[idStripe(person)];
+    lock.lock();
+    try {
+      ret = delegate.deletePerson(person);
+      deleted(ret);
+    } finally {
+      lock.unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public Person updatePerson(Person person, long expectedVersion) {
+    Person ret;
+    ReentrantLock lock = idLocks[idStripe(person)];
+    lock.lock();
+    try {
+      ret = delegate.updatePerson(person, expectedVersion);
+      updated(ret);
+    } finally {
+      lock.unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public Person deletePerson(Person person, long expectedVersion) {
+    Person ret;
+    ReentrantLock lock = idLocks[idStripe(person)];
+    lock.lock();
+    try {
+      ret = delegate.deletePerson(person, expectedVersion);
+      deleted(ret);
+    } finally {
+      lock.unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> addPersons(List<Person> persons) {
+    List<Person> ret;
+    List<ReentrantLock> locks = lock(identityLocks, persons, CachingPersonDao::identityStripe);
+    try {
+      List<Person> existing = new ArrayList<>(persons.size());
+      for (Person person : persons) {
+        existing.add(delegate.findEqual(person));
+      }
+      ret = delegate.addPersons(persons);
+      // The same Person twice in one batch is stored (and published) once
+      Set<Long> inserted = new HashSet<>();
+      for (int aa = 0; aa < ret.size(); aa++) {
+        Person person = ret.get(aa);
+        if (inserted(person, existing.get(aa)) && inserted.add(person.getId())) {
+          added(person);
+        }
+      }
+    } finally {
+      unlock(locks);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> updatePersons(List<Person> persons) {
+    List<Person> ret;
+    List<ReentrantLock> locks = lock(idLocks, persons, CachingPersonDao::idStripe);
+    try {
+      ret = delegate.updatePersons(persons);
+      for (Person person : ret) {
+        updated(person);
+      }
+    } finally {
+      unlock(locks);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> deletePersons(List<Person> persons) {
+    List<Person> ret;
+    List<ReentrantLock> locks = lock(idLocks, persons, CachingPersonDao::idStripe);
+    try {
+      ret = delegate.deletePersons(persons);
+      for (Person person : ret) {
+        deleted(person);
+      }
+    } finally {
+      unlock(locks);
+    }
+    return ret;
+  }
+
+  @Override
+  public List<Person> findAll() {
+    return delegate.findAll();
+  }
+
+  @Override
+  public Person findById(Long id) {
+    return delegate.findById(id);
+  }
+
+  @Override
+  public Person findEqual(Person person) {
+    return delegate.findEqual(person);
+  }
+
+  @Override
+  public List<Person> findAllByLastName(String lastName) {
+    return delegate.findAllByLastName(lastName);
+  }
+
+  @Override
+  public List<Person> findByQuery(PersonQuery query) {
+    return delegate.findByQuery(query);
+  }
+
+  @Override
+  public List<Person> findPage(Long afterId, int offset, int limit) {
+    return delegate.findPage(afterId, offset, limit);
+  }
+
+  @Override
+  public Iterator<Person> iterateAll() {
+    return delegate.iterateAll();
+  }
+
+  @Override
+  public Iterator<Person> iterateAllByLastName(String lastName) {
+    return delegate.iterateAllByLastName(lastName);
+  }
+
+  @Override
+  public Map<EyeColor, Long> countByEyeColor() {
+    return delegate.countByEyeColor();
+  }
+
+  @Override
+  public Map<Gender, Long> countByGender() {
+    return delegate.countByGender();
+  }
+
+  @Override
+  public PersonStats getStats() {
+    return delegate.getStats();
+  }
+
+  @Override
+  public Map<String, Long> countByLastName() {
+    return delegate.countByLastName();
+  }
+
+  @Override
+  public long getVersion() {
+    return delegate.getVersion();
+  }
+
+  @Override
+  public Date getLastModified() {
+    return delegate.getLastModified();
+  }
+
+  @Override
+  public long getRepositorySize() {
+    return delegate.getRepositorySize();
+  }
+
+  /**
+   * Invalidates the entry an add affected (the Person's last name), and
+   * publishes the add.
+   */
+  private void added(Person added) {
+    if (added != null) {
+      cache.invalidate(lastNameKey(added.getLastName()));
+      changeFeed.publish(Type.ADD, added);
+    }
+  }
+
+  /**
+   * Invalidates the entries an update affected: the Person's ID, their new
+   * last name, and the last-name entry they were cached in (if any), which
+   * is their old last name's. Then publishes the update.
+   */
+  private void updated(Person updated) {
+    if (updated != null) {
+      //
+      // Count the update before looking in lastNameKeys: a fill that put
+      /// the Person there too late for us to see won't be cached
+      updates.incrementAndGet();
+      cache.invalidate(ID_KEY + updated.getId());
+      cache.invalidate(lastNameKey(updated.getLastName()));
+      String oldKey = lastNameKeys.remove(updated.getId());
+      if (oldKey != null) {
+        cache.invalidate(oldKey);
+      }
+      changeFeed.publish(Type.UPDATE, updated);
+    }
+  }
+
+  /**
+   * Invalidates the entries a delete affected (the Person's ID and last
+   * name), and publishes the delete.
+   */
+  private void deleted(Person deleted) {
+    if (deleted != null) {
+      cache.invalidate(ID_KEY + deleted.getId());
+      cache.invalidate(lastNameKey(deleted.getLastName()));
+      lastNameKeys.remove(deleted.getId());
+      changeFeed.publish(Type.DELETE, deleted);
+    }
+  }
+
+  /**
+   * Tells whether an add stored the Person it sent back, rather than
+   * sending back one who was already there: it isn't the Person found
+   * before the add, and it is at version 1 (a Person an update made equal
+   * in the meantime would be further on).
+   */
+  private static boolean inserted(Person added, Person existing) {
+    return added != null && added.getVersion() != null && added.getVersion() == 1
+        && (existing == null || !existing.getId().equals(added.getId()));
+  }
+
+  /**
+   * Takes the locks the specified Person objects' writes pick, each once
+   * and always in the same order, so two batches can't deadlock.
+   *
+   * @return List<ReentrantLock> - the locks taken, for unlock()
+   */
+  private static List<ReentrantLock> lock(ReentrantLock[] locks, List<Person> persons, ToIntFunction<Person> stripe) {
+    TreeSet<Integer> indexes = new TreeSet<>();
+    for (Person person : persons) {
+      indexes.add(stripe.applyAsInt(person));
+    }
+    List<ReentrantLock> ret = new ArrayList<>(indexes.size());
+    for (Integer index : indexes) {
+      locks[index].lock();
+      ret.add(locks[index]);
+    }
+    return ret;
+  }
+
+  private static void unlock(List<ReentrantLock> locks) {
+    for (ReentrantLock lock : locks) {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Picks the lock a write by ID takes (any will do for a Person with no
+   * ID, as the write won't find anything to change).
+   */
+  private static int idStripe(Person person) {
+    return (person == null || person.getId() == null) ? 0 : Math.floorMod(Long.hashCode(person.getId()), ID_LOCKS);
+  }
+
+  /**
+   * Picks the lock an add takes: equal Person objects get the same one.
+   */
+  private static int identityStripe(Person person) {
+    return Math.floorMod(Objects.hashCode(person), ID_LOCKS);
+  }
+
+  /**
+   * The data stores find last names case-insensitively, so the cache keys
+   * them case-folded.
+   */
+  private static String lastNameKey(String lastName) {
+    return LAST_NAME_KEY + ((lastName == null) ? "" : lastName.toLowerCase(Locale.ROOT));
+  }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * The feed of changes to the data store, for clients that would rather be
+ * told than poll FindAll. Every add, update and delete is published here
+ * with the next sequence number, and sent to every subscriber as a
+ * Server-Sent Event named for what happened ("add", "update" or "delete"),
+ * with the Person (as they are after the change, or as they were when
+ * deleted) as its JSON data.
+ *
+ * The last {@link #PROPERTY_RETAINED} changes (default
+ * {@value #DEFAULT_RETAINED}) are kept in a ring, each serialized once no
+ * matter how many subscribers there are. Publishing only appends to the
+ * ring, and wakes the subscribers that are waiting for a change (one that
+ * is busy sending will find the change when it next looks). Each
+ * subscriber has a thread of the feed's pool to itself, that reads the
+ * ring from where it got to and writes to its client, so a slow subscriber
+ * holds up only itself. One that falls so far behind that the changes it
+ * hasn't seen are gone from the ring gets a "reset" event, and carries on
+ * from the newest change. There are at most
+ * {@link #PROPERTY_MAX_SUBSCRIBERS} subscribers (default
+ * {@value #DEFAULT_MAX_SUBSCRIBERS}), and {@link #shutdown()} (see
+ * {@link ServiceLifecycle}) disconnects them all and stops the pool.
+ *
+ * Each event's ID is this run of the feed and the sequence number. A
+ * client that reconnects with the ID of the last event it saw (in the
+ * standard Last-Event-ID header) gets every change since; if those changes
+ * are gone, or the ID is from an earlier run of the service, it gets a
+ * "reset" first.
+ *
+ * A client applying changes to its own copy should apply an event only if
+ * the Person's version is newer than the one it has. An "add" is published
+ * only for a Person the add actually stored: adding a Person who is
+ * already in the store publishes nothing.
+ *
+ * @author sperry
+ *
+ */
+public class ChangeFeed {
+
+  private static final Logger log = Logger.getLogger(ChangeFeed.class);
+
+  public static final String PROPERTY_RETAINED = "com.makotojava.learn.jaxrs.changes.retained";
+  public static final String PROPERTY_MAX_SUBSCRIBERS = "com.makotojava.learn.jaxrs.changes.maxSubscribers";
+
+  public static final int DEFAULT_RETAINED = 10000;
+  public static final int DEFAULT_MAX_SUBSCRIBERS = 100;
+
+  public static final String EVENT_RESET = "reset";
+
+  private static final String RESET_MESSAGE = "Changes were missed, get FindAll again.";
+
+  /**
+   * How long a subscriber waits for a change before sending a comment, so
+   * clients (and proxies) know the connection is alive, and the subscriber
+   * finds out if it isn't.
+   */
+  private static final long HEARTBEAT_MILLIS = 15000;
+
+  /**
+   * The most changes a subscriber copies out of the ring at a time, so
+   * publishers are never held up for long.
+   */
+  private static final int MAX_BATCH = 1000;
+
+  /**
+   * What happened to a Person.
+   */
+  public enum Type {
+    ADD, UPDATE, DELETE;
+
+    /**
+     * @return String - the name of the event
+     */
+    public String eventName() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * One change, as published.
+   */
+  public static final class Change {
+    private final long sequence;
+    private final Type type;
+    private final String json;
+
+    Change(long sequence, Type type, String json) {
+      this.sequence = sequence;
+      this.type = type;
+      this.json = json;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    /**
+     * @return String - the Person, as JSON
+     */
+    public String getJson() {
+      return json;
+    }
+  }
+
+  /**
+   * Tells this run of the feed apart from earlier ones.
+   */
+  private final String run = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  /**
+   * The newest changes; the change with sequence number n is at n % length.
+   * Guarded by the ring lock.
+   */
+  private final Change[] ring;
+
+  /**
+   * Publishers take the write lock to add to the ring, subscribers the read
+   * lock to copy out of it, so subscribers don't wait for each other.
+   */
+  private final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+
+  /**
+   * The sequence number of the newest change, 0 if there are none yet.
+   * Written with the ring lock's write lock held.
+   */
+  private volatile long lastSequence;
+
+  /**
+   * The subscriber threads waiting for a change. A publisher takes out each
+   * one it wakes, so a burst of changes wakes a subscriber once, not once
+   * per change.
+   */
+  private final Set<Thread> waiting = ConcurrentHashMap.newKeySet();
+
+  private final int maxSubscribers;
+
+  private final AtomicInteger subscribers = new AtomicInteger();
+
+  /**
+   * The subscribers' outputs, so shutdown() can close them on a subscriber
+   * that is stuck writing to its client.
+   */
+  private final Set<EventOutput> outputs = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Runs the subscribers, a thread each. The subscriber limit bounds it.
+   */
+  private final ExecutorService senders;
+
+  private final LongAdder published;
+
+  private final LongAdder resets;
+
+  /**
+   * Creates a ChangeFeed.
+   *
+   * @param retained
+   *          How many of the newest changes to keep for subscribers that are
+   *          behind, or reconnecting
+   * @param maxSubscribers
+   *          The most subscribers at once
+   */
+  public ChangeFeed(int retained, int maxSubscribers) {
+    if (retained < 1) {
+      throw new IllegalArgumentException("Must retain at least 1 change, not " + retained);
+    }
+    this.ring = new Change[retained];
+    this.maxSubscribers = maxSubscribers;
+    AtomicInteger threadNumber = new AtomicInteger();
+    senders = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "person-changes-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    MetricsRegistry metrics = MetricsRegistry.instance();
+    published = metrics.counter("person_changes_published_total", "Changes published to the change feed.");
+    resets = metrics.counter("person_changes_resets_total",
+        "Resets sent to change feed subscribers that missed changes.");
+    metrics.gauge("person_changes_subscribers", "Change feed subscribers.", subscribers::get);
+    metrics.gauge("person_changes_last_sequence", "The sequence number of the newest change.",
+        this::getLastSequence);
+  }
+
+  /**
+   * Publishes a change. The caller must make sure changes to the same
+   * Person are published in the order they were made.
+   *
+   * @param type
+   *          What happened
+   * @param person
+   *          The Person, as they are now (or were, if deleted)
+   */
+  public void publish(Type type, Person person) {
+    String json = toJson(person);
+    ringLock.writeLock().lock();
+    try {
+      long sequence = lastSequence + 1;
+      ring[(int) (sequence % ring.length)] = new Change(sequence, type, json);
+      lastSequence = sequence;
+    } finally {
+      ringLock.writeLock().unlock();
+    }
+    for (Thread thread : waiting) {
+      if (waiting.remove(thread)) {
+        LockSupport.unpark(thread);
+      }
+    }
+    published.increment();
+  }
+
+  /**
+   * @return long - the sequence number of the newest change, 0 if there are
+   *         none yet
+   */
+  public long getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Returns the changes after the specified one, waiting for one if there
+   * aren't any yet.
+   *
+   * @param after
+   *          The sequence number of the last change already seen
+   * @param timeoutMillis
+   *          How long to wait for a change
+   *
+   * @return List<Change> - the changes after that one, in order (at most a
+   *         batch of them, and none if the wait timed out), or null if some
+   *         of them are no longer retained
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting
+   */
+  public List<Change> changesAfter(long after, long timeoutMillis) throws InterruptedException {
+    List<Change> ret = null;
+    if (after >= 0 && after <= lastSequence && lastSequence - after <= ring.length) {
+      if (after == lastSequence && timeoutMillis > 0) {
+        awaitChange(after, timeoutMillis);
+      }
+      ringLock.readLock().lock();
+      try {
+        // More may have been published while we waited, and pushed ours out
+        long last = lastSequence;
+        if (last - after <= ring.length) {
+          long end = Math.min(last, after + MAX_BATCH);
+          ret = new ArrayList<>((int) (end - after));
+          for (long sequence = after + 1; sequence <= end; sequence++) {
+            ret.add(ring[(int) (sequence % ring.length)]);
+          }
+        }
+      } finally {
+        ringLock.readLock().unlock();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Waits until there is a change after the specified one, or the time is up.
+   */
+  private void awaitChange(long after, long timeoutMillis) throws InterruptedException {
+    Thread thread = Thread.currentThread();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    waiting.add(thread);
+    try {
+      //
+      // Looking only once we're on the waiting list means a publisher
+      /// can't get in between unseen
+      long remaining = deadline - System.nanoTime();
+      while (lastSequence == after && remaining > 0) {
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        remaining = deadline - System.nanoTime();
+      }
+    } finally {
+      waiting.remove(thread);
+    }
+  }
+
+  /**
+   * The ID of the event for the change with the specified sequence number.
+   */
+  public String eventId(long sequence) {
+    return run + "-" + sequence;
+  }
+
+  /**
+   * Works out where a reconnecting client got to.
+   *
+   * @param lastEventId
+   *          The ID of the last event the client saw, or null if it's a new
+   *          client
+   *
+   * @return long - the sequence number of the last change the client saw:
+   *         the newest change for a new client, or -1 if the ID isn't one of
+   *         this run's
+   */
+  public long sequenceOf(String lastEventId) {
+    long ret;
+    if (lastEventId == null || lastEventId.isEmpty()) {
+      ret = getLastSequence();
+    } else {
+      ret = -1;
+      String prefix = run + "-";
+      if (lastEventId.startsWith(prefix)) {
+        try {
+          ret = Long.parseLong(lastEventId.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+          log.warn("Invalid Last-Event-ID: " + lastEventId);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Starts sending changes to a new subscriber, on a thread of its own,
+   * until it goes away (or the feed is shut down).
+   *
+   * @param output
+   *          Where to send the events
+   * @param after
+   *          The sequence number of the last change the subscriber has seen
+   *          (see {@link #sequenceOf(String)})
+   *
+   * @return boolean - true if subscribed, false if there are already as many
+   *         subscribers as there may be, or the feed has been shut down
+   */
+  public boolean subscribe(EventOutput output, long after) {
+    boolean ret = false;
+    if (subscribers.incrementAndGet() > maxSubscribers) {
+      subscribers.decrementAndGet();
+    } else {
+      try {
+        senders.execute(() -> send(output, after));
+        ret = true;
+      } catch (RejectedExecutionException e) {
+        subscribers.decrementAndGet();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Disconnects every subscriber and stops their threads, for when the
+   * application is shutting down. Nobody can subscribe after.
+   */
+  public void shutdown() {
+    senders.shutdownNow();
+    for (EventOutput output : outputs) {
+      close(output);
+    }
+  }
+
+  /**
+   * Waits for the subscribers' threads to finish after shutdown().
+   *
+   * @return boolean - true if they finished in time
+   */
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return senders.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * The loop a subscriber's thread runs.
+   */
+  private void send(EventOutput output, long after) {
+    long cursor = after;
+    outputs.add(output);
+    try {
+      while (!output.isClosed()) {
+        List<Change> changes = changesAfter(cursor, HEARTBEAT_MILLIS);
+        if (changes == null) {
+          //
+          // Missed some: tell the client to start over, from now on
+          resets.increment();
+          cursor = getLastSequence();
+          // (EventSource ignores events with no data)
+          output.write(new OutboundEvent.Builder().name(EVENT_RESET).id(eventId(cursor))
+              .data(String.class, RESET_MESSAGE).build());
+        } else if (changes.isEmpty()) {
+          output.write(new OutboundEvent.Builder().comment("").build());
+        } else {
+          for (Change change : changes) {
+            output.write(new OutboundEvent.Builder().name(change.getType().eventName())
+                .id(eventId(change.getSequence())).mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, change.getJson()).build());
+            cursor = change.getSequence();
+          }
+        }
+      }
+    } catch (IOException e) {
+      // The client went away
+      log.debug("Change feed subscriber went away: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      outputs.remove(output);
+      subscribers.decrementAndGet();
+      close(output);
+    }
+  }
+
+  private static void close(EventOutput output) {
+    try {
+      output.close();
+    } catch (IOException e) {
+      log.debug("Could not close change feed output: " + e);
+    }
+  }
+
+  private static String toJson(Person person) {
+    return new String(PersonJsonFormat.toBytes(person), StandardCharsets.UTF_8);
+  }
+
+}
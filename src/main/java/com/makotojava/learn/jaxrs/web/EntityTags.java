@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Makes the strong entity tags the service sends with Person objects and
+ * collections of them.
+ *
+ * A Person's tag is made of their ID, creation time and version, all of
+ * which the data store keeps with them, so it stays good across restarts
+ * of a store that is kept on disk (and changes if the store is generated
+ * afresh).
+ *
+ * A collection's tag is made of the version of the whole data store, which
+ * starts over every time the store is opened, so it also has this run of
+ * the service in it. A client just re-downloads collections once after a
+ * restart.
+ *
+ * The tag of the {@link PersonBinaryFormat binary} representation of the
+ * same thing is the JSON one with {@value #BINARY_SUFFIX} on the end. The
+ * two are different bytes, so they can't share a strong tag, or a cache
+ * (or a client's If-None-Match) could take one for the other.
+ *
+ * @author sperry
+ *
+ */
+final class EntityTags {
+
+  /**
+   * Tells this run of the service apart from earlier ones.
+   */
+  private static final String RUN = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  static final String BINARY_SUFFIX = "-b";
+
+  private EntityTags() {
+  }
+
+  /**
+   * @return EntityTag - the tag of the specified Person as stored
+   */
+  static EntityTag of(Person person) {
+    Date whenCreated = person.getWhenCreated();
+    return new EntityTag(person.getId() + "-" + Long.toString((whenCreated == null) ? 0 : whenCreated.getTime(),
+        Character.MAX_RADIX) + "-" + person.getVersion());
+  }
+
+  /**
+   * @return EntityTag - the tag of a collection read when the data store
+   *         was at the specified version
+   */
+  static EntityTag ofStore(long version) {
+    return new EntityTag(RUN + "-" + version);
+  }
+
+  /**
+   * @return EntityTag - the tag of the binary representation of what the
+   *         specified tag (of the JSON) is the tag of
+   */
+  static EntityTag binary(EntityTag tag) {
+    return new EntityTag(tag.getValue() + BINARY_SUFFIX, tag.isWeak());
+  }
+
+  /**
+   * @return boolean - true if the specified tag is of a binary representation
+   */
+  static boolean isBinary(EntityTag tag) {
+    return tag.getValue().endsWith(BINARY_SUFFIX);
+  }
+
+}
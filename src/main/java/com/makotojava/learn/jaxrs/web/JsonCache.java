@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * A bounded cache of serialized JSON responses ({@link CachedJson}), keyed
+ * by String. The bound
+ * is on bytes, not entries: each entry is charged the length of its JSON,
+ * its key and a fixed overhead, so a few big last name lists can't crowd
+ * out the heap any more than a lot of small Person objects can.
+ *
+ * The cache is split into segments by key hash, each an LRU map with its
+ * own lock and an equal share of the bytes, so concurrent readers of
+ * different keys rarely contend.
+ *
+ * Filling the cache is race-free against invalidation: take a
+ * {@link #stamp(String)} before reading the data store, and
+ * {@link #put(String, byte[], long)} only stores the JSON if nothing in
+ * the key's segment has been invalidated since. So a reader can never put
+ * back a value a writer has just invalidated.
+ *
+ * Hits, misses and evictions are counted in the {@link MetricsRegistry}.
+ *
+ * @author sperry
+ *
+ */
+public class JsonCache {
+
+  /**
+   * What an entry costs over and above its key and JSON: the map entry,
+   * the CachedJson and its validators, the array header and the String
+   * header.
+   */
+  private static final int ENTRY_OVERHEAD = 224;
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+
+  /**
+   * Creates a JsonCache.
+   *
+   * @param maxBytes
+   *          The most bytes the cache may hold. 0 means cache nothing.
+   * @param name
+   *          The cache's name, for the "cache" label of its metrics
+   */
+  public JsonCache(long maxBytes, String name) {
+    for (int aa = 0; aa < SEGMENTS; aa++) {
+      segments[aa] = new Segment(maxBytes / SEGMENTS);
+    }
+    MetricsRegistry metrics = MetricsRegistry.instance();
+    hits = metrics.counter("person_cache_requests_total", "Cache lookups, by result.", "cache", name, "result",
+        "hit");
+    misses = metrics.counter("person_cache_requests_total", "Cache lookups, by result.", "cache", name, "result",
+        "miss");
+    evictions = metrics.counter("person_cache_evictions_total", "Entries evicted to make room.", "cache", name);
+    metrics.gauge("person_cache_bytes", "Bytes held by the cache.", this::getBytes, "cache", name);
+    metrics.gauge("person_cache_entries", "Entries held by the cache.", this::getEntries, "cache", name);
+    metrics.gauge("person_cache_max_bytes", "The most bytes the cache may hold.", () -> maxBytes, "cache", name);
+  }
+
+  /**
+   * Returns the cached JSON for the specified key, and counts a hit or a miss.
+   *
+   * @return CachedJson - the JSON, or null if it isn't cached
+   */
+  public CachedJson get(String key) {
+    Segment segment = segmentFor(key);
+    CachedJson ret;
+    synchronized (segment) {
+      ret = segment.entries.get(key);
+    }
+    if (ret != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return ret;
+  }
+
+  /**
+   * Takes the stamp to pass to put() for the specified key. Take it before
+   * reading the data the JSON will be made from.
+   */
+  public long stamp(String key) {
+    Segment segment = segmentFor(key);
+    long ret;
+    synchronized (segment) {
+      ret = segment.invalidations;
+    }
+    return ret;
+  }
+
+  /**
+   * Caches the JSON for the specified key, evicting the least recently
+   * used entries of its segment to make room. Nothing is cached if an entry
+   * in the segment has been invalidated since the stamp was taken, or the
+   * JSON is too big for the segment.
+   *
+   * @param key
+   *          The key
+   * @param json
+   *          The JSON
+   * @param stamp
+   *          What stamp() returned before the data was read
+   */
+  public void put(String key, CachedJson json, long stamp) {
+    Segment segment = segmentFor(key);
+    long cost = costOf(key, json);
+    synchronized (segment) {
+      if (segment.invalidations == stamp && cost <= segment.maxBytes) {
+        CachedJson previous = segment.entries.put(key, json);
+        if (previous != null) {
+          segment.bytes -= costOf(key, previous);
+        }
+        segment.bytes += cost;
+        for (Iterator<Map.Entry<String, CachedJson>> iterator = segment.entries.entrySet().iterator(); segment.bytes
+            > segment.maxBytes;) {
+          Map.Entry<String, CachedJson> eldest = iterator.next();
+          segment.bytes -= costOf(eldest.getKey(), eldest.getValue());
+          iterator.remove();
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the entry for the specified key (if there is one), and makes
+   * any put() to the key's segment with an earlier stamp a no-op.
+   */
+  public void invalidate(String key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.invalidations++;
+      CachedJson json = segment.entries.remove(key);
+      if (json != null) {
+        segment.bytes -= costOf(key, json);
+      }
+    }
+  }
+
+  /**
+   * @return long - how many bytes the entries are charged, all told
+   */
+  public long getBytes() {
+    long ret = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        ret += segment.bytes;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return int - how many entries there are
+   */
+  public int getEntries() {
+    int ret = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        ret += segment.entries.size();
+      }
+    }
+    return ret;
+  }
+
+  private Segment segmentFor(String key) {
+    int hash = key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  private static long costOf(String key, CachedJson json) {
+    return ENTRY_OVERHEAD + 2L * key.length() + json.getJson().length;
+  }
+
+  /**
+   * One segment: an LRU map and its byte count, guarded by the segment's
+   * monitor.
+   */
+  private static final class Segment {
+    private final long maxBytes;
+    /**
+     * In access order, so the eldest entry is the least recently used.
+     */
+    private final LinkedHashMap<String, CachedJson> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long invalidations;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.makotojava.learn.jaxrs.metrics.LatencyHistogram;
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * Records a request count, an error count (any status of 400 or more)
+ * and a latency histogram for every resource method, labeled with the
+ * endpoint name (the first segment of the method's path, e.g., FindById).
+ *
+ * Latency runs from when the request is matched to a resource method to
+ * when the response entity has been written, so streamed responses are
+ * measured in full.
+ *
+ * @author sperry
+ *
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+  private static final String PROPERTY_START_NANOS = MetricsFilter.class.getName() + ".startNanos";
+  private static final String PROPERTY_ENDPOINT_METRICS = MetricsFilter.class.getName() + ".endpointMetrics";
+
+  /**
+   * The metrics for one endpoint.
+   */
+  private static class EndpointMetrics {
+    private final LongAdder requests;
+    private final LongAdder errors;
+    private final LatencyHistogram latency;
+
+    EndpointMetrics(String endpoint) {
+      MetricsRegistry registry = MetricsRegistry.instance();
+      requests = registry.counter("person_service_requests_total", "Requests handled, by endpoint.",
+          "endpoint", endpoint);
+      errors = registry.counter("person_service_errors_total",
+          "Requests answered with a 4xx or 5xx status, by endpoint.", "endpoint", endpoint);
+      latency = registry.histogram("person_service_request_latency_seconds", "Request latency, by endpoint.",
+          "endpoint", endpoint);
+    }
+  }
+
+  /**
+   * Metrics by resource method, so the registry lookup happens only
+   * once per method.
+   */
+  private static final ConcurrentMap<Method, EndpointMetrics> METRICS = new ConcurrentHashMap<>();
+
+  @Context
+  private ResourceInfo resourceInfo;
+
+  @Override
+  public void filter(ContainerRequestContext requestContext) throws IOException {
+    Method method = resourceInfo.getResourceMethod();
+    if (method != null) {
+      requestContext.setProperty(PROPERTY_ENDPOINT_METRICS,
+          METRICS.computeIfAbsent(method, key -> new EndpointMetrics(endpointOf(key))));
+      requestContext.setProperty(PROPERTY_START_NANOS, System.nanoTime());
+    }
+  }
+
+  @Override
+  public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+      throws IOException {
+    EndpointMetrics metrics = (EndpointMetrics) requestContext.getProperty(PROPERTY_ENDPOINT_METRICS);
+    if (metrics != null) {
+      metrics.requests.increment();
+      if (responseContext.getStatus() >= 400) {
+        metrics.errors.increment();
+      }
+      if (!responseContext.hasEntity()) {
+        record(metrics, (Long) requestContext.getProperty(PROPERTY_START_NANOS));
+        requestContext.removeProperty(PROPERTY_ENDPOINT_METRICS);
+      }
+    }
+  }
+
+  @Override
+  public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+    try {
+      context.proceed();
+    } finally {
+      EndpointMetrics metrics = (EndpointMetrics) context.getProperty(PROPERTY_ENDPOINT_METRICS);
+      if (metrics != null) {
+        record(metrics, (Long) context.getProperty(PROPERTY_START_NANOS));
+      }
+    }
+  }
+
+  private static void record(EndpointMetrics metrics, Long startNanos) {
+    if (startNanos != null) {
+      metrics.latency.record(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * The endpoint name of a resource method: the first segment of its
+   * path, or the name of its resource class's path if it has none.
+   */
+  private static String endpointOf(Method method) {
+    Path path = method.getAnnotation(Path.class);
+    if (path == null) {
+      path = method.getDeclaringClass().getAnnotation(Path.class);
+    }
+    String ret = (path == null) ? method.getName() : path.value();
+    while (ret.startsWith("/")) {
+      ret = ret.substring(1);
+    }
+    int slash = ret.indexOf('/');
+    return (slash < 0) ? ret : ret.substring(0, slash);
+  }
+
+}
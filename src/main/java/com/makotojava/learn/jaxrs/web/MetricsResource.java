@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+import com.makotojava.learn.jaxrs.util.PersonDaoFactory;
+
+/**
+ * Exposes the MetricsRegistry in the Prometheus text exposition format.
+ *
+ * @author sperry
+ *
+ */
+@Path(MetricsResource.PATH_METRICS)
+public class MetricsResource {
+
+  public static final String PATH_METRICS = "/metrics";
+
+  public static final String TEXT_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+  @GET
+  @Produces(TEXT_PROMETHEUS)
+  public Response metrics() {
+    // Make sure the data store (and so its gauges) exists
+    PersonDaoFactory.getPersonDao();
+    StreamingOutput output = outputStream -> {
+      Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+      MetricsRegistry.instance().writePrometheus(writer);
+    };
+    return Response.ok(output).build();
+  }
+
+}
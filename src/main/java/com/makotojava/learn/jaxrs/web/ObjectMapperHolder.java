@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Holds the one ObjectMapper (and pretty printing ObjectWriter) the web
+ * tier uses outside of Jersey's own JSON provider. An ObjectMapper is
+ * expensive to create and thread-safe once configured, so nobody should
+ * be creating one per request.
+ *
+ * @author sperry
+ *
+ */
+public final class ObjectMapperHolder {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final ObjectWriter PRETTY_WRITER = OBJECT_MAPPER.writerWithDefaultPrettyPrinter();
+
+  private ObjectMapperHolder() {
+  }
+
+  public static ObjectMapper getObjectMapper() {
+    return OBJECT_MAPPER;
+  }
+
+  public static ObjectWriter getPrettyWriter() {
+    return PRETTY_WRITER;
+  }
+
+}
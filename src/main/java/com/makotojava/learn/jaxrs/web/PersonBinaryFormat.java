@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * The compact binary wire format of Person objects, for services that
+ * would rather not spend the CPU (or the bytes) on JSON. It carries
+ * exactly what the JSON does, but:
+ * <ul>
+ * <li>numbers (the ID, version and age) are unsigned LEB128 varints, so
+ * small ones take a byte or two</li>
+ * <li>dates are epoch milliseconds, also as varints</li>
+ * <li>names are UTF-8, prefixed with their length in bytes</li>
+ * <li>eye color and gender are their ordinals (plus one, zero for null),
+ * so both ends must have the same enums: the format version goes up if
+ * they change</li>
+ * <li>there are no field names: a flags byte says which of the nullable
+ * fields are present</li>
+ * </ul>
+ *
+ * A message is the format version byte ({@value #FORMAT_VERSION}) and then
+ * either one Person record, or a list: the number of records as a varint,
+ * and the records. A null Person (a batch write that failed for that one)
+ * is just the {@link #NULL_PERSON} flags byte.
+ *
+ * Reading throws EOFException if the message stops short, and
+ * IllegalArgumentException if it isn't in this format.
+ *
+ * @author sperry
+ *
+ */
+public final class PersonBinaryFormat {
+
+  public static final byte FORMAT_VERSION = 1;
+
+  //
+  // The flags byte, one bit per nullable field that is present
+  private static final int HAS_ID = 0x01;
+  private static final int HAS_WHEN_CREATED = 0x02;
+  private static final int HAS_VERSION = 0x04;
+  private static final int HAS_WHEN_MODIFIED = 0x08;
+  private static final int HAS_LAST_NAME = 0x10;
+  private static final int HAS_FIRST_NAME = 0x20;
+  private static final int ALL_FIELDS = 0x3f;
+
+  /**
+   * The flags byte of a null Person.
+   */
+  static final int NULL_PERSON = 0x80;
+
+  /**
+   * The longest name read, in bytes, so a bad length can't run the server
+   * out of memory.
+   */
+  private static final int MAX_STRING_BYTES = 1 << 16;
+
+  /**
+   * The most records a list is sized for before they are read, for the
+   * same reason.
+   */
+  private static final int MAX_INITIAL_CAPACITY = 1024;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The buffer size for one Person, which is almost always enough.
+   */
+  private static final int SMALL_BUFFER_SIZE = 128;
+
+  private static final Person.EyeColor[] EYE_COLORS = Person.EyeColor.values();
+  private static final Person.Gender[] GENDERS = Person.Gender.values();
+
+  private PersonBinaryFormat() {
+  }
+
+  /**
+   * Writes a message of one Person.
+   *
+   * @param out
+   *          Where to write it
+   * @param person
+   *          The Person, or null
+   */
+  public static void write(OutputStream out, Person person) throws IOException {
+    Encoder encoder = new Encoder(out, SMALL_BUFFER_SIZE);
+    encoder.writeByte(FORMAT_VERSION);
+    encoder.writeRecord(person);
+    encoder.flush();
+  }
+
+  /**
+   * Writes a message of a list of Person objects.
+   *
+   * @param out
+   *          Where to write it
+   * @param persons
+   *          The Person objects (any of which may be null)
+   *
+   * @throws IllegalArgumentException
+   *           If there is something other than a Person in the list
+   */
+  public static void writeAll(OutputStream out, Collection<?> persons) throws IOException {
+    Encoder encoder = new Encoder(out, BUFFER_SIZE);
+    encoder.writeByte(FORMAT_VERSION);
+    encoder.writeVarLong(persons.size());
+    for (Object person : persons) {
+      if (person != null && !(person instanceof Person)) {
+        throw new IllegalArgumentException("Only Person objects can be written, not " + person.getClass().getName());
+      }
+      encoder.writeRecord((Person) person);
+    }
+    encoder.flush();
+  }
+
+  /**
+   * Reads a message written by write(). It may read past the end of the
+   * message.
+   *
+   * @param in
+   *          Where to read it from
+   *
+   * @return Person - the Person, or null if a null Person was written
+   */
+  public static Person read(InputStream in) throws IOException {
+    Decoder decoder = new Decoder(in, SMALL_BUFFER_SIZE);
+    decoder.readFormatVersion();
+    return decoder.readRecord();
+  }
+
+  /**
+   * Reads a message written by writeAll(). It may read past the end of the
+   * message.
+   *
+   * @param in
+   *          Where to read it from
+   *
+   * @return List<Person> - the Person objects, in the order written
+   */
+  public static List<Person> readAll(InputStream in) throws IOException {
+    Decoder decoder = new Decoder(in, BUFFER_SIZE);
+    decoder.readFormatVersion();
+    long count = decoder.readVarLong();
+    if (count < 0 || count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid number of Person records: " + count);
+    }
+    List<Person> ret = new ArrayList<>((int) Math.min(count, MAX_INITIAL_CAPACITY));
+    for (long aa = 0; aa < count; aa++) {
+      ret.add(decoder.readRecord());
+    }
+    return ret;
+  }
+
+  /**
+   * Writes a message a byte at a time into a buffer of its own, which (unlike
+   * a BufferedOutputStream) has no lock to take for every byte.
+   */
+  private static final class Encoder {
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+
+    Encoder(OutputStream out, int bufferSize) {
+      this.out = out;
+      this.buffer = new byte[bufferSize];
+    }
+
+    void writeRecord(Person person) throws IOException {
+      if (person == null) {
+        writeByte(NULL_PERSON);
+      } else {
+        Long id = person.getId();
+        Date whenCreated = person.getWhenCreated();
+        Long version = person.getVersion();
+        Date whenModified = person.getWhenModified();
+        String lastName = person.getLastName();
+        String firstName = person.getFirstName();
+        int flags = 0;
+        flags |= (id == null) ? 0 : HAS_ID;
+        flags |= (whenCreated == null) ? 0 : HAS_WHEN_CREATED;
+        flags |= (version == null) ? 0 : HAS_VERSION;
+        flags |= (whenModified == null) ? 0 : HAS_WHEN_MODIFIED;
+        flags |= (lastName == null) ? 0 : HAS_LAST_NAME;
+        flags |= (firstName == null) ? 0 : HAS_FIRST_NAME;
+        writeByte(flags);
+        if (id != null) {
+          writeVarLong(id);
+        }
+        if (whenCreated != null) {
+          writeVarLong(whenCreated.getTime());
+        }
+        if (version != null) {
+          writeVarLong(version);
+        }
+        if (whenModified != null) {
+          writeVarLong(whenModified.getTime());
+        }
+        if (lastName != null) {
+          writeString(lastName);
+        }
+        if (firstName != null) {
+          writeString(firstName);
+        }
+        writeVarLong(person.getAge());
+        writeByte((person.getEyeColor() == null) ? 0 : person.getEyeColor().ordinal() + 1);
+        writeByte((person.getGender() == null) ? 0 : person.getGender().ordinal() + 1);
+      }
+    }
+
+    void writeByte(int b) throws IOException {
+      if (position == buffer.length) {
+        flush();
+      }
+      buffer[position++] = (byte) b;
+    }
+
+    /**
+     * Writes seven bits at a time, least significant first, with the high
+     * bit set on every byte but the last. (Negative values take ten bytes.)
+     */
+    void writeVarLong(long value) throws IOException {
+      long remaining = value;
+      while ((remaining & ~0x7fL) != 0) {
+        writeByte((int) ((remaining & 0x7f) | 0x80));
+        remaining >>>= 7;
+      }
+      writeByte((int) remaining);
+    }
+
+    void writeString(String string) throws IOException {
+      int length = string.length();
+      boolean ascii = true;
+      for (int aa = 0; aa < length && ascii; aa++) {
+        ascii = string.charAt(aa) < 0x80;
+      }
+      if (ascii) {
+        //
+        // Names nearly always are, and then the UTF-8 is just the chars
+        writeVarLong(length);
+        for (int aa = 0; aa < length; aa++) {
+          writeByte(string.charAt(aa));
+        }
+      } else {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        for (byte b : bytes) {
+          writeByte(b);
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+  /**
+   * Reads a message a byte at a time out of a buffer of its own (see
+   * Encoder).
+   */
+  private static final class Decoder {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    Decoder(InputStream in, int bufferSize) {
+      this.in = in;
+      this.buffer = new byte[bufferSize];
+    }
+
+    void readFormatVersion() throws IOException {
+      int formatVersion = readByte();
+      if (formatVersion != FORMAT_VERSION) {
+        throw new IllegalArgumentException("Unsupported format version " + formatVersion + ", expected "
+            + FORMAT_VERSION);
+      }
+    }
+
+    Person readRecord() throws IOException {
+      Person ret = null;
+      int flags = readByte();
+      if (flags != NULL_PERSON) {
+        if ((flags & ~ALL_FIELDS) != 0) {
+          throw new IllegalArgumentException("Invalid Person record flags: " + Integer.toHexString(flags));
+        }
+        Long id = ((flags & HAS_ID) == 0) ? null : readVarLong();
+        Date whenCreated = ((flags & HAS_WHEN_CREATED) == 0) ? null : new Date(readVarLong());
+        Long version = ((flags & HAS_VERSION) == 0) ? null : readVarLong();
+        Date whenModified = ((flags & HAS_WHEN_MODIFIED) == 0) ? null : new Date(readVarLong());
+        String lastName = ((flags & HAS_LAST_NAME) == 0) ? null : readString();
+        String firstName = ((flags & HAS_FIRST_NAME) == 0) ? null : readString();
+        int age = (int) readVarLong();
+        ret = new Person(lastName, firstName, age, readOrdinal(EYE_COLORS), readOrdinal(GENDERS));
+        ret.setId(id);
+        ret.setWhenCreated(whenCreated);
+        ret.setVersion(version);
+        ret.setWhenModified(whenModified);
+      }
+      return ret;
+    }
+
+    <E extends Enum<E>> E readOrdinal(E[] values) throws IOException {
+      E ret = null;
+      int ordinal = readByte();
+      if (ordinal > values.length) {
+        throw new IllegalArgumentException("Invalid " + values[0].getDeclaringClass().getSimpleName()
+            + " ordinal: " + (ordinal - 1));
+      } else if (ordinal > 0) {
+        ret = values[ordinal - 1];
+      }
+      return ret;
+    }
+
+    String readString() throws IOException {
+      long length = readVarLong();
+      if (length < 0 || length > MAX_STRING_BYTES) {
+        throw new IllegalArgumentException("Invalid name length: " + length);
+      }
+      String ret;
+      if (length <= limit - position) {
+        ret = new String(buffer, position, (int) length, StandardCharsets.UTF_8);
+        position += (int) length;
+      } else {
+        byte[] bytes = new byte[(int) length];
+        for (int aa = 0; aa < bytes.length; aa++) {
+          bytes[aa] = (byte) readByte();
+        }
+        ret = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return ret;
+    }
+
+    long readVarLong() throws IOException {
+      long ret = 0;
+      int shift = 0;
+      int b;
+      do {
+        if (shift > 63) {
+          throw new IllegalArgumentException("Invalid varint, too long");
+        }
+        b = readByte();
+        ret |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return ret;
+    }
+
+    int readByte() throws IOException {
+      if (position == limit) {
+        position = 0;
+        limit = Math.max(in.read(buffer), 0);
+        if (limit == 0) {
+          throw new EOFException("Person message ends too soon");
+        }
+      }
+      return buffer[position++] & 0xff;
+    }
+  }
+
+}
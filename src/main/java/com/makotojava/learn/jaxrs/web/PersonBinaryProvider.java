@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Reads and writes Person objects, and lists of them, in the
+ * {@link PersonBinaryFormat}, as {@value #APPLICATION_PERSON_BINARY}.
+ * Jersey picks it over JSON when that's the request's Content-Type, or
+ * what the client asks for in its Accept header.
+ *
+ * A body that isn't in the format is a 400 Bad Request, just like JSON
+ * that doesn't parse.
+ *
+ * @author sperry
+ *
+ */
+@Provider
+@Consumes(PersonBinaryProvider.APPLICATION_PERSON_BINARY)
+@Produces(PersonBinaryProvider.APPLICATION_PERSON_BINARY)
+public class PersonBinaryProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+  public static final String APPLICATION_PERSON_BINARY = "application/x-person-binary";
+
+  public static final MediaType APPLICATION_PERSON_BINARY_TYPE = MediaType.valueOf(APPLICATION_PERSON_BINARY);
+
+  /**
+   * A Person, or a List (or Collection) of them.
+   */
+  @Override
+  public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+    return type == Person.class
+        || (type.isAssignableFrom(ArrayList.class) && PersonJsonProvider.elementType(genericType) == Person.class);
+  }
+
+  @Override
+  public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+      MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException,
+      WebApplicationException {
+    Object ret = null;
+    try {
+      ret = Person.class.equals(type) ? PersonBinaryFormat.read(entityStream)
+          : PersonBinaryFormat.readAll(entityStream);
+    } catch (EOFException | IllegalArgumentException e) {
+      throw new BadRequestException(Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+          .entity("Invalid " + APPLICATION_PERSON_BINARY + " body: " + e.getMessage()).build(), e);
+    }
+    return ret;
+  }
+
+  /**
+   * A Person, or a Collection of them (see
+   * {@link PersonJsonProvider#isPersonEntity(Class, Type)}).
+   */
+  @Override
+  public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+    return PersonJsonProvider.isPersonEntity(type, genericType);
+  }
+
+  @Override
+  public long getSize(Object entity, Class<?> type, Type genericType, Annotation[] annotations,
+      MediaType mediaType) {
+    // Deprecated in JAX-RS 2.0, and the size isn't known until it's written
+    return -1;
+  }
+
+  @Override
+  public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+      MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException,
+      WebApplicationException {
+    // The format does its own buffering
+    if (entity instanceof Collection) {
+      PersonBinaryFormat.writeAll(entityStream, (Collection<?>) entity);
+    } else {
+      PersonBinaryFormat.write(entityStream, (Person) entity);
+    }
+  }
+
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Writes Person objects as JSON by hand, byte for byte the same as
+ * Jackson writes them (the same fields, in the same order, with the same
+ * escaping), but without reflection and without allocating: the field
+ * names and enum names are UTF-8 bytes made once, numbers and dates
+ * (epoch milliseconds) go straight into the buffer as digits, and the
+ * buffer belongs to the thread, and is used again and again.
+ *
+ * If Person gets a new field, it has to be added here too;
+ * PersonJsonFormatTest compares the two.
+ *
+ * Reading JSON is left to Jackson.
+ *
+ * @author sperry
+ *
+ */
+public final class PersonJsonFormat {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The biggest buffer a thread keeps, once toBytes() has grown it for a
+   * big list. Bigger ones are dropped, and the thread starts over.
+   */
+  private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The most bytes one char can take: a six-char escape (backslash, u, and
+   * four hex digits).
+   */
+  private static final int MAX_CHAR_BYTES = 6;
+
+  /**
+   * The most bytes a long can take.
+   */
+  private static final int MAX_LONG_BYTES = 20;
+
+  //
+  // Each field's name, with what comes before it
+  private static final byte[] LAST_NAME = ascii("{\"lastName\":");
+  private static final byte[] FIRST_NAME = ascii(",\"firstName\":");
+  private static final byte[] AGE = ascii(",\"age\":");
+  private static final byte[] EYE_COLOR = ascii(",\"eyeColor\":");
+  private static final byte[] GENDER = ascii(",\"gender\":");
+  private static final byte[] WHEN_CREATED = ascii(",\"whenCreated\":");
+  private static final byte[] WHEN_MODIFIED = ascii(",\"whenModified\":");
+  private static final byte[] VERSION = ascii(",\"version\":");
+  private static final byte[] ID = ascii(",\"id\":");
+
+  private static final byte[] NULL = ascii("null");
+
+  private static final byte[] LONG_MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+
+  /**
+   * The quoted name of each EyeColor, by ordinal.
+   */
+  private static final byte[][] EYE_COLOR_NAMES = quotedNames(Person.EyeColor.values());
+
+  /**
+   * The quoted name of each Gender, by ordinal.
+   */
+  private static final byte[][] GENDER_NAMES = quotedNames(Person.Gender.values());
+
+  /**
+   * How Jackson escapes each ASCII char: 0 for not at all, 'u' for a
+   * backslash, u and four hex digits, and otherwise the char that goes
+   * after the backslash.
+   */
+  private static final byte[] ESCAPES = new byte[128];
+
+  static {
+    for (int aa = 0; aa < 0x20; aa++) {
+      ESCAPES[aa] = 'u';
+    }
+    ESCAPES['\b'] = 'b';
+    ESCAPES['\t'] = 't';
+    ESCAPES['\n'] = 'n';
+    ESCAPES['\f'] = 'f';
+    ESCAPES['\r'] = 'r';
+    ESCAPES['"'] = '"';
+    ESCAPES['\\'] = '\\';
+  }
+
+  private static final byte[] HEX_DIGITS = ascii("0123456789ABCDEF");
+
+  private static final ThreadLocal<JsonBuffer> BUFFERS = ThreadLocal.withInitial(JsonBuffer::new);
+
+  private PersonJsonFormat() {
+  }
+
+  /**
+   * Writes one Person.
+   *
+   * @param out
+   *          Where to write it
+   * @param person
+   *          The Person, or null
+   */
+  public static void write(OutputStream out, Person person) throws IOException {
+    JsonBuffer buffer = acquire(out);
+    try {
+      buffer.writePerson(person);
+      buffer.flush();
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Writes a JSON array of Person objects.
+   *
+   * @param out
+   *          Where to write them
+   * @param persons
+   *          The Person objects (any of which may be null)
+   *
+   * @throws IllegalArgumentException
+   *           If there is something other than a Person in the collection
+   *           (see {@link #isPersons(Collection)})
+   */
+  public static void writeAll(OutputStream out, Collection<?> persons) throws IOException {
+    JsonBuffer buffer = acquire(out);
+    try {
+      buffer.writePersons(persons);
+      buffer.flush();
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Writes Person objects as they come off an Iterator, as a JSON array or
+   * as newline-delimited JSON (one Person object per line). The stream is
+   * flushed after the first Person, so the client gets it right away, and
+   * then every flushInterval Person objects.
+   *
+   * @param out
+   *          Where to write them
+   * @param persons
+   *          The Person objects (any of which may be null)
+   * @param newlineDelimited
+   *          true for newline-delimited JSON, false for a JSON array
+   * @param flushInterval
+   *          How many Person objects to write between flushes
+   */
+  public static void writeAll(OutputStream out, Iterator<Person> persons, boolean newlineDelimited,
+      int flushInterval) throws IOException {
+    JsonBuffer buffer = acquire(out);
+    try {
+      if (!newlineDelimited) {
+        buffer.writeByte('[');
+      }
+      long count = 0;
+      while (persons.hasNext()) {
+        if (count > 0 && !newlineDelimited) {
+          buffer.writeByte(',');
+        }
+        buffer.writePerson(persons.next());
+        if (newlineDelimited) {
+          buffer.writeByte('\n');
+        }
+        if (++count % flushInterval == 1) {
+          buffer.flush();
+          out.flush();
+        }
+      }
+      if (!newlineDelimited) {
+        buffer.writeByte(']');
+      }
+      buffer.flush();
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * @return byte[] - the JSON of one Person
+   */
+  public static byte[] toBytes(Person person) {
+    byte[] ret;
+    JsonBuffer buffer = acquire(null);
+    try {
+      buffer.writePerson(person);
+      ret = buffer.toBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not serialize " + person, e);
+    } finally {
+      buffer.release();
+    }
+    return ret;
+  }
+
+  /**
+   * @return byte[] - the JSON array of the Person objects
+   */
+  public static byte[] toBytes(Collection<?> persons) {
+    byte[] ret;
+    JsonBuffer buffer = acquire(null);
+    try {
+      buffer.writePersons(persons);
+      ret = buffer.toBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not serialize " + persons.size() + " Person objects", e);
+    } finally {
+      buffer.release();
+    }
+    return ret;
+  }
+
+  /**
+   * @return boolean - true if everything in the collection is a Person (or
+   *         null), so it can be written by this class
+   */
+  public static boolean isPersons(Collection<?> collection) {
+    boolean ret = true;
+    for (Object element : collection) {
+      if (element != null && !(element instanceof Person)) {
+        ret = false;
+        break;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the thread's buffer ready to write to the specified stream (or to
+   * grow, if it is null). In the unlikely event the thread is already using
+   * it, a new one will do.
+   */
+  private static JsonBuffer acquire(OutputStream out) {
+    JsonBuffer ret = BUFFERS.get();
+    if (ret.inUse) {
+      ret = new JsonBuffer();
+    }
+    ret.inUse = true;
+    ret.out = out;
+    return ret;
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[][] quotedNames(Enum<?>[] values) {
+    byte[][] ret = new byte[values.length][];
+    for (Enum<?> value : values) {
+      ret[value.ordinal()] = ascii("\"" + value.name() + "\"");
+    }
+    return ret;
+  }
+
+  /**
+   * The bytes written so far, and where they go when it fills up: to the
+   * OutputStream or, if there isn't one, into a bigger array.
+   */
+  private static final class JsonBuffer {
+    private byte[] bytes = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream out;
+    private boolean inUse;
+
+    void writePersons(Collection<?> persons) throws IOException {
+      writeByte('[');
+      boolean first = true;
+      for (Object person : persons) {
+        if (person != null && !(person instanceof Person)) {
+          throw new IllegalArgumentException("Only Person objects can be written, not "
+              + person.getClass().getName());
+        }
+        if (!first) {
+          writeByte(',');
+        }
+        writePerson((Person) person);
+        first = false;
+      }
+      writeByte(']');
+    }
+
+    void writePerson(Person person) throws IOException {
+      if (person == null) {
+        writeRaw(NULL);
+      } else {
+        writeRaw(LAST_NAME);
+        writeString(person.getLastName());
+        writeRaw(FIRST_NAME);
+        writeString(person.getFirstName());
+        writeRaw(AGE);
+        writeLong(person.getAge());
+        writeRaw(EYE_COLOR);
+        writeRaw((person.getEyeColor() == null) ? NULL : EYE_COLOR_NAMES[person.getEyeColor().ordinal()]);
+        writeRaw(GENDER);
+        writeRaw((person.getGender() == null) ? NULL : GENDER_NAMES[person.getGender().ordinal()]);
+        writeRaw(WHEN_CREATED);
+        writeDate(person.getWhenCreated());
+        writeRaw(WHEN_MODIFIED);
+        writeDate(person.getWhenModified());
+        writeRaw(VERSION);
+        writeNullableLong(person.getVersion());
+        writeRaw(ID);
+        writeNullableLong(person.getId());
+        writeByte('}');
+      }
+    }
+
+    void writeDate(Date date) throws IOException {
+      if (date == null) {
+        writeRaw(NULL);
+      } else {
+        writeLong(date.getTime());
+      }
+    }
+
+    void writeNullableLong(Long value) throws IOException {
+      if (value == null) {
+        writeRaw(NULL);
+      } else {
+        writeLong(value.longValue());
+      }
+    }
+
+    /**
+     * Writes the digits of a long, last first, straight into the buffer.
+     */
+    void writeLong(long value) throws IOException {
+      if (value == Long.MIN_VALUE) {
+        // Has no positive counterpart
+        writeRaw(LONG_MIN_VALUE);
+      } else {
+        ensure(MAX_LONG_BYTES);
+        long remaining = value;
+        if (remaining < 0) {
+          bytes[position++] = '-';
+          remaining = -remaining;
+        }
+        int end = position + digitCount(remaining);
+        for (int aa = end - 1; aa >= position; aa--) {
+          bytes[aa] = (byte) ('0' + remaining % 10);
+          remaining /= 10;
+        }
+        position = end;
+      }
+    }
+
+    /**
+     * Writes a string as Jackson does: quoted, with control chars, quotes,
+     * backslashes and surrogates escaped, and everything else as UTF-8.
+     */
+    void writeString(String string) throws IOException {
+      if (string == null) {
+        writeRaw(NULL);
+      } else {
+        writeByte('"');
+        int length = string.length();
+        for (int aa = 0; aa < length; aa++) {
+          ensure(MAX_CHAR_BYTES);
+          char c = string.charAt(aa);
+          if (c < 0x80) {
+            byte escape = ESCAPES[c];
+            if (escape == 0) {
+              bytes[position++] = (byte) c;
+            } else if (escape == 'u') {
+              bytes[position++] = '\\';
+              bytes[position++] = 'u';
+              bytes[position++] = '0';
+              bytes[position++] = '0';
+              bytes[position++] = HEX_DIGITS[c >> 4];
+              bytes[position++] = HEX_DIGITS[c & 0xf];
+            } else {
+              bytes[position++] = '\\';
+              bytes[position++] = escape;
+            }
+          } else if (c < 0x800) {
+            bytes[position++] = (byte) (0xc0 | (c >> 6));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+          } else if (!Character.isSurrogate(c)) {
+            bytes[position++] = (byte) (0xe0 | (c >> 12));
+            bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+          } else {
+            // Jackson escapes surrogates (paired or not) one by one,
+            /// rather than write the code point as four bytes of UTF-8
+            bytes[position++] = '\\';
+            bytes[position++] = 'u';
+            bytes[position++] = HEX_DIGITS[c >> 12];
+            bytes[position++] = HEX_DIGITS[(c >> 8) & 0xf];
+            bytes[position++] = HEX_DIGITS[(c >> 4) & 0xf];
+            bytes[position++] = HEX_DIGITS[c & 0xf];
+          }
+        }
+        writeByte('"');
+      }
+    }
+
+    void writeRaw(byte[] raw) throws IOException {
+      ensure(raw.length);
+      System.arraycopy(raw, 0, bytes, position, raw.length);
+      position += raw.length;
+    }
+
+    void writeByte(int b) throws IOException {
+      ensure(1);
+      bytes[position++] = (byte) b;
+    }
+
+    /**
+     * Makes room for the specified number of bytes (never more than the
+     * buffer holds).
+     */
+    void ensure(int count) throws IOException {
+      if (bytes.length - position < count) {
+        if (out != null) {
+          flush();
+        } else {
+          bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, position + count));
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      out.write(bytes, 0, position);
+      position = 0;
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(bytes, position);
+    }
+
+    void release() {
+      out = null;
+      position = 0;
+      inUse = false;
+      if (bytes.length > MAX_POOLED_BUFFER_SIZE) {
+        bytes = new byte[BUFFER_SIZE];
+      }
+    }
+
+    private static int digitCount(long value) {
+      int ret = 1;
+      for (long bound = 10; ret < 19 && value >= bound; bound *= 10) {
+        ret++;
+      }
+      return ret;
+    }
+  }
+
+}
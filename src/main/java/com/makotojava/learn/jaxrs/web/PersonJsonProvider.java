@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Writes Person objects, and collections of them, as JSON with the
+ * {@link PersonJsonFormat}, rather than with Jackson's reflective bean
+ * mapping. Jersey picks it over Jackson's provider (which takes any media
+ * type) because it is for JSON in particular. Everything else, and
+ * reading, is still Jackson's.
+ *
+ * @author sperry
+ *
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class PersonJsonProvider implements MessageBodyWriter<Object> {
+
+  @Override
+  public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+    return isPersonEntity(type, genericType);
+  }
+
+  @Override
+  public long getSize(Object entity, Class<?> type, Type genericType, Annotation[] annotations,
+      MediaType mediaType) {
+    // Deprecated in JAX-RS 2.0, and the size isn't known until it's written
+    return -1;
+  }
+
+  @Override
+  public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+      MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException,
+      WebApplicationException {
+    if (!(entity instanceof Collection)) {
+      PersonJsonFormat.write(entityStream, (Person) entity);
+    } else if (PersonJsonFormat.isPersons((Collection<?>) entity)) {
+      PersonJsonFormat.writeAll(entityStream, (Collection<?>) entity);
+    } else {
+      // Taken on trust (see isPersonEntity()), and not Person objects after all
+      entityStream.write(ObjectMapperHolder.getObjectMapper().writeValueAsBytes(entity));
+    }
+  }
+
+  /**
+   * Whether an entity is a Person, or a Collection of them. Response
+   * entities have lost their type argument, so a Collection of who knows
+   * what is taken on trust, to be checked as it is written.
+   */
+  static boolean isPersonEntity(Class<?> type, Type genericType) {
+    boolean ret = Person.class.isAssignableFrom(type);
+    if (!ret && Collection.class.isAssignableFrom(type)) {
+      Type elementType = elementType(genericType);
+      ret = elementType == null || elementType == Person.class;
+    }
+    return ret;
+  }
+
+  /**
+   * @return Type - the type argument of a parameterized type with one, or
+   *         null if there isn't one
+   */
+  static Type elementType(Type genericType) {
+    Type ret = null;
+    if (genericType instanceof ParameterizedType) {
+      Type[] typeArguments = ((ParameterizedType) genericType).getActualTypeArguments();
+      if (typeArguments.length == 1) {
+        ret = typeArguments[0];
+      }
+    }
+    return ret;
+  }
+
+}
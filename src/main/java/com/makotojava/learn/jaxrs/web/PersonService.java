@@ -16,131 +16,627 @@
 package com.makotojava.learn.jaxrs.web;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.apache.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.makotojava.learn.jaxrs.dao.PersonDao;
 import com.makotojava.learn.jaxrs.dao.PersonFinder;
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
 import com.makotojava.learn.jaxrs.model.Person;
-import com.makotojava.learn.jaxrs.util.Repository;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
 
 @Path(PersonService.PATH_PERSON_SERVICE)
 public class PersonService {
 
   private static final Logger log = Logger.getLogger(PersonService.class);
 
+  private static final ResponseLogger responseLogger = new ResponseLogger(log);
+
   public static final String PATH_PERSON_SERVICE = "/PersonService";
   public static final String PATH_FIND_ALL = "/FindAll";
   public static final String PATH_FIND_BY_ID = "/FindById";
   public static final String PATH_FIND_BY_LAST_NAME = "/FindAllByLastName";
+  public static final String PATH_QUERY = "/Query";
+  public static final String PATH_COUNT_BY_EYE_COLOR = "/CountByEyeColor";
+  public static final String PATH_COUNT_BY_GENDER = "/CountByGender";
+  public static final String PATH_STATS = "/Stats";
+  public static final String PATH_STATS_BY_LAST_NAME = PATH_STATS + "/ByLastName";
   public static final String PATH_ADD_PERSON = "/AddPerson";
   public static final String PATH_UPDATE_PERSON = "/UpdatePerson";
   public static final String PATH_DELETE_PERSON = "/DeletePerson";
+  public static final String PATH_ADD_PERSONS = "/AddPersons";
+  public static final String PATH_UPDATE_PERSONS = "/UpdatePersons";
+  public static final String PATH_DELETE_PERSONS = "/DeletePersons";
+  public static final String PATH_CHANGES = "/Changes";
 
   public static final String PATH_PARAM_ID = "/{Id}";
   public static final String PATH_PARAM_LAST_NAME = "/{LastName}";
 
-  private PersonDao personDao;
+  public static final String QUERY_PARAM_OFFSET = "offset";
+  public static final String QUERY_PARAM_LIMIT = "limit";
+  public static final String QUERY_PARAM_CURSOR = "cursor";
+  public static final String QUERY_PARAM_STREAM = "stream";
+  public static final String QUERY_PARAM_LAST_NAME = "lastName";
+  public static final String QUERY_PARAM_FIRST_NAME = "firstName";
+  public static final String QUERY_PARAM_MIN_AGE = "minAge";
+  public static final String QUERY_PARAM_MAX_AGE = "maxAge";
+  public static final String QUERY_PARAM_EYE_COLOR = "eyeColor";
+  public static final String QUERY_PARAM_GENDER = "gender";
+  public static final String QUERY_PARAM_SINCE = "since";
+
+  public static final String HEADER_NEXT_CURSOR = "X-Next-Cursor";
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * Seconds a client turned away for being one subscriber too many is asked
+   * to wait before trying again.
+   */
+  private static final long RETRY_AFTER_SECONDS = 10;
+
+  private CachingPersonDao personDao;
+
+  private AsyncRequestExecutor asyncExecutor;
 
   private PersonFinder getPersonFinder() {
+    return getPersonDao();
+  }
+
+  private CachingPersonDao getPersonDao() {
     if (personDao == null) {
-      personDao = Repository.instance();
+      personDao = CachingPersonDao.instance();
     }
     return personDao;
   }
 
-  private PersonDao getPersonDao() {
-    if (personDao == null) {
-      personDao = Repository.instance();
+  /**
+   * The writes, and FindAll (whose response can be big), are asynchronous:
+   * the container thread hands them to this and goes back to the container,
+   * so they can't hold up the other (fast) reads.
+   */
+  private AsyncRequestExecutor getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor = AsyncRequestExecutor.instance();
     }
-    return personDao;
+    return asyncExecutor;
   }
 
+  /**
+   * Finds all Person objects or, if any of the paging query parameters are
+   * present, one page of them, in ID order. When a page is full, the
+   * {@value #HEADER_NEXT_CURSOR} response header carries the cursor for the
+   * next one.
+   * 
+   * @param offset
+   *          How many Person objects to skip (after the cursor, if there is one)
+   * @param limit
+   *          The page size (default {@value #DEFAULT_PAGE_SIZE}, max {@value #MAX_PAGE_SIZE})
+   * @param cursor
+   *          The {@value #HEADER_NEXT_CURSOR} value from the previous page
+   * @param stream
+   *          If true, stream the JSON array straight from the data store
+   *          (paging parameters are ignored)
+   * @param request
+   *          The request, for its conditional headers. The response is 304 Not
+   *          Modified if the data store hasn't changed since the client's copy.
+   * @param asyncResponse
+   *          The suspended request, resumed on an {@link AsyncRequestExecutor}
+   *          thread
+   */
   @GET
   @Path(PATH_FIND_ALL)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response findAll() {
+  public void findAll(@QueryParam(QUERY_PARAM_OFFSET) Integer offset, @QueryParam(QUERY_PARAM_LIMIT) Integer limit,
+      @QueryParam(QUERY_PARAM_CURSOR) String cursor, @QueryParam(QUERY_PARAM_STREAM) boolean stream,
+      @Context Request request, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doFindAll(offset, limit, cursor, stream, false, request));
+  }
+
+  private Response doFindAll(Integer offset, Integer limit, String cursor, boolean stream, boolean binary,
+      Request request) {
     Response ret = null;
 
     log.info("Executingmethod: " + PATH_FIND_ALL);
-    List<Person> persons;
-    //
-    // Call findAll on the PersonFinder
-    persons = getPersonFinder().findAll();
-    if (!persons.isEmpty()) {
-      ret = Response.ok().entity(persons).build();
+    Date lastModified = getPersonFinder().getLastModified();
+    EntityTag eTag = EntityTags.ofStore(getPersonFinder().getVersion());
+    if (binary) {
+      eTag = EntityTags.binary(eTag);
+    }
+    ResponseBuilder notModified = request.evaluatePreconditions(lastModified, eTag);
+    if (notModified != null) {
+      ret = notModified.lastModified(lastModified).build();
+    } else if (stream) {
+      // Nothing to pretty print until it's written
+      ret = Response.ok(new PersonStreamingOutput(getPersonFinder().iterateAll(), false)).build();
     } else {
-      ret = Response.status(404).entity("Repository appears to be empty.").build();
+      if (offset != null || limit != null || cursor != null) {
+        ret = findPage(offset, limit, cursor);
+      } else {
+        List<Person> persons;
+        //
+        // Call findAll on the PersonFinder
+        persons = getPersonFinder().findAll();
+        if (!persons.isEmpty()) {
+          ret = Response.ok().entity(persons).build();
+        } else {
+          ret = Response.status(404).entity("Repository appears to be empty.").build();
+        }
+      }
+      responseLogger.log(ret);
     }
 
-    prettyPrintObject(ret);
+    return withValidators(ret, eTag, lastModified);
+  }
+
+  /**
+   * Finds all Person objects, or one page of them, just as findAll() does
+   * but in the compact binary format, for clients that ask for
+   * {@value PersonBinaryProvider#APPLICATION_PERSON_BINARY}, with an ETag
+   * of its own (see {@link EntityTags}). There is no streaming: the list is
+   * written in one go.
+   */
+  @GET
+  @Path(PATH_FIND_ALL)
+  @Produces(PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5")
+  public void findAllBinary(@QueryParam(QUERY_PARAM_OFFSET) Integer offset,
+      @QueryParam(QUERY_PARAM_LIMIT) Integer limit, @QueryParam(QUERY_PARAM_CURSOR) String cursor,
+      @Context Request request, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doFindAll(offset, limit, cursor, false, true, request));
+  }
+
+  /**
+   * Streams all Person objects as newline-delimited JSON, for clients that
+   * ask for {@value PersonStreamingOutput#APPLICATION_NDJSON}.
+   */
+  @GET
+  @Path(PATH_FIND_ALL)
+  @Produces(PersonStreamingOutput.APPLICATION_NDJSON + ";qs=0.5")
+  public void findAllNewlineDelimited(@Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, this::doFindAllNewlineDelimited);
+  }
+
+  private Response doFindAllNewlineDelimited() {
+    log.info("Executing method: " + PATH_FIND_ALL + " (" + PersonStreamingOutput.APPLICATION_NDJSON + ")");
+    return Response.ok(new PersonStreamingOutput(getPersonFinder().iterateAll(), true)).build();
+  }
+
+  /**
+   * Finds one page of Person objects. An empty page just means there are
+   * no more, so it is not a 404.
+   */
+  private Response findPage(Integer offset, Integer limit, String cursor) {
+    Response ret = null;
+    int pageSize = (limit == null) ? DEFAULT_PAGE_SIZE : limit;
+    Long afterId = decodeCursor(cursor);
+    if ((offset != null && offset < 0) || pageSize < 1 || pageSize > MAX_PAGE_SIZE
+        || (cursor != null && afterId == null)) {
+      ret = Response.status(400).entity("Invalid paging parameters, offset must be zero or more, limit between 1 and "
+          + MAX_PAGE_SIZE + ", and cursor must come from the " + HEADER_NEXT_CURSOR + " header.").build();
+    } else {
+      List<Person> persons = getPersonFinder().findPage(afterId, (offset == null) ? 0 : offset, pageSize);
+      ResponseBuilder builder = Response.ok().entity(persons);
+      if (persons.size() == pageSize) {
+        builder.header(HEADER_NEXT_CURSOR, encodeCursor(persons.get(persons.size() - 1).getId()));
+      }
+      ret = builder.build();
+    }
+    return ret;
+  }
+
+  /**
+   * Sends the specified JSON with its validators or, if the client's copy
+   * is still good, a 304 Not Modified.
+   */
+  private static Response toResponse(CachedJson json, Request request) {
+    return toResponse(json.getJson(), MediaType.APPLICATION_JSON_TYPE, json.getETag(), json.getLastModified(),
+        request);
+  }
+
+  /**
+   * Sends the specified entity with its validators or, if the client's copy
+   * is still good, a 304 Not Modified.
+   */
+  private static Response toResponse(Object entity, MediaType mediaType, EntityTag eTag, Date lastModified,
+      Request request) {
+    Response ret;
+    ResponseBuilder notModified = request.evaluatePreconditions(lastModified, eTag);
+    if (notModified != null) {
+      ret = notModified.lastModified(lastModified).build();
+    } else {
+      ret = Response.ok(entity, mediaType).tag(eTag).lastModified(lastModified).build();
+    }
+    return ret;
+  }
+
+  /**
+   * Adds the validators to the specified response, if it is a 200 OK.
+   */
+  private static Response withValidators(Response response, EntityTag eTag, Date lastModified) {
+    Response ret = response;
+    if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+      ret = Response.fromResponse(response).tag(eTag).lastModified(lastModified).build();
+    }
+    return ret;
+  }
+
+  /**
+   * Encodes the ID of the last Person on a page as an (opaque) cursor.
+   */
+  private static String encodeCursor(Long id) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(id.toString().getBytes(StandardCharsets.US_ASCII));
+  }
 
+  /**
+   * Decodes a cursor made by encodeCursor().
+   * 
+   * @return Long - the ID of the last Person on the previous page, or null if
+   *         there is no cursor, or it is not one of ours.
+   */
+  private static Long decodeCursor(String cursor) {
+    Long ret = null;
+    if (cursor != null) {
+      try {
+        ret = Long.valueOf(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+      } catch (IllegalArgumentException e) {
+        // NumberFormatException is one too
+        log.warn("Invalid cursor: " + cursor);
+      }
+    }
     return ret;
   }
 
+  /**
+   * Finds the Person with the specified ID. The response is 304 Not Modified
+   * if the Person hasn't changed since the client's copy.
+   */
   @GET
   @Path(PATH_FIND_BY_ID + PATH_PARAM_ID)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response findById(@PathParam("Id") Long id) {
+  public Response findById(@PathParam("Id") Long id, @Context Request request) {
     Response ret = null;
 
     log.info("Executing method: " + PATH_FIND_BY_ID + "/{" + id + "}");
-    Person person;
+    CachedJson json;
     //
-    // Call findById on the PersonFinder
-    person = getPersonFinder().findById(id);
+    // Hot IDs come straight from the response cache
+    json = getPersonDao().findByIdAsJson(id);
+    if (json != null) {
+      ret = toResponse(json, request);
+    } else {
+      ret = Response.status(404).entity("Could not locate person by ID " + id + " in the repository.").build();
+    }
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Finds the Person with the specified ID in the compact binary format.
+   * The ETag is the JSON one with a suffix (see {@link EntityTags}), and
+   * either will do for an If-Match.
+   */
+  @GET
+  @Path(PATH_FIND_BY_ID + PATH_PARAM_ID)
+  @Produces(PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5")
+  public Response findByIdBinary(@PathParam("Id") Long id, @Context Request request) {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_FIND_BY_ID + "/{" + id + "} ("
+        + PersonBinaryProvider.APPLICATION_PERSON_BINARY + ")");
+    Person person = (id == null) ? null : getPersonFinder().findById(id);
     if (person != null) {
-      ret = Response.ok(person).build();
+      Date whenModified = person.getWhenModified();
+      ret = toResponse(person, PersonBinaryProvider.APPLICATION_PERSON_BINARY_TYPE,
+          EntityTags.binary(EntityTags.of(person)), (whenModified == null) ? new Date(0) : whenModified, request);
     } else {
       ret = Response.status(404).entity("Could not locate person by ID " + id + " in the repository.").build();
     }
-    prettyPrintObject(ret);
+    responseLogger.log(ret);
 
     return ret;
   }
 
+  /**
+   * Finds the Person objects with the specified last name. The response is
+   * 304 Not Modified if they haven't changed since the client's copy.
+   */
   @GET
   @Path(PATH_FIND_BY_LAST_NAME + PATH_PARAM_LAST_NAME)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response findAllByLastName(@PathParam("LastName") String lastName) {
+  public Response findAllByLastName(@PathParam("LastName") String lastName,
+      @QueryParam(QUERY_PARAM_STREAM) boolean stream, @Context Request request) {
     Response ret = null;
 
     log.info("Executing method: " + PATH_FIND_BY_LAST_NAME + "/{" + lastName + "}");
-    List<Person> persons;
+    if (stream) {
+      Date lastModified = getPersonFinder().getLastModified();
+      EntityTag eTag = EntityTags.ofStore(getPersonFinder().getVersion());
+      ResponseBuilder notModified = request.evaluatePreconditions(lastModified, eTag);
+      if (notModified != null) {
+        ret = notModified.lastModified(lastModified).build();
+      } else {
+        ret = Response.ok(new PersonStreamingOutput(getPersonFinder().iterateAllByLastName(lastName), false))
+            .tag(eTag).lastModified(lastModified).build();
+      }
+    } else {
+      CachedJson json;
+      //
+      // Hot last names come straight from the response cache
+      json = getPersonDao().findAllByLastNameAsJson(lastName);
+      if (json != null) {
+        ret = toResponse(json, request);
+      } else {
+        ret = Response.status(404)
+            .entity("No Person could be located by last name '" + lastName + "' in the repository.").build();
+      }
+      responseLogger.log(ret);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Streams the Person objects with the specified last name as
+   * newline-delimited JSON.
+   */
+  @GET
+  @Path(PATH_FIND_BY_LAST_NAME + PATH_PARAM_LAST_NAME)
+  @Produces(PersonStreamingOutput.APPLICATION_NDJSON + ";qs=0.5")
+  public Response findAllByLastNameNewlineDelimited(@PathParam("LastName") String lastName) {
+    log.info("Executing method: " + PATH_FIND_BY_LAST_NAME + "/{" + lastName + "} ("
+        + PersonStreamingOutput.APPLICATION_NDJSON + ")");
+    return Response.ok(new PersonStreamingOutput(getPersonFinder().iterateAllByLastName(lastName), true)).build();
+  }
+
+  /**
+   * Finds the Person objects with the specified last name in the compact
+   * binary format. The validators are the (cached) JSON's, with the binary
+   * suffix on the ETag, so a client with an up to date copy gets its 304
+   * without the data store being asked.
+   */
+  @GET
+  @Path(PATH_FIND_BY_LAST_NAME + PATH_PARAM_LAST_NAME)
+  @Produces(PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5")
+  public Response findAllByLastNameBinary(@PathParam("LastName") String lastName, @Context Request request) {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_FIND_BY_LAST_NAME + "/{" + lastName + "} ("
+        + PersonBinaryProvider.APPLICATION_PERSON_BINARY + ")");
     //
-    // Call the findAllByLastName method on PersonFinder
-    persons = getPersonFinder().findAllByLastName(lastName);
-    if (!persons.isEmpty()) {
-      ret = Response.ok().entity(persons).build();
-      prettyPrintObject(persons);
+    // Validators first, as for the JSON: if a write gets in before the
+    /// Person objects are found, they can only be older than the response
+    CachedJson json = getPersonDao().findAllByLastNameAsJson(lastName);
+    EntityTag eTag = (json == null) ? null : EntityTags.binary(json.getETag());
+    ResponseBuilder notModified = (json == null) ? null
+        : request.evaluatePreconditions(json.getLastModified(), eTag);
+    List<Person> persons = (json == null || notModified != null) ? null
+        : getPersonFinder().findAllByLastName(lastName);
+    if (notModified != null) {
+      ret = notModified.lastModified(json.getLastModified()).build();
+    } else if (persons != null && !persons.isEmpty()) {
+      ret = Response.ok(persons, PersonBinaryProvider.APPLICATION_PERSON_BINARY_TYPE).tag(eTag)
+          .lastModified(json.getLastModified()).build();
     } else {
-      ret = Response.status(404).entity("No Person could be located by last name '" + lastName + "' in the repository.")
-          .build();
+      ret = Response.status(404)
+          .entity("No Person could be located by last name '" + lastName + "' in the repository.").build();
+    }
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Finds the Person objects that match every query parameter present, in
+   * ID order. Names match case-insensitively, the age range includes both
+   * ends, and eye color and gender are enum names (in any case).
+   * 
+   * @param lastName
+   *          The last name
+   * @param firstName
+   *          The first name
+   * @param minAge
+   *          The lowest age
+   * @param maxAge
+   *          The highest age
+   * @param eyeColor
+   *          One of {@link EyeColor}
+   * @param gender
+   *          One of {@link Gender}
+   */
+  @GET
+  @Path(PATH_QUERY)
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public Response findByQuery(@QueryParam(QUERY_PARAM_LAST_NAME) String lastName,
+      @QueryParam(QUERY_PARAM_FIRST_NAME) String firstName, @QueryParam(QUERY_PARAM_MIN_AGE) Integer minAge,
+      @QueryParam(QUERY_PARAM_MAX_AGE) Integer maxAge, @QueryParam(QUERY_PARAM_EYE_COLOR) String eyeColor,
+      @QueryParam(QUERY_PARAM_GENDER) String gender) {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_QUERY);
+    EyeColor eyeColorValue = valueOf(EyeColor.class, eyeColor);
+    Gender genderValue = valueOf(Gender.class, gender);
+    if ((eyeColor != null && eyeColorValue == null) || (gender != null && genderValue == null)
+        || (minAge != null && maxAge != null && minAge > maxAge)) {
+      ret = Response.status(400).entity("Invalid query parameters, eyeColor must be one of "
+          + Arrays.toString(EyeColor.values()) + ", gender one of " + Arrays.toString(Gender.values())
+          + ", and minAge must not be greater than maxAge.").build();
+    } else {
+      PersonQuery query = new PersonQuery().setLastName(lastName).setFirstName(firstName).setMinAge(minAge)
+          .setMaxAge(maxAge).setEyeColor(eyeColorValue).setGender(genderValue);
+      List<Person> persons;
+      //
+      // Call the findByQuery method on PersonFinder
+      persons = getPersonFinder().findByQuery(query);
+      if (!persons.isEmpty()) {
+        ret = Response.ok().entity(persons).build();
+      } else {
+        ret = Response.status(404).entity("No Person matching " + query + " could be located in the repository.")
+            .build();
+      }
     }
-    prettyPrintObject(ret);
+    responseLogger.log(ret);
 
     return ret;
   }
 
+  /**
+   * Counts the Person objects with each eye color, as a JSON object of
+   * eye color name to count.
+   */
+  @GET
+  @Path(PATH_COUNT_BY_EYE_COLOR)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response countByEyeColor() {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_COUNT_BY_EYE_COLOR);
+    Map<EyeColor, Long> counts = getPersonFinder().countByEyeColor();
+    ret = Response.ok().entity(counts).build();
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Counts the Person objects of each gender, as a JSON object of gender
+   * name to count.
+   */
+  @GET
+  @Path(PATH_COUNT_BY_GENDER)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response countByGender() {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_COUNT_BY_GENDER);
+    Map<Gender, Long> counts = getPersonFinder().countByGender();
+    ret = Response.ok().entity(counts).build();
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Returns the summary statistics of the data store: counts by gender and
+   * eye color, and the age histogram, min, max and mean. They are kept up
+   * to date as the store is written, so this is cheap enough to poll.
+   */
+  @GET
+  @Path(PATH_STATS)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getStats() {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_STATS);
+    PersonStats stats = getPersonFinder().getStats();
+    ret = Response.ok().entity(stats).build();
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Counts the Person objects with each last name, as a JSON object of last
+   * name to count.
+   */
+  @GET
+  @Path(PATH_STATS_BY_LAST_NAME)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response countByLastName() {
+    Response ret = null;
+
+    log.info("Executing method: " + PATH_STATS_BY_LAST_NAME);
+    Map<String, Long> counts = getPersonFinder().countByLastName();
+    ret = Response.ok().entity(counts).build();
+    responseLogger.log(ret);
+
+    return ret;
+  }
+
+  /**
+   * Looks up an enum constant by name, ignoring case.
+   * 
+   * @return E - the constant, or null if name is null or isn't one
+   */
+  private static <E extends Enum<E>> E valueOf(Class<E> enumClass, String name) {
+    E ret = null;
+    if (name != null) {
+      try {
+        ret = Enum.valueOf(enumClass, name.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        log.warn("Invalid " + enumClass.getSimpleName() + ": " + name);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Streams every add, update and delete from now on, as Server-Sent
+   * Events (see {@link ChangeFeed}). A client that reconnects with a
+   * Last-Event-ID header gets the changes it missed first.
+   * 
+   * @param lastEventId
+   *          The ID of the last event the client saw, if it is reconnecting
+   * @param since
+   *          The same, for clients that can't set the header
+   * 
+   * @return EventOutput - the stream of events
+   */
+  @GET
+  @Path(PATH_CHANGES)
+  @Produces(SseFeature.SERVER_SENT_EVENTS)
+  public EventOutput changes(@HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId,
+      @QueryParam(QUERY_PARAM_SINCE) String since) {
+    EventOutput ret = new EventOutput();
+    log.info("Executing method: " + PATH_CHANGES);
+    ChangeFeed changeFeed = getPersonDao().getChangeFeed();
+    if (!changeFeed.subscribe(ret, changeFeed.sequenceOf((lastEventId != null) ? lastEventId : since))) {
+      throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+    }
+    return ret;
+  }
+
   @PUT
   @Path(PATH_ADD_PERSON)
-  @Consumes(MediaType.APPLICATION_JSON)
-  @Produces(MediaType.APPLICATION_JSON)
-  public Response addPerson(Person personToAdd) {
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void addPerson(Person personToAdd, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doAddPerson(personToAdd));
+  }
+
+  private Response doAddPerson(Person personToAdd) {
     Response ret = null;
     Person personAdded = getPersonDao().addPerson(personToAdd);
     if (personAdded != null) {
@@ -149,56 +645,235 @@ public class PersonService {
     } else {
       ret = Response.status(400).entity("Person could not be added, please correct error(s) and try again").build();
     }
-    prettyPrintObject(ret);
+    responseLogger.log(ret);
     return ret;
   }
 
+  /**
+   * Updates a Person. With an If-Match header (the ETag from FindById), the
+   * update only happens if nobody else has changed the Person since, and
+   * otherwise the response is 412 Precondition Failed.
+   */
   @POST
   @Path(PATH_UPDATE_PERSON)
-  @Consumes(MediaType.APPLICATION_JSON)
-  @Produces(MediaType.APPLICATION_JSON)
-  public Response updatePerson(Person personToUpdate) {
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void updatePerson(Person personToUpdate, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+      @Context Request request, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doUpdatePerson(personToUpdate, ifMatch, request));
+  }
+
+  private Response doUpdatePerson(Person personToUpdate, String ifMatch, Request request) {
     Response ret = null;
-    Person personUpdated = getPersonDao().updatePerson(personToUpdate);
-    if (personUpdated != null) {
-      URI updatePersonURI = URI.create(PATH_PERSON_SERVICE + PATH_UPDATE_PERSON);
-      ret = Response.ok(updatePersonURI).entity(personUpdated).build();
-    } else {
-      ret = Response.status(400).entity("Person could not be updated, please correct error(s) and try again").build();
+    Person personUpdated = null;
+    try {
+      if (ifMatch == null) {
+        personUpdated = getPersonDao().updatePerson(personToUpdate);
+      } else {
+        Person current = findCurrent(personToUpdate);
+        ret = evaluateIfMatch(current, request);
+        if (ret == null) {
+          personUpdated = getPersonDao().updatePerson(personToUpdate, current.getVersion());
+        }
+      }
+    } catch (VersionConflictException e) {
+      ret = preconditionFailed(e.getCurrent());
     }
-    prettyPrintObject(ret);
+    if (ret == null) {
+      if (personUpdated != null) {
+        URI updatePersonURI = URI.create(PATH_PERSON_SERVICE + PATH_UPDATE_PERSON);
+        ret = Response.ok(updatePersonURI).entity(personUpdated).tag(EntityTags.of(personUpdated)).build();
+      } else {
+        ret = Response.status(400).entity("Person could not be updated, please correct error(s) and try again")
+            .build();
+      }
+    }
+    responseLogger.log(ret);
     return ret;
   }
 
+  /**
+   * Deletes a Person. With an If-Match header (the ETag from FindById), the
+   * delete only happens if nobody else has changed the Person since, and
+   * otherwise the response is 412 Precondition Failed.
+   */
   @DELETE
   @Path(PATH_DELETE_PERSON)
-  @Consumes(MediaType.APPLICATION_JSON)
-  @Produces(MediaType.APPLICATION_JSON)
-  public Response deletePerson(Person personToDelete) {
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void deletePerson(Person personToDelete, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+      @Context Request request, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doDeletePerson(personToDelete, ifMatch, request));
+  }
+
+  private Response doDeletePerson(Person personToDelete, String ifMatch, Request request) {
+    Response ret = null;
+    Person personDeleted = null;
+    try {
+      if (ifMatch == null) {
+        personDeleted = getPersonDao().deletePerson(personToDelete);
+      } else {
+        Person current = findCurrent(personToDelete);
+        ret = evaluateIfMatch(current, request);
+        if (ret == null) {
+          personDeleted = getPersonDao().deletePerson(personToDelete, current.getVersion());
+        }
+      }
+    } catch (VersionConflictException e) {
+      ret = preconditionFailed(e.getCurrent());
+    }
+    if (ret == null) {
+      if (personDeleted != null) {
+        URI deletePersonURI = URI.create(PATH_PERSON_SERVICE + PATH_DELETE_PERSON);
+        ret = Response.ok(deletePersonURI).entity(personDeleted).build();
+      } else {
+        ret = Response.status(400).entity("Person could not be deleted, please correct error(s) and try again")
+            .build();
+      }
+    }
+    responseLogger.log(ret);
+    return ret;
+  }
+
+  /**
+   * @return Person - the stored Person with the same ID as the specified
+   *         one, or null if there isn't one
+   */
+  private Person findCurrent(Person person) {
+    return (person == null || person.getId() == null) ? null : getPersonFinder().findById(person.getId());
+  }
+
+  /**
+   * Evaluates the request's If-Match header against the ETags (JSON and
+   * binary) of the stored Person. That Person's version is the one the write
+   * then expects, so a writer that gets in between the two is caught by the
+   * data store.
+   * 
+   * @return Response - a 412 Precondition Failed if the header doesn't
+   *         match (or there is no such Person), or null to go ahead
+   */
+  private Response evaluateIfMatch(Person current, Request request) {
+    Response ret = null;
+    if (current == null) {
+      ret = Response.status(Response.Status.PRECONDITION_FAILED)
+          .entity("There is no such Person, so the If-Match header can't match.").build();
+    } else if (request.evaluatePreconditions(EntityTags.of(current)) != null
+        && request.evaluatePreconditions(EntityTags.binary(EntityTags.of(current))) != null) {
+      ret = preconditionFailed(current);
+    }
+    return ret;
+  }
+
+  /**
+   * @return Response - a 412 Precondition Failed, with the current ETag
+   */
+  private static Response preconditionFailed(Person current) {
+    return Response.status(Response.Status.PRECONDITION_FAILED).tag(EntityTags.of(current))
+        .entity("Person " + current.getId() + " has changed (it is at version " + current.getVersion()
+            + "), please get it again and retry.")
+        .build();
+  }
+
+  /**
+   * Adds a batch of Person objects in one pass over the store.
+   * 
+   * @param personsToAdd
+   *          The Person objects to add (a JSON array, or a binary list)
+   * @param asyncResponse
+   *          The suspended request, resumed with a list (JSON or binary) with
+   *          one element per Person sent up, in the same order: the Person
+   *          added, or null if that one could not be added.
+   */
+  @PUT
+  @Path(PATH_ADD_PERSONS)
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void addPersons(List<Person> personsToAdd, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doAddPersons(personsToAdd));
+  }
+
+  private Response doAddPersons(List<Person> personsToAdd) {
     Response ret = null;
-    Person personDeleted = getPersonDao().deletePerson(personToDelete);
-    if (personDeleted != null) {
-      URI deletePersonURI = URI.create(PATH_PERSON_SERVICE + PATH_DELETE_PERSON);
-      ret = Response.ok(deletePersonURI).entity(personDeleted).build();
+    log.info("Executing method: " + PATH_ADD_PERSONS + " (" + sizeOf(personsToAdd) + " Person objects)");
+    if (sizeOf(personsToAdd) > 0) {
+      List<Person> personsAdded = getPersonDao().addPersons(personsToAdd);
+      URI addPersonsURI = URI.create(PATH_PERSON_SERVICE + PATH_ADD_PERSONS);
+      ret = Response.created(addPersonsURI).entity(personsAdded).build();
     } else {
-      ret = Response.status(400).entity("Person could not be deleted, please correct error(s) and try again").build();
+      ret = Response.status(400).entity("No Person objects to add, please correct error(s) and try again").build();
     }
-    prettyPrintObject(ret);
+    responseLogger.log(ret);
     return ret;
   }
 
   /**
-   * Pretty prints the JSON object to the log.
+   * Updates a batch of Person objects in one pass over the store.
    * 
-   * @param object
+   * @param personsToUpdate
+   *          The Person objects to update (a JSON array, or a binary list)
+   * @param asyncResponse
+   *          The suspended request, resumed with a list (JSON or binary) with
+   *          one element per Person sent up, in the same order: the Person
+   *          updated, or null if that one could not be located.
    */
-  private void prettyPrintObject(Object object) {
-    ObjectMapper objectMapper = new ObjectMapper();
-    try {
-      log.debug("Service(s) provided: \n" +
-          objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(object));
-    } catch (JsonProcessingException e) {
-      log.error("JSON Processing Exception Occurred: ", e);
+  @POST
+  @Path(PATH_UPDATE_PERSONS)
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void updatePersons(List<Person> personsToUpdate, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doUpdatePersons(personsToUpdate));
+  }
+
+  private Response doUpdatePersons(List<Person> personsToUpdate) {
+    Response ret = null;
+    log.info("Executing method: " + PATH_UPDATE_PERSONS + " (" + sizeOf(personsToUpdate) + " Person objects)");
+    if (sizeOf(personsToUpdate) > 0) {
+      List<Person> personsUpdated = getPersonDao().updatePersons(personsToUpdate);
+      ret = Response.ok().entity(personsUpdated).build();
+    } else {
+      ret = Response.status(400).entity("No Person objects to update, please correct error(s) and try again")
+          .build();
+    }
+    responseLogger.log(ret);
+    return ret;
+  }
+
+  /**
+   * Deletes a batch of Person objects in one pass over the store.
+   * 
+   * @param personsToDelete
+   *          The Person objects to delete (a JSON array, or a binary list)
+   * @param asyncResponse
+   *          The suspended request, resumed with a list (JSON or binary) with
+   *          one element per Person sent up, in the same order: the Person
+   *          deleted, or null if that one could not be deleted.
+   */
+  @DELETE
+  @Path(PATH_DELETE_PERSONS)
+  @Consumes({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY })
+  @Produces({ MediaType.APPLICATION_JSON, PersonBinaryProvider.APPLICATION_PERSON_BINARY + ";qs=0.5" })
+  public void deletePersons(List<Person> personsToDelete, @Suspended AsyncResponse asyncResponse) {
+    getAsyncExecutor().execute(asyncResponse, () -> doDeletePersons(personsToDelete));
+  }
+
+  private Response doDeletePersons(List<Person> personsToDelete) {
+    Response ret = null;
+    log.info("Executing method: " + PATH_DELETE_PERSONS + " (" + sizeOf(personsToDelete) + " Person objects)");
+    if (sizeOf(personsToDelete) > 0) {
+      List<Person> personsDeleted = getPersonDao().deletePersons(personsToDelete);
+      ret = Response.ok().entity(personsDeleted).build();
+    } else {
+      ret = Response.status(400).entity("No Person objects to delete, please correct error(s) and try again")
+          .build();
     }
+    responseLogger.log(ret);
+    return ret;
+  }
+
+  /**
+   * Null-safe size of a batch sent up by the client.
+   */
+  private static int sizeOf(List<Person> persons) {
+    return (persons == null) ? 0 : persons.size();
   }
 }
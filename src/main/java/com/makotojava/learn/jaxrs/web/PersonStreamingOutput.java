@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.makotojava.learn.jaxrs.model.Person;
+
+/**
+ * Writes Person objects to the response as they come off a data store
+ * Iterator, so the response never sits in memory in one piece, and the
+ * client gets the first bytes right away.
+ *
+ * Writes either a JSON array, or newline-delimited JSON (one Person object
+ * per line), with {@link PersonJsonFormat}.
+ *
+ * @author sperry
+ *
+ */
+public class PersonStreamingOutput implements StreamingOutput {
+
+  public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+  /**
+   * How many Person objects to write between flushes (after the first,
+   * which is flushed right away).
+   */
+  private static final int FLUSH_INTERVAL = 512;
+
+  private final Iterator<Person> persons;
+  private final boolean newlineDelimited;
+
+  /**
+   * Constructor.
+   *
+   * @param persons
+   *          The Person objects to write
+   * @param newlineDelimited
+   *          true for newline-delimited JSON, false for a JSON array
+   */
+  public PersonStreamingOutput(Iterator<Person> persons, boolean newlineDelimited) {
+    this.persons = persons;
+    this.newlineDelimited = newlineDelimited;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    PersonJsonFormat.writeAll(output, persons, newlineDelimited, FLUSH_INTERVAL);
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pretty prints responses to the log at DEBUG level. Nothing gets
+ * serialized unless DEBUG is enabled for the Logger, and then only
+ * for a sample of the responses, truncated to a maximum length (and
+ * serialization stops there, so a big FindAll costs no more to log than a
+ * small one):
+ * <ul>
+ * <li>{@link #PROPERTY_SAMPLE_RATE} - log one response in this many (default 1, i.e., all of them)</li>
+ * <li>{@link #PROPERTY_MAX_LENGTH} - log at most this many characters of each (default
+ * {@value #DEFAULT_MAX_LENGTH}, 0 means no limit)</li>
+ * </ul>
+ *
+ * @author sperry
+ *
+ */
+public class ResponseLogger {
+
+  public static final String PROPERTY_SAMPLE_RATE = "com.makotojava.learn.jaxrs.log.sampleRate";
+  public static final String PROPERTY_MAX_LENGTH = "com.makotojava.learn.jaxrs.log.maxLength";
+
+  public static final int DEFAULT_MAX_LENGTH = 4096;
+
+  private static final int SAMPLE_RATE = Math.max(Integer.getInteger(PROPERTY_SAMPLE_RATE, 1), 1);
+  private static final int MAX_LENGTH = Integer.getInteger(PROPERTY_MAX_LENGTH, DEFAULT_MAX_LENGTH);
+
+  private final Logger log;
+
+  /**
+   * How many responses have been offered for logging.
+   */
+  private final AtomicLong responseCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param log
+   *          The Logger to log responses to.
+   */
+  public ResponseLogger(Logger log) {
+    this.log = log;
+  }
+
+  /**
+   * Pretty prints the entity of the specified Response to the log, if
+   * DEBUG is enabled and the Response makes the sample.
+   *
+   * @param response
+   *          The Response to log
+   */
+  public void log(Response response) {
+    if (log.isDebugEnabled() && (SAMPLE_RATE == 1 || responseCount.incrementAndGet() % SAMPLE_RATE == 0)) {
+      Object entity = response.getEntity();
+      String body;
+      if (entity == null || entity instanceof String) {
+        body = (String) entity;
+      } else if (entity instanceof StreamingOutput) {
+        // Serializing it here would consume it
+        body = "(streamed)";
+      } else if (entity instanceof byte[]) {
+        // JSON from the response cache; only decode what gets logged
+        byte[] bytes = (byte[]) entity;
+        int length = (MAX_LENGTH > 0) ? Math.min(bytes.length, MAX_LENGTH) : bytes.length;
+        body = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        if (length < bytes.length) {
+          body += "... (" + (bytes.length - length) + " more bytes)";
+        }
+      } else {
+        BoundedWriter writer = new BoundedWriter(MAX_LENGTH);
+        try {
+          ObjectMapperHolder.getPrettyWriter().writeValue(writer, entity);
+          body = writer.toString();
+        } catch (IOException e) {
+          // Jackson may wrap the exception, so ask the writer
+          if (writer.isFull()) {
+            body = writer.toString() + "... (truncated)";
+          } else {
+            log.error("JSON Processing Exception Occurred: ", e);
+            body = "(could not be serialized)";
+          }
+        }
+      }
+      log.debug("Service(s) provided: HTTP " + response.getStatus() + "\n" + body);
+    }
+  }
+
+  /**
+   * Collects what is written to it, up to a maximum length, and then
+   * throws, so whoever is writing stops.
+   */
+  private static final class BoundedWriter extends Writer {
+    private final StringBuilder buffer = new StringBuilder();
+    private final int maxLength;
+    private boolean full;
+
+    /**
+     * @param maxLength
+     *          The most characters to collect, or 0 for no limit
+     */
+    BoundedWriter(int maxLength) {
+      this.maxLength = maxLength;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+      int room = (maxLength > 0) ? maxLength - buffer.length() : length;
+      buffer.append(chars, offset, Math.min(room, length));
+      if (room < length) {
+        full = true;
+        throw new IOException("Stopped after " + maxLength + " characters");
+      }
+    }
+
+    boolean isFull() {
+      return full;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+      return buffer.toString();
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import javax.ws.rs.ext.Provider;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+import com.makotojava.learn.jaxrs.util.PersonDaoFactory;
+
+/**
+ * Stops the service's own threads, and closes the data store, when Jersey
+ * shuts the application down (it is undeployed, or the container is
+ * stopping). Otherwise every redeploy would leave the old threads running,
+ * holding on to the old application's classes and writing to the data
+ * store the new one has opened.
+ *
+ * @author sperry
+ *
+ */
+@Provider
+public class ServiceLifecycle implements ContainerLifecycleListener {
+
+  private static final Logger log = Logger.getLogger(ServiceLifecycle.class);
+
+  @Override
+  public void onStartup(Container container) {
+    // The threads start when they're first needed
+  }
+
+  @Override
+  public void onReload(Container container) {
+    // Same classes, so the threads carry on
+  }
+
+  @Override
+  public void onShutdown(Container container) {
+    log.info("Shutting down the service's threads");
+    AsyncRequestExecutor.shutdownInstance();
+    CachingPersonDao.shutdownInstance();
+    PersonDaoFactory.shutdown();
+  }
+
+}
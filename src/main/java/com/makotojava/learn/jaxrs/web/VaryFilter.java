@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Tells caches that a response with validators depends on the Accept
+ * header. The same URL is JSON for one client and
+ * {@value PersonBinaryProvider#APPLICATION_PERSON_BINARY} for another,
+ * and a cache must not hand one to a client that asked for the other.
+ *
+ * The two have different ETags (see {@link EntityTags}). The GETs make
+ * the binary one themselves, as they need it to evaluate If-None-Match,
+ * but a write's response is tagged before Jersey picks its media type, so
+ * a binary one gets its suffix here.
+ *
+ * @author sperry
+ *
+ */
+@Provider
+public class VaryFilter implements ContainerResponseFilter {
+
+  @Override
+  public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+      throws IOException {
+    EntityTag eTag = responseContext.getEntityTag();
+    if (eTag != null && !EntityTags.isBinary(eTag)
+        && PersonBinaryProvider.APPLICATION_PERSON_BINARY_TYPE.isCompatible(responseContext.getMediaType())) {
+      responseContext.getHeaders().putSingle(HttpHeaders.ETAG, EntityTags.binary(eTag));
+    }
+    if (eTag != null || responseContext.getLastModified() != null) {
+      responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+  }
+
+}
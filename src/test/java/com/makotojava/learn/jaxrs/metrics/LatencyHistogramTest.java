@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for testing the LatencyHistogram class.
+ *
+ * @author sperry
+ *
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    //
+    // Every value lands in a bucket whose top is no lower than the value,
+    /// and no more than ~3% higher.
+    long[] values = { 0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+    for (long value : values) {
+      long highest = LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(value));
+      assertTrue(highest >= value);
+      assertTrue(highest - value <= value / 32);
+    }
+  }
+
+  @Test
+  public void testQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtQuantile(0.99));
+    for (long aa = 1; aa <= 1000; aa++) {
+      histogram.record(aa * 1000);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500500000L, histogram.getSum());
+    assertWithin(500000, histogram.getValueAtQuantile(0.5));
+    assertWithin(990000, histogram.getValueAtQuantile(0.99));
+    assertWithin(1000000, histogram.getValueAtQuantile(1.0));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("Expected about " + expected + " but was " + actual,
+        actual >= expected && actual <= expected + expected / 32);
+  }
+
+}
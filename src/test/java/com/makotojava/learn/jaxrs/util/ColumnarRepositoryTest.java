@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the ColumnarRepository class.
+ *
+ * @author sperry
+ *
+ */
+public class ColumnarRepositoryTest {
+
+  private static final Logger log = Logger.getLogger(ColumnarRepositoryTest.class);
+
+  private ColumnarRepository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new ColumnarRepository();
+    for (int aa = 0; aa < 10; aa++) {
+      repository.addPerson(PersonGenerator.createPerson());
+    }
+  }
+
+  @Test
+  public void testAddFindUpdateDelete() {
+    log.info("*** BEGIN TEST ***");
+    long repositorySizeOriginal = repository.getRepositorySize();
+    Person added = repository.addPerson(new Person("Column", "Carla", 300, EyeColor.GREEN, Gender.FEMALE));
+    assertNotNull(added.getId());
+    assertNotNull(added.getWhenCreated());
+    assertEquals(repositorySizeOriginal + 1, repository.getRepositorySize());
+    Person found = repository.findById(added.getId());
+    assertEquals(added, found);
+    assertEquals(added.getWhenCreated(), found.getWhenCreated());
+    assertEquals(added.getId(), repository.findEqual(new Person(added)).getId());
+    assertEquals(added.getId(), repository.addPerson(new Person(added)).getId());
+    assertEquals(repositorySizeOriginal + 1, repository.getRepositorySize());
+    assertNull(repository.findEqual(new Person("Column", "Carla", 301, EyeColor.GREEN, Gender.FEMALE)));
+    assertNull(repository.findEqual(new Person("Nobody", "Carla", 300, EyeColor.GREEN, Gender.FEMALE)));
+    //
+    // Update, including the last name
+    found.setLastName("Row");
+    Person updated = repository.updatePerson(found);
+    assertEquals("Row", updated.getLastName());
+    assertEquals(added.getWhenCreated(), updated.getWhenCreated());
+    assertEquals(1L, (long) added.getVersion());
+    assertEquals(2L, (long) updated.getVersion());
+    assertFalse(updated.getWhenModified().before(added.getWhenModified()));
+    assertTrue(repository.findAllByLastName("Column").isEmpty());
+    assertEquals(1, repository.findAllByLastName("ROW").size());
+    //
+    // Delete
+    assertNotNull(repository.deletePerson(updated));
+    assertNull(repository.findById(added.getId()));
+    assertNull(repository.deletePerson(updated));
+    assertEquals(repositorySizeOriginal, repository.getRepositorySize());
+    assertTrue(repository.findAllByLastName("Row").isEmpty());
+    assertFalse(repository.iterateAllByLastName("Row").hasNext());
+    assertNull(repository.findById(0L));
+    assertNull(repository.findById(Long.MAX_VALUE));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testBatch() {
+    log.info("*** BEGIN TEST ***");
+    List<Person> added = repository.addPersons(Arrays.asList(
+        new Person("Batch", "One", 1, EyeColor.BLUE, Gender.MALE), null,
+        new Person("Batch", "Two", 2, null, null)));
+    assertNotNull(added.get(0));
+    assertNull(added.get(1));
+    assertNull(added.get(2).getEyeColor());
+    assertEquals(2, repository.findAllByLastName("batch").size());
+    List<Person> deleted = repository.deletePersons(added);
+    assertNotNull(deleted.get(0));
+    assertNull(deleted.get(1));
+    assertTrue(repository.findAllByLastName("batch").isEmpty());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindByQuery() {
+    log.info("*** BEGIN TEST ***");
+    for (int aa = 0; aa < 200; aa++) {
+      repository.addPerson(new Person("Query", "Person" + aa, aa % 60, EyeColor.values()[aa % 7],
+          (aa % 3 == 0) ? null : Gender.values()[aa % 2]));
+    }
+    repository.deletePerson(repository.findById(20L));
+    PersonQuery[] queries = {
+        new PersonQuery().setMinAge(30).setMaxAge(40).setEyeColor(EyeColor.BLUE).setGender(Gender.FEMALE),
+        new PersonQuery().setLastName("query").setFirstName("PERSON42"),
+        new PersonQuery().setMaxAge(5).setGender(Gender.MALE),
+        new PersonQuery().setLastName("Nobody"),
+        new PersonQuery(),
+    };
+    for (PersonQuery query : queries) {
+      List<Person> expected = new ArrayList<>();
+      for (Person person : repository.findAll()) {
+        if (query.matches(person)) {
+          expected.add(person);
+        }
+      }
+      assertEquals(query.toString(), expected, repository.findByQuery(query));
+    }
+    assertEquals(1, repository.findByQuery(queries[1]).size());
+    long male = 0;
+    for (Person person : repository.findAll()) {
+      male += (person.getGender() == Gender.MALE) ? 1 : 0;
+    }
+    assertEquals(male, (long) repository.countByGender().get(Gender.MALE));
+    assertEquals(EyeColor.values().length, repository.countByEyeColor().size());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testPagingAndIterating() {
+    log.info("*** BEGIN TEST ***");
+    //
+    // Grow past the initial column capacity
+    for (int aa = 0; aa < 3000; aa++) {
+      repository.addPerson(new Person("Grow", "Person" + aa, aa % 90, EyeColor.BROWN, Gender.FEMALE));
+    }
+    repository.deletePerson(repository.findById(3L));
+    List<Person> all = repository.findAll();
+    assertEquals(repository.getRepositorySize(), all.size());
+    List<Person> paged = new ArrayList<>();
+    Long afterId = null;
+    List<Person> page;
+    while (!(page = repository.findPage(afterId, 0, 500)).isEmpty()) {
+      paged.addAll(page);
+      afterId = page.get(page.size() - 1).getId();
+    }
+    assertEquals(all, paged);
+    List<Person> iterated = new ArrayList<>();
+    for (Iterator<Person> iterator = repository.iterateAll(); iterator.hasNext();) {
+      iterated.add(iterator.next());
+    }
+    assertEquals(all, iterated);
+    List<Person> byLastName = new ArrayList<>();
+    for (Iterator<Person> iterator = repository.iterateAllByLastName("GROW"); iterator.hasNext();) {
+      byLastName.add(iterator.next());
+    }
+    assertEquals(3000, byLastName.size());
+    assertEquals(repository.findAllByLastName("grow"), byLastName);
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentAddsAndReads() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final int threads = 8;
+    final int personsPerThread = 2000;
+    long repositorySizeOriginal = repository.getRepositorySize();
+    ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+    for (int aa = 0; aa < threads; aa++) {
+      final int thread = aa;
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, bb, EyeColor.BROWN, Gender.MALE));
+        }
+      });
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          Person person = repository.findById((long) bb + 1);
+          if (person != null) {
+            assertNotNull(person.getLastName());
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(repositorySizeOriginal + threads * personsPerThread, repository.getRepositorySize());
+    assertEquals(personsPerThread, repository.findAllByLastName("Thread0").size());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConditionalUpdateAndDelete() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(new Person("Optimist", "Olive", 40, EyeColor.HAZEL, Gender.FEMALE));
+    person.setAge(41);
+    Person updated = repository.updatePerson(person, 1L);
+    assertEquals(2L, (long) updated.getVersion());
+    assertEquals(41, updated.getAge());
+    //
+    // Whoever still thinks it's at version 1 loses, and learns what it's at now
+    person.setAge(42);
+    try {
+      repository.updatePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertEquals(41, repository.findById(person.getId()).getAge());
+    try {
+      repository.deletePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertNotNull(repository.findById(person.getId()));
+    assertNotNull(repository.deletePerson(person, 2L));
+    assertNull(repository.findById(person.getId()));
+    assertNull(repository.updatePerson(person, 2L));
+    assertNull(repository.deletePerson(person, 2L));
+    log.info("*** END TEST ***");
+  }
+
+}
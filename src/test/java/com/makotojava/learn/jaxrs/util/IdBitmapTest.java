@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * JUnit test class for testing the IdBitmap class.
+ *
+ * @author sperry
+ *
+ */
+public class IdBitmapTest {
+
+  private static final Logger log = Logger.getLogger(IdBitmapTest.class);
+
+  @Test
+  public void testAddRemoveContains() {
+    log.info("*** BEGIN TEST ***");
+    IdBitmap bitmap = new IdBitmap();
+    assertTrue(bitmap.isEmpty());
+    assertTrue(bitmap.add(1));
+    assertFalse(bitmap.add(1));
+    assertTrue(bitmap.add(70000));
+    assertTrue(bitmap.add(IdBitmap.MAX_ID));
+    assertTrue(bitmap.contains(70000));
+    assertFalse(bitmap.contains(2));
+    assertFalse(bitmap.contains(-1));
+    assertEquals(3, bitmap.cardinality());
+    assertTrue(bitmap.remove(70000));
+    assertFalse(bitmap.remove(70000));
+    assertEquals(Arrays.asList(1L, IdBitmap.MAX_ID), listOf(bitmap));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testAgainstTreeSet() {
+    log.info("*** BEGIN TEST ***");
+    Random random = new Random(42);
+    IdBitmap sparse = new IdBitmap();
+    IdBitmap dense = new IdBitmap();
+    TreeSet<Long> sparseIds = new TreeSet<>();
+    TreeSet<Long> denseIds = new TreeSet<>();
+    //
+    // Dense enough that chunks turn into bitmaps, and back as they're removed
+    for (int aa = 0; aa < 200000; aa++) {
+      long id = random.nextInt(1 << 18);
+      if (aa % 3 == 0) {
+        assertEquals(sparseIds.add(id * 7), sparse.add(id * 7));
+      }
+      if (random.nextInt(4) == 0) {
+        assertEquals(denseIds.remove(id), dense.remove(id));
+      } else {
+        assertEquals(denseIds.add(id), dense.add(id));
+      }
+    }
+    assertEquals(denseIds.size(), dense.cardinality());
+    assertEquals(new ArrayList<>(denseIds), listOf(dense));
+    assertEquals(new ArrayList<>(sparseIds), listOf(sparse));
+    TreeSet<Long> both = new TreeSet<>(denseIds);
+    both.retainAll(sparseIds);
+    assertEquals(both.size(), dense.andCardinality(sparse));
+    assertEquals(both.size(), sparse.andCardinality(dense));
+    assertEquals(new ArrayList<>(both), listOf(dense.and(sparse)));
+    assertEquals(new ArrayList<>(both), listOf(sparse.and(dense)));
+    assertEquals(new ArrayList<>(denseIds), listOf(dense.and(dense.copy())));
+    //
+    // A copy doesn't see changes to the original
+    IdBitmap copy = dense.copy();
+    dense.remove(denseIds.first());
+    assertEquals(denseIds.size(), copy.cardinality());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testDraftLeavesBitmapAlone() {
+    log.info("*** BEGIN TEST ***");
+    Random random = new Random(7);
+    IdBitmap bitmap = new IdBitmap();
+    TreeSet<Long> ids = new TreeSet<>();
+    for (int aa = 0; aa < 100000; aa++) {
+      long id = random.nextInt(1 << 18);
+      ids.add(id);
+      bitmap.add(id);
+    }
+    List<Long> before = listOf(bitmap);
+    //
+    // Enough changes to every chunk to turn bitmap containers into arrays
+    /// and back, and to add and empty whole chunks
+    IdBitmap.Draft draft = new IdBitmap.Draft(bitmap);
+    TreeSet<Long> drafted = new TreeSet<>(ids);
+    for (int aa = 0; aa < 300000; aa++) {
+      long id = random.nextInt(5 << 16);
+      if (random.nextInt(3) == 0) {
+        drafted.add(id);
+        draft.add(id);
+      } else {
+        drafted.remove(id);
+        draft.remove(id);
+      }
+    }
+    IdBitmap changed = draft.toBitmap();
+    assertEquals(new ArrayList<>(drafted), listOf(changed));
+    assertEquals(drafted.size(), changed.cardinality());
+    assertEquals(before, listOf(bitmap));
+    assertEquals(ids.size(), bitmap.cardinality());
+    //
+    // Nor does a draft of the changed bitmap change it
+    IdBitmap.Draft again = new IdBitmap.Draft(changed);
+    again.remove(drafted.first());
+    again.add(IdBitmap.MAX_ID);
+    assertEquals(new ArrayList<>(drafted), listOf(changed));
+    assertEquals(drafted.size(), again.toBitmap().cardinality());
+    log.info("*** END TEST ***");
+  }
+
+  private static List<Long> listOf(IdBitmap bitmap) {
+    List<Long> ret = new ArrayList<>();
+    for (PrimitiveIterator.OfLong iterator = bitmap.iterator(); iterator.hasNext();) {
+      ret.add(iterator.nextLong());
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the IndexedRepository class.
+ *
+ * @author sperry
+ *
+ */
+public class IndexedRepositoryTest {
+
+  private static final Logger log = Logger.getLogger(IndexedRepositoryTest.class);
+
+  private IndexedRepository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new IndexedRepository();
+    for (int aa = 0; aa < 10; aa++) {
+      repository.addPerson(PersonGenerator.createPerson());
+    }
+  }
+
+  @Test
+  public void testFindAll() {
+    log.info("*** BEGIN TEST ***");
+    List<Person> results = repository.findAll();
+    assertEquals(repository.getRepositorySize(), results.size());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindPage() {
+    log.info("*** BEGIN TEST ***");
+    List<Person> all = repository.findAll();
+    //
+    // Walk the store a page at a time and make sure we see everything, in order
+    List<Person> paged = new ArrayList<>();
+    Long afterId = null;
+    List<Person> page;
+    while (!(page = repository.findPage(afterId, 0, 3)).isEmpty()) {
+      paged.addAll(page);
+      afterId = page.get(page.size() - 1).getId();
+    }
+    assertEquals(all.size(), paged.size());
+    for (int aa = 0; aa < all.size(); aa++) {
+      assertEquals(all.get(aa).getId(), paged.get(aa).getId());
+    }
+    //
+    // Offsets skip from the start (or the cursor)
+    assertEquals(all.get(2).getId(), repository.findPage(null, 2, 1).get(0).getId());
+    assertEquals(all.get(4).getId(), repository.findPage(all.get(1).getId(), 2, 1).get(0).getId());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindAllByLastName() {
+    log.info("*** BEGIN TEST ***");
+    Person personToSearch = repository.findAll().get(0);
+    //
+    // The search is case-insensitive
+    List<Person> results = repository.findAllByLastName(personToSearch.getLastName().toUpperCase());
+    assertFalse(results.isEmpty());
+    for (Person person : results) {
+      assertTrue(personToSearch.getLastName().equalsIgnoreCase(person.getLastName()));
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindByQuery() {
+    log.info("*** BEGIN TEST ***");
+    for (int aa = 0; aa < 500; aa++) {
+      repository.addPerson(new Person((aa % 50 == 0) ? "Rare" : "Common", "Person" + aa, 20 + aa % 40,
+          EyeColor.values()[aa % EyeColor.values().length], Gender.values()[aa % 2]));
+    }
+    PersonQuery[] queries = {
+        new PersonQuery().setMinAge(30).setMaxAge(40).setEyeColor(EyeColor.BLUE).setGender(Gender.FEMALE),
+        new PersonQuery().setLastName("RARE").setGender(Gender.MALE),
+        new PersonQuery().setMinAge(25).setMaxAge(25),
+        new PersonQuery().setFirstName("person7").setLastName("common"),
+        new PersonQuery().setEyeColor(EyeColor.HAZEL),
+        new PersonQuery(),
+    };
+    for (PersonQuery query : queries) {
+      List<Person> expected = new ArrayList<>();
+      for (Person person : repository.findAll()) {
+        if (query.matches(person)) {
+          expected.add(person);
+        }
+      }
+      assertEquals(query.toString(), expected, repository.findByQuery(query));
+    }
+    //
+    // The planner picks the most selective index
+    assertEquals(IndexedRepository.Plan.LAST_NAME, repository.plan(queries[1]));
+    assertEquals(IndexedRepository.Plan.AGE, repository.plan(queries[2]));
+    assertEquals(IndexedRepository.Plan.BITMAP,
+        repository.plan(new PersonQuery().setEyeColor(EyeColor.BLUE).setGender(Gender.FEMALE)));
+    assertEquals(IndexedRepository.Plan.BITMAP, repository.plan(new PersonQuery().setGender(Gender.MALE)));
+    assertEquals(IndexedRepository.Plan.SCAN, repository.plan(queries[5]));
+    assertEquals(IndexedRepository.Plan.NONE, repository.plan(new PersonQuery().setLastName("Nobody")));
+    assertEquals(IndexedRepository.Plan.NONE, repository.plan(new PersonQuery().setMinAge(50).setMaxAge(40)));
+    assertTrue(repository.findByQuery(new PersonQuery().setMinAge(50).setMaxAge(40)).isEmpty());
+    //
+    // Updates and deletes move the index entries
+    Person person = repository.findByQuery(new PersonQuery().setFirstName("Person0")).get(0);
+    person.setAge(99);
+    person.setEyeColor(EyeColor.BLACK);
+    repository.updatePerson(person);
+    assertEquals(Arrays.asList(person),
+        repository.findByQuery(new PersonQuery().setMinAge(99).setEyeColor(EyeColor.BLACK)));
+    repository.deletePerson(person);
+    assertTrue(repository.findByQuery(new PersonQuery().setMinAge(99).setEyeColor(EyeColor.BLACK)).isEmpty());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testCounts() {
+    log.info("*** BEGIN TEST ***");
+    repository.addPerson(new Person("Count", "Nobody", 1, null, null));
+    Person person = repository.addPerson(new Person("Count", "Blue", 2, EyeColor.BLUE, Gender.FEMALE));
+    long blue = 0;
+    long female = 0;
+    for (Person each : repository.findAll()) {
+      blue += (each.getEyeColor() == EyeColor.BLUE) ? 1 : 0;
+      female += (each.getGender() == Gender.FEMALE) ? 1 : 0;
+    }
+    Map<EyeColor, Long> eyeColors = repository.countByEyeColor();
+    assertEquals(EyeColor.values().length, eyeColors.size());
+    assertEquals(blue, (long) eyeColors.get(EyeColor.BLUE));
+    long counted = 0;
+    for (Long count : eyeColors.values()) {
+      counted += count;
+    }
+    // The Person with no eye color isn't counted
+    assertEquals(repository.getRepositorySize() - 1, counted);
+    assertEquals(female, (long) repository.countByGender().get(Gender.FEMALE));
+    //
+    // Updates and deletes move the bitmap bits
+    person.setEyeColor(EyeColor.GOLD);
+    repository.updatePerson(person);
+    assertEquals(blue - 1, (long) repository.countByEyeColor().get(EyeColor.BLUE));
+    repository.deletePerson(person);
+    assertEquals(female - 1, (long) repository.countByGender().get(Gender.FEMALE));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testReadersDoNotWaitForWriters() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(new Person("Reader", "Rita", 33, EyeColor.GREEN, Gender.FEMALE));
+    Map<EyeColor, Long> eyeColors = repository.countByEyeColor();
+    PersonQuery query = new PersonQuery().setEyeColor(EyeColor.GREEN).setGender(Gender.FEMALE);
+    List<Person> found = repository.findByQuery(query);
+    //
+    // Hold the write lock, as a writer in the middle of a batch would, and
+    /// read from another thread
+    Field writeLock = IndexedRepository.class.getDeclaredField("writeLock");
+    writeLock.setAccessible(true);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      synchronized (writeLock.get(repository)) {
+        assertEquals(person, executor.submit(() -> repository.findEqual(person)).get(10, TimeUnit.SECONDS));
+        assertEquals(eyeColors, executor.submit(() -> repository.countByEyeColor()).get(10, TimeUnit.SECONDS));
+        assertEquals(found, executor.submit(() -> repository.findByQuery(query)).get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindById() {
+    log.info("*** BEGIN TEST ***");
+    assertNotNull(repository.findById(1L));
+    Person personAdded =
+        repository.addPerson(new Person("lastName", "firstName", 100, EyeColor.UNKNOWN, Gender.UNKNOWN));
+    Person personById = repository.findById(personAdded.getId());
+    assertNotNull(personById);
+    assertEquals(personAdded.getId(), personById.getId());
+    assertNull(repository.findById(Long.MAX_VALUE));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testAddPersonTwice() {
+    log.info("*** BEGIN TEST ***");
+    Person person = new Person("Twice", "Added", 42, EyeColor.BLUE, Gender.FEMALE);
+    assertNull(repository.findEqual(person));
+    Person first = repository.addPerson(person);
+    long repositorySize = repository.getRepositorySize();
+    Person second = repository.addPerson(person);
+    //
+    // Adding the same Person again sends back the one already there
+    assertEquals(first.getId(), second.getId());
+    assertEquals(first.getId(), repository.findEqual(person).getId());
+    assertEquals(repositorySize, repository.getRepositorySize());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testUpdatePerson() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(PersonGenerator.createPerson());
+    assertEquals(1L, (long) person.getVersion());
+    assertEquals(person.getWhenCreated(), person.getWhenModified());
+    long storeVersion = repository.getVersion();
+    String lastNameModified = person.getLastName() + "MOD";
+    person.setLastName(lastNameModified);
+    Person personModified = repository.updatePerson(person);
+    assertEquals(person.getId(), personModified.getId());
+    assertEquals(lastNameModified, personModified.getLastName());
+    assertEquals(lastNameModified, repository.findById(person.getId()).getLastName());
+    assertEquals(2L, (long) repository.findById(person.getId()).getVersion());
+    assertFalse(personModified.getWhenModified().before(person.getWhenCreated()));
+    assertTrue(repository.getVersion() > storeVersion);
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testUpdatePersonMovesLastNameIndexEntry() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(new Person("Before", "Renamed", 21, EyeColor.GREEN, Gender.MALE));
+    person.setLastName("After");
+    repository.updatePerson(person);
+    assertTrue(repository.findAllByLastName("Before").isEmpty());
+    List<Person> results = repository.findAllByLastName("after");
+    assertEquals(1, results.size());
+    assertEquals(person.getId(), results.get(0).getId());
+    //
+    // Deleting removes the index entry too
+    repository.deletePerson(person);
+    assertTrue(repository.findAllByLastName("After").isEmpty());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testReturnedCopiesDoNotLeak() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(PersonGenerator.createPerson());
+    String lastNameOriginal = person.getLastName();
+    //
+    // Modifying what we got back must not modify what's in the store
+    person.setLastName(lastNameOriginal + "MOD");
+    assertEquals(lastNameOriginal, repository.findById(person.getId()).getLastName());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testDeletePerson() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(PersonGenerator.createPerson());
+    Person personDeleted = repository.deletePerson(person);
+    assertNotNull(personDeleted);
+    assertEquals(person.getId(), personDeleted.getId());
+    assertNull(repository.findById(personDeleted.getId()));
+    assertNull(repository.deletePerson(person));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testBatchOperations() {
+    log.info("*** BEGIN TEST ***");
+    long repositorySizeOriginal = repository.getRepositorySize();
+    Person first = new Person("Batch", "First", 20, EyeColor.BLUE, Gender.MALE);
+    Person second = new Person("Batch", "Second", 30, EyeColor.GREEN, Gender.FEMALE);
+    //
+    // The duplicate in the batch gets back the Person added first
+    List<Person> added = repository.addPersons(Arrays.asList(first, second, first));
+    assertEquals(3, added.size());
+    assertEquals(added.get(0).getId(), added.get(2).getId());
+    assertEquals(repositorySizeOriginal + 2, repository.getRepositorySize());
+    //
+    // Results line up with the batch; the unknown ID gets a null
+    List<Person> toUpdate = new ArrayList<>(added.subList(0, 2));
+    toUpdate.get(0).setAge(21);
+    toUpdate.add(new Person("Batch", "Unknown", 40, EyeColor.GOLD, Gender.UNKNOWN).setId(Long.MAX_VALUE));
+    List<Person> updated = repository.updatePersons(toUpdate);
+    assertEquals(21, updated.get(0).getAge());
+    assertNotNull(updated.get(1));
+    assertNull(updated.get(2));
+    List<Person> deleted = repository.deletePersons(toUpdate);
+    assertNotNull(deleted.get(0));
+    assertNotNull(deleted.get(1));
+    assertNull(deleted.get(2));
+    assertEquals(repositorySizeOriginal, repository.getRepositorySize());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testIdsNotReusedAfterDelete() {
+    log.info("*** BEGIN TEST ***");
+    Person deleted = repository.deletePerson(repository.addPerson(PersonGenerator.createPerson()));
+    Person added = repository.addPerson(new Person("After", "Delete", 33, EyeColor.HAZEL, Gender.FEMALE));
+    assertTrue(added.getId() > deleted.getId());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentAddsWithIdBlocks() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    repository = new IndexedRepository(new IdAllocator(64));
+    testConcurrentAdds();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final int threads = 8;
+    final int personsPerThread = 500;
+    long repositorySizeOriginal = repository.getRepositorySize();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int aa = 0; aa < threads; aa++) {
+      final int thread = aa;
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          // Every Person is unique, so every add adds
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, 30, EyeColor.BROWN, Gender.MALE));
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(repositorySizeOriginal + threads * personsPerThread, repository.getRepositorySize());
+    //
+    // No two Person objects share an ID
+    Set<Long> ids = new HashSet<>();
+    for (Person person : repository.findAll()) {
+      assertTrue(ids.add(person.getId()));
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConditionalUpdateAndDelete() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(new Person("Optimist", "Olive", 40, EyeColor.HAZEL, Gender.FEMALE));
+    person.setAge(41);
+    Person updated = repository.updatePerson(person, 1L);
+    assertEquals(2L, (long) updated.getVersion());
+    assertEquals(41, updated.getAge());
+    //
+    // Whoever still thinks it's at version 1 loses, and learns what it's at now
+    person.setAge(42);
+    try {
+      repository.updatePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertEquals(41, repository.findById(person.getId()).getAge());
+    try {
+      repository.deletePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertNotNull(repository.findById(person.getId()));
+    assertNotNull(repository.deletePerson(person, 2L));
+    assertNull(repository.findById(person.getId()));
+    assertNull(repository.updatePerson(person, 2L));
+    assertNull(repository.deletePerson(person, 2L));
+    log.info("*** END TEST ***");
+  }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the MappedRepository class.
+ *
+ * @author sperry
+ *
+ */
+public class MappedRepositoryTest {
+
+  private static final Logger log = Logger.getLogger(MappedRepositoryTest.class);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+
+  private MappedRepository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = temporaryFolder.newFolder("data");
+    repository = MappedRepository.open(directory);
+    for (int aa = 0; aa < 10; aa++) {
+      repository.addPerson(PersonGenerator.createPerson());
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    repository.close();
+  }
+
+  @Test
+  public void testAddFindUpdateDelete() {
+    log.info("*** BEGIN TEST ***");
+    long repositorySizeOriginal = repository.getRepositorySize();
+    Person added = repository.addPerson(new Person("Mapped", "Mary", 42, EyeColor.GREEN, Gender.FEMALE));
+    assertNotNull(added.getId());
+    assertNotNull(added.getWhenCreated());
+    assertEquals(repositorySizeOriginal + 1, repository.getRepositorySize());
+    Person found = repository.findById(added.getId());
+    assertEquals(added, found);
+    assertEquals(added.getWhenCreated(), found.getWhenCreated());
+    //
+    // Adding the same Person again gets the one already there
+    assertEquals(added.getId(), repository.addPerson(new Person(added)).getId());
+    assertEquals(repositorySizeOriginal + 1, repository.getRepositorySize());
+    //
+    // Changing a returned Person changes nothing in the store
+    found.setFirstName("Changed");
+    assertEquals("Mary", repository.findById(added.getId()).getFirstName());
+    //
+    // Update, including the last name
+    found.setLastName("Remapped");
+    Person updated = repository.updatePerson(found);
+    assertEquals("Remapped", updated.getLastName());
+    assertEquals(added.getWhenCreated(), updated.getWhenCreated());
+    assertTrue(repository.findAllByLastName("Mapped").isEmpty());
+    assertEquals(1, repository.findAllByLastName("REMAPPED").size());
+    //
+    // Delete
+    assertNotNull(repository.deletePerson(updated));
+    assertNull(repository.findById(added.getId()));
+    assertNull(repository.deletePerson(updated));
+    assertEquals(repositorySizeOriginal, repository.getRepositorySize());
+    assertTrue(repository.findAllByLastName("Remapped").isEmpty());
+    assertNull(repository.findById(0L));
+    assertNull(repository.findById(Long.MAX_VALUE));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testNullAttributes() {
+    log.info("*** BEGIN TEST ***");
+    Person added = repository.addPerson(new Person(null, null, 0, null, null));
+    Person found = repository.findById(added.getId());
+    assertNull(found.getLastName());
+    assertNull(found.getFirstName());
+    assertNull(found.getEyeColor());
+    assertNull(found.getGender());
+    assertEquals(added, found);
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testAgeOutOfRange() {
+    log.info("*** BEGIN TEST ***");
+    Person old = new Person("Old", "Ollie", 256, EyeColor.BLUE, Gender.MALE);
+    long size = repository.getRepositorySize();
+    assertNull(repository.addPerson(old));
+    assertNull(repository.findEqual(old));
+    //
+    // Only the Person that doesn't fit is left out of a batch
+    List<Person> batch = new ArrayList<>();
+    batch.add(new Person("Young", "Yolanda", 25, EyeColor.GREEN, Gender.FEMALE));
+    batch.add(old);
+    batch.add(new Person("Young", "Yusuf", 255, EyeColor.BROWN, Gender.MALE));
+    List<Person> added = repository.addPersons(batch);
+    assertEquals(batch.get(0), added.get(0));
+    assertNull(added.get(1));
+    assertEquals(batch.get(2), added.get(2));
+    assertEquals(size + 2, repository.getRepositorySize());
+    //
+    // And the same goes for updates
+    Person tooYoung = new Person(added.get(0));
+    tooYoung.setAge(-1);
+    assertNull(repository.updatePerson(tooYoung));
+    Person older = new Person(added.get(2));
+    older.setFirstName("Yves");
+    List<Person> updated = repository.updatePersons(Arrays.asList(tooYoung, older));
+    assertNull(updated.get(0));
+    assertEquals(older, updated.get(1));
+    assertEquals(added.get(0), repository.findById(added.get(0).getId()));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testPagingAndIterating() {
+    log.info("*** BEGIN TEST ***");
+    repository.deletePerson(repository.findById(3L));
+    List<Person> all = repository.findAll();
+    assertEquals(repository.getRepositorySize(), all.size());
+    List<Person> paged = new ArrayList<>();
+    Long afterId = null;
+    List<Person> page;
+    while (!(page = repository.findPage(afterId, 0, 4)).isEmpty()) {
+      paged.addAll(page);
+      afterId = page.get(page.size() - 1).getId();
+    }
+    assertEquals(all, paged);
+    List<Person> iterated = new ArrayList<>();
+    for (Iterator<Person> iterator = repository.iterateAll(); iterator.hasNext();) {
+      iterated.add(iterator.next());
+    }
+    assertEquals(all, iterated);
+    String lastName = all.get(0).getLastName();
+    Iterator<Person> byLastName = repository.iterateAllByLastName(lastName.toUpperCase());
+    int count = 0;
+    while (byLastName.hasNext()) {
+      assertEquals(lastName, byLastName.next().getLastName());
+      count++;
+    }
+    assertEquals(repository.findAllByLastName(lastName).size(), count);
+    assertFalse(repository.iterateAllByLastName("NoSuchName").hasNext());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    Person kept = repository.addPerson(new Person("Kept", "Karen", 40, EyeColor.GREEN, Gender.FEMALE));
+    kept.setAge(41);
+    kept = repository.updatePerson(kept);
+    Person deleted = repository.deletePerson(repository.addPerson(new Person("Gone", "Gary", 50, EyeColor.BLUE,
+        Gender.MALE)));
+    List<Person> all = repository.findAll();
+    repository.close();
+
+    repository = MappedRepository.open(directory);
+    assertEquals(all, repository.findAll());
+    assertEquals(kept.getWhenCreated(), repository.findById(kept.getId()).getWhenCreated());
+    assertEquals(2L, (long) repository.findById(kept.getId()).getVersion());
+    assertEquals(kept.getWhenModified(), repository.findById(kept.getId()).getWhenModified());
+    assertNull(repository.findById(deleted.getId()));
+    assertEquals(1, repository.findAllByLastName("kept").size());
+    // Duplicates are still spotted, and IDs aren't reused
+    assertEquals(kept.getId(), repository.findEqual(new Person(kept)).getId());
+    assertEquals(kept.getId(), repository.addPerson(new Person(kept)).getId());
+    Person added = repository.addPerson(new Person("New", "Nora", 20, EyeColor.HAZEL, Gender.FEMALE));
+    assertTrue(added.getId() > deleted.getId());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testQueriesAndCounts() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    for (int aa = 0; aa < 300; aa++) {
+      repository.addPerson(new Person((aa % 30 == 0) ? "Few" : "Many", "Person" + aa, aa % 80,
+          EyeColor.values()[aa % 7], (aa % 5 == 0) ? null : Gender.values()[aa % 3]));
+    }
+    Person person = repository.findAllByLastName("Few").get(0);
+    person.setEyeColor(EyeColor.HAZEL);
+    person.setGender(Gender.UNKNOWN);
+    repository.updatePerson(person);
+    repository.deletePerson(repository.findAllByLastName("Many").get(0));
+    checkQueriesAndCounts();
+    //
+    // The bitmaps are rebuilt from the file
+    repository.close();
+    repository = MappedRepository.open(directory);
+    checkQueriesAndCounts();
+    log.info("*** END TEST ***");
+  }
+
+  private void checkQueriesAndCounts() {
+    PersonQuery[] queries = {
+        new PersonQuery().setEyeColor(EyeColor.BLUE).setGender(Gender.FEMALE),
+        new PersonQuery().setLastName("FEW").setEyeColor(EyeColor.HAZEL),
+        new PersonQuery().setLastName("many").setGender(Gender.MALE).setMinAge(10).setMaxAge(20),
+        new PersonQuery().setMinAge(70),
+        new PersonQuery().setLastName("Nobody").setGender(Gender.MALE),
+    };
+    List<Person> all = repository.findAll();
+    for (PersonQuery query : queries) {
+      List<Person> expected = new ArrayList<>();
+      for (Person person : all) {
+        if (query.matches(person)) {
+          expected.add(person);
+        }
+      }
+      assertEquals(query.toString(), expected, repository.findByQuery(query));
+    }
+    Map<EyeColor, Long> eyeColors = new EnumMap<>(EyeColor.class);
+    Map<Gender, Long> genders = new EnumMap<>(Gender.class);
+    for (EyeColor eyeColor : EyeColor.values()) {
+      eyeColors.put(eyeColor, 0L);
+    }
+    for (Gender gender : Gender.values()) {
+      genders.put(gender, 0L);
+    }
+    for (Person person : all) {
+      if (person.getEyeColor() != null) {
+        eyeColors.merge(person.getEyeColor(), 1L, Long::sum);
+      }
+      if (person.getGender() != null) {
+        genders.merge(person.getGender(), 1L, Long::sum);
+      }
+    }
+    assertEquals(eyeColors, repository.countByEyeColor());
+    assertEquals(genders, repository.countByGender());
+    assertEquals(all.size(), repository.getStats().getCount());
+    assertEquals(eyeColors, repository.getStats().getByEyeColor());
+    assertEquals(genders, repository.getStats().getByGender());
+    assertEquals(10L, (long) repository.countByLastName().get("Few"));
+  }
+
+  @Test
+  public void testConcurrentAddsAndReads() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final int threads = 8;
+    final int personsPerThread = 2000;
+    long repositorySizeOriginal = repository.getRepositorySize();
+    ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+    for (int aa = 0; aa < threads; aa++) {
+      final int thread = aa;
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, bb % 100, EyeColor.BROWN, Gender.MALE));
+        }
+      });
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          Person person = repository.findById((long) bb + 1);
+          if (person != null) {
+            assertNotNull(person.getLastName());
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(repositorySizeOriginal + threads * personsPerThread, repository.getRepositorySize());
+    assertEquals(personsPerThread, repository.findAllByLastName("Thread0").size());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConditionalUpdateAndDelete() {
+    log.info("*** BEGIN TEST ***");
+    Person person = repository.addPerson(new Person("Optimist", "Olive", 40, EyeColor.HAZEL, Gender.FEMALE));
+    person.setAge(41);
+    Person updated = repository.updatePerson(person, 1L);
+    assertEquals(2L, (long) updated.getVersion());
+    assertEquals(41, updated.getAge());
+    //
+    // Whoever still thinks it's at version 1 loses, and learns what it's at now
+    person.setAge(42);
+    try {
+      repository.updatePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertEquals(41, repository.findById(person.getId()).getAge());
+    try {
+      repository.deletePerson(person, 1L);
+      fail("Expected a VersionConflictException");
+    } catch (VersionConflictException e) {
+      assertEquals(2L, (long) e.getCurrent().getVersion());
+    }
+    assertNotNull(repository.findById(person.getId()));
+    assertNotNull(repository.deletePerson(person, 2L));
+    assertNull(repository.findById(person.getId()));
+    assertNull(repository.updatePerson(person, 2L));
+    assertNull(repository.deletePerson(person, 2L));
+    log.info("*** END TEST ***");
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit test class for testing the NameDictionary class.
+ *
+ * @author sperry
+ *
+ */
+public class NameDictionaryTest {
+
+  private static final Logger log = Logger.getLogger(NameDictionaryTest.class);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testCodes() {
+    log.info("*** BEGIN TEST ***");
+    NameDictionary names = new NameDictionary();
+    int smith = names.codeOf("Smith");
+    assertEquals(smith, names.codeOf(new String("Smith")));
+    assertEquals(smith, names.findCode("Smith"));
+    assertEquals("Smith", names.nameOf(smith));
+    assertNotEquals(smith, names.codeOf("Jones"));
+    assertEquals(NameDictionary.NOT_FOUND, names.findCode("Nobody"));
+    assertEquals(NameDictionary.NULL_CODE, names.codeOf(null));
+    assertNull(names.nameOf(NameDictionary.NULL_CODE));
+    //
+    // Interned names are the same instance
+    assertSame(names.intern("Smith"), names.intern(new String("Smith")));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFoldedCodes() {
+    log.info("*** BEGIN TEST ***");
+    NameDictionary names = new NameDictionary();
+    int upper = names.codeOf("SMITH");
+    int mixed = names.codeOf("Smith");
+    // Nothing's been folded yet, so there's nothing to find
+    assertEquals(NameDictionary.NOT_FOUND, names.findFoldedCode("smith"));
+    int folded = names.foldedCodeOf(upper);
+    assertEquals(folded, names.foldedCodeOf(mixed));
+    assertEquals("smith", names.nameOf(folded));
+    assertEquals(folded, names.foldedCodeOf(folded));
+    assertEquals(folded, names.findFoldedCode("sMiTh"));
+    assertEquals(NameDictionary.NULL_CODE, names.foldedCodeOf(NameDictionary.NULL_CODE));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    File file = new File(temporaryFolder.getRoot(), "names.dat");
+    NameDictionary names = NameDictionary.open(file);
+    int smith = names.codeOf("Smith");
+    int jones = names.codeOf("Jones");
+    int folded = names.foldedCodeOf(smith);
+    names.close();
+    //
+    // A name torn by a crash is dropped
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[] { 0, 0, 0, 42, 'X' });
+    }
+
+    NameDictionary reopened = NameDictionary.open(file);
+    assertEquals(3, reopened.size());
+    assertEquals(smith, reopened.findCode("Smith"));
+    assertEquals(jones, reopened.findCode("Jones"));
+    assertEquals(folded, reopened.findFoldedCode("SMITH"));
+    int brown = reopened.codeOf("Brown");
+    reopened.close();
+
+    NameDictionary again = NameDictionary.open(file);
+    assertEquals("Brown", again.nameOf(brown));
+    again.close();
+    log.info("*** END TEST ***");
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.makotojava.learn.jaxrs.dao.PersonDao;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the PersonDaoFactory class.
+ *
+ * @author sperry
+ *
+ */
+public class PersonDaoFactoryTest {
+
+  private static final Logger log = Logger.getLogger(PersonDaoFactoryTest.class);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    PersonDaoFactory.shutdown();
+    System.clearProperty(PersonDaoFactory.PROPERTY_ENGINE);
+    System.clearProperty(PersonDaoFactory.PROPERTY_DATA_DIRECTORY);
+  }
+
+  @Test
+  public void testShutdownClosesDurableStore() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    File directory = temporaryFolder.newFolder("data");
+    System.setProperty(PersonDaoFactory.PROPERTY_ENGINE, PersonDaoFactory.ENGINE_INDEXED);
+    System.setProperty(PersonDaoFactory.PROPERTY_DATA_DIRECTORY, directory.getPath());
+    PersonDao dao = PersonDaoFactory.getPersonDao();
+    Person added = dao.addPerson(new Person("Shut", "Down", 40, EyeColor.BLUE, Gender.FEMALE));
+    long size = dao.getRepositorySize();
+    PersonDaoFactory.shutdown();
+    //
+    // The last checkpoint has everything, so there's no journal to replay
+    assertFalse(PersonSnapshot.generations(directory).isEmpty());
+    PersonDao reopened = PersonDaoFactory.getPersonDao();
+    assertNotSame(dao, reopened);
+    assertEquals(size, reopened.getRepositorySize());
+    assertEquals(added, reopened.findById(added.getId()));
+    log.info("*** END TEST ***");
+  }
+
+}
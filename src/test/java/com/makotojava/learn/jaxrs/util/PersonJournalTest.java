@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the durable IndexedRepository: the
+ * PersonJournal and PersonSnapshot classes, and recovery from them.
+ *
+ * @author sperry
+ *
+ */
+public class PersonJournalTest {
+
+  private static final Logger log = Logger.getLogger(PersonJournalTest.class);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = temporaryFolder.newFolder("data");
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    IndexedRepository repository = IndexedRepository.open(directory, new IdAllocator());
+    Person kept = repository.addPerson(new Person("Kept", "Karen", 40, EyeColor.GREEN, Gender.FEMALE));
+    Person updated = repository.addPerson(new Person("Updated", "Ulrich", 50, EyeColor.BLUE, Gender.MALE));
+    Person deleted = repository.addPerson(new Person("Deleted", "Dana", 60, EyeColor.BROWN, Gender.FEMALE));
+    updated.setLastName("Changed");
+    updated = repository.updatePerson(updated);
+    repository.deletePerson(deleted);
+    repository.close();
+
+    IndexedRepository reopened = IndexedRepository.open(directory, new IdAllocator());
+    assertEquals(2, reopened.getRepositorySize());
+    assertEquals(kept, reopened.findById(kept.getId()));
+    assertEquals(kept.getWhenCreated(), reopened.findById(kept.getId()).getWhenCreated());
+    assertEquals("Changed", reopened.findById(updated.getId()).getLastName());
+    assertEquals(2L, (long) reopened.findById(updated.getId()).getVersion());
+    assertEquals(updated.getWhenModified(), reopened.findById(updated.getId()).getWhenModified());
+    assertEquals(1L, (long) reopened.findById(kept.getId()).getVersion());
+    assertEquals(1, reopened.findAllByLastName("changed").size());
+    assertNull(reopened.findById(deleted.getId()));
+    // The statistics are rebuilt too
+    assertEquals(2, reopened.getStats().getCount());
+    assertEquals(45.0, reopened.getStats().getMeanAge(), 0.0001);
+    assertEquals(1L, (long) reopened.countByLastName().get("Changed"));
+    assertNull(reopened.countByLastName().get("Deleted"));
+    // And so are the bitmaps
+    assertEquals(0L, (long) reopened.countByEyeColor().get(EyeColor.BROWN));
+    assertEquals(1L, (long) reopened.countByGender().get(Gender.FEMALE));
+    //
+    // The IDs carry on from where they left off, even past a deleted one
+    Person added = reopened.addPerson(new Person("New", "Nora", 20, EyeColor.HAZEL, Gender.FEMALE));
+    assertTrue(added.getId() > deleted.getId());
+    // ... and duplicates are still spotted
+    assertEquals(kept.getId(), reopened.addPerson(new Person(kept)).getId());
+    reopened.close();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFailedJournal() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    PersonJournal journal = new PersonJournal(directory, 1);
+    journal.sync(journal.appendDelete(1));
+    long lost = journal.appendDelete(2);
+    //
+    // Pull the file out from under the journal
+    Field channelField = PersonJournal.class.getDeclaredField("channel");
+    channelField.setAccessible(true);
+    ((FileChannel) channelField.get(journal)).close();
+    try {
+      journal.sync(lost);
+      fail("The record can't have made it to disk");
+    } catch (IOException e) {
+      log.info("Caught expected exception: " + e);
+    }
+    // A failed journal stays failed, however the next write goes
+    try {
+      journal.sync(lost);
+      fail("The record still can't have made it to disk");
+    } catch (IOException e) {
+      log.info("Caught expected exception: " + e);
+    }
+    try {
+      journal.appendDelete(3);
+      fail("A failed journal takes no more records");
+    } catch (UncheckedIOException e) {
+      log.info("Caught expected exception: " + e);
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testCheckpoint() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    IndexedRepository repository = IndexedRepository.open(directory, new IdAllocator());
+    for (int aa = 0; aa < 20; aa++) {
+      repository.addPerson(new Person("Before", "Person" + aa, aa, EyeColor.BLUE, Gender.MALE));
+    }
+    Person updated = repository.findAllByLastName("Before").get(0);
+    updated.setAge(99);
+    updated = repository.updatePerson(updated);
+    repository.checkpoint();
+    Person after = repository.addPerson(new Person("After", "Person", 30, EyeColor.GOLD, Gender.FEMALE));
+    repository.checkpoint();
+    repository.deletePerson(after);
+    //
+    // Only the newest snapshot, and the journals since, are kept
+    List<Long> snapshots = PersonSnapshot.generations(directory);
+    assertEquals(1, snapshots.size());
+    for (Long generation : PersonJournal.generations(directory)) {
+      assertTrue(generation >= snapshots.get(0));
+    }
+    repository.close();
+
+    IndexedRepository reopened = IndexedRepository.open(directory, new IdAllocator());
+    assertEquals(20, reopened.getRepositorySize());
+    assertEquals(20, reopened.findAllByLastName("Before").size());
+    // Versions are in the snapshot too
+    assertEquals(2L, (long) reopened.findById(updated.getId()).getVersion());
+    assertNull(reopened.findById(after.getId()));
+    reopened.close();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testTornTail() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    IndexedRepository repository = IndexedRepository.open(directory, new IdAllocator());
+    Person first = repository.addPerson(new Person("First", "Person", 30, EyeColor.BLUE, Gender.MALE));
+    Person second = repository.addPerson(new Person("Second", "Person", 30, EyeColor.BLUE, Gender.MALE));
+    repository.close();
+    //
+    // Chop the last few bytes off, as a crash in the middle of the write would
+    File journalFile = PersonJournal.fileFor(directory, PersonJournal.generations(directory).get(0));
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    IndexedRepository reopened = IndexedRepository.open(directory, new IdAllocator());
+    assertNotNull(reopened.findById(first.getId()));
+    assertNull(reopened.findById(second.getId()));
+    Person third = reopened.addPerson(new Person("Third", "Person", 30, EyeColor.BLUE, Gender.MALE));
+    reopened.close();
+    //
+    // Writes after the torn record survive the next restart too
+    IndexedRepository again = IndexedRepository.open(directory, new IdAllocator());
+    assertEquals(2, again.getRepositorySize());
+    assertNotNull(again.findById(third.getId()));
+    again.close();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final IndexedRepository repository = IndexedRepository.open(directory, new IdAllocator());
+    final int threads = 8;
+    final int personsPerThread = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int aa = 0; aa < threads; aa++) {
+      final int thread = aa;
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, 30, EyeColor.BROWN, Gender.MALE));
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    repository.close();
+
+    IndexedRepository reopened = IndexedRepository.open(directory, new IdAllocator());
+    assertEquals(threads * personsPerThread, reopened.getRepositorySize());
+    reopened.close();
+    log.info("*** END TEST ***");
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * JUnit test class for testing the PersonStatistics class.
+ *
+ * @author sperry
+ *
+ */
+public class PersonStatisticsTest {
+
+  private static final Logger log = Logger.getLogger(PersonStatisticsTest.class);
+
+  @Test
+  public void testEmpty() {
+    log.info("*** BEGIN TEST ***");
+    PersonStats stats = new PersonStatistics().snapshot();
+    assertEquals(0, stats.getCount());
+    assertNull(stats.getMinAge());
+    assertNull(stats.getMaxAge());
+    assertNull(stats.getMeanAge());
+    assertEquals(0L, (long) stats.getByGender().get(Gender.MALE));
+    assertEquals(0, stats.getAgeHistogram().size());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testAddAndRemove() {
+    log.info("*** BEGIN TEST ***");
+    PersonStatistics statistics = new PersonStatistics();
+    Person smith = new Person("Smith", "Ann", 34, EyeColor.BLUE, Gender.FEMALE);
+    Person jones = new Person("Jones", "Bob", 38, EyeColor.BROWN, Gender.MALE);
+    Person oldest = new Person("Smith", "Cal", 81, null, null);
+    statistics.add(smith);
+    statistics.add(jones);
+    statistics.add(oldest);
+    PersonStats stats = statistics.snapshot();
+    assertEquals(3, stats.getCount());
+    assertEquals(34, (int) stats.getMinAge());
+    assertEquals(81, (int) stats.getMaxAge());
+    assertEquals((34 + 38 + 81) / 3.0, stats.getMeanAge(), 0.0001);
+    assertEquals(1L, (long) stats.getByEyeColor().get(EyeColor.BLUE));
+    assertEquals(0L, (long) stats.getByEyeColor().get(EyeColor.GREEN));
+    assertEquals(1L, (long) stats.getByGender().get(Gender.MALE));
+    SortedMap<Integer, Long> histogram = new TreeMap<>();
+    histogram.put(30, 2L);
+    histogram.put(80, 1L);
+    assertEquals(histogram, stats.getAgeHistogram());
+    Map<String, Long> lastNames = statistics.countByLastName();
+    assertEquals(2L, (long) lastNames.get("Smith"));
+    assertEquals(1L, (long) lastNames.get("Jones"));
+    //
+    // An update is a remove and an add
+    statistics.remove(oldest);
+    statistics.add(new Person("Jones", "Cal", 12, EyeColor.GREEN, Gender.MALE));
+    statistics.remove(smith);
+    stats = statistics.snapshot();
+    assertEquals(2, stats.getCount());
+    assertEquals(12, (int) stats.getMinAge());
+    assertEquals(38, (int) stats.getMaxAge());
+    assertEquals(25.0, stats.getMeanAge(), 0.0001);
+    assertEquals(0L, (long) stats.getByEyeColor().get(EyeColor.BLUE));
+    assertEquals(2L, (long) stats.getByGender().get(Gender.MALE));
+    assertEquals(1, statistics.countByLastName().size());
+    assertEquals(2L, (long) statistics.countByLastName().get("Jones"));
+    log.info("*** END TEST ***");
+  }
+
+}
@@ -17,10 +17,17 @@ package com.makotojava.learn.jaxrs.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.apache.log4j.Logger;
@@ -29,6 +36,7 @@ import org.junit.Test;
 
 import com.makotojava.learn.jaxrs.dao.PersonDao;
 import com.makotojava.learn.jaxrs.dao.PersonFinder;
+import com.makotojava.learn.jaxrs.dao.VersionConflictException;
 import com.makotojava.learn.jaxrs.model.Person;
 import com.makotojava.learn.jaxrs.model.Person.EyeColor;
 import com.makotojava.learn.jaxrs.model.Person.Gender;
@@ -102,6 +110,35 @@ public class RepositoryTest {
     log.info("*** END TEST ***");
   }
 
+  @Test
+  public void testFindAllByLastNameFollowsWrites() {
+    log.info("*** BEGIN TEST ***");
+    Repository repository = Repository.newInstance();
+    Person first = repository.addPerson(new Person("Indexed", "First", 20, EyeColor.BLUE, Gender.FEMALE));
+    Person second = repository.addPerson(new Person("INDEXED", "Second", 30, EyeColor.GREEN, Gender.MALE));
+    repository.addPerson(new Person("Other", "Third", 40, EyeColor.BROWN, Gender.FEMALE));
+    //
+    // Any case finds them all, in ID order
+    List<Person> results = repository.findAllByLastName("indexed");
+    assertEquals(2, results.size());
+    assertEquals(first.getId(), results.get(0).getId());
+    assertEquals(second.getId(), results.get(1).getId());
+    assertTrue(repository.findAllByLastName("Nobody").isEmpty());
+    //
+    // A new last name moves them, and a delete takes them out
+    first.setLastName("Renamed");
+    repository.updatePerson(first);
+    assertEquals(1, repository.findAllByLastName("Indexed").size());
+    assertEquals(first.getId(), repository.findAllByLastName("renamed").get(0).getId());
+    first.setLastName("indexed");
+    repository.updatePerson(first);
+    assertEquals(2, repository.findAllByLastName("Indexed").size());
+    repository.deletePerson(second);
+    assertEquals(1, repository.findAllByLastName("Indexed").size());
+    assertTrue(repository.findAllByLastName("Renamed").isEmpty());
+    log.info("*** END TEST ***");
+  }
+
   @Test
   public void testFindById() {
     log.info("*** BEGIN TEST ***");
@@ -162,6 +199,35 @@ public class RepositoryTest {
     log.info("*** END TEST ***");
   }
 
+  @Test
+  public void testAddPersonTwice() {
+    log.info("*** BEGIN TEST ***");
+    Person person = new Person("Twice", "Added", 42, EyeColor.BLUE, Gender.FEMALE);
+    Person first = personDao.addPerson(person);
+    long repositorySize = repository.getRepositorySize();
+    //
+    // Adding the same Person again sends back the one already there
+    assertEquals(first.getId(), personDao.findEqual(person).getId());
+    assertEquals(first.getId(), personDao.addPerson(person).getId());
+    assertEquals(repositorySize, repository.getRepositorySize());
+    //
+    // Once they've been updated, it's the new values that are taken
+    first.setAge(43);
+    personDao.updatePerson(first);
+    assertEquals(first.getId(), personDao.addPerson(new Person(first)).getId());
+    Person second = personDao.addPerson(person);
+    assertNotEquals(first.getId(), second.getId());
+    assertEquals(repositorySize + 1, repository.getRepositorySize());
+    personDao.deletePersons(Arrays.asList(first, second));
+    //
+    // And once they're deleted, they can be added again
+    assertNull(personDao.findEqual(person));
+    Person third = personDao.addPerson(person);
+    assertNotEquals(second.getId(), third.getId());
+    personDao.deletePerson(third);
+    log.info("*** END TEST ***");
+  }
+
   @Test
   public void testUpdatePerson() {
     log.info("*** BEGIN TEST ***");
@@ -217,8 +283,9 @@ public class RepositoryTest {
     // Make sure the IDs match
     assertEquals(person.getId(), personDeleted.getId());
     //
-    // Make sure the Person was actually modified
-    assertEquals(lastNameModified, personDeleted.getLastName());
+    // What was deleted is the stored Person, which changing our copy
+    /// didn't touch
+    assertEquals(lastNameOriginal, personDeleted.getLastName());
     //
     // Not convinced? Let's try and grab it from the Repository
     /// (and see it ain't there)
@@ -227,4 +294,100 @@ public class RepositoryTest {
     log.info("*** END TEST ***");
   }
 
+  @Test
+  public void testBatchOperations() {
+    log.info("*** BEGIN TEST ***");
+    long repositorySizeOriginal = repository.getRepositorySize();
+    Person first = new Person("Batch", "First", 20, EyeColor.BLUE, Gender.MALE);
+    Person second = new Person("Batch", "Second", 30, EyeColor.GREEN, Gender.FEMALE);
+    //
+    // The duplicate in the batch gets back the Person added first, and a
+    /// null gets a null, like the other data stores
+    List<Person> added = personDao.addPersons(Arrays.asList(first, null, second, first));
+    assertEquals(4, added.size());
+    assertNull(added.get(1));
+    assertEquals(added.get(0).getId(), added.get(3).getId());
+    assertEquals(repositorySizeOriginal + 2, repository.getRepositorySize());
+    //
+    // Results line up with the batch
+    added.get(0).setAge(21);
+    List<Person> toUpdate = Arrays.asList(added.get(0), null, added.get(2),
+        new Person("Batch", "Unknown", 40, EyeColor.GOLD, Gender.UNKNOWN).setId(Long.MAX_VALUE));
+    List<Person> updated = personDao.updatePersons(toUpdate);
+    assertEquals(21, updated.get(0).getAge());
+    assertNull(updated.get(1));
+    assertEquals(2L, (long) updated.get(2).getVersion());
+    assertNull(updated.get(3));
+    List<Person> deleted = personDao.deletePersons(toUpdate);
+    assertNotNull(deleted.get(0));
+    assertNull(deleted.get(1));
+    assertNotNull(deleted.get(2));
+    assertNull(deleted.get(3));
+    assertEquals(repositorySizeOriginal, repository.getRepositorySize());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testReturnedCopiesDoNotLeak() {
+    log.info("*** BEGIN TEST ***");
+    Person person = personDao.addPerson(PersonGenerator.createPerson());
+    String lastNameOriginal = person.getLastName();
+    String lastNameModified = lastNameOriginal + "MOD";
+    long countOriginal = personFinder.countByLastName().getOrDefault(lastNameOriginal, 0L);
+    long countModified = personFinder.countByLastName().getOrDefault(lastNameModified, 0L);
+    //
+    // Modifying what we got back must not modify what's in the store
+    person.setLastName(lastNameModified);
+    assertEquals(lastNameOriginal, personFinder.findById(person.getId()).getLastName());
+    personFinder.findAll().forEach(p -> p.setAge(-1));
+    assertEquals(person.getAge(), personFinder.findById(person.getId()).getAge());
+    //
+    // So the update takes the old last name's count down, not the new one's
+    personDao.updatePerson(person);
+    assertEquals(countOriginal - 1, (long) personFinder.countByLastName().getOrDefault(lastNameOriginal, 0L));
+    assertEquals(countModified + 1, (long) personFinder.countByLastName().get(lastNameModified));
+    personDao.deletePerson(person);
+    assertEquals(countModified, (long) personFinder.countByLastName().getOrDefault(lastNameModified, 0L));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentConditionalUpdates() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    Person person = personDao.addPerson(PersonGenerator.createPerson());
+    long id = person.getId();
+    long versionOriginal = personFinder.findById(id).getVersion();
+    //
+    // Each thread reads, then updates only if nobody else got in first,
+    /// so every successful update is exactly one version on
+    int threads = 8;
+    int attempts = 500;
+    AtomicInteger successes = new AtomicInteger();
+    AtomicInteger conflicts = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int aa = 0; aa < threads; aa++) {
+      executor.submit(() -> {
+        for (int bb = 0; bb < attempts; bb++) {
+          Person current = personFinder.findById(id);
+          Person update = new Person(current);
+          update.setAge(current.getAge() + 1);
+          try {
+            personDao.updatePerson(update, current.getVersion());
+            successes.incrementAndGet();
+          } catch (VersionConflictException e) {
+            conflicts.incrementAndGet();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(threads * attempts, successes.get() + conflicts.get());
+    Person personFromDb = personFinder.findById(id);
+    assertEquals(versionOriginal + successes.get(), (long) personFromDb.getVersion());
+    assertEquals(person.getAge() + successes.get(), personFromDb.getAge());
+    personDao.deletePerson(personFromDb);
+    log.info("*** END TEST ***");
+  }
+
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.dao.PersonQuery;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.model.PersonStats;
+
+/**
+ * JUnit test class for testing the ShardedRepository class.
+ *
+ * @author sperry
+ *
+ */
+public class ShardedRepositoryTest {
+
+  private static final Logger log = Logger.getLogger(ShardedRepositoryTest.class);
+
+  private ShardedRepository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new ShardedRepository(4, 1);
+    for (int aa = 0; aa < 500; aa++) {
+      repository.addPerson(new Person((aa % 50 == 0) ? "Rare" : "Common", "Person" + aa, 20 + aa % 40,
+          EyeColor.values()[aa % EyeColor.values().length], Gender.values()[aa % 2]));
+    }
+  }
+
+  @Test
+  public void testStridedIds() {
+    log.info("*** BEGIN TEST ***");
+    IdAllocator idAllocator = new IdAllocator(1, 4, 3);
+    assertEquals(0, idAllocator.getLastId());
+    assertEquals(3, idAllocator.nextId());
+    assertEquals(7, idAllocator.nextId());
+    assertEquals(7, idAllocator.getLastId());
+    idAllocator.reserveThrough(20);
+    assertEquals(23, idAllocator.nextId());
+    idAllocator.reserveThrough(1);
+    assertEquals(27, idAllocator.nextId());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFanOutReads() {
+    log.info("*** BEGIN TEST ***");
+    List<Person> all = repository.findAll();
+    assertEquals(500, all.size());
+    assertEquals(500, repository.getRepositorySize());
+    assertInIdOrder(all);
+    //
+    // Every shard got some
+    Set<Long> shards = new HashSet<>();
+    for (Person person : all) {
+      shards.add((person.getId() - 1) % repository.getShardCount());
+      assertEquals(person, repository.findById(person.getId()));
+    }
+    assertEquals(repository.getShardCount(), shards.size());
+    //
+    // Iterating and paging give the same as findAll()
+    List<Person> iterated = new ArrayList<>();
+    for (Iterator<Person> iterator = repository.iterateAll(); iterator.hasNext();) {
+      iterated.add(iterator.next());
+    }
+    assertEquals(all, iterated);
+    List<Person> paged = new ArrayList<>();
+    Long afterId = null;
+    for (List<Person> page = repository.findPage(afterId, 0, 64); !page.isEmpty(); page =
+        repository.findPage(afterId, 0, 64)) {
+      paged.addAll(page);
+      afterId = page.get(page.size() - 1).getId();
+    }
+    assertEquals(all, paged);
+    assertEquals(all.subList(100, 110), repository.findPage(null, 100, 10));
+    assertEquals(all.subList(51, 56), repository.findPage(all.get(40).getId(), 10, 5));
+    //
+    // Queries
+    PersonQuery[] queries = {
+        new PersonQuery().setMinAge(30).setMaxAge(40).setEyeColor(EyeColor.BLUE).setGender(Gender.FEMALE),
+        new PersonQuery().setLastName("RARE").setGender(Gender.MALE),
+        new PersonQuery().setMinAge(25).setMaxAge(25),
+        new PersonQuery(),
+    };
+    for (PersonQuery query : queries) {
+      assertEquals(query.toString(), filter(all, query), repository.findByQuery(query));
+    }
+    List<Person> rare = filter(all, new PersonQuery().setLastName("Rare"));
+    assertEquals(10, rare.size());
+    assertEquals(rare, repository.findAllByLastName("rare"));
+    List<Person> iteratedRare = new ArrayList<>();
+    repository.iterateAllByLastName("RARE").forEachRemaining(iteratedRare::add);
+    assertEquals(rare, iteratedRare);
+    List<Person> iteratedCommon = new ArrayList<>();
+    repository.iterateAllByLastName("Common").forEachRemaining(iteratedCommon::add);
+    assertEquals(filter(all, new PersonQuery().setLastName("Common")), iteratedCommon);
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFanOutCounts() {
+    log.info("*** BEGIN TEST ***");
+    PersonStatistics expected = new PersonStatistics();
+    for (Person person : repository.findAll()) {
+      expected.add(person);
+    }
+    PersonStats expectedStats = expected.snapshot();
+    PersonStats stats = repository.getStats();
+    assertEquals(expectedStats.getCount(), stats.getCount());
+    assertEquals(expectedStats.getByGender(), stats.getByGender());
+    assertEquals(expectedStats.getByEyeColor(), stats.getByEyeColor());
+    assertEquals(expectedStats.getAgeHistogram(), stats.getAgeHistogram());
+    assertEquals(expectedStats.getMinAge(), stats.getMinAge());
+    assertEquals(expectedStats.getMaxAge(), stats.getMaxAge());
+    assertEquals(expectedStats.getMeanAge(), stats.getMeanAge(), 0.0001);
+    assertEquals(expectedStats.getByEyeColor(), repository.countByEyeColor());
+    assertEquals(expectedStats.getByGender(), repository.countByGender());
+    assertEquals(expected.countByLastName(), repository.countByLastName());
+    assertNull(new ShardedRepository(2, 1).getStats().getMeanAge());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testWritesRouteToOneShard() {
+    log.info("*** BEGIN TEST ***");
+    long version = repository.getVersion();
+    Person added = repository.addPerson(new Person("Shard", "Sam", 50, EyeColor.GREEN, Gender.MALE));
+    assertTrue(repository.getVersion() > version);
+    assertEquals(added.getId(), repository.addPerson(new Person(added)).getId());
+    assertEquals(501, repository.getRepositorySize());
+    added.setLastName("Moved");
+    Person updated = repository.updatePerson(added);
+    assertEquals(2L, (long) updated.getVersion());
+    assertEquals("Moved", repository.findById(added.getId()).getLastName());
+    assertTrue(repository.findAllByLastName("Shard").isEmpty());
+    assertEquals(Arrays.asList(updated), repository.findAllByLastName("moved"));
+    assertNotNull(repository.deletePerson(updated, 2L));
+    assertNull(repository.findById(added.getId()));
+    assertNull(repository.deletePerson(updated));
+    assertNull(repository.updatePerson(new Person("No", "Id", 1, null, null)));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testAddAfterUpdateFindsMovedPerson() {
+    log.info("*** BEGIN TEST ***");
+    //
+    // Most of these updates leave the Person in a shard an add of their
+    /// new values wouldn't go to
+    List<Person> updated = new ArrayList<>();
+    for (int aa = 0; aa < 40; aa++) {
+      Person person = repository.addPerson(new Person("Before", "Update" + aa, 30, EyeColor.BLUE, Gender.MALE));
+      person.setLastName("After");
+      updated.add(repository.updatePerson(person));
+    }
+    long repositorySize = repository.getRepositorySize();
+    for (Person person : updated) {
+      assertEquals(person.getId(), repository.findEqual(person).getId());
+      assertEquals(person.getId(), repository.addPerson(new Person(person)).getId());
+    }
+    List<Person> added = repository.addPersons(updated);
+    for (int aa = 0; aa < updated.size(); aa++) {
+      assertEquals(updated.get(aa).getId(), added.get(aa).getId());
+    }
+    assertEquals(repositorySize, repository.getRepositorySize());
+    //
+    // Once they change again, or are deleted, their old values are new again
+    Person changedAgain = new Person(updated.get(0));
+    changedAgain.setAge(31);
+    repository.updatePerson(changedAgain);
+    repository.deletePersons(updated.subList(1, updated.size()));
+    for (Person person : updated) {
+      assertNotEquals(person.getId(), repository.addPerson(new Person(person)).getId());
+    }
+    assertEquals(repositorySize + 1, repository.getRepositorySize());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testBatchOperations() {
+    log.info("*** BEGIN TEST ***");
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < 20; aa++) {
+      persons.add(new Person("Batch", "Person" + aa, aa, EyeColor.BROWN, Gender.FEMALE));
+    }
+    persons.add(null);
+    List<Person> added = repository.addPersons(persons);
+    assertEquals(persons.size(), added.size());
+    for (int aa = 0; aa < 20; aa++) {
+      // Results come back in the order they went in
+      assertEquals(persons.get(aa), added.get(aa));
+      added.get(aa).setAge(aa + 100);
+    }
+    assertNull(added.get(20));
+    List<Person> updated = repository.updatePersons(added);
+    for (int aa = 0; aa < 20; aa++) {
+      assertEquals(added.get(aa).getId(), updated.get(aa).getId());
+      assertEquals(aa + 100, repository.findById(added.get(aa).getId()).getAge());
+    }
+    List<Person> deleted = repository.deletePersons(updated);
+    assertEquals(updated.subList(0, 20), deleted.subList(0, 20));
+    assertTrue(repository.findAllByLastName("Batch").isEmpty());
+    assertEquals(500, repository.getRepositorySize());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final int threads = 8;
+    final int personsPerThread = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int aa = 0; aa < threads; aa++) {
+      final int thread = aa;
+      executor.execute(() -> {
+        for (int bb = 0; bb < personsPerThread; bb++) {
+          // Every Person is added twice, but only stored once
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, 30, EyeColor.BROWN, Gender.MALE));
+          repository.addPerson(new Person("Thread" + thread, "Person" + bb, 30, EyeColor.BROWN, Gender.MALE));
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(500 + threads * personsPerThread, repository.getRepositorySize());
+    Set<Long> ids = new HashSet<>();
+    for (Person person : repository.findAll()) {
+      assertTrue(ids.add(person.getId()));
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testConcurrentAddsAndUpdatesOfEqualPersons() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    final int rounds = 200;
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < rounds; aa++) {
+      persons.add(repository.addPerson(new Person("Racing", "Before" + aa, 40, EyeColor.BLUE, Gender.FEMALE)));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    for (int aa = 0; aa < rounds; aa++) {
+      //
+      // Update a Person to new values while adding a Person with the same
+      /// values: either the add comes first and stores a new Person, or it
+      /// finds the updated one, wherever the update left them
+      Person changed = new Person(persons.get(aa));
+      changed.setFirstName("After" + aa);
+      Future<Person> update = executor.submit(() -> repository.updatePerson(changed));
+      Future<Person> add = executor.submit(() -> repository.addPerson(new Person(changed)));
+      Person updated = update.get(1, TimeUnit.MINUTES);
+      Person added = add.get(1, TimeUnit.MINUTES);
+      if (!added.getId().equals(updated.getId())) {
+        assertEquals(1, (long) added.getVersion());
+        assertTrue(!added.getWhenCreated().after(updated.getWhenModified()));
+      }
+    }
+    //
+    // And the batch versions
+    List<Person> changes = new ArrayList<>();
+    for (Person person : persons) {
+      Person changed = repository.findById(person.getId());
+      changed.setFirstName("Batched" + person.getFirstName());
+      changes.add(changed);
+    }
+    Future<List<Person>> updates = executor.submit(() -> repository.updatePersons(changes));
+    Future<List<Person>> adds = executor.submit(() -> repository.addPersons(changes));
+    assertEquals(rounds, updates.get(1, TimeUnit.MINUTES).size());
+    assertEquals(rounds, adds.get(1, TimeUnit.MINUTES).size());
+    executor.shutdown();
+    for (Person change : changes) {
+      assertEquals(change, repository.findEqual(change));
+    }
+    log.info("*** END TEST ***");
+  }
+
+  private static void assertInIdOrder(List<Person> persons) {
+    for (int aa = 1; aa < persons.size(); aa++) {
+      assertTrue(persons.get(aa - 1).getId() < persons.get(aa).getId());
+    }
+  }
+
+  private static List<Person> filter(List<Person> persons, PersonQuery query) {
+    List<Person> ret = new ArrayList<>();
+    for (Person person : persons) {
+      if (query.matches(person)) {
+        ret.add(person);
+      }
+    }
+    return ret;
+  }
+
+}
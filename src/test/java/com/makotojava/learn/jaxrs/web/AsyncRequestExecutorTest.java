@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * JUnit test class for testing the AsyncRequestExecutor class.
+ *
+ * @author sperry
+ *
+ */
+public class AsyncRequestExecutorTest {
+
+  private static final Logger log = Logger.getLogger(AsyncRequestExecutorTest.class);
+
+  @Test
+  public void testResumesOnPoolThread() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    AsyncRequestExecutor executor = new AsyncRequestExecutor(2, 10, AsyncRequestExecutor.REJECTION_REJECT);
+    RecordingAsyncResponse asyncResponse = new RecordingAsyncResponse();
+    Thread caller = Thread.currentThread();
+    executor.execute(asyncResponse, () -> {
+      assertNotEquals(caller, Thread.currentThread());
+      return Response.ok("done").build();
+    });
+    assertEquals("done", ((Response) asyncResponse.await()).getEntity());
+    //
+    // An exception resumes the request too, to be mapped like any other
+    RecordingAsyncResponse failed = new RecordingAsyncResponse();
+    IllegalStateException exception = new IllegalStateException("Oops");
+    executor.execute(failed, () -> {
+      throw exception;
+    });
+    assertSame(exception, failed.await());
+    executor.shutdown();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    LongAdder rejected = MetricsRegistry.instance().counter("person_async_rejected_total", "", "policy",
+        AsyncRequestExecutor.REJECTION_REJECT);
+    long rejectedBefore = rejected.sum();
+    AsyncRequestExecutor executor = new AsyncRequestExecutor(1, 1, AsyncRequestExecutor.REJECTION_REJECT);
+    CountDownLatch release = new CountDownLatch(1);
+    //
+    // One request busy, one queued, so the third is turned away
+    RecordingAsyncResponse busy = new RecordingAsyncResponse();
+    RecordingAsyncResponse queued = new RecordingAsyncResponse();
+    RecordingAsyncResponse turnedAway = new RecordingAsyncResponse();
+    executor.execute(busy, () -> {
+      await(release);
+      return Response.ok().build();
+    });
+    executor.execute(queued, () -> Response.ok().build());
+    executor.execute(turnedAway, () -> Response.ok().build());
+    Response response = (Response) turnedAway.await();
+    assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+    assertEquals("1", String.valueOf(response.getMetadata().getFirst(HttpHeaders.RETRY_AFTER)));
+    assertEquals(rejectedBefore + 1, rejected.sum());
+    release.countDown();
+    assertEquals(200, ((Response) busy.await()).getStatus());
+    assertEquals(200, ((Response) queued.await()).getStatus());
+    executor.shutdown();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testQueueFullCallerRuns() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    AsyncRequestExecutor executor = new AsyncRequestExecutor(1, 1, AsyncRequestExecutor.REJECTION_CALLER_RUNS);
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingAsyncResponse busy = new RecordingAsyncResponse();
+    executor.execute(busy, () -> {
+      await(release);
+      return Response.ok().build();
+    });
+    executor.execute(new RecordingAsyncResponse(), () -> Response.ok().build());
+    //
+    // No room, so the work is done right here
+    RecordingAsyncResponse callerRan = new RecordingAsyncResponse();
+    Thread caller = Thread.currentThread();
+    executor.execute(callerRan, () -> Response.ok(Thread.currentThread() == caller).build());
+    assertEquals(Boolean.TRUE, ((Response) callerRan.await()).getEntity());
+    release.countDown();
+    busy.await();
+    executor.shutdown();
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testShutdownInstance() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    AsyncRequestExecutor executor = AsyncRequestExecutor.instance();
+    RecordingAsyncResponse queued = new RecordingAsyncResponse();
+    executor.execute(queued, () -> Response.ok().build());
+    //
+    // What was queued finishes, then nothing more is taken
+    AsyncRequestExecutor.shutdownInstance();
+    assertEquals(200, ((Response) queued.await()).getStatus());
+    RecordingAsyncResponse tooLate = new RecordingAsyncResponse();
+    executor.execute(tooLate, () -> Response.ok().build());
+    assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), ((Response) tooLate.await()).getStatus());
+    //
+    // The application starting again gets a new one
+    AsyncRequestExecutor restarted = AsyncRequestExecutor.instance();
+    assertNotSame(executor, restarted);
+    RecordingAsyncResponse afterRestart = new RecordingAsyncResponse();
+    restarted.execute(afterRestart, () -> Response.ok().build());
+    assertEquals(200, ((Response) afterRestart.await()).getStatus());
+    AsyncRequestExecutor.shutdownInstance();
+    log.info("*** END TEST ***");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownRejectionPolicy() {
+    new AsyncRequestExecutor(1, 1, "drop");
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * An AsyncResponse that just remembers what it was resumed with.
+   */
+  private static class RecordingAsyncResponse implements AsyncResponse {
+
+    private final CountDownLatch resumed = new CountDownLatch(1);
+    private volatile Object result;
+
+    Object await() throws InterruptedException {
+      assertTrue(resumed.await(10, TimeUnit.SECONDS));
+      return result;
+    }
+
+    @Override
+    public boolean resume(Object response) {
+      result = response;
+      resumed.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean resume(Throwable response) {
+      return resume((Object) response);
+    }
+
+    @Override
+    public boolean cancel() {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(int retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(Date retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean isSuspended() {
+      return resumed.getCount() > 0;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return resumed.getCount() == 0;
+    }
+
+    @Override
+    public boolean setTimeout(long time, TimeUnit unit) {
+      return true;
+    }
+
+    @Override
+    public void setTimeoutHandler(TimeoutHandler handler) {
+    }
+
+    @Override
+    public Collection<Class<?>> register(Class<?> callback) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Collection<Class<?>> register(Object callback) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+      return Collections.emptyMap();
+    }
+  }
+
+}
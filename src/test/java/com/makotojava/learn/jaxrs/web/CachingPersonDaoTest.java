@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.util.IndexedRepository;
+
+/**
+ * JUnit test class for testing the CachingPersonDao class.
+ *
+ * @author sperry
+ *
+ */
+public class CachingPersonDaoTest {
+
+  private static final Logger log = Logger.getLogger(CachingPersonDaoTest.class);
+
+  private CachingPersonDao dao;
+
+  private Person smith;
+
+  @Before
+  public void setUp() throws Exception {
+    dao = new CachingPersonDao(new IndexedRepository(), new JsonCache(1024 * 1024, "CachingPersonDaoTest"));
+    smith = dao.addPerson(new Person("Smith", "Ann", 34, EyeColor.BLUE, Gender.FEMALE));
+    dao.addPerson(new Person("Jones", "Bob", 38, EyeColor.BROWN, Gender.MALE));
+  }
+
+  @Test
+  public void testFindById() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    CachedJson json = dao.findByIdAsJson(smith.getId());
+    assertEquals("Ann", toPerson(json).getFirstName());
+    assertSame(json, dao.findByIdAsJson(smith.getId()));
+    assertNull(dao.findByIdAsJson(Long.MAX_VALUE));
+    //
+    // An update invalidates it
+    Person update = new Person("Smith", "Anne", 35, EyeColor.BLUE, Gender.FEMALE);
+    update.setId(smith.getId());
+    dao.updatePerson(update);
+    CachedJson updated = dao.findByIdAsJson(smith.getId());
+    assertEquals("Anne", toPerson(updated).getFirstName());
+    assertEquals(2L, (long) toPerson(updated).getVersion());
+    assertNotEquals(json.getETag(), updated.getETag());
+    //
+    // And so does a delete
+    dao.deletePerson(update);
+    assertNull(dao.findByIdAsJson(smith.getId()));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testFindAllByLastName() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    CachedJson json = dao.findAllByLastNameAsJson("smith");
+    assertEquals(1, toPersons(json).size());
+    assertSame(json, dao.findAllByLastNameAsJson("SMITH"));
+    assertNull(dao.findAllByLastNameAsJson("Brown"));
+    //
+    // Adding a Smith invalidates the Smiths
+    dao.addPersons(Arrays.asList(new Person("Smith", "Cal", 12, EyeColor.GREEN, Gender.MALE)));
+    assertEquals(2, toPersons(dao.findAllByLastNameAsJson("Smith")).size());
+    //
+    // Renaming one invalidates the last names before and after
+    assertNotNull(dao.findAllByLastNameAsJson("Jones"));
+    Person update = new Person("Jones", "Ann", 34, EyeColor.BLUE, Gender.FEMALE);
+    update.setId(smith.getId());
+    dao.updatePersons(Arrays.asList(update));
+    assertEquals(1, toPersons(dao.findAllByLastNameAsJson("Smith")).size());
+    assertEquals(2, toPersons(dao.findAllByLastNameAsJson("Jones")).size());
+    //
+    // As does deleting one
+    dao.deletePersons(Arrays.asList(update));
+    assertEquals(1, toPersons(dao.findAllByLastNameAsJson("Jones")).size());
+    log.info("*** END TEST ***");
+  }
+
+  private static Person toPerson(CachedJson json) throws Exception {
+    return ObjectMapperHolder.getObjectMapper().readValue(json.getJson(), Person.class);
+  }
+
+  private static List<Person> toPersons(CachedJson json) throws Exception {
+    return ObjectMapperHolder.getObjectMapper().readValue(json.getJson(), new TypeReference<List<Person>>() {
+    });
+  }
+
+  @Test
+  public void testWritesArePublished() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = dao.getChangeFeed();
+    long after = changeFeed.getLastSequence();
+    smith.setAge(35);
+    Person updated = dao.updatePerson(smith);
+    dao.updatePersons(Arrays.asList(updated, new Person("No", "Id", 1, null, null)));
+    dao.deletePerson(updated);
+    // Nothing to delete, so nothing to publish
+    dao.deletePerson(updated);
+    List<ChangeFeed.Change> changes = changeFeed.changesAfter(after, 0);
+    assertEquals(3, changes.size());
+    assertEquals(ChangeFeed.Type.UPDATE, changes.get(0).getType());
+    assertEquals(ChangeFeed.Type.UPDATE, changes.get(1).getType());
+    assertEquals(ChangeFeed.Type.DELETE, changes.get(2).getType());
+    Person published = ObjectMapperHolder.getObjectMapper().readValue(changes.get(1).getJson(), Person.class);
+    assertEquals(smith.getId(), published.getId());
+    assertEquals(3L, (long) published.getVersion());
+    assertEquals(after + 3, changes.get(2).getSequence());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testBatchesSpanningLocks() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < 200; aa++) {
+      persons.add(new Person("Batch", "Person" + aa, aa % 90, EyeColor.BLUE, Gender.FEMALE));
+    }
+    ChangeFeed changeFeed = dao.getChangeFeed();
+    long after = changeFeed.getLastSequence();
+    List<Person> added = dao.addPersons(persons);
+    assertEquals(persons.size(), added.size());
+    for (int aa = 0; aa < persons.size(); aa++) {
+      assertEquals(persons.get(aa), added.get(aa));
+      added.get(aa).setAge(added.get(aa).getAge() + 1);
+    }
+    //
+    // Results come back in the order of the batch, whatever lock each took
+    List<Person> batch = new ArrayList<>(added);
+    batch.add(1, new Person("No", "Id", 1, null, null));
+    List<Person> updated = dao.updatePersons(batch);
+    assertNull(updated.get(1));
+    updated.remove(1);
+    for (int aa = 0; aa < added.size(); aa++) {
+      assertEquals(added.get(aa).getId(), updated.get(aa).getId());
+      assertEquals(2L, (long) updated.get(aa).getVersion());
+    }
+    List<Person> deleted = dao.deletePersons(updated);
+    for (int aa = 0; aa < updated.size(); aa++) {
+      assertEquals(updated.get(aa).getId(), deleted.get(aa).getId());
+    }
+    assertEquals(after + 3 * persons.size(), changeFeed.getLastSequence());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testOnlyInsertsArePublishedAsAdds() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = dao.getChangeFeed();
+    long after = changeFeed.getLastSequence();
+    //
+    // Adding Persons who are already there publishes nothing, nor does
+    /// the same Person twice in one batch
+    assertEquals(smith.getId(), dao.addPerson(new Person(smith)).getId());
+    Person brown = new Person("Brown", "Cal", 51, EyeColor.GREEN, Gender.MALE);
+    List<Person> added = dao.addPersons(Arrays.asList(new Person(smith), brown, null, new Person(brown)));
+    assertEquals(smith.getId(), added.get(0).getId());
+    assertNull(added.get(2));
+    assertEquals(added.get(1).getId(), added.get(3).getId());
+    List<ChangeFeed.Change> changes = changeFeed.changesAfter(after, 0);
+    assertEquals(1, changes.size());
+    assertEquals(ChangeFeed.Type.ADD, changes.get(0).getType());
+    Person published = ObjectMapperHolder.getObjectMapper().readValue(changes.get(0).getJson(), Person.class);
+    assertEquals(added.get(1).getId(), published.getId());
+    //
+    // Once deleted, they can be added (and published) again
+    dao.deletePerson(smith);
+    after = changeFeed.getLastSequence();
+    Person again = dao.addPerson(new Person(smith));
+    assertNotEquals(smith.getId(), again.getId());
+    assertEquals(after + 1, changeFeed.getLastSequence());
+    log.info("*** END TEST ***");
+  }
+
+}
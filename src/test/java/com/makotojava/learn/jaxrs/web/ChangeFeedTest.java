@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+
+/**
+ * JUnit test class for testing the ChangeFeed class.
+ *
+ * @author sperry
+ *
+ */
+public class ChangeFeedTest {
+
+  private static final Logger log = Logger.getLogger(ChangeFeedTest.class);
+
+  @Test
+  public void testChangesAfter() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = new ChangeFeed(4, 1);
+    assertEquals(0, changeFeed.getLastSequence());
+    assertTrue(changeFeed.changesAfter(0, 0).isEmpty());
+    for (int aa = 1; aa <= 3; aa++) {
+      changeFeed.publish(ChangeFeed.Type.ADD, person(aa));
+    }
+    List<ChangeFeed.Change> changes = changeFeed.changesAfter(1, 0);
+    assertEquals(2, changes.size());
+    assertEquals(2, changes.get(0).getSequence());
+    assertEquals(3, changes.get(1).getSequence());
+    assertTrue(changes.get(1).getJson().contains("\"firstName\":\"Person3\""));
+    //
+    // The ring holds 4, so once there are 6 changes, the first is gone
+    changeFeed.publish(ChangeFeed.Type.UPDATE, person(2));
+    changeFeed.publish(ChangeFeed.Type.DELETE, person(1));
+    changeFeed.publish(ChangeFeed.Type.ADD, person(4));
+    assertNull(changeFeed.changesAfter(1, 0));
+    changes = changeFeed.changesAfter(2, 0);
+    assertEquals(4, changes.size());
+    assertEquals(ChangeFeed.Type.DELETE, changes.get(2).getType());
+    assertEquals("delete", changes.get(2).getType().eventName());
+    // Nobody can have seen changes that haven't happened
+    assertNull(changeFeed.changesAfter(7, 0));
+    assertNull(changeFeed.changesAfter(-1, 0));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testWaitForChange() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = new ChangeFeed(16, 1);
+    CountDownLatch waiting = new CountDownLatch(1);
+    Thread publisher = new Thread(() -> {
+      try {
+        waiting.await();
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      changeFeed.publish(ChangeFeed.Type.ADD, person(1));
+    });
+    publisher.start();
+    waiting.countDown();
+    List<ChangeFeed.Change> changes = changeFeed.changesAfter(0, TimeUnit.SECONDS.toMillis(10));
+    assertEquals(1, changes.size());
+    publisher.join();
+    //
+    // Nothing more, so a short wait comes back empty
+    assertTrue(changeFeed.changesAfter(1, 10).isEmpty());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testEventIds() {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = new ChangeFeed(16, 1);
+    changeFeed.publish(ChangeFeed.Type.ADD, person(1));
+    changeFeed.publish(ChangeFeed.Type.ADD, person(2));
+    assertEquals(1, changeFeed.sequenceOf(changeFeed.eventId(1)));
+    // A new client starts from now
+    assertEquals(2, changeFeed.sequenceOf(null));
+    // Another run's IDs (and junk) mean start over
+    assertEquals(-1, changeFeed.sequenceOf("0-1"));
+    assertEquals(-1, changeFeed.sequenceOf(changeFeed.eventId(1) + "x"));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testMaxSubscribers() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = new ChangeFeed(16, 1);
+    EventOutput first = new EventOutput();
+    assertTrue(changeFeed.subscribe(first, 0));
+    assertFalse(changeFeed.subscribe(new EventOutput(), 0));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    ChangeFeed changeFeed = new ChangeFeed(16, 2);
+    EventOutput output = new EventOutput();
+    assertTrue(changeFeed.subscribe(output, 0));
+    changeFeed.shutdown();
+    assertTrue(changeFeed.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(output.isClosed());
+    assertFalse(changeFeed.subscribe(new EventOutput(), 0));
+    // Publishing still works, there's just nobody to send to
+    changeFeed.publish(ChangeFeed.Type.ADD, person(1));
+    assertEquals(1, changeFeed.getLastSequence());
+    log.info("*** END TEST ***");
+  }
+
+  private static Person person(int number) {
+    Person ret = new Person("Change", "Person" + number, 20 + number, EyeColor.GREEN, Gender.FEMALE);
+    ret.setId((long) number);
+    return ret;
+  }
+
+}
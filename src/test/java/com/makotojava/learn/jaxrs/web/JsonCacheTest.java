@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.metrics.MetricsRegistry;
+
+/**
+ * JUnit test class for testing the JsonCache class.
+ *
+ * @author sperry
+ *
+ */
+public class JsonCacheTest {
+
+  private static final Logger log = Logger.getLogger(JsonCacheTest.class);
+
+  @Test
+  public void testEviction() {
+    log.info("*** BEGIN TEST ***");
+    long maxBytes = 64 * 1024;
+    JsonCache cache = new JsonCache(maxBytes, "testEviction");
+    CachedJson hot = json("hot");
+    cache.put("hot", hot, cache.stamp("hot"));
+    for (int aa = 0; aa < 10000; aa++) {
+      String key = "key" + aa;
+      cache.put(key, json(key), cache.stamp(key));
+      //
+      // Used after every put, so it's never the least recently used
+      assertSame(hot, cache.get("hot"));
+      assertTrue(cache.getBytes() <= maxBytes);
+    }
+    assertTrue(cache.getEntries() < 10000);
+    assertNull(cache.get("key0"));
+    MetricsRegistry metrics = MetricsRegistry.instance();
+    assertEquals(10001 - cache.getEntries(),
+        metrics.counter("person_cache_evictions_total", "", "cache", "testEviction").sum());
+    assertEquals(10000, metrics.counter("person_cache_requests_total", "", "cache", "testEviction", "result", "hit")
+        .sum());
+    assertEquals(1, metrics.counter("person_cache_requests_total", "", "cache", "testEviction", "result", "miss")
+        .sum());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testInvalidate() {
+    log.info("*** BEGIN TEST ***");
+    JsonCache cache = new JsonCache(1024 * 1024, "testInvalidate");
+    cache.put("id:1", json("old"), cache.stamp("id:1"));
+    //
+    // A reader misses, and reads the store...
+    long stamp = cache.stamp("id:2");
+    //
+    // ...a writer changes it and invalidates...
+    cache.invalidate("id:1");
+    cache.invalidate("id:2");
+    assertNull(cache.get("id:1"));
+    //
+    // ...and the reader's stale JSON isn't cached
+    cache.put("id:2", json("stale"), stamp);
+    assertNull(cache.get("id:2"));
+    CachedJson json = json("new");
+    cache.put("id:2", json, cache.stamp("id:2"));
+    assertSame(json, cache.get("id:2"));
+    assertEquals(1, cache.getEntries());
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testDisabled() {
+    log.info("*** BEGIN TEST ***");
+    JsonCache cache = new JsonCache(0, "testDisabled");
+    cache.put("id:1", json("any"), cache.stamp("id:1"));
+    assertNull(cache.get("id:1"));
+    assertEquals(0, cache.getBytes());
+    log.info("*** END TEST ***");
+  }
+
+  private static CachedJson json(String value) {
+    return new CachedJson(("{\"value\":\"" + value + "\"}").getBytes(StandardCharsets.UTF_8), new EntityTag(value),
+        new Date(0));
+  }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.util.PersonGenerator;
+
+/**
+ * JUnit test class for testing the PersonBinaryFormat class, and the
+ * PersonBinaryProvider that puts it on the wire.
+ *
+ * @author sperry
+ *
+ */
+public class PersonBinaryFormatTest {
+
+  private static final Logger log = Logger.getLogger(PersonBinaryFormatTest.class);
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    Person stored = new Person("\u014ctani", "Sh\u014dhei", 30, EyeColor.BROWN, Gender.MALE).setId(123456789L)
+        .setWhenCreated(new Date(1500000000000L)).setVersion(7L).setWhenModified(new Date(1500000001234L));
+    assertAllFieldsEqual(stored, read(write(stored)));
+    //
+    // A Person to add has no ID or dates yet, and may be missing anything
+    Person toAdd = new Person(null, "Nobody", -1, null, Gender.UNKNOWN);
+    assertAllFieldsEqual(toAdd, read(write(toAdd)));
+    assertNull(read(write(null)));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testListRoundTrip() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < 300; aa++) {
+      persons.add(PersonGenerator.createPerson().setId((long) aa + 1).setWhenCreated(new Date()).setVersion(1L));
+    }
+    // A batch result has a null for each Person that failed
+    persons.add(null);
+    persons.add(new Person());
+    List<Person> read = readAll(writeAll(persons));
+    assertEquals(persons.size(), read.size());
+    for (int aa = 0; aa < persons.size(); aa++) {
+      assertAllFieldsEqual(persons.get(aa), read.get(aa));
+    }
+    assertTrue(readAll(writeAll(Collections.emptyList())).isEmpty());
+    //
+    // It is a good deal smaller than the JSON
+    byte[] json = ObjectMapperHolder.getObjectMapper().writeValueAsBytes(persons);
+    byte[] binary = writeAll(persons);
+    log.info("JSON: " + json.length + " bytes, binary: " + binary.length + " bytes");
+    assertTrue(binary.length * 2 < json.length);
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testInvalidMessages() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    byte[] message = write(PersonGenerator.createPerson().setId(1L).setWhenCreated(new Date()));
+    try {
+      read(Arrays.copyOf(message, message.length - 1));
+      fail("Read a truncated message");
+    } catch (EOFException e) {
+      log.info("Caught expected exception: " + e);
+    }
+    byte[][] invalid = {
+        // Unknown format version
+        { 2, 0, 0, 0, 0 },
+        // Unknown flags
+        { PersonBinaryFormat.FORMAT_VERSION, 0x40, 0, 0, 0 },
+        // No such eye color
+        { PersonBinaryFormat.FORMAT_VERSION, 0, 0, (byte) (EyeColor.values().length + 1), 0 },
+        // A name far too long
+        { PersonBinaryFormat.FORMAT_VERSION, 0x10, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f },
+    };
+    for (byte[] bytes : invalid) {
+      try {
+        read(bytes);
+        fail("Read an invalid message: " + Arrays.toString(bytes));
+      } catch (IllegalArgumentException e) {
+        log.info("Caught expected exception: " + e);
+      }
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testProvider() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    PersonBinaryProvider provider = new PersonBinaryProvider();
+    MediaType binary = PersonBinaryProvider.APPLICATION_PERSON_BINARY_TYPE;
+    Type personList = new GenericType<List<Person>>() {
+    }.getType();
+    Type stringList = new GenericType<List<String>>() {
+    }.getType();
+    Type personMap = new GenericType<Map<Long, Person>>() {
+    }.getType();
+    assertTrue(provider.isReadable(Person.class, Person.class, null, binary));
+    assertTrue(provider.isReadable(List.class, personList, null, binary));
+    assertFalse(provider.isReadable(List.class, stringList, null, binary));
+    assertFalse(provider.isReadable(Map.class, personMap, null, binary));
+    assertTrue(provider.isWriteable(Person.class, Person.class, null, binary));
+    // What a Response entity looks like
+    assertTrue(provider.isWriteable(ArrayList.class, ArrayList.class, null, binary));
+    assertFalse(provider.isWriteable(List.class, stringList, null, binary));
+    assertFalse(provider.isWriteable(String.class, String.class, null, binary));
+    //
+    // Through the provider and back
+    List<Person> persons = Arrays.asList(PersonGenerator.createPerson(), PersonGenerator.createPerson());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    provider.writeTo(persons, ArrayList.class, ArrayList.class, null, binary, null, out);
+    @SuppressWarnings("unchecked")
+    Class<Object> listClass = (Class<Object>) (Class<?>) List.class;
+    assertEquals(persons,
+        provider.readFrom(listClass, personList, null, binary, null, new ByteArrayInputStream(out.toByteArray())));
+    //
+    // Bad input is a 400
+    try {
+      byte[] truncated = { PersonBinaryFormat.FORMAT_VERSION, 5 };
+      provider.readFrom(listClass, personList, null, binary, null, new ByteArrayInputStream(truncated));
+      fail("Read a truncated list");
+    } catch (BadRequestException e) {
+      assertEquals(400, e.getResponse().getStatus());
+    }
+    log.info("*** END TEST ***");
+  }
+
+  private static void assertAllFieldsEqual(Person expected, Person actual) {
+    // equals() leaves out the fields the data store fills in
+    assertEquals(String.valueOf(expected), String.valueOf(actual));
+    assertEquals(expected, actual);
+  }
+
+  private static byte[] write(Person person) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PersonBinaryFormat.write(out, person);
+    return out.toByteArray();
+  }
+
+  private static byte[] writeAll(List<Person> persons) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PersonBinaryFormat.writeAll(out, persons);
+    return out.toByteArray();
+  }
+
+  private static Person read(byte[] bytes) throws IOException {
+    return PersonBinaryFormat.read(new ByteArrayInputStream(bytes));
+  }
+
+  private static List<Person> readAll(byte[] bytes) throws IOException {
+    return PersonBinaryFormat.readAll(new ByteArrayInputStream(bytes));
+  }
+
+}
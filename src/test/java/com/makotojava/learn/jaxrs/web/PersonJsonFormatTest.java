@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.model.Person.EyeColor;
+import com.makotojava.learn.jaxrs.model.Person.Gender;
+import com.makotojava.learn.jaxrs.util.PersonGenerator;
+
+/**
+ * JUnit test class for testing the PersonJsonFormat class, which must
+ * write exactly what Jackson does.
+ *
+ * @author sperry
+ *
+ */
+public class PersonJsonFormatTest {
+
+  private static final Logger log = Logger.getLogger(PersonJsonFormatTest.class);
+
+  private static final ObjectMapper objectMapper = ObjectMapperHolder.getObjectMapper();
+
+  @Test
+  public void testSameAsJackson() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    for (int aa = 0; aa < 1000; aa++) {
+      Person person = PersonGenerator.createPerson().setId((long) aa * 7919).setWhenCreated(new Date())
+          .setVersion((long) aa).setWhenModified(new Date());
+      assertSameAsJackson(person);
+    }
+    assertSameAsJackson(new Person());
+    assertSameAsJackson(new Person("Last", null, -42, null, Gender.FEMALE).setId(Long.MIN_VALUE)
+        .setVersion(Long.MAX_VALUE).setWhenCreated(new Date(-1)));
+    for (EyeColor eyeColor : EyeColor.values()) {
+      for (Gender gender : Gender.values()) {
+        assertSameAsJackson(new Person("Last", "First", 0, eyeColor, gender));
+      }
+    }
+    //
+    // Every char that's escaped, and some that aren't
+    StringBuilder ascii = new StringBuilder();
+    for (char c = 0; c < 0x80; c++) {
+      ascii.append(c);
+    }
+    assertSameAsJackson(new Person(ascii.toString(), "\"quoted\" back\\slash/", 1, null, null));
+    assertSameAsJackson(new Person("\u00e9\u00df\u07ff\u0800\u20ac\uffff", "\ud83d\ude00 emoji \u2028", 2,
+        null, null));
+    // Even unpaired surrogates
+    assertSameAsJackson(new Person("\ud800", "x\udc00y", 3, null, null));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testListsSameAsJackson() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    List<Person> persons = new ArrayList<>();
+    // Enough to fill the buffer several times over
+    for (int aa = 0; aa < 1000; aa++) {
+      persons.add(PersonGenerator.createPerson().setId((long) aa).setWhenCreated(new Date()));
+    }
+    persons.add(null);
+    assertSameAsJackson(persons);
+    assertSameAsJackson(persons.subList(0, 1));
+    assertSameAsJackson(Collections.emptyList());
+    //
+    // The buffer is used again, and doesn't remember the last time
+    assertSameAsJackson(persons.subList(0, 10));
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testStreamsSameAsJackson() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < 1000; aa++) {
+      persons.add(PersonGenerator.createPerson().setId((long) aa).setWhenCreated(new Date()));
+    }
+    persons.add(null);
+    for (List<Person> list : Arrays.asList(persons, persons.subList(0, 1), Collections.<Person> emptyList())) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new PersonStreamingOutput(list.iterator(), false).write(out);
+      assertArrayEquals(objectMapper.writeValueAsBytes(list), out.toByteArray());
+      //
+      // Newline-delimited: one Person per line
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      for (Person person : list) {
+        expected.write(objectMapper.writeValueAsBytes(person));
+        expected.write('\n');
+      }
+      out = new ByteArrayOutputStream();
+      new PersonStreamingOutput(list.iterator(), true).write(out);
+      assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+    log.info("*** END TEST ***");
+  }
+
+  @Test
+  public void testNotPersons() throws Exception {
+    log.info("*** BEGIN TEST ***");
+    assertTrue(PersonJsonFormat.isPersons(Arrays.asList(new Person(), null)));
+    assertFalse(PersonJsonFormat.isPersons(Arrays.asList(new Person(), "Person")));
+    //
+    // The provider hands them to Jackson
+    List<Object> notPersons = Arrays.asList("one", 2);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new PersonJsonProvider().writeTo(notPersons, ArrayList.class, ArrayList.class, null, null, null, out);
+    assertArrayEquals(objectMapper.writeValueAsBytes(notPersons), out.toByteArray());
+    log.info("*** END TEST ***");
+  }
+
+  private static void assertSameAsJackson(Person person) throws IOException {
+    byte[] expected = objectMapper.writeValueAsBytes(person);
+    assertArrayEquals(new String(expected, "UTF-8"), expected, PersonJsonFormat.toBytes(person));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PersonJsonFormat.write(out, person);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+  private static void assertSameAsJackson(List<Person> persons) throws IOException {
+    byte[] expected = objectMapper.writeValueAsBytes(persons);
+    assertArrayEquals(expected, PersonJsonFormat.toBytes(persons));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PersonJsonFormat.writeAll(out, persons);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Makoto Consulting Group, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.makotojava.learn.jaxrs.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.junit.Test;
+
+import com.makotojava.learn.jaxrs.model.Person;
+import com.makotojava.learn.jaxrs.util.PersonGenerator;
+
+/**
+ * JUnit test class for testing the ResponseLogger class.
+ *
+ * @author sperry
+ *
+ */
+public class ResponseLoggerTest {
+
+  private static final Logger log = Logger.getLogger(ResponseLoggerTest.class);
+
+  @Test
+  public void testTruncatesLongResponses() {
+    log.info("*** BEGIN TEST ***");
+    StringWriter logged = new StringWriter();
+    Logger responseLog = Logger.getLogger(ResponseLoggerTest.class.getName() + ".responses");
+    responseLog.setAdditivity(false);
+    responseLog.addAppender(new WriterAppender(new PatternLayout("%m%n"), logged));
+    ResponseLogger responseLogger = new ResponseLogger(responseLog);
+    //
+    // Nothing is logged (or serialized) unless DEBUG is on
+    responseLog.setLevel(Level.INFO);
+    responseLogger.log(Response.ok("Not logged").build());
+    assertEquals("", logged.toString());
+    responseLog.setLevel(Level.DEBUG);
+    responseLogger.log(Response.ok("Logged").build());
+    assertTrue(logged.toString().contains("Logged"));
+    //
+    // A long one stops at the maximum length
+    List<Person> persons = new ArrayList<>();
+    for (int aa = 0; aa < 1000; aa++) {
+      persons.add(PersonGenerator.createPerson());
+    }
+    logged.getBuffer().setLength(0);
+    responseLogger.log(Response.ok(persons).build());
+    assertTrue(logged.toString().startsWith("Service(s) provided: HTTP 200"));
+    assertTrue(logged.toString().endsWith("... (truncated)" + System.lineSeparator()));
+    assertTrue(logged.toString().length() < ResponseLogger.DEFAULT_MAX_LENGTH + 100);
+    //
+    // As does one from the cache
+    logged.getBuffer().setLength(0);
+    responseLogger.log(Response.ok(PersonJsonFormat.toBytes(persons)).build());
+    assertTrue(logged.toString().contains(" more bytes)"));
+    assertTrue(logged.toString().length() < ResponseLogger.DEFAULT_MAX_LENGTH + 100);
+    log.info("*** END TEST ***");
+  }
+
+}